@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the writes in a {@link MappedDataSyncStore}, compared with the writes in the
+ * in-memory map of the data sync. The 1000 keys are overwritten over and over so the log is
+ * regularly compacted.
+ *
+ * @author Quentin ROY
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataSyncStoreBenchmark {
+    private static final int KEY_COUNT = 1000;
+
+    private final Object[] keys = new Object[KEY_COUNT];
+    private final Map<Object, Object> map = new ConcurrentHashMap<>();
+    private File file;
+    private MappedDataSyncStore store;
+    private int index = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = "key" + i;
+        }
+        file = File.createTempFile("datasync", null);
+        store = new MappedDataSyncStore(file);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public int putInMemory() {
+        index = (index + 1) % KEY_COUNT;
+        map.put(keys[index], index);
+        return index;
+    }
+
+    @Benchmark
+    public int putInStore() {
+        index = (index + 1) % KEY_COUNT;
+        map.put(keys[index], index);
+        store.put(keys[index], index);
+        return index;
+    }
+}
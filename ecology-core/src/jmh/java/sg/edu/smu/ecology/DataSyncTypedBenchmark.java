@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the writes of numbers in a {@link DataSync} between two sends, with
+ * {@link DataSync#setInt(Object, int)} compared with {@link DataSync#setData(Object, Object)}.
+ * The send is never run, so that only the writes are measured: run with {@code -prof gc} to
+ * compare their allocations.
+ *
+ * @author Quentin ROY
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataSyncTypedBenchmark {
+    private DataSync dataSync;
+    // Above the cache of the boxed integers.
+    private int value = 1000;
+
+    @Setup
+    public void setUp() {
+        dataSync = new DataSync(new DataSync.Connector() {
+            @Override
+            public void onMessage(EcologyMessage message) {
+            }
+        }, new DataSync.SyncDataChangeListener() {
+            @Override
+            public void onDataUpdate(Object dataId, Object newValue, Object oldValue) {
+            }
+        }, true, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+            }
+        });
+    }
+
+    @Benchmark
+    public int setData() {
+        value++;
+        dataSync.setData("score", value);
+        return value;
+    }
+
+    @Benchmark
+    public int setInt() {
+        value++;
+        dataSync.setInt("score", value);
+        return value;
+    }
+}
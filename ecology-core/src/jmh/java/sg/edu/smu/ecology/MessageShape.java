@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * The representative messages used by the benchmarks. The arguments are laid out the way the
+ * ecology sends them (routing ids appended at the end).
+ *
+ * @author Quentin ROY
+ */
+public enum MessageShape {
+    /**
+     * A room event with a couple of small arguments (e.g. a button click).
+     */
+    SMALL_EVENT {
+        @Override
+        EcologyMessage createMessage() {
+            return roomEvent(Arrays.<Object>asList("button-ok", 12, true), "click");
+        }
+    },
+    /**
+     * A room event carrying a batch of sensor readings: 32 (x, y, z) float samples and the
+     * timestamp of the batch.
+     */
+    SENSOR_FRAME {
+        @Override
+        EcologyMessage createMessage() {
+            Random random = new Random(SEED);
+            List<Object> samples = new ArrayList<>(96);
+            for (int i = 0; i < 96; i++) {
+                samples.add(random.nextFloat() * 20 - 10);
+            }
+            return roomEvent(Arrays.<Object>asList(samples, 1483228800000.0), "accelerometer");
+        }
+    },
+    /**
+     * A room event carrying a small document of nested maps and lists.
+     */
+    NESTED {
+        @Override
+        EcologyMessage createMessage() {
+            List<Object> items = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                Map<Object, Object> item = new HashMap<>();
+                item.put("id", i);
+                item.put("name", "item-" + i);
+                item.put("position", Arrays.<Object>asList(i * 1.5f, i * 2.5f));
+                item.put("tags", Arrays.<Object>asList("a", "b", "c"));
+                item.put("visible", i % 2 == 0);
+                items.add(item);
+            }
+            Map<Object, Object> document = new HashMap<>();
+            document.put("items", items);
+            document.put("owner", "Phone");
+            document.put("version", 3);
+            return roomEvent(Collections.<Object>singletonList(document), "document");
+        }
+    },
+    /**
+     * A room event carrying a 256 KB binary blob (e.g. a picture).
+     */
+    LARGE_BLOB {
+        @Override
+        EcologyMessage createMessage() {
+            byte[] blob = new byte[256 * 1024];
+            new Random(SEED).nextBytes(blob);
+            return roomEvent(Arrays.<Object>asList("picture.jpg", blob), "picture");
+        }
+    },
+    /**
+     * The response of a data sync reference holding 10 000 entries to a synchronization
+     * request, produced by an actual {@link DataSync}.
+     */
+    DATA_SYNC_SNAPSHOT {
+        @Override
+        EcologyMessage createMessage() {
+            final List<EcologyMessage> sentMessages = new ArrayList<>();
+            DataSync dataSync = new DataSync(new DataSync.Connector() {
+                @Override
+                public void onMessage(EcologyMessage message) {
+                    sentMessages.add(message);
+                }
+            }, new DataSync.SyncDataChangeListener() {
+                @Override
+                public void onDataUpdate(Object dataId, Object newValue, Object oldValue) {
+                }
+            }, true, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            });
+            // The whole snapshot in one message, rather than in chunks.
+            dataSync.setSyncChunkSize(Integer.MAX_VALUE);
+
+            Random random = new Random(SEED);
+            for (int i = 0; i < 10000; i++) {
+                Object value;
+                switch (i % 3) {
+                    case 0:
+                        value = random.nextInt();
+                        break;
+                    case 1:
+                        value = random.nextFloat();
+                        break;
+                    default:
+                        value = "value-" + random.nextInt(1000);
+                }
+                dataSync.setData("key-" + i, value);
+            }
+
+            // Request the snapshot the way a client would.
+            sentMessages.clear();
+            EcologyMessage request = new EcologyMessage(Collections.<Object>singletonList(1));
+            request.setSource("Watch");
+            dataSync.onMessage(request);
+
+            EcologyMessage response = sentMessages.get(0);
+            response.addArgument(SYNC_DATA_MESSAGE_ID);
+            response.setSource("Phone");
+            return response;
+        }
+    };
+
+    private static final long SEED = 42;
+    private static final int SYNC_DATA_MESSAGE_ID = 0;
+    private static final int EVENT_MESSAGE_ID = 1;
+    private static final int ROOM_MESSAGE_ID = 1;
+
+    /**
+     * @return a new message of this shape, with its source and targets set
+     */
+    public EcologyMessage create() {
+        EcologyMessage message = createMessage();
+        if (message.getTargetType() == null) {
+            message.setTargetType(EcologyMessage.TARGET_TYPE_BROADCAST);
+        }
+        if (message.getSource() == null) {
+            message.setSource("Phone");
+        }
+        return message;
+    }
+
+    abstract EcologyMessage createMessage();
+
+    private static EcologyMessage roomEvent(List<Object> eventData, String eventType) {
+        EcologyMessage message = new EcologyMessage(eventData);
+        message.addArgument(eventType);
+        message.addArgument(EVENT_MESSAGE_ID);
+        message.addArgument("room");
+        message.addArgument(ROOM_MESSAGE_ID);
+        return message;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.encoding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.CharacterCodingException;
+import java.util.concurrent.TimeUnit;
+
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.MessageShape;
+
+/**
+ * Benchmarks of {@link MessageDecoder}. The throughput and the latency distribution are both
+ * reported; run with {@code -prof gc} (the default of the gradle jmh task) for the allocations.
+ *
+ * @author Quentin ROY
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDecoderBenchmark {
+    @Param
+    private MessageShape shape;
+
+    private byte[] encodedMessage;
+    private MessageDecoder decoder;
+
+    @Setup
+    public void setUp() throws CharacterCodingException {
+        encodedMessage = new MessageEncoder().encode(shape.create());
+        decoder = new MessageDecoder();
+    }
+
+    /**
+     * Full decoding, as done for the messages delivered to this device.
+     */
+    @Benchmark
+    public EcologyMessage decode() {
+        return decoder.decode(encodedMessage);
+    }
+
+    /**
+     * Header only decoding, as done for the messages the server relays to other devices.
+     */
+    @Benchmark
+    public FrameHeader decodeHeader() {
+        return decoder.decodeHeader(encodedMessage, 0, encodedMessage.length);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.encoding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.concurrent.TimeUnit;
+
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.MessageShape;
+
+/**
+ * Benchmarks of {@link MessageEncoder}. The throughput and the latency distribution are both
+ * reported; run with {@code -prof gc} (the default of the gradle jmh task) for the allocations.
+ *
+ * @author Quentin ROY
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageEncoderBenchmark {
+    @Param
+    private MessageShape shape;
+
+    private EcologyMessage message;
+    private MessageEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        message = shape.create();
+        encoder = new MessageEncoder();
+    }
+
+    /**
+     * Encoding into a new array, as done by the callers that keep the encoded message.
+     */
+    @Benchmark
+    public byte[] encode() throws CharacterCodingException {
+        return encoder.encode(message);
+    }
+
+    /**
+     * Encoding into a pooled frame that is given back right away, as done by the connectors.
+     */
+    @Benchmark
+    public int encodeFrame() throws CharacterCodingException {
+        ByteBuffer frame = encoder.encodeFrame(message);
+        int length = frame.remaining();
+        encoder.release(frame);
+        return length;
+    }
+}
@@ -0,0 +1,2502 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+
+package sg.edu.smu.ecology;
+
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import sg.edu.smu.ecology.encoding.MessageData;
+import sg.edu.smu.ecology.encoding.MessageEncoder;
+
+/**
+ * This class can be used to synchronize any data across the connected devices in the ecology.
+ *
+ * @author Anuroop PATTENA VANIYAR
+ * @author Quentin ROY
+ */
+public class DataSync {
+    private static final String TAG = DataSync.class.getSimpleName();
+    /**
+     * Routing ID for data sync messages
+     */
+    private final static int DATA_SYNC_MESSAGE = 0;
+    /**
+     * Routing ID for data sync message request
+     */
+    private final static int DATA_SYNC_REQUEST = 1;
+    /**
+     * Routing ID for data sync message response
+     */
+    private final static int DATA_SYNC_RESPONSE = 2;
+    /**
+     * Routing ID for the response to a data sync request containing only what changed since the
+     * last synchronization of the requester
+     */
+    private final static int DATA_SYNC_DELTA = 3;
+    /**
+     * Routing ID for data sync removal messages
+     */
+    private final static int DATA_SYNC_REMOVAL = 4;
+    /**
+     * Routing ID for a part of the response to a data sync request, the response ends with a
+     * {@link #DATA_SYNC_RESPONSE} or a {@link #DATA_SYNC_DELTA} message
+     */
+    private final static int DATA_SYNC_CHUNK = 5;
+    /**
+     * Routing ID for data sync patch messages, i.e. a change of a part of a map or list value
+     */
+    private final static int DATA_SYNC_PATCH = 6;
+    /**
+     * Routing ID for data sync CRDT messages, i.e. the changes of the data in CRDT mode
+     */
+    private final static int DATA_SYNC_CRDT = 7;
+    /**
+     * Routing ID for the requests to the reference to run a compare-and-set
+     */
+    private final static int DATA_SYNC_CAS_REQUEST = 8;
+    /**
+     * Routing ID for the outcome of a compare-and-set request
+     */
+    private final static int DATA_SYNC_CAS_RESPONSE = 9;
+    /**
+     * Routing ID for the requests to the reference for the value of an evicted key
+     */
+    private final static int DATA_SYNC_FETCH_REQUEST = 10;
+    /**
+     * Routing ID for the value of an evicted key sent by the reference
+     */
+    private final static int DATA_SYNC_FETCH_RESPONSE = 11;
+    /**
+     * Routing ID for the acknowledgement of a {@link #DATA_SYNC_CHUNK} message: the reference
+     * sends the next chunk once it has been received
+     */
+    private final static int DATA_SYNC_CHUNK_ACK = 12;
+
+    /**
+     * The duration of a tick and the number of buckets of the timer wheel expiring the keys
+     */
+    private static final long TIMER_TICK_DURATION = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+
+    /**
+     * The number of conflicts after which an update fails, see {@link #update(Object, Updater)}
+     */
+    static final int MAX_UPDATE_CONFLICTS = 10;
+
+    /**
+     * The patch operations
+     */
+    private final static int PATCH_MAP_PUT = 0;
+    private final static int PATCH_MAP_REMOVE = 1;
+    private final static int PATCH_LIST_APPEND = 2;
+    private final static int PATCH_LIST_REMOVE = 3;
+
+    /**
+     * The default encoded size, in bytes, of the entries sent in one message when a device is
+     * synchronized.
+     */
+    public static final int DEFAULT_SYNC_CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Notify when the sync data has changed.
+     */
+    private final SyncDataChangeListener dataChangeListener;
+    /**
+     * Notify when a message needs to be forwarded to the corresponding DataSyncs in the other
+     * devices of the ecology.
+     */
+    private final Connector connector;
+    /**
+     * To store the sync data as a key value pair. Its snapshots are used to send a consistent
+     * version of the data.
+     */
+    private final SnapshotHashMap<Object, Object> dataSyncValues = new SnapshotHashMap<>();
+    /**
+     * Whether this device is the sync data reference or not
+     */
+    private boolean isReference;
+
+    /**
+     * Runs the tasks on the ecology thread
+     */
+    private Executor executor;
+
+    /**
+     * Whether data is currently synchronized with the data reference or not.
+     */
+    private boolean isSynchronized = false;
+
+    /**
+     * The versions of the changes of the data (reference only)
+     */
+    private final DataSyncChangeLog changeLog = new DataSyncChangeLog();
+
+    /**
+     * Identifies the change log of the reference: the versions of another log, e.g. after the
+     * reference application has been restarted, are meaningless.
+     */
+    private final long sessionId = new Random().nextLong();
+
+    /**
+     * The session and the version of the reference the data has last been synchronized with,
+     * null if it can not be resumed (non reference only).
+     */
+    private Long syncedSessionId = null;
+    private long syncedVersion = 0;
+
+    /**
+     * Whether the data has been modified while not synchronized: such changes are unknown to the
+     * reference, so the synchronization can not be resumed (non reference only).
+     */
+    private boolean modifiedWhileUnsynchronized = false;
+
+    /**
+     * The encoded size, in bytes, of the entries sent in one message when a device is
+     * synchronized
+     */
+    private int syncChunkSize = DEFAULT_SYNC_CHUNK_SIZE;
+
+    /**
+     * Measures the entries sent when a device is synchronized
+     */
+    private final MessageEncoder messageEncoder = new MessageEncoder();
+
+    /**
+     * Sends the next chunk of the synchronization in progress of each device, once the previous
+     * one has been acknowledged (reference only).
+     */
+    private final Map<String, Runnable> syncStreams = new HashMap<>();
+
+    /**
+     * The keys received since the beginning of the synchronization in progress, null if no
+     * synchronization is in progress (non reference only).
+     */
+    private Set<Object> receivedKeys = null;
+
+    /**
+     * The number of entries received since the beginning of the synchronization in progress
+     * (non reference only).
+     */
+    private int receivedEntryCount = 0;
+
+    /**
+     * The keys changed by this device during the synchronization in progress: their value is
+     * newer than the one received from the reference (non reference only).
+     */
+    private final Set<Object> keysChangedDuringSync = new HashSet<>();
+
+    /**
+     * The messages received from the other devices during the synchronization in progress. They
+     * have been sent after the version of the data being received, so they are applied once it
+     * has been (non reference only).
+     */
+    private List<EcologyMessage> messagesReceivedDuringSync = new ArrayList<>();
+
+    /**
+     * The number of messages sent for each key that can not be coalesced, i.e. the patches and
+     * the messages setting several keys. It is part of the coalescing key of the messages setting
+     * the whole value of a key so that they never overtake such a message sent before them.
+     */
+    private final Map<Object, Integer> uncoalescedMessageCounts = new HashMap<>();
+
+    /**
+     * The updates set but not sent yet, in the order of their first change. They are all sent
+     * in one message when they are flushed, the last value of each key only.
+     */
+    private Map<Object, PendingUpdate> pendingUpdates = new LinkedHashMap<>();
+    /**
+     * Guards pendingUpdates, flushScheduled and openBatches.
+     */
+    private final Object pendingUpdatesLock = new Object();
+    private boolean flushScheduled = false;
+    private int openBatches = 0;
+
+    /**
+     * How long the updates are held before being sent, in milliseconds
+     */
+    private long coalescingWindow = 0;
+
+    /**
+     * Persists the data (reference only), null if it is not persisted
+     */
+    private DataSyncStore store = null;
+
+    /**
+     * The keys of the store whose value has not been loaded yet
+     */
+    private final Set<Object> unloadedKeys = Collections.newSetFromMap(
+            new ConcurrentHashMap<Object, Boolean>());
+
+    /**
+     * Tells which of the values set actually change the data
+     */
+    private final DataSyncChangeDetector changeDetector = new DataSyncChangeDetector();
+
+    /**
+     * The observers of specific keys or key prefixes
+     */
+    private final DataSyncObservers observers = new DataSyncObservers();
+
+    /**
+     * The slots of the values set with the typed accessors, e.g. {@link #setInt(Object, int)}
+     */
+    private final Map<Object, DataSyncSlot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the data is replicated as CRDTs, see {@link #enableCrdtMode()}
+     */
+    private boolean crdtMode = false;
+
+    /**
+     * Stamps the changes made in CRDT mode
+     */
+    private final HybridLogicalClock clock = new HybridLogicalClock(new Random().nextLong());
+
+    /**
+     * The CRDT state of each key, including the removed ones (CRDT mode only). The value of each
+     * key in {@link #dataSyncValues} is the value of its state.
+     */
+    private final SnapshotHashMap<Object, DataSyncCrdt> crdtStates = new SnapshotHashMap<>();
+
+    /**
+     * The keys whose CRDT state holds changes the reference does not know, found during the
+     * synchronization in progress: they are sent once it is over (CRDT mode only).
+     */
+    private final Set<Object> keysAheadOfReference = new HashSet<>();
+
+    /**
+     * The compare-and-set requests sent to the reference and waiting for their outcome, by
+     * request id (non reference only).
+     */
+    private final Map<Integer, CasRequest> casRequests = new HashMap<>();
+    private int nextCasRequestId = 0;
+
+    /**
+     * The time to live of the keys that expire, in milliseconds
+     */
+    private final Map<Object, Long> timesToLive = new ConcurrentHashMap<>();
+
+    /**
+     * Expires the keys, null if the executor can not run delayed tasks
+     */
+    private final DataSyncTimerWheel timerWheel;
+
+    /**
+     * Tells which keys to evict when there are more than the memory budget allows (non
+     * reference only)
+     */
+    private final DataSyncLru lru = new DataSyncLru();
+
+    /**
+     * The keys whose value has been evicted: the reference still has it (non reference only)
+     */
+    private final Set<Object> evictedKeys = Collections.newSetFromMap(
+            new ConcurrentHashMap<Object, Boolean>());
+
+    /**
+     * The evicted keys whose value has been requested to the reference, and the futures waiting
+     * for it (non reference only)
+     */
+    private final Map<Object, List<DataSyncFuture<Object>>> fetches = new HashMap<>();
+
+    /**
+     * Creates a new Data Sync Object that can be used to sync data across the connected devices
+     * part of the ecology.
+     *
+     * @param connector          to notify when a message needs to be forwarded to other devices
+     * @param dataChangeListener to notify when there is a change in sync data value
+     * @param isReference        if this device should be the data reference or not
+     * @param executor           runs the tasks on the thread of the ecology this device is part
+     *                           of
+     */
+    DataSync(Connector connector, SyncDataChangeListener dataChangeListener, boolean isReference,
+             Executor executor) {
+        this.connector = connector;
+        this.dataChangeListener = dataChangeListener;
+        this.isReference = isReference;
+        this.executor = executor;
+        if (executor instanceof DelayedExecutor) {
+            timerWheel = new DataSyncTimerWheel((DelayedExecutor) executor, TIMER_TICK_DURATION,
+                    TIMER_WHEEL_SIZE, new DataSyncTimerWheel.ExpiryListener() {
+                @Override
+                public void onExpired(Object key) {
+                    removeData(key);
+                }
+            });
+        } else {
+            timerWheel = null;
+        }
+    }
+
+    /**
+     * Set the sync data value
+     *
+     * @param key   the key paired to the sync data
+     * @param value the new data
+     */
+    public void setData(Object key, Object value) {
+        if (crdtMode) {
+            if (changeDetector.isChange(key, getData(key), value)) {
+                writeCrdt(key, DataSyncCrdt.Register.write(crdtStates.get(key), clock.newStamp(),
+                        value));
+            }
+            return;
+        }
+        Object oldValue;
+        // The compare-and-sets of the reference must not miss any value.
+        synchronized (dataSyncValues) {
+            evictedKeys.remove(key);
+            oldValue = getData(key);
+            dataSyncValues.put(key, value);
+            slots.remove(key);
+        }
+        lru.touch(key);
+        // Check if old value is not same as the new value
+        if (changeDetector.isChange(key, oldValue, value)) {
+            synchronized (pendingUpdatesLock) {
+                PendingUpdate pendingUpdate = pendingUpdates.get(key);
+                if (pendingUpdate == null) {
+                    pendingUpdates.put(key, new PendingUpdate(oldValue, value));
+                } else {
+                    // Only the last value is sent.
+                    pendingUpdate.newValue = value;
+                    pendingUpdate.slot = null;
+                }
+            }
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Set an int sync data value. The value is written in place: contrary to
+     * {@link #setData(Object, Object)}, it is only boxed when it is sent, once for all the values
+     * set in between. The other devices, the listeners and the snapshots get the value once it
+     * has been sent.
+     *
+     * @param key   the key paired to the sync data
+     * @param value the new data
+     */
+    public void setInt(Object key, int value) {
+        setPrimitive(key, DataSyncSlot.INT, value);
+    }
+
+    /**
+     * Set a long sync data value, written in place (see {@link #setInt(Object, int)}).
+     *
+     * @param key   the key paired to the sync data
+     * @param value the new data
+     */
+    public void setLong(Object key, long value) {
+        setPrimitive(key, DataSyncSlot.LONG, value);
+    }
+
+    /**
+     * Set a float sync data value, written in place (see {@link #setInt(Object, int)}).
+     *
+     * @param key   the key paired to the sync data
+     * @param value the new data
+     */
+    public void setFloat(Object key, float value) {
+        setPrimitive(key, DataSyncSlot.FLOAT, Float.floatToIntBits(value));
+    }
+
+    /**
+     * Set a double sync data value, written in place (see {@link #setInt(Object, int)}).
+     *
+     * @param key   the key paired to the sync data
+     * @param value the new data
+     */
+    public void setDouble(Object key, double value) {
+        setPrimitive(key, DataSyncSlot.DOUBLE, Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Get a sync data value as an int, without boxing it.
+     *
+     * @param key          the key paired to the sync data
+     * @param defaultValue the value to return if the data is not a number
+     * @return the data converted to an int, or the default value
+     */
+    public int getInt(Object key, int defaultValue) {
+        DataSyncSlot slot = getCurrentSlot(key);
+        if (slot != null) {
+            return slot.intValue();
+        }
+        Object value = getData(key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    /**
+     * Get a sync data value as a long, without boxing it.
+     *
+     * @param key          the key paired to the sync data
+     * @param defaultValue the value to return if the data is not a number
+     * @return the data converted to a long, or the default value
+     */
+    public long getLong(Object key, long defaultValue) {
+        DataSyncSlot slot = getCurrentSlot(key);
+        if (slot != null) {
+            return slot.longValue();
+        }
+        Object value = getData(key);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    /**
+     * Get a sync data value as a float, without boxing it.
+     *
+     * @param key          the key paired to the sync data
+     * @param defaultValue the value to return if the data is not a number
+     * @return the data converted to a float, or the default value
+     */
+    public float getFloat(Object key, float defaultValue) {
+        DataSyncSlot slot = getCurrentSlot(key);
+        if (slot != null) {
+            return slot.floatValue();
+        }
+        Object value = getData(key);
+        return value instanceof Number ? ((Number) value).floatValue() : defaultValue;
+    }
+
+    /**
+     * Get a sync data value as a double, without boxing it.
+     *
+     * @param key          the key paired to the sync data
+     * @param defaultValue the value to return if the data is not a number
+     * @return the data converted to a double, or the default value
+     */
+    public double getDouble(Object key, double defaultValue) {
+        DataSyncSlot slot = getCurrentSlot(key);
+        if (slot != null) {
+            return slot.doubleValue();
+        }
+        Object value = getData(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    /**
+     * Write a primitive value in the slot of a key and schedule its sending.
+     *
+     * @param key  the key paired to the sync data
+     * @param type the type of the value
+     * @param bits the value, as stored in the slot
+     */
+    private void setPrimitive(Object key, int type, long bits) {
+        if (crdtMode) {
+            setData(key, DataSyncSlot.box(type, bits));
+            return;
+        }
+        evictedKeys.remove(key);
+        lru.touch(key);
+        DataSyncSlot slot;
+        boolean changed;
+        synchronized (dataSyncValues) {
+            slot = getCurrentSlot(key);
+            if (slot == null || slot.getType() != type) {
+                // Load the stored value, if any.
+                getData(key);
+                Object publishedValue = dataSyncValues.get(key);
+                slot = new DataSyncSlot(type, publishedValue);
+                slots.put(key, slot);
+                changed = slot.set(bits) || DataSyncSlot.typeOf(publishedValue) != type;
+            } else {
+                changed = slot.set(bits);
+            }
+        }
+        if (!changed) {
+            changeDetector.countSuppressedWrite();
+            return;
+        }
+        synchronized (pendingUpdatesLock) {
+            PendingUpdate pendingUpdate = pendingUpdates.get(key);
+            if (pendingUpdate == null) {
+                pendingUpdate = new PendingUpdate(dataSyncValues.get(key), null);
+                pendingUpdates.put(key, pendingUpdate);
+            }
+            pendingUpdate.slot = slot;
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * @param key the key paired to a sync data
+     * @return the slot holding the value of the key, null if its value is not in a slot
+     */
+    private DataSyncSlot getCurrentSlot(Object key) {
+        DataSyncSlot slot = slots.get(key);
+        return slot != null && slot.isCurrent(dataSyncValues.get(key)) ? slot : null;
+    }
+
+    /**
+     * Run updates as a batch: the values set while it runs are sent together, in one message,
+     * once it is over. The values set several times are only sent once, with their last value.
+     * The data is updated locally as usual.
+     *
+     * @param updates sets the values, it is run on the calling thread
+     */
+    public void batch(Runnable updates) {
+        synchronized (pendingUpdatesLock) {
+            openBatches++;
+        }
+        try {
+            updates.run();
+        } finally {
+            synchronized (pendingUpdatesLock) {
+                openBatches--;
+            }
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Set how long the values set are held before being sent, so that the values set within
+     * this window are sent together in one message, and the values set several times only once.
+     * By default, the values are sent by the next task of the ecology thread, so that only the
+     * values set in a row are sent together.
+     *
+     * @param coalescingWindow the window, in milliseconds
+     */
+    public void setCoalescingWindow(long coalescingWindow) {
+        if (coalescingWindow < 0) {
+            throw new IllegalArgumentException("Invalid coalescing window: " + coalescingWindow);
+        }
+        this.coalescingWindow = coalescingWindow;
+    }
+
+    /**
+     * Observe the changes of the data corresponding to a key. The observer is notified on the
+     * thread of the ecology.
+     *
+     * @param key      the key paired to the sync data
+     * @param observer the observer
+     */
+    public void observe(Object key, DataObserver observer) {
+        observers.observe(key, observer, null);
+    }
+
+    /**
+     * Observe the changes of the data corresponding to a key. Contrary to the
+     * {@link Settings#SYNC_DATA} events, the observer is only notified of the changes of this
+     * key.
+     *
+     * @param key      the key paired to the sync data
+     * @param observer the observer
+     * @param executor runs the notifications of the observer, e.g. on the main thread
+     */
+    public void observe(Object key, DataObserver observer, Executor executor) {
+        observers.observe(key, observer, executor);
+    }
+
+    /**
+     * Observe the changes of the data corresponding to all the string keys starting with a
+     * prefix. The observer is notified on the thread of the ecology.
+     *
+     * @param prefix   the prefix of the keys
+     * @param observer the observer
+     */
+    public void observePrefix(String prefix, DataObserver observer) {
+        observers.observePrefix(prefix, observer, null);
+    }
+
+    /**
+     * Observe the changes of the data corresponding to all the string keys starting with a
+     * prefix.
+     *
+     * @param prefix   the prefix of the keys
+     * @param observer the observer
+     * @param executor runs the notifications of the observer, e.g. on the main thread
+     */
+    public void observePrefix(String prefix, DataObserver observer, Executor executor) {
+        observers.observePrefix(prefix, observer, executor);
+    }
+
+    /**
+     * Stop notifying an observer, whatever the keys it observes.
+     *
+     * @param observer the observer
+     */
+    public void removeObserver(DataObserver observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Notify the listener and the observers of a key of a change of its data.
+     *
+     * @param key      the key paired to the sync data
+     * @param newValue the new data, null if it has been removed
+     * @param oldValue the old data, null if it has been added
+     */
+    private void notifyDataUpdate(Object key, Object newValue, Object oldValue) {
+        dataChangeListener.onDataUpdate(key, newValue, oldValue);
+        observers.notifyChange(key, newValue, oldValue);
+        restartTimeToLive(key, newValue == null);
+    }
+
+    /**
+     * Restart the countdown of a key that expires after a change of its value.
+     *
+     * @param key     the key paired to the sync data
+     * @param removal whether the value has been removed
+     */
+    private void restartTimeToLive(Object key, boolean removal) {
+        if (timesToLive.isEmpty()) {
+            return;
+        }
+        Long timeToLive = timesToLive.get(key);
+        if (timeToLive == null) {
+            return;
+        }
+        if (removal) {
+            timerWheel.cancel(key);
+        } else {
+            timerWheel.schedule(key, timeToLive);
+        }
+    }
+
+    /**
+     * Set how the values set are compared to the current data to tell whether they change it.
+     * The values that do not change the data are neither sent to the other devices nor notified
+     * to the listener. By default, only the very same object is considered unchanged.
+     *
+     * @param changeDetection how the values are compared
+     */
+    public void setChangeDetection(ChangeDetection changeDetection) {
+        changeDetector.setChangeDetection(changeDetection);
+    }
+
+    /**
+     * @return how many values set did not change the data, and have therefore not been sent
+     */
+    public long getSuppressedWriteCount() {
+        return changeDetector.getSuppressedWriteCount();
+    }
+
+    /**
+     * Schedule the sending of the pending updates, unless it is already scheduled or a batch is
+     * running.
+     */
+    private void scheduleFlush() {
+        synchronized (pendingUpdatesLock) {
+            if (flushScheduled || openBatches > 0 || pendingUpdates.isEmpty()) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (pendingUpdatesLock) {
+                    flushScheduled = false;
+                    if (openBatches > 0) {
+                        // The end of the batch schedules the flush again.
+                        return;
+                    }
+                }
+                flushPendingUpdates();
+            }
+        };
+        if (coalescingWindow > 0 && executor instanceof DelayedExecutor) {
+            ((DelayedExecutor) executor).executeDelayed(flushTask, coalescingWindow);
+        } else {
+            executor.execute(flushTask);
+        }
+    }
+
+    /**
+     * Send the pending updates in one message and notify the listener.
+     */
+    private void flushPendingUpdates() {
+        Map<Object, PendingUpdate> updates;
+        synchronized (pendingUpdatesLock) {
+            if (pendingUpdates.isEmpty()) {
+                return;
+            }
+            updates = pendingUpdates;
+            pendingUpdates = new LinkedHashMap<>();
+        }
+        List<Object> arguments = new ArrayList<>(updates.size() * 2 + 1);
+        Iterator<Map.Entry<Object, PendingUpdate>> iterator = updates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Object, PendingUpdate> update = iterator.next();
+            PendingUpdate pendingUpdate = update.getValue();
+            if (pendingUpdate.slot != null) {
+                synchronized (dataSyncValues) {
+                    if (slots.get(update.getKey()) != pendingUpdate.slot) {
+                        // Replaced in the meantime: the new value is sent instead.
+                        iterator.remove();
+                        continue;
+                    }
+                    // Boxed once for all the values written in the slot since the last flush.
+                    pendingUpdate.newValue = pendingUpdate.slot.publish();
+                    dataSyncValues.put(update.getKey(), pendingUpdate.newValue);
+                }
+                if (DataSyncChangeDetector.deepEquals(pendingUpdate.oldValue,
+                        pendingUpdate.newValue)) {
+                    iterator.remove();
+                    continue;
+                }
+            } else if (pendingUpdate.delta == null
+                    && !changeDetector.differ(pendingUpdate.oldValue, pendingUpdate.newValue)) {
+                // Set back to its previous value.
+                iterator.remove();
+                continue;
+            }
+            onLocalChange(update.getKey(), false);
+            arguments.add(update.getKey());
+            arguments.add(pendingUpdate.delta == null ? pendingUpdate.newValue :
+                    pendingUpdate.delta.encode());
+        }
+        if (updates.isEmpty()) {
+            return;
+        }
+        arguments.add(crdtMode ? DATA_SYNC_CRDT : DATA_SYNC_MESSAGE);
+        EcologyMessage message = new EcologyMessage(arguments);
+        message.setTargetType(EcologyMessage.TARGET_TYPE_BROADCAST);
+        if (updates.size() == 1 && !crdtMode) {
+            // Only the latest value of a key matters to the other devices.
+            message.setCoalescingKey(getCoalescingKey(updates.keySet().iterator().next()));
+        } else {
+            for (Object key : updates.keySet()) {
+                onUncoalescedMessage(key);
+            }
+        }
+        connector.onMessage(message);
+        for (Map.Entry<Object, PendingUpdate> update : updates.entrySet()) {
+            if (changeDetector.differ(update.getValue().oldValue, update.getValue().newValue)) {
+                notifyDataUpdate(update.getKey(), update.getValue().newValue,
+                        update.getValue().oldValue);
+            }
+        }
+        evictColdKeys();
+    }
+
+    /**
+     * Set the value of a key only if its current value is equal to an expected value. The data
+     * reference runs the compare-and-set requests of all the devices one at a time, so that only
+     * one of concurrent compare-and-sets of the same value succeeds. There is no data reference
+     * to order them in CRDT mode, where they are not available.
+     *
+     * @param key      the key paired to the sync data
+     * @param expected the expected value, null if the key is expected to have no value
+     * @param value    the new value, null to remove the key
+     * @return whether the value has been set, known once the reference has answered. It fails
+     * with an {@link IllegalStateException} if this device gets disconnected from the
+     * reference before.
+     * @throws IllegalStateException in CRDT mode
+     */
+    public DataSyncFuture<Boolean> compareAndSet(Object key, Object expected, Object value) {
+        checkNotCrdtMode();
+        DataSyncFuture<Boolean> future = new DataSyncFuture<>();
+        if (isReference) {
+            future.set(compareAndSetLocally(key, expected, value));
+        } else {
+            sendCasRequest(new CasRequest(key, null, future), expected, value);
+        }
+        return future;
+    }
+
+    /**
+     * Update the value of a key atomically: the new value is computed from the current one, and
+     * set only if the value has not changed in the meantime. Otherwise the new value is computed
+     * again from the value the reference answered with, so that a conflict only costs one more
+     * round trip to the reference. The updater is never called while the data is locked: the
+     * data can be changed while it runs, even on the reference.
+     *
+     * @param key     the key paired to the sync data
+     * @param updater computes the new value, it may be called several times
+     * @return the value set, known once the reference has answered. It fails if the updater
+     * throws, with an {@link IllegalStateException} after {@value #MAX_UPDATE_CONFLICTS}
+     * conflicts, or with an {@link IllegalStateException} if this device gets disconnected from
+     * the reference before.
+     * @throws IllegalStateException in CRDT mode
+     */
+    public DataSyncFuture<Object> update(Object key, Updater updater) {
+        checkNotCrdtMode();
+        DataSyncFuture<Object> future = new DataSyncFuture<>();
+        if (isReference) {
+            for (int conflicts = 0; ; conflicts++) {
+                if (conflicts == MAX_UPDATE_CONFLICTS) {
+                    future.setException(tooManyConflicts(key));
+                    break;
+                }
+                Object current = getData(key);
+                Object value;
+                try {
+                    value = updater.update(current);
+                } catch (RuntimeException e) {
+                    future.setException(e);
+                    break;
+                }
+                if (compareAndSetLocally(key, current, value)) {
+                    future.set(value);
+                    break;
+                }
+            }
+        } else {
+            Object current = getData(key);
+            updateWithRequest(new CasRequest(key, updater, future), current);
+        }
+        return future;
+    }
+
+    /**
+     * Compute the new value of an update and send it to the reference.
+     *
+     * @param request the request of the update
+     * @param current the value to compute the new value from
+     */
+    private void updateWithRequest(CasRequest request, Object current) {
+        Object value;
+        try {
+            value = request.updater.update(current);
+        } catch (RuntimeException e) {
+            request.future.setException(e);
+            return;
+        }
+        sendCasRequest(request, current, value);
+    }
+
+    /**
+     * Run a compare-and-set on this device.
+     *
+     * @return whether the value has been set
+     */
+    private boolean compareAndSetLocally(Object key, Object expected, Object value) {
+        synchronized (dataSyncValues) {
+            // The values may have been received from another device: they are compared by
+            // content.
+            if (!DataSyncChangeDetector.deepEquals(getData(key), expected)) {
+                return false;
+            }
+            setOrRemoveData(key, value);
+            return true;
+        }
+    }
+
+    private void checkNotCrdtMode() {
+        if (crdtMode) {
+            throw new IllegalStateException("The atomic updates are not available in CRDT mode");
+        }
+    }
+
+    private static IllegalStateException tooManyConflicts(Object key) {
+        return new IllegalStateException("Too many conflicting updates of " + key);
+    }
+
+    private void setOrRemoveData(Object key, Object value) {
+        if (value == null) {
+            removeData(key);
+        } else {
+            setData(key, value);
+        }
+    }
+
+    /**
+     * Send a compare-and-set request to the reference.
+     */
+    private void sendCasRequest(final CasRequest request, final Object expected,
+                                final Object value) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!isSynchronized) {
+                    request.future.setException(new IllegalStateException(
+                            "Not connected to the data reference"));
+                    return;
+                }
+                // The values set before must be received before the request.
+                flushPendingUpdates();
+                int requestId = nextCasRequestId++;
+                casRequests.put(requestId, request);
+                EcologyMessage message = new EcologyMessage(Arrays.asList(requestId,
+                        request.key, expected, value, DATA_SYNC_CAS_REQUEST));
+                message.setTargetType(EcologyMessage.TARGET_TYPE_SERVER);
+                connector.onMessage(message);
+            }
+        });
+    }
+
+    /**
+     * When a compare-and-set request is received from a non reference device.
+     *
+     * @param message the request
+     */
+    private void onCasRequest(EcologyMessage message) {
+        Object value = message.fetchArgument();
+        Object expected = message.fetchArgument();
+        Object key = message.fetchArgument();
+        Object requestId = message.fetchArgument();
+        boolean success = compareAndSetLocally(key, expected, value);
+        // The requester receives the new value before the outcome.
+        flushPendingUpdates();
+        EcologyMessage response = new EcologyMessage(Arrays.asList(requestId, success,
+                success ? value : getData(key), DATA_SYNC_CAS_RESPONSE));
+        response.setTargetType(EcologyMessage.TARGET_TYPE_SPECIFIC);
+        response.setTargets(Collections.singletonList(message.getSource()));
+        connector.onMessage(response);
+    }
+
+    /**
+     * When the outcome of a compare-and-set request is received from the reference.
+     *
+     * @param message the outcome
+     */
+    @SuppressWarnings("unchecked")
+    private void onCasResponse(EcologyMessage message) {
+        Object currentValue = message.fetchArgument();
+        boolean success = (Boolean) message.fetchArgument();
+        CasRequest request = casRequests.remove(
+                ((Number) message.fetchArgument()).intValue());
+        if (request == null) {
+            return;
+        }
+        if (request.updater == null) {
+            ((DataSyncFuture<Boolean>) request.future).set(success);
+        } else if (success) {
+            ((DataSyncFuture<Object>) request.future).set(currentValue);
+        } else if (++request.conflicts == MAX_UPDATE_CONFLICTS) {
+            request.future.setException(tooManyConflicts(request.key));
+        } else {
+            // Try again from the value of the reference.
+            updateWithRequest(request, currentValue);
+        }
+    }
+
+    /**
+     * Enable the CRDT mode: the data is replicated as conflict-free replicated data types, so
+     * that every device can change it locally and still hold the same data as the others once
+     * they have received the same changes, whatever their order. The data reference only serves
+     * the data to the devices that connect.
+     * <ul>
+     * <li>The values set with {@link #setData(Object, Object)} are registers: the value set last
+     * wins, as ordered by a hybrid logical clock.</li>
+     * <li>The maps changed with {@link #putMapEntry(Object, Object, Object)} and
+     * {@link #removeMapEntry(Object, Object)} are observed-remove maps: the entries put
+     * concurrently with their removal are kept.</li>
+     * <li>The counters changed with {@link #incrementCounter(Object, long)} count the increments
+     * of all the devices.</li>
+     * </ul>
+     * If a key is concurrently used as several of these types, the counter wins over the map and
+     * the map over the register. A value set over a map or a counter, a counter incremented over
+     * another type, and the removal of a counter, replace it whatever its type: the changes made
+     * concurrently to the previous value are then lost. A counter incremented over a number
+     * counts from it, e.g. <code>setData(key, 5)</code> then
+     * <code>incrementCounter(key, 1)</code> gives 6. The lists are registers.
+     * <p>
+     * It must be enabled on all the devices of the room, before any data is set. The data can
+     * not be persisted in a store in CRDT mode.
+     */
+    public void enableCrdtMode() {
+        if (store != null) {
+            throw new IllegalStateException("The CRDT mode does not support stores");
+        }
+        if (!dataSyncValues.isEmpty()) {
+            throw new IllegalStateException("The CRDT mode must be enabled before any data is set");
+        }
+        if (lru.getMaxKeys() > 0) {
+            throw new IllegalStateException("The CRDT mode does not support memory budgets");
+        }
+        crdtMode = true;
+    }
+
+    /**
+     * Increment a counter sync data value (CRDT mode only). The increments made concurrently by
+     * several devices all count.
+     *
+     * @param key   the key paired to the sync data, its value is a {@link Long}
+     * @param delta the increment, negative to decrement
+     * @throws IllegalArgumentException if the value of the key is neither a counter nor a number
+     */
+    public void incrementCounter(Object key, long delta) {
+        if (!crdtMode) {
+            throw new IllegalStateException("The counters require the CRDT mode");
+        }
+        if (delta != 0) {
+            writeCrdt(key, DataSyncCrdt.Counter.increment(crdtStates.get(key), delta, clock));
+        }
+    }
+
+    /**
+     * Merge a local change in the CRDT state of a key and schedule its sending.
+     *
+     * @param key   the key paired to the sync data
+     * @param delta the delta state of the change
+     */
+    private void writeCrdt(Object key, DataSyncCrdt delta) {
+        Object oldValue;
+        Object newValue;
+        synchronized (dataSyncValues) {
+            oldValue = dataSyncValues.get(key);
+            if (mergeCrdtState(key, delta) == null) {
+                return;
+            }
+            newValue = dataSyncValues.get(key);
+        }
+        queueCrdtDelta(key, delta, oldValue, newValue);
+        scheduleFlush();
+    }
+
+    /**
+     * Add a delta state to the pending updates, merged with the pending delta of its key.
+     *
+     * @param key      the key paired to the sync data
+     * @param delta    the delta state
+     * @param oldValue the value of the key before the change
+     * @param newValue the value of the key after the change
+     */
+    private void queueCrdtDelta(Object key, DataSyncCrdt delta, Object oldValue,
+                                Object newValue) {
+        synchronized (pendingUpdatesLock) {
+            PendingUpdate pendingUpdate = pendingUpdates.get(key);
+            if (pendingUpdate == null) {
+                pendingUpdate = new PendingUpdate(oldValue, newValue);
+                pendingUpdates.put(key, pendingUpdate);
+            } else {
+                pendingUpdate.newValue = newValue;
+            }
+            pendingUpdate.delta = delta.merge(pendingUpdate.delta);
+        }
+    }
+
+    /**
+     * Merge a state in the CRDT state of a key and update its value. The caller must hold the
+     * lock of {@link #dataSyncValues}.
+     *
+     * @param key   the key paired to the sync data
+     * @param state the state to merge
+     * @return the merged state, null if the state of the key did not change
+     */
+    private DataSyncCrdt mergeCrdtState(Object key, DataSyncCrdt state) {
+        DataSyncCrdt currentState = crdtStates.get(key);
+        DataSyncCrdt mergedState = currentState == null ? state : currentState.merge(state);
+        if (mergedState == currentState) {
+            return null;
+        }
+        crdtStates.put(key, mergedState);
+        Object value = mergedState.getValue();
+        if (value == null) {
+            dataSyncValues.remove(key);
+        } else {
+            dataSyncValues.put(key, value);
+        }
+        return mergedState;
+    }
+
+    /**
+     * Apply a CRDT state received from another device.
+     *
+     * @param key   the key paired to the sync data
+     * @param state the state
+     */
+    private void applyCrdtState(Object key, DataSyncCrdt state) {
+        clock.update(state.getLatestTime());
+        Object oldValue;
+        Object newValue;
+        synchronized (dataSyncValues) {
+            oldValue = dataSyncValues.get(key);
+            if (mergeCrdtState(key, state) == null) {
+                return;
+            }
+            newValue = dataSyncValues.get(key);
+        }
+        if (isReference) {
+            recordReferenceChange(key, false);
+        }
+        if (oldValue != newValue) {
+            notifyDataUpdate(key, newValue, oldValue);
+        }
+    }
+
+    /**
+     * Remove a sync data value
+     *
+     * @param key the key paired to the sync data
+     */
+    public void removeData(final Object key) {
+        if (crdtMode) {
+            DataSyncCrdt state = crdtStates.get(key);
+            if (state != null && state.getValue() != null) {
+                changeDetector.forget(key);
+                writeCrdt(key, state.removal(clock.newStamp()));
+            }
+            return;
+        }
+        slots.remove(key);
+        synchronized (pendingUpdatesLock) {
+            PendingUpdate pendingUpdate = pendingUpdates.get(key);
+            if (pendingUpdate != null && pendingUpdate.slot != null) {
+                // The value of the slot must not be sent after the removal.
+                pendingUpdates.remove(key);
+            }
+        }
+        // The reference still has the value of an evicted key.
+        final boolean evicted = evictedKeys.remove(key);
+        lru.remove(key);
+        final Object oldValue;
+        synchronized (dataSyncValues) {
+            getData(key);
+            oldValue = dataSyncValues.remove(key);
+        }
+        changeDetector.forget(key);
+        if (oldValue != null || evicted) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // The values set before must not be received after the removal.
+                    flushPendingUpdates();
+                    onLocalChange(key, true);
+                    EcologyMessage message = new EcologyMessage(Arrays.asList(key,
+                            DATA_SYNC_REMOVAL));
+                    message.setTargetType(EcologyMessage.TARGET_TYPE_BROADCAST);
+                    message.setCoalescingKey(getCoalescingKey(key));
+                    connector.onMessage(message);
+                    if (oldValue != null) {
+                        notifyDataUpdate(key, null, oldValue);
+                    } else {
+                        restartTimeToLive(key, true);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Put an entry in a map sync data value. Only the entry is sent to the other devices, where
+     * it is put in their own copy of the map. The map is copied rather than modified, so that
+     * the listeners are given both the old and the new maps.
+     *
+     * @param key        the key paired to the sync data, its value must be a map or null (an
+     *                   empty map is then created)
+     * @param entryKey   the key of the entry
+     * @param entryValue the value of the entry
+     */
+    public void putMapEntry(Object key, Object entryKey, Object entryValue) {
+        if (crdtMode) {
+            writeCrdt(key, DataSyncCrdt.ObservedRemoveMap.put(crdtStates.get(key), entryKey,
+                    entryValue, clock));
+            return;
+        }
+        patchData(key, Arrays.asList(entryKey, entryValue, PATCH_MAP_PUT));
+    }
+
+    /**
+     * Remove an entry from a map sync data value. Only the key of the entry is sent to the other
+     * devices. Nothing happens if the map does not contain the entry.
+     *
+     * @param key      the key paired to the sync data, its value must be a map or null
+     * @param entryKey the key of the entry
+     */
+    public void removeMapEntry(Object key, Object entryKey) {
+        if (crdtMode) {
+            DataSyncCrdt delta = DataSyncCrdt.ObservedRemoveMap.remove(crdtStates.get(key),
+                    entryKey, clock);
+            if (delta != null) {
+                writeCrdt(key, delta);
+            }
+            return;
+        }
+        patchData(key, Arrays.asList(entryKey, PATCH_MAP_REMOVE));
+    }
+
+    /**
+     * Append an element to a list sync data value. Only the element is sent to the other
+     * devices, where it is appended to their own copy of the list. The list is copied rather
+     * than modified, so that the listeners are given both the old and the new lists.
+     *
+     * @param key     the key paired to the sync data, its value must be a list or null (an empty
+     *                list is then created)
+     * @param element the element
+     */
+    public void appendListElement(Object key, Object element) {
+        patchData(key, Arrays.asList(element, PATCH_LIST_APPEND));
+    }
+
+    /**
+     * Remove an element from a list sync data value. Only the index of the element is sent to
+     * the other devices.
+     *
+     * @param key   the key paired to the sync data, its value must be a list
+     * @param index the index of the element
+     */
+    public void removeListElement(Object key, int index) {
+        patchData(key, Arrays.<Object>asList(index, PATCH_LIST_REMOVE));
+    }
+
+    /**
+     * Apply a patch to a sync data value and send it to the other devices.
+     *
+     * @param key   the key paired to the sync data
+     * @param patch the operands of the patch followed by its operation
+     */
+    private void patchData(final Object key, final List<Object> patch) {
+        if (crdtMode) {
+            // The lists are registers.
+            Object value = getData(key);
+            Object newValue = applyPatch(value, new ArrayList<>(patch));
+            if (newValue != value) {
+                writeCrdt(key, DataSyncCrdt.Register.write(crdtStates.get(key), clock.newStamp(),
+                        newValue));
+            }
+            return;
+        }
+        final Object oldValue;
+        final Object newValue;
+        // The value of an evicted key is only patched by the reference, it is fetched patched.
+        final boolean evicted = evictedKeys.contains(key);
+        // Prevent concurrent patches of the same value from overwriting each other.
+        synchronized (dataSyncValues) {
+            if (evicted) {
+                oldValue = null;
+                newValue = null;
+            } else {
+                oldValue = getData(key);
+                newValue = applyPatch(oldValue, new ArrayList<>(patch));
+                if (newValue == oldValue) {
+                    return;
+                }
+                dataSyncValues.put(key, newValue);
+            }
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The patch applies to the values set before.
+                flushPendingUpdates();
+                onLocalChange(key, false);
+                List<Object> arguments = new ArrayList<>(patch.size() + 2);
+                arguments.add(key);
+                arguments.addAll(patch);
+                arguments.add(DATA_SYNC_PATCH);
+                EcologyMessage message = new EcologyMessage(arguments);
+                message.setTargetType(EcologyMessage.TARGET_TYPE_BROADCAST);
+                // A patch depends on the value before it: it is never coalesced.
+                onUncoalescedMessage(key);
+                connector.onMessage(message);
+                if (evicted) {
+                    restartTimeToLive(key, false);
+                } else {
+                    notifyDataUpdate(key, newValue, oldValue);
+                }
+            }
+        });
+    }
+
+    /**
+     * Apply a patch to a copy of a value.
+     *
+     * @param value the value, a map, a list or null
+     * @param patch the operands of the patch followed by its operation, it is consumed from the
+     *              end
+     * @return the patched copy of the value, or the value itself if the patch does not change it
+     */
+    private static Object applyPatch(Object value, List<Object> patch) {
+        int operation = ((Number) patch.remove(patch.size() - 1)).intValue();
+        switch (operation) {
+            case PATCH_MAP_PUT: {
+                Object entryValue = patch.remove(patch.size() - 1);
+                Object entryKey = patch.remove(patch.size() - 1);
+                Map<Object, Object> map = value == null ? new HashMap<>() :
+                        new HashMap<>(castToMap(value));
+                map.put(entryKey, entryValue);
+                return map;
+            }
+            case PATCH_MAP_REMOVE: {
+                Object entryKey = patch.remove(patch.size() - 1);
+                if (value == null || !castToMap(value).containsKey(entryKey)) {
+                    return value;
+                }
+                Map<Object, Object> map = new HashMap<>(castToMap(value));
+                map.remove(entryKey);
+                return map;
+            }
+            case PATCH_LIST_APPEND: {
+                Object element = patch.remove(patch.size() - 1);
+                List<Object> list = value == null ? new ArrayList<>() :
+                        new ArrayList<>(castToList(value));
+                list.add(element);
+                return list;
+            }
+            case PATCH_LIST_REMOVE: {
+                int index = ((Number) patch.remove(patch.size() - 1)).intValue();
+                List<Object> list = value == null ? new ArrayList<>() :
+                        new ArrayList<>(castToList(value));
+                list.remove(index);
+                return list;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown patch operation: " + operation);
+        }
+    }
+
+    private static Map<?, ?> castToMap(Object value) {
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException("Not a map: " + value);
+        }
+        return (Map<?, ?>) value;
+    }
+
+    private static List<?> castToList(Object value) {
+        if (!(value instanceof List)) {
+            throw new IllegalArgumentException("Not a list: " + value);
+        }
+        return (List<?>) value;
+    }
+
+    /**
+     * @param key the key paired to a sync data
+     * @return the coalescing key of the messages setting or removing the whole value of the key
+     */
+    private Object getCoalescingKey(Object key) {
+        Integer count = uncoalescedMessageCounts.get(key);
+        return Arrays.asList(this, key, count == null ? 0 : count);
+    }
+
+    /**
+     * Record that a message that can not be coalesced has been sent for a key.
+     *
+     * @param key the key paired to a sync data
+     */
+    private void onUncoalescedMessage(Object key) {
+        Integer count = uncoalescedMessageCounts.get(key);
+        uncoalescedMessageCounts.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Record a change made on this device
+     *
+     * @param key     the key of the changed data
+     * @param removal whether the data has been removed
+     */
+    private void onLocalChange(Object key, boolean removal) {
+        if (isReference) {
+            recordReferenceChange(key, removal);
+        } else if (!isSynchronized) {
+            modifiedWhileUnsynchronized = true;
+            if (receivedKeys != null) {
+                // Newer than what the synchronization in progress sends.
+                receivedKeys.add(key);
+                keysChangedDuringSync.add(key);
+            }
+        }
+    }
+
+    /**
+     * Set the encoded size of the entries sent in one message when a device is synchronized. The
+     * data of the reference is sent as a stream of such messages so that, whatever its size, it
+     * does not hold the connection for long and can be applied bit by bit by the receiver. Each
+     * message is sent once the previous one has been received, so the stream never fills the
+     * outbound queue of the connection.
+     *
+     * @param syncChunkSize the size, in bytes, from which no more entries are added to a
+     *                      message. An entry bigger than this is sent on its own.
+     */
+    public void setSyncChunkSize(int syncChunkSize) {
+        if (syncChunkSize < 1) {
+            throw new IllegalArgumentException("Invalid chunk size: " + syncChunkSize);
+        }
+        this.syncChunkSize = syncChunkSize;
+    }
+
+    /**
+     * Get the sync data value corresponding to the key. This never sends anything: if the value
+     * has been evicted to respect the memory budget, null is returned (see
+     * {@link #isEvicted(Object)}) and it has to be fetched explicitly from the reference with
+     * {@link #fetchData(Object)}.
+     *
+     * @param key the key paired to the sync data
+     * @return the corresponding sync data value, or null if there is none or if it has been
+     * evicted
+     */
+    public Object getData(Object key) {
+        DataSyncSlot slot = getCurrentSlot(key);
+        if (slot != null) {
+            lru.touch(key);
+            return slot.getValue();
+        }
+        Object value = dataSyncValues.get(key);
+        if (value == null && unloadedKeys.contains(key)) {
+            value = loadStoredValue(key);
+        }
+        if (value != null) {
+            lru.touch(key);
+        }
+        return value;
+    }
+
+    /**
+     * @param key the key paired to the sync data
+     * @return true if the value of the key has been evicted to respect the memory budget: it is
+     * still part of the data, but only the reference has it
+     */
+    public boolean isEvicted(Object key) {
+        return evictedKeys.contains(key);
+    }
+
+    /**
+     * Get the sync data value corresponding to the key, fetching it from the reference if it has
+     * been evicted to respect the memory budget.
+     *
+     * @param key the key paired to the sync data
+     * @return the value, known right away unless it has been evicted. It fails with an
+     * {@link IllegalStateException} if this device gets disconnected from the reference before.
+     */
+    public DataSyncFuture<Object> fetchData(Object key) {
+        DataSyncFuture<Object> future = new DataSyncFuture<>();
+        if (evictedKeys.contains(key)) {
+            requestEvictedValue(key, future);
+        } else {
+            future.set(getData(key));
+        }
+        return future;
+    }
+
+    /**
+     * Request the value of an evicted key to the reference, unless it has already been.
+     *
+     * @param key    the key paired to the sync data
+     * @param future to complete with the value
+     */
+    private void requestEvictedValue(final Object key, DataSyncFuture<Object> future) {
+        synchronized (fetches) {
+            List<DataSyncFuture<Object>> futures = fetches.get(key);
+            boolean requested = futures != null;
+            if (!requested) {
+                futures = new ArrayList<>();
+                fetches.put(key, futures);
+            }
+            futures.add(future);
+            if (requested) {
+                return;
+            }
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!isSynchronized) {
+                    failFetch(key);
+                    return;
+                }
+                EcologyMessage message = new EcologyMessage(Arrays.asList(key,
+                        DATA_SYNC_FETCH_REQUEST));
+                message.setTargetType(EcologyMessage.TARGET_TYPE_SERVER);
+                connector.onMessage(message);
+            }
+        });
+    }
+
+    /**
+     * Fail the futures waiting for the value of an evicted key, and forget its request.
+     *
+     * @param key the key paired to the sync data
+     */
+    private void failFetch(Object key) {
+        List<DataSyncFuture<Object>> futures;
+        synchronized (fetches) {
+            futures = fetches.remove(key);
+        }
+        if (futures != null) {
+            for (DataSyncFuture<Object> future : futures) {
+                future.setException(new IllegalStateException(
+                        "Not connected to the data reference"));
+            }
+        }
+    }
+
+    /**
+     * When a request for the value of an evicted key is received from a non reference device.
+     *
+     * @param message the request
+     */
+    private void onFetchRequest(EcologyMessage message) {
+        Object key = message.fetchArgument();
+        // The values set before must be received first.
+        flushPendingUpdates();
+        EcologyMessage response = new EcologyMessage(Arrays.asList(key, getData(key),
+                DATA_SYNC_FETCH_RESPONSE));
+        response.setTargetType(EcologyMessage.TARGET_TYPE_SPECIFIC);
+        response.setTargets(Collections.singletonList(message.getSource()));
+        connector.onMessage(response);
+    }
+
+    /**
+     * When the value of an evicted key is received from the reference.
+     *
+     * @param message the response
+     */
+    private void onFetchResponse(EcologyMessage message) {
+        Object value = message.fetchArgument();
+        Object key = message.fetchArgument();
+        // The key may have been received or set in the meantime.
+        if (evictedKeys.remove(key) && value != null) {
+            dataSyncValues.put(key, value);
+            lru.touch(key);
+        }
+        List<DataSyncFuture<Object>> futures;
+        synchronized (fetches) {
+            futures = fetches.remove(key);
+        }
+        if (futures != null) {
+            Object currentValue = getData(key);
+            for (DataSyncFuture<Object> future : futures) {
+                future.set(currentValue);
+            }
+        }
+    }
+
+    /**
+     * Set how long a key lives: its value is removed, on all the devices, once it has not
+     * changed for this long. Each change of the value, on any device, restarts the countdown of
+     * this device. The keys are expired by a single timer wheel on the ecology thread, with a
+     * precision of a tenth of a second, whatever their number.
+     *
+     * @param key        the key paired to the sync data
+     * @param timeToLive the time to live, in milliseconds, 0 to never expire the key
+     */
+    public void setTimeToLive(Object key, long timeToLive) {
+        if (timeToLive <= 0) {
+            timesToLive.remove(key);
+            if (timerWheel != null) {
+                timerWheel.cancel(key);
+            }
+            return;
+        }
+        if (timerWheel == null) {
+            throw new IllegalStateException("The ecology executor can not expire keys");
+        }
+        timesToLive.put(key, timeToLive);
+        if (dataSyncValues.containsKey(key) || evictedKeys.contains(key)) {
+            timerWheel.schedule(key, timeToLive);
+        }
+    }
+
+    /**
+     * Set the maximum number of keys whose value this device keeps in memory. Once there are
+     * more, the values of the least recently used keys are evicted: they are not removed from
+     * the data, {@link #getData(Object)} returns null for them and they are fetched again from the
+     * reference with {@link #fetchData(Object)}. The values that
+     * have not been sent yet are never evicted, and the evicted values are not part of the
+     * snapshots. The data reference keeps all the data, so the budget only applies to the other
+     * devices, and not in CRDT mode.
+     *
+     * @param maxKeys the maximum number of keys, 0 for no budget
+     */
+    public void setMemoryBudget(int maxKeys) {
+        if (maxKeys < 0) {
+            throw new IllegalArgumentException("Invalid memory budget: " + maxKeys);
+        }
+        if (isReference) {
+            throw new IllegalStateException("The data reference keeps all the data");
+        }
+        if (crdtMode) {
+            throw new IllegalStateException("The CRDT mode does not support memory budgets");
+        }
+        lru.setMaxKeys(maxKeys);
+        for (Object key : dataSyncValues.keySet()) {
+            lru.touch(key);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                evictColdKeys();
+            }
+        });
+    }
+
+    /**
+     * Evict the values of the least recently used keys until the memory budget is respected.
+     * Nothing is evicted while the data is not synchronized with the reference: the evicted
+     * values could not be fetched again.
+     */
+    private void evictColdKeys() {
+        int maxKeys = lru.getMaxKeys();
+        if (maxKeys == 0 || !isSynchronized) {
+            return;
+        }
+        List<Object> pendingKeys = new ArrayList<>();
+        while (dataSyncValues.size() > maxKeys) {
+            Object key = lru.pollEldest();
+            if (key == null) {
+                break;
+            }
+            boolean pending;
+            synchronized (pendingUpdatesLock) {
+                pending = pendingUpdates.containsKey(key);
+            }
+            if (pending) {
+                pendingKeys.add(key);
+            } else if (dataSyncValues.remove(key) != null) {
+                slots.remove(key);
+                changeDetector.forget(key);
+                evictedKeys.add(key);
+            }
+        }
+        for (Object key : pendingKeys) {
+            lru.touch(key);
+        }
+    }
+
+    /**
+     * Get a snapshot of the sync data: a consistent copy of all the data at the time of the call
+     * that never changes. It is taken in constant time, whatever the size of the data (the data
+     * not loaded yet from the store is loaded first).
+     *
+     * @return the snapshot, an immutable map
+     */
+    public Map<Object, Object> snapshot() {
+        if (!unloadedKeys.isEmpty()) {
+            for (Object key : new ArrayList<>(unloadedKeys)) {
+                getData(key);
+            }
+        }
+        return dataSyncValues.snapshot();
+    }
+
+    /**
+     * Persist the data of this device, which must be the data reference, in a store. The data
+     * already in the store is loaded lazily, the first time each key is read, so that large data
+     * does not slow the start of the application down. The data already set is written to the
+     * store.
+     *
+     * @param store the store
+     */
+    public void setStore(DataSyncStore store) {
+        if (!isReference) {
+            throw new IllegalStateException("Only the data reference can have a store");
+        }
+        if (crdtMode) {
+            throw new IllegalStateException("The CRDT mode does not support stores");
+        }
+        this.store = store;
+        for (Object key : store.keys()) {
+            if (!dataSyncValues.containsKey(key)) {
+                unloadedKeys.add(key);
+            }
+        }
+        for (Map.Entry<Object, Object> entry : dataSyncValues.entrySet()) {
+            store.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Erase the data persisted in the store. The values not loaded from it yet are lost, the
+     * other values are kept in memory.
+     */
+    public void clearStore() {
+        if (store == null) {
+            throw new IllegalStateException("No store has been set");
+        }
+        synchronized (dataSyncValues) {
+            unloadedKeys.clear();
+            store.clear();
+        }
+    }
+
+    /**
+     * Load the value of a key from the store.
+     *
+     * @param key the key paired to the sync data
+     * @return its value
+     */
+    private Object loadStoredValue(Object key) {
+        synchronized (dataSyncValues) {
+            if (!unloadedKeys.contains(key)) {
+                // Loaded in the meantime.
+                return dataSyncValues.get(key);
+            }
+            Object value = store.get(key);
+            if (value != null) {
+                dataSyncValues.put(key, value);
+            }
+            unloadedKeys.remove(key);
+            return value;
+        }
+    }
+
+    /**
+     * Record a change of the data of the reference.
+     *
+     * @param key     the key of the changed data
+     * @param removal whether the data has been removed
+     */
+    private void recordReferenceChange(Object key, boolean removal) {
+        if (removal) {
+            changeLog.recordRemoval(key);
+        } else {
+            changeLog.recordChange(key);
+        }
+        if (store != null) {
+            Object value = dataSyncValues.get(key);
+            if (value == null) {
+                store.remove(key);
+            } else {
+                store.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Handle message from the corresponding DataSync instances in the other devices of the ecology.
+     *
+     * @param message the content of the message
+     */
+    void onMessage(EcologyMessage message) {
+        Integer messageIndicator = (Integer) message.fetchArgument();
+
+        if (receivedKeys != null && (messageIndicator == DATA_SYNC_MESSAGE
+                || messageIndicator == DATA_SYNC_REMOVAL || messageIndicator == DATA_SYNC_PATCH)) {
+            // Applied once the synchronization in progress is over.
+            message.addArgument(messageIndicator);
+            messagesReceivedDuringSync.add(message);
+            return;
+        }
+
+        switch (messageIndicator) {
+            case DATA_SYNC_MESSAGE:
+                onDataSyncMessage(message);
+                break;
+
+            case DATA_SYNC_REMOVAL:
+                onDataSyncRemovalMessage(message);
+                break;
+
+            case DATA_SYNC_REQUEST:
+                onDataSyncRequest(message);
+                break;
+
+            case DATA_SYNC_RESPONSE:
+                onDataSyncResponse(message);
+                break;
+
+            case DATA_SYNC_DELTA:
+                onDataSyncDelta(message);
+                break;
+
+            case DATA_SYNC_CHUNK:
+                onDataSyncChunk(message);
+                break;
+
+            case DATA_SYNC_CHUNK_ACK:
+                onDataSyncChunkAck(message);
+                break;
+
+            case DATA_SYNC_PATCH:
+                onDataSyncPatchMessage(message);
+                break;
+
+            case DATA_SYNC_CRDT:
+                onDataSyncCrdtMessage(message);
+                break;
+
+            case DATA_SYNC_CAS_REQUEST:
+                onCasRequest(message);
+                break;
+
+            case DATA_SYNC_CAS_RESPONSE:
+                onCasResponse(message);
+                break;
+
+            case DATA_SYNC_FETCH_REQUEST:
+                onFetchRequest(message);
+                break;
+
+            case DATA_SYNC_FETCH_RESPONSE:
+                onFetchResponse(message);
+                break;
+        }
+        evictColdKeys();
+    }
+
+    /**
+     * This method is called when this device is connected to the data reference device.
+     */
+    void onConnected() {
+        // Once the connection is established, data synchronization is requested.
+        requestDataSynchronization();
+    }
+
+    /**
+     * This method is called when the device is disconnected from the data reference device
+     */
+    void onDisconnected() {
+        isSynchronized = false;
+        // The rest of a synchronization in progress will never arrive.
+        receivedKeys = null;
+        keysChangedDuringSync.clear();
+        messagesReceivedDuringSync.clear();
+        keysAheadOfReference.clear();
+        // The reference will not answer the requests.
+        for (CasRequest request : casRequests.values()) {
+            request.future.setException(new IllegalStateException(
+                    "Disconnected from the data reference"));
+        }
+        casRequests.clear();
+        List<Object> fetchedKeys;
+        synchronized (fetches) {
+            fetchedKeys = new ArrayList<>(fetches.keySet());
+        }
+        for (Object key : fetchedKeys) {
+            failFetch(key);
+        }
+    }
+
+    /**
+     * To request for the current sync data from the reference
+     */
+    private void requestDataSynchronization() {
+        if (!isReference) {
+            EcologyMessage message;
+            if (syncedSessionId != null && !modifiedWhileUnsynchronized) {
+                // Only ask for what changed since the last synchronization
+                message = new EcologyMessage(Arrays.<Object>asList(syncedSessionId,
+                        syncedVersion, DATA_SYNC_REQUEST));
+            } else {
+                message = new EcologyMessage(Collections.<Object>singletonList(
+                        DATA_SYNC_REQUEST));
+            }
+            message.setTargetType(EcologyMessage.TARGET_TYPE_SERVER);
+            connector.onMessage(message);
+        }
+    }
+
+    /**
+     * To check if the data sync is currently synchronized with the data reference or not
+     *
+     * @return true if data sync is synchronized with the data reference
+     */
+    boolean isSynchronized() {
+        return isSynchronized;
+    }
+
+    /**
+     * Clear the current sync data from memory. The data persisted in the store, if any, is kept:
+     * it is loaded again the first time each key is read.
+     */
+    void clear() {
+        for (Object key : dataSyncValues.keySet()) {
+            Object oldValue = dataSyncValues.get(key);
+            notifyDataUpdate(key, null, oldValue);
+        }
+        dataSyncValues.clear();
+        crdtStates.clear();
+        slots.clear();
+        unloadedKeys.clear();
+        evictedKeys.clear();
+        lru.clear();
+        if (timerWheel != null) {
+            timerWheel.clear();
+        }
+        if (store != null) {
+            unloadedKeys.addAll(store.keys());
+        }
+        synchronized (pendingUpdatesLock) {
+            pendingUpdates.clear();
+        }
+        changeDetector.clear();
+        changeLog.reset();
+        // There is nothing left to resume from.
+        syncedSessionId = null;
+        modifiedWhileUnsynchronized = false;
+    }
+
+    /**
+     * This method is called when a device has left the ecology.
+     *
+     * @param deviceId the id of the device
+     */
+    void onDeviceDisconnected(String deviceId) {
+        // Its synchronization in progress will never be acknowledged.
+        syncStreams.remove(deviceId);
+    }
+
+    /**
+     * When a request for the data is received from a non reference device. If the requester
+     * tells which version of the data it has already been synchronized with, and if the change
+     * log still knows what changed since, only the changes are sent.
+     *
+     * @param message the request
+     */
+    private void onDataSyncRequest(EcologyMessage message) {
+        if (message.getArguments().size() >= 2) {
+            long sinceVersion = ((Number) message.fetchArgument()).longValue();
+            long requestedSessionId = ((Number) message.fetchArgument()).longValue();
+            if (requestedSessionId == sessionId) {
+                DataSyncChangeLog.Changes changes = changeLog.getChangesSince(sinceVersion);
+                if (changes != null) {
+                    sendRefSyncDelta(message.getSource(), changes);
+                    return;
+                }
+            }
+        }
+        sendRefSyncData(message.getSource());
+    }
+
+    /**
+     * Send the current reference sync data when a request for the same is received
+     *
+     * @param deviceId the device id of the requester
+     */
+    private void sendRefSyncData(String deviceId) {
+        final long version = changeLog.getVersion();
+        Map<Object, Object> snapshot = syncSnapshot();
+        sendRefSyncEntries(deviceId, snapshot.keySet().iterator(), snapshot,
+                new SyncEndFactory() {
+                    @Override
+                    public List<Object> createEndArguments(Map<Object, Object> lastEntries,
+                                                           int entryCount) {
+                        return Arrays.<Object>asList(lastEntries, entryCount, sessionId, version,
+                                DATA_SYNC_RESPONSE);
+                    }
+                });
+    }
+
+    /**
+     * Send the changes of the reference sync data since the last synchronization of a device
+     *
+     * @param deviceId the device id of the requester
+     * @param changes  the changes since its last synchronization
+     */
+    private void sendRefSyncDelta(String deviceId, final DataSyncChangeLog.Changes changes) {
+        sendRefSyncEntries(deviceId, changes.getChangedKeys().iterator(), syncSnapshot(),
+                new SyncEndFactory() {
+                    @Override
+                    public List<Object> createEndArguments(Map<Object, Object> lastEntries,
+                                                           int entryCount) {
+                        return Arrays.asList(lastEntries, changes.getRemovedKeys(), entryCount,
+                                sessionId, changes.getVersion(), DATA_SYNC_DELTA);
+                    }
+                });
+    }
+
+    /**
+     * @return a snapshot of the data to send to a device that synchronizes: the CRDT states in
+     * CRDT mode, the values otherwise
+     */
+    private Map<Object, Object> syncSnapshot() {
+        if (crdtMode) {
+            return Collections.<Object, Object>unmodifiableMap(crdtStates.snapshot());
+        }
+        return snapshot();
+    }
+
+    /**
+     * Stream the values of some keys in a snapshot of the data to a device, about
+     * {@link #syncChunkSize} bytes per message. The first message is sent right away, the next
+     * ones once the device has acknowledged the previous one, from their own tasks so that the
+     * other messages of the ecology can be sent in between. The whole stream is read from the
+     * same snapshot: the changes made afterwards are sent as usual, and applied by the device
+     * after the stream.
+     *
+     * @param deviceId   the device id of the requester
+     * @param keys       the keys to send
+     * @param snapshot   the snapshot of the data
+     * @param endFactory creates the last message, which ends the synchronization
+     */
+    private void sendRefSyncEntries(final String deviceId, final Iterator<Object> keys,
+                                    final Map<Object, Object> snapshot,
+                                    final SyncEndFactory endFactory) {
+        Runnable sendChunk = new Runnable() {
+            // The number of entries sent so far
+            private int entryCount = 0;
+
+            @Override
+            public void run() {
+                if (syncStreams.get(deviceId) != this) {
+                    // The device has left or asked for a new synchronization.
+                    return;
+                }
+                Map<Object, Object> entries = new HashMap<>();
+                int size = 0;
+                while (keys.hasNext() && size < syncChunkSize) {
+                    Object key = keys.next();
+                    Object value = snapshot.get(key);
+                    if (value instanceof DataSyncCrdt) {
+                        value = ((DataSyncCrdt) value).encode();
+                    }
+                    if (value != null) {
+                        entries.put(key, value);
+                        size += encodedSize(key) + encodedSize(value);
+                    }
+                }
+                entryCount += entries.size();
+                boolean last = !keys.hasNext();
+                if (last) {
+                    syncStreams.remove(deviceId);
+                }
+                EcologyMessage message = new EcologyMessage(last ?
+                        endFactory.createEndArguments(entries, entryCount) :
+                        Arrays.<Object>asList(entries, DATA_SYNC_CHUNK));
+                message.setTargetType(EcologyMessage.TARGET_TYPE_SPECIFIC);
+                message.setTargets(Collections.singletonList(deviceId));
+                connector.onMessage(message);
+            }
+        };
+        syncStreams.put(deviceId, sendChunk);
+        sendChunk.run();
+    }
+
+    /**
+     * @param value a key or a value of the sync data
+     * @return the number of bytes it takes in an encoded message, 0 if it can not be encoded
+     */
+    private int encodedSize(Object value) {
+        try {
+            return messageEncoder.measure(value);
+        } catch (CharacterCodingException | MessageData.UnsupportedDataTypeException e) {
+            // Its sending will fail anyway.
+            return 0;
+        }
+    }
+
+    /**
+     * When a device has received a part of the reference sync data.
+     *
+     * @param message the acknowledgement
+     */
+    private void onDataSyncChunkAck(EcologyMessage message) {
+        Runnable sendChunk = syncStreams.get(message.getSource());
+        if (sendChunk != null) {
+            executor.execute(sendChunk);
+        }
+    }
+
+    /**
+     * When a part of the reference sync data is received from the reference.
+     *
+     * @param message the chunk
+     */
+    private void onDataSyncChunk(EcologyMessage message) {
+        saveRefSyncEntries((Map<?, ?>) message.fetchArgument());
+        // Ask for the next one.
+        EcologyMessage ack = new EcologyMessage(Collections.<Object>singletonList(
+                DATA_SYNC_CHUNK_ACK));
+        ack.setTargetType(EcologyMessage.TARGET_TYPE_SERVER);
+        connector.onMessage(ack);
+    }
+
+    /**
+     * Save entries of the reference sync data, as a part of the synchronization in progress.
+     *
+     * @param entries the entries
+     */
+    private void saveRefSyncEntries(Map<?, ?> entries) {
+        if (receivedKeys == null) {
+            receivedKeys = new HashSet<>();
+            receivedEntryCount = 0;
+        }
+        receivedEntryCount += entries.size();
+        for (Map.Entry<?, ?> entry : entries.entrySet()) {
+            receivedKeys.add(entry.getKey());
+            if (crdtMode) {
+                saveRefCrdtState(entry.getKey(), DataSyncCrdt.decode(entry.getValue()));
+                continue;
+            }
+            if (keysChangedDuringSync.contains(entry.getKey())) {
+                continue;
+            }
+            evictedKeys.remove(entry.getKey());
+            lru.touch(entry.getKey());
+            Object oldValue = dataSyncValues.put(entry.getKey(), entry.getValue());
+            notifyDataUpdate(entry.getKey(), entry.getValue(), oldValue);
+        }
+    }
+
+    /**
+     * Merge the CRDT state of a key received from the reference, as a part of the
+     * synchronization in progress.
+     *
+     * @param key   the key paired to the sync data
+     * @param state the state of the reference
+     */
+    private void saveRefCrdtState(Object key, DataSyncCrdt state) {
+        DataSyncCrdt localState = crdtStates.get(key);
+        if (localState != null && state.merge(localState) != state) {
+            keysAheadOfReference.add(key);
+        }
+        applyCrdtState(key, state);
+    }
+
+    /**
+     * Send the CRDT states of the keys that hold changes the reference does not know, e.g.
+     * because they have been made while this device was disconnected.
+     */
+    private void sendKeysAheadOfReference() {
+        for (Object key : keysAheadOfReference) {
+            DataSyncCrdt state = crdtStates.get(key);
+            Object value = dataSyncValues.get(key);
+            queueCrdtDelta(key, state, value, value);
+        }
+        keysAheadOfReference.clear();
+        scheduleFlush();
+    }
+
+    /**
+     * When the reference sync data is received from the reference.
+     *
+     * @param message the response
+     */
+    private void onDataSyncResponse(EcologyMessage message) {
+        if (message.getArguments().size() >= 4) {
+            long version = ((Number) message.fetchArgument()).longValue();
+            long refSessionId = ((Number) message.fetchArgument()).longValue();
+            int entryCount = ((Number) message.fetchArgument()).intValue();
+            saveRefSyncEntries((Map<?, ?>) message.fetchArgument());
+            if (!isSyncComplete(entryCount)) {
+                return;
+            }
+            saveRefSyncData();
+            onSynchronized(refSessionId, version);
+        } else {
+            // A reference without change log.
+            saveRefSyncEntries((Map<?, ?>) message.fetchArgument());
+            saveRefSyncData();
+        }
+        applyMessagesReceivedDuringSync();
+    }
+
+    /**
+     * When the changes of the reference sync data since the last synchronization are received
+     * from the reference.
+     *
+     * @param message the response
+     */
+    private void onDataSyncDelta(EcologyMessage message) {
+        long version = ((Number) message.fetchArgument()).longValue();
+        long refSessionId = ((Number) message.fetchArgument()).longValue();
+        int entryCount = ((Number) message.fetchArgument()).intValue();
+        List<?> removedKeys = (List<?>) message.fetchArgument();
+        Map<?, ?> changedValues = (Map<?, ?>) message.fetchArgument();
+
+        saveRefSyncEntries(changedValues);
+        if (!isSyncComplete(entryCount)) {
+            return;
+        }
+        receivedKeys = null;
+        if (crdtMode) {
+            sendKeysAheadOfReference();
+        }
+        for (Object key : removedKeys) {
+            if (keysChangedDuringSync.contains(key)) {
+                continue;
+            }
+            evictedKeys.remove(key);
+            Object oldValue = dataSyncValues.remove(key);
+            if (oldValue != null) {
+                notifyDataUpdate(key, null, oldValue);
+            }
+        }
+        isSynchronized = true;
+        onSynchronized(refSessionId, version);
+        applyMessagesReceivedDuringSync();
+    }
+
+    /**
+     * Check that all the entries sent by the reference during the synchronization in progress
+     * have been received. Otherwise, e.g. if a chunk has been dropped by the connector, a full
+     * synchronization is requested: the synchronization goes on until it is over.
+     *
+     * @param entryCount the number of entries sent by the reference
+     * @return true if the synchronization is complete
+     */
+    private boolean isSyncComplete(int entryCount) {
+        if (receivedEntryCount == entryCount) {
+            return true;
+        }
+        receivedKeys = new HashSet<>();
+        receivedEntryCount = 0;
+        syncedSessionId = null;
+        requestDataSynchronization();
+        return false;
+    }
+
+    /**
+     * Apply the messages received during the synchronization that just ended.
+     */
+    private void applyMessagesReceivedDuringSync() {
+        keysChangedDuringSync.clear();
+        List<EcologyMessage> messages = messagesReceivedDuringSync;
+        messagesReceivedDuringSync = new ArrayList<>();
+        for (EcologyMessage message : messages) {
+            onMessage(message);
+        }
+    }
+
+    /**
+     * Remember which version of the reference sync data the data is synchronized with.
+     *
+     * @param refSessionId the session of the reference
+     * @param version      the version of the reference sync data
+     */
+    private void onSynchronized(long refSessionId, long version) {
+        syncedSessionId = refSessionId;
+        syncedVersion = version;
+        modifiedWhileUnsynchronized = false;
+    }
+
+    /**
+     * End the synchronization once all the reference sync data has been received: the data
+     * corresponding to the keys that have been neither received nor set since its beginning are
+     * removed.
+     */
+    private void saveRefSyncData() {
+        Set<Object> refKeys = receivedKeys;
+        receivedKeys = null;
+
+        if (crdtMode) {
+            // Nothing is removed: the states the reference does not have are sent to it.
+            for (Object key : crdtStates.keySet()) {
+                if (!refKeys.contains(key)) {
+                    keysAheadOfReference.add(key);
+                }
+            }
+            sendKeysAheadOfReference();
+            isSynchronized = true;
+            return;
+        }
+
+        Iterator<Map.Entry<Object, Object>> iterator = dataSyncValues.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Object, Object> entry = iterator.next();
+            if (!refKeys.contains(entry.getKey())) {
+                Object key = entry.getKey();
+                Object oldValue = entry.getValue();
+                iterator.remove();
+                notifyDataUpdate(key, null, oldValue);
+            }
+        }
+        // The reference has sent all its data: the keys not received have been removed.
+        evictedKeys.clear();
+
+        isSynchronized = true;
+    }
+
+    /**
+     * When a data sync message is received
+     *
+     * @param message the received message
+     */
+    private void onDataSyncMessage(EcologyMessage message) {
+        // The message contains one or more key value pairs, fetched from the last one.
+        List<Object> pairs = new ArrayList<>();
+        do {
+            pairs.add(message.fetchArgument());
+            pairs.add(message.fetchArgument());
+        } while (message.getArguments().size() >= 2);
+
+        for (int i = pairs.size() - 1; i > 0; i -= 2) {
+            Object key = pairs.get(i);
+            Object newValue = pairs.get(i - 1);
+            Object oldValue;
+            synchronized (dataSyncValues) {
+                evictedKeys.remove(key);
+                oldValue = getData(key);
+                dataSyncValues.put(key, newValue);
+            }
+            lru.touch(key);
+            if (isReference) {
+                recordReferenceChange(key, false);
+            }
+            notifyDataUpdate(key, newValue, oldValue);
+        }
+    }
+
+    /**
+     * When a data sync removal message is received
+     *
+     * @param message the received message
+     */
+    private void onDataSyncRemovalMessage(EcologyMessage message) {
+        Object key = message.fetchArgument();
+        if (evictedKeys.remove(key)) {
+            restartTimeToLive(key, true);
+        }
+        Object oldValue;
+        synchronized (dataSyncValues) {
+            getData(key);
+            oldValue = dataSyncValues.remove(key);
+        }
+        if (isReference) {
+            recordReferenceChange(key, true);
+        }
+        if (oldValue != null) {
+            notifyDataUpdate(key, null, oldValue);
+        }
+    }
+
+    /**
+     * When a data sync CRDT message is received
+     *
+     * @param message the received message
+     */
+    private void onDataSyncCrdtMessage(EcologyMessage message) {
+        if (!crdtMode) {
+            EcologyLog.w(TAG, "CRDT message ignored: the CRDT mode is not enabled");
+            return;
+        }
+        // The message contains one or more key state pairs, fetched from the last one.
+        List<Object> pairs = new ArrayList<>();
+        do {
+            pairs.add(message.fetchArgument());
+            pairs.add(message.fetchArgument());
+        } while (message.getArguments().size() >= 2);
+
+        for (int i = pairs.size() - 1; i > 0; i -= 2) {
+            applyCrdtState(pairs.get(i), DataSyncCrdt.decode(pairs.get(i - 1)));
+        }
+    }
+
+    /**
+     * When a data sync patch message is received
+     *
+     * @param message the received message
+     */
+    private void onDataSyncPatchMessage(EcologyMessage message) {
+        List<Object> arguments = new ArrayList<>(message.getArguments());
+        Object key = arguments.remove(0);
+        if (evictedKeys.contains(key)) {
+            // The value is fetched patched from the reference.
+            restartTimeToLive(key, false);
+            return;
+        }
+        Object oldValue;
+        Object newValue;
+        synchronized (dataSyncValues) {
+            oldValue = getData(key);
+            try {
+                newValue = applyPatch(oldValue, arguments);
+            } catch (RuntimeException e) {
+                // The value has been replaced by a value of another type in the meantime.
+                EcologyLog.w(TAG, "Patch of " + key + " ignored: " + e.getMessage());
+                return;
+            }
+            if (newValue == oldValue) {
+                return;
+            }
+            dataSyncValues.put(key, newValue);
+        }
+        if (isReference) {
+            recordReferenceChange(key, false);
+        }
+        notifyDataUpdate(key, newValue, oldValue);
+    }
+
+    /**
+     * How the values set are compared to the current data.
+     */
+    public enum ChangeDetection {
+        /**
+         * A value is unchanged only if it is the very same object as the current one.
+         */
+        IDENTITY,
+        /**
+         * A value is unchanged if it is equal to the current one. The lists, maps and byte
+         * arrays are compared by content.
+         */
+        EQUALITY,
+        /**
+         * A value is unchanged if it has the same encoding as the current one, compared with
+         * a digest of the encoded values that is cached with each value. The maps whose entries
+         * are iterated in different orders are considered different.
+         */
+        CONTENT_HASH
+    }
+
+    /**
+     * A value set but not sent yet.
+     */
+    private static class PendingUpdate {
+        // The value before the first change, and the last value.
+        private final Object oldValue;
+        private Object newValue;
+        // The changes merged in one delta state (CRDT mode only).
+        private DataSyncCrdt delta;
+        // The slot holding the last value, if it has been set with a typed accessor.
+        private DataSyncSlot slot;
+
+        PendingUpdate(Object oldValue, Object newValue) {
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+    }
+
+    /**
+     * A compare-and-set request sent to the reference.
+     */
+    private static class CasRequest {
+        private final Object key;
+        // Computes the new values of an update, null for a compare-and-set.
+        private final Updater updater;
+        private final DataSyncFuture<?> future;
+        // The number of times the value of an update had changed when it reached the reference.
+        private int conflicts = 0;
+
+        CasRequest(Object key, Updater updater, DataSyncFuture<?> future) {
+            this.key = key;
+            this.updater = updater;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Creates the last message of a synchronization.
+     */
+    private interface SyncEndFactory {
+        /**
+         * @param lastEntries the entries left to be sent
+         * @param entryCount  the number of entries of the whole synchronization
+         * @return the arguments of the message
+         */
+        List<Object> createEndArguments(Map<Object, Object> lastEntries, int entryCount);
+    }
+
+    interface Connector {
+        void onMessage(EcologyMessage message);
+    }
+
+    /**
+     * Observes the changes of specific sync data.
+     */
+    public interface DataObserver {
+        /**
+         * Called when an observed sync data has changed.
+         *
+         * @param key      the key paired to the sync data
+         * @param newValue the new data, null if it has been removed
+         * @param oldValue the old data, null if it has been added
+         */
+        void onDataChange(Object key, Object newValue, Object oldValue);
+    }
+
+    /**
+     * Computes the new value of an atomic update, see {@link #update(Object, Updater)}.
+     */
+    public interface Updater {
+        /**
+         * @param currentValue the current value, null if there is none
+         * @return the new value, null to remove the key
+         */
+        Object update(Object currentValue);
+    }
+
+    interface SyncDataChangeListener {
+        void onDataUpdate(Object dataId, Object newValue, Object oldValue);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.nio.charset.CharacterCodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sg.edu.smu.ecology.encoding.MessageData;
+import sg.edu.smu.ecology.encoding.MessageEncoder;
+
+/**
+ * Tells whether a value set to a sync data actually changes it, so that the unchanged values are
+ * neither sent to the other devices nor notified to the listeners. It also counts how many
+ * writes have been suppressed this way. This class is thread safe.
+ *
+ * @author Quentin ROY
+ */
+class DataSyncChangeDetector {
+    private volatile DataSync.ChangeDetection changeDetection = DataSync.ChangeDetection.IDENTITY;
+    private final AtomicLong suppressedWriteCount = new AtomicLong();
+    // The digest of the encoded value of each key, with the value it has been computed from.
+    private final Map<Object, ContentDigest> contentDigests = new ConcurrentHashMap<>();
+    private final MessageEncoder encoder = new MessageEncoder();
+
+    /**
+     * @param changeDetection how the values are compared
+     */
+    void setChangeDetection(DataSync.ChangeDetection changeDetection) {
+        this.changeDetection = changeDetection;
+        if (changeDetection != DataSync.ChangeDetection.CONTENT_HASH) {
+            contentDigests.clear();
+        }
+    }
+
+    /**
+     * Check if a write changes the value of a key, and count it as suppressed if it does not.
+     *
+     * @param key      the key
+     * @param oldValue the current value of the key
+     * @param newValue the value written
+     * @return true if the value is changed
+     */
+    boolean isChange(Object key, Object oldValue, Object newValue) {
+        if (!isChange(key, oldValue, newValue, changeDetection)) {
+            suppressedWriteCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Count a write suppressed by its writer, e.g. the write of a primitive value equal to the
+     * current one.
+     */
+    void countSuppressedWrite() {
+        suppressedWriteCount.incrementAndGet();
+    }
+
+    /**
+     * Check if two successive values of a key differ, without counting anything.
+     *
+     * @param oldValue the first value
+     * @param newValue the second value
+     * @return true if they differ
+     */
+    boolean differ(Object oldValue, Object newValue) {
+        DataSync.ChangeDetection detection = changeDetection;
+        if (detection == DataSync.ChangeDetection.IDENTITY) {
+            return oldValue != newValue;
+        }
+        return !deepEquals(oldValue, newValue);
+    }
+
+    /**
+     * @return how many writes did not change their value so far
+     */
+    long getSuppressedWriteCount() {
+        return suppressedWriteCount.get();
+    }
+
+    /**
+     * Forget a key, e.g. when it is removed.
+     *
+     * @param key the key
+     */
+    void forget(Object key) {
+        contentDigests.remove(key);
+    }
+
+    /**
+     * Forget all the keys.
+     */
+    void clear() {
+        contentDigests.clear();
+    }
+
+    private boolean isChange(Object key, Object oldValue, Object newValue,
+                             DataSync.ChangeDetection detection) {
+        if (oldValue == newValue) {
+            return false;
+        }
+        if (oldValue == null || newValue == null) {
+            return true;
+        }
+        switch (detection) {
+            case EQUALITY:
+                return !deepEquals(oldValue, newValue);
+            case CONTENT_HASH:
+                byte[] newDigest = digest(newValue);
+                if (newDigest == null) {
+                    return true;
+                }
+                ContentDigest oldDigest = contentDigests.get(key);
+                // The cached digest is only valid if the value has not been replaced since.
+                byte[] oldValueDigest = oldDigest != null && oldDigest.value == oldValue ?
+                        oldDigest.digest : digest(oldValue);
+                contentDigests.put(key, new ContentDigest(newValue, newDigest));
+                return oldValueDigest == null || !Arrays.equals(oldValueDigest, newDigest);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @param value a value
+     * @return the SHA-1 digest of the encoded value, or null if it can not be encoded
+     */
+    private byte[] digest(Object value) {
+        try {
+            byte[] encodedValue = encoder.encode(new EcologyMessage(
+                    Collections.singletonList(value)));
+            return MessageDigest.getInstance("SHA-1").digest(encodedValue);
+        } catch (CharacterCodingException | MessageData.UnsupportedDataTypeException
+                | NoSuchAlgorithmException e) {
+            // Its sending will fail anyway.
+            return null;
+        }
+    }
+
+    /**
+     * Compare two values, including the content of the byte arrays they contain.
+     */
+    static boolean deepEquals(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a instanceof byte[] && b instanceof byte[]) {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        }
+        if (a instanceof List && b instanceof List) {
+            List<?> listA = (List<?>) a;
+            List<?> listB = (List<?>) b;
+            if (listA.size() != listB.size()) {
+                return false;
+            }
+            Iterator<?> iteratorA = listA.iterator();
+            Iterator<?> iteratorB = listB.iterator();
+            while (iteratorA.hasNext()) {
+                if (!deepEquals(iteratorA.next(), iteratorB.next())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof Map && b instanceof Map) {
+            Map<?, ?> mapA = (Map<?, ?>) a;
+            Map<?, ?> mapB = (Map<?, ?>) b;
+            if (mapA.size() != mapB.size()) {
+                return false;
+            }
+            for (Map.Entry<?, ?> entry : mapA.entrySet()) {
+                if (!mapB.containsKey(entry.getKey())
+                        || !deepEquals(entry.getValue(), mapB.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return a.equals(b);
+    }
+
+    private static class ContentDigest {
+        private final Object value;
+        private final byte[] digest;
+
+        ContentDigest(Object value, byte[] digest) {
+            this.value = value;
+            this.digest = digest;
+        }
+    }
+}
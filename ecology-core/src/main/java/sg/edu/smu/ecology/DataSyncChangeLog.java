@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The change log of a data reference. Each change of the sync data gets a new version and the
+ * log keeps, for each key, the version of its last change: a device that has been synchronized
+ * up to a version can then be sent only what changed since.
+ * <p>
+ * The log keeps one entry per current key. The keys that have been removed are kept as
+ * tombstones, up to a maximum: the oldest tombstones are then dropped and the log is truncated,
+ * i.e. it can no longer tell what changed since a version older than the last dropped tombstone.
+ * This class is thread safe.
+ *
+ * @author Quentin ROY
+ */
+class DataSyncChangeLog {
+    /**
+     * The default maximum number of removed keys remembered.
+     */
+    static final int DEFAULT_MAX_TOMBSTONES = 1024;
+
+    private final int maxTombstones;
+    // The last version given to a change, 0 if nothing changed yet.
+    private long version = 0;
+    // The changes since this version can not be known anymore.
+    private long truncatedVersion = 0;
+    // The version of the last change of each key, and the other way around.
+    private final Map<Object, Long> keyVersions = new HashMap<>();
+    private final TreeMap<Long, Object> versionKeys = new TreeMap<>();
+    // The removed keys, the oldest first, with the version of their removal.
+    private final LinkedHashMap<Object, Long> tombstones = new LinkedHashMap<>();
+
+    DataSyncChangeLog() {
+        this(DEFAULT_MAX_TOMBSTONES);
+    }
+
+    /**
+     * @param maxTombstones the maximum number of removed keys remembered
+     */
+    DataSyncChangeLog(int maxTombstones) {
+        this.maxTombstones = maxTombstones;
+    }
+
+    /**
+     * Record that the value of a key has been set.
+     *
+     * @param key the key
+     * @return the version of the change
+     */
+    synchronized long recordChange(Object key) {
+        tombstones.remove(key);
+        return record(key);
+    }
+
+    /**
+     * Record that a key has been removed.
+     *
+     * @param key the key
+     * @return the version of the change
+     */
+    synchronized long recordRemoval(Object key) {
+        long removalVersion = record(key);
+        tombstones.remove(key);
+        tombstones.put(key, removalVersion);
+        while (tombstones.size() > maxTombstones) {
+            Iterator<Map.Entry<Object, Long>> iterator = tombstones.entrySet().iterator();
+            Map.Entry<Object, Long> oldest = iterator.next();
+            iterator.remove();
+            keyVersions.remove(oldest.getKey());
+            versionKeys.remove(oldest.getValue());
+            truncatedVersion = oldest.getValue();
+        }
+        return removalVersion;
+    }
+
+    /**
+     * Forget all the changes, e.g. when the data is cleared. The versions keep increasing.
+     */
+    synchronized void reset() {
+        keyVersions.clear();
+        versionKeys.clear();
+        tombstones.clear();
+        truncatedVersion = version;
+    }
+
+    /**
+     * @return the version of the last change
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get what changed since a version.
+     *
+     * @param sinceVersion the version
+     * @return the changes or null if they are not known anymore
+     */
+    synchronized Changes getChangesSince(long sinceVersion) {
+        if (sinceVersion < truncatedVersion || sinceVersion > version) {
+            return null;
+        }
+        List<Object> changedKeys = new ArrayList<>();
+        List<Object> removedKeys = new ArrayList<>();
+        for (Object key : versionKeys.tailMap(sinceVersion, false).values()) {
+            if (tombstones.containsKey(key)) {
+                removedKeys.add(key);
+            } else {
+                changedKeys.add(key);
+            }
+        }
+        return new Changes(version, changedKeys, removedKeys);
+    }
+
+    private long record(Object key) {
+        version++;
+        Long previousVersion = keyVersions.put(key, version);
+        if (previousVersion != null) {
+            versionKeys.remove(previousVersion);
+        }
+        versionKeys.put(version, key);
+        return version;
+    }
+
+    /**
+     * The keys changed since a version.
+     */
+    static class Changes {
+        private final long version;
+        private final List<Object> changedKeys;
+        private final List<Object> removedKeys;
+
+        Changes(long version, List<Object> changedKeys, List<Object> removedKeys) {
+            this.version = version;
+            this.changedKeys = changedKeys;
+            this.removedKeys = removedKeys;
+        }
+
+        /**
+         * @return the version the changes lead to
+         */
+        long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the keys whose value has been set, in the order of their last change
+         */
+        List<Object> getChangedKeys() {
+            return changedKeys;
+        }
+
+        /**
+         * @return the keys that have been removed, in the order of their removal
+         */
+        List<Object> getRemovedKeys() {
+            return removedKeys;
+        }
+    }
+}
@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of a sync data in the CRDT mode of {@link DataSync}: a conflict-free replicated data
+ * type. Merging two states is commutative, associative and idempotent, so the devices that have
+ * merged the same states hold the same data, whatever the order they received them in. The
+ * changes are sent as delta states, i.e. states holding only the change, that are merged like
+ * any other state. The states are immutable.
+ * <p>
+ * A key holds a last-writer-wins register, an observed-remove map or a counter. Each state
+ * belongs to an epoch, and the state of the latest epoch wins. Within an epoch, if several types
+ * are written for the same key, the counter wins over the map, and the map over the register. A
+ * register written over a map or a counter, a counter incremented over another type, and the
+ * removal of a counter, start a new epoch, so that the type written last wins.
+ *
+ * @author Quentin ROY
+ */
+abstract class DataSyncCrdt {
+    // The types, in the order they win over each other.
+    private static final int REGISTER = 0;
+    private static final int MAP = 1;
+    private static final int COUNTER = 2;
+
+    // The epoch of the states written before any new epoch.
+    private static final Stamp INITIAL_EPOCH = new Stamp(0, 0);
+
+    private final int type;
+    private final Stamp epoch;
+
+    private DataSyncCrdt(int type, Stamp epoch) {
+        this.type = type;
+        this.epoch = epoch;
+    }
+
+    /**
+     * @param state a state, can be null
+     * @return the epoch of the state, the initial epoch if there is none
+     */
+    private static Stamp epochOf(DataSyncCrdt state) {
+        return state == null ? INITIAL_EPOCH : state.epoch;
+    }
+
+    /**
+     * @return the value of the sync data, null if it has been removed
+     */
+    abstract Object getValue();
+
+    /**
+     * @return the greatest clock time in the state, 0 if there is none
+     */
+    abstract long getLatestTime();
+
+    /**
+     * @param stamp the stamp of the removal
+     * @return the delta state removing the value
+     */
+    abstract DataSyncCrdt removal(Stamp stamp);
+
+    /**
+     * @return the state encoded in a list that can be sent to the other devices
+     */
+    List<Object> encode() {
+        List<Object> encoded = new ArrayList<>(encodeState());
+        encoded.add(epoch.time);
+        encoded.add(epoch.replicaId);
+        return encoded;
+    }
+
+    /**
+     * @return the state but its epoch, encoded in a list starting with its type
+     */
+    abstract List<Object> encodeState();
+
+    /**
+     * @param other a state of the same type
+     * @return the merged state, this state if the other does not change it
+     */
+    abstract DataSyncCrdt mergeSameType(DataSyncCrdt other);
+
+    /**
+     * @param other another state, can be null
+     * @return the merged state, this state if the other does not change it
+     */
+    DataSyncCrdt merge(DataSyncCrdt other) {
+        if (other == null || other == this) {
+            return this;
+        }
+        int epochOrder = other.epoch.compareTo(epoch);
+        if (epochOrder != 0) {
+            return epochOrder > 0 ? other : this;
+        }
+        if (other.type != type) {
+            return other.type > type ? other : this;
+        }
+        return mergeSameType(other);
+    }
+
+    /**
+     * @param encoded a state encoded with {@link #encode()}
+     * @return the state
+     */
+    static DataSyncCrdt decode(Object encoded) {
+        List<?> list = (List<?>) encoded;
+        int type = ((Number) list.get(0)).intValue();
+        Stamp epoch = new Stamp(toLong(list.get(list.size() - 2)),
+                toLong(list.get(list.size() - 1)));
+        switch (type) {
+            case REGISTER:
+                return new Register(epoch, new Stamp(toLong(list.get(1)), toLong(list.get(2))),
+                        list.get(3));
+            case MAP:
+                return ObservedRemoveMap.decode(epoch, (List<?>) list.get(1),
+                        (List<?>) list.get(2));
+            case COUNTER:
+                return Counter.decode(epoch, (List<?>) list.get(1));
+            default:
+                throw new IllegalArgumentException("Unknown CRDT type: " + type);
+        }
+    }
+
+    private static long toLong(Object number) {
+        return ((Number) number).longValue();
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @param context the causal context of an entry, the greatest time observed for each replica
+     * @param tag     a tag
+     * @return true if the tag has been observed
+     */
+    private static boolean isObserved(Map<Long, Long> context, Stamp tag) {
+        Long observedTime = context == null ? null : context.get(tag.replicaId);
+        return observedTime != null && tag.time <= observedTime;
+    }
+
+    /**
+     * @param context a causal context, changed to observe the tag too
+     * @param tag     a tag
+     * @return true if the context has changed
+     */
+    private static boolean observe(Map<Long, Long> context, Stamp tag) {
+        if (isObserved(context, tag)) {
+            return false;
+        }
+        context.put(tag.replicaId, tag.time);
+        return true;
+    }
+
+    private static void checkIsMap(DataSyncCrdt state) {
+        if (state instanceof Counter || (state != null && state.getValue() != null
+                && !(state.getValue() instanceof Map))) {
+            throw new IllegalArgumentException("Not a map: " + state.getValue());
+        }
+    }
+
+    /**
+     * Orders the changes: the time of the change given by a {@link HybridLogicalClock} and the
+     * id of the replica that made it.
+     */
+    static final class Stamp implements Comparable<Stamp> {
+        private final long time;
+        private final long replicaId;
+
+        Stamp(long time, long replicaId) {
+            this.time = time;
+            this.replicaId = replicaId;
+        }
+
+        long getTime() {
+            return time;
+        }
+
+        @Override
+        public int compareTo(Stamp other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            if (replicaId != other.replicaId) {
+                return replicaId < other.replicaId ? -1 : 1;
+            }
+            return 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Stamp && ((Stamp) o).time == time
+                    && ((Stamp) o).replicaId == replicaId;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (time ^ (time >>> 32)) * 31 + (int) (replicaId ^ (replicaId >>> 32));
+        }
+    }
+
+    /**
+     * A value of which the last written wins.
+     */
+    static final class Register extends DataSyncCrdt {
+        private final Stamp stamp;
+        private final Object value;
+
+        /**
+         * @param stamp the stamp of the write
+         * @param value the value written, null for a removal
+         */
+        Register(Stamp stamp, Object value) {
+            this(INITIAL_EPOCH, stamp, value);
+        }
+
+        private Register(Stamp epoch, Stamp stamp, Object value) {
+            super(REGISTER, epoch);
+            this.stamp = stamp;
+            this.value = value;
+        }
+
+        /**
+         * @param current the current state of the key
+         * @param stamp   the stamp of the write
+         * @param value   the value written
+         * @return the delta state writing the value. It starts a new epoch if the key holds a map
+         * or a counter, which would otherwise win over it.
+         */
+        static Register write(DataSyncCrdt current, Stamp stamp, Object value) {
+            if (current != null && current.type != REGISTER) {
+                return new Register(stamp, stamp, value);
+            }
+            return new Register(epochOf(current), stamp, value);
+        }
+
+        @Override
+        Object getValue() {
+            return value;
+        }
+
+        @Override
+        long getLatestTime() {
+            return stamp.time;
+        }
+
+        @Override
+        DataSyncCrdt removal(Stamp stamp) {
+            return new Register(epochOf(this), stamp, null);
+        }
+
+        @Override
+        List<Object> encodeState() {
+            return Arrays.<Object>asList(REGISTER, stamp.time, stamp.replicaId, value);
+        }
+
+        @Override
+        DataSyncCrdt mergeSameType(DataSyncCrdt other) {
+            return ((Register) other).stamp.compareTo(stamp) > 0 ? other : this;
+        }
+    }
+
+    /**
+     * A map whose entries are put with a unique tag. A removal only removes the tags it has
+     * observed, so that an entry put concurrently with its removal is kept. If an entry has been
+     * put concurrently with different values, the value put last wins.
+     * <p>
+     * The tags observed are kept as a causal context: for each entry, the greatest time of the
+     * tags observed from each replica. A replica always observes its own earlier tags of an entry
+     * when it puts or removes it, so every tag of a replica older than the greatest one observed
+     * has been observed too. The context grows with the number of entries and replicas, not with
+     * the number of changes.
+     */
+    static final class ObservedRemoveMap extends DataSyncCrdt {
+        // The tags of each entry and the value each of them put.
+        private final Map<Object, Map<Stamp, Object>> entries;
+        // The causal context of each entry, so that the puts received after their removal are
+        // ignored. It covers the tags of the entries.
+        private final Map<Object, Map<Long, Long>> context;
+        private final Map<Object, Object> value;
+
+        private ObservedRemoveMap(Stamp epoch, Map<Object, Map<Stamp, Object>> entries,
+                                  Map<Object, Map<Long, Long>> context) {
+            super(MAP, epoch);
+            this.entries = entries;
+            this.context = context;
+            if (entries.isEmpty()) {
+                value = null;
+            } else {
+                value = new HashMap<>();
+                for (Map.Entry<Object, Map<Stamp, Object>> entry : entries.entrySet()) {
+                    Stamp lastTag = null;
+                    for (Stamp tag : entry.getValue().keySet()) {
+                        if (lastTag == null || tag.compareTo(lastTag) > 0) {
+                            lastTag = tag;
+                        }
+                    }
+                    value.put(entry.getKey(), entry.getValue().get(lastTag));
+                }
+            }
+        }
+
+        /**
+         * @param current    the current state of the key
+         * @param entryKey   the key of the entry
+         * @param entryValue the value of the entry
+         * @param clock      creates the tags
+         * @return the delta state putting the entry
+         * @throws IllegalArgumentException if the value of the key is not a map
+         */
+        static ObservedRemoveMap put(DataSyncCrdt current, Object entryKey, Object entryValue,
+                                     HybridLogicalClock clock) {
+            checkIsMap(current);
+            Map<Object, Map<Long, Long>> context = new HashMap<>();
+            Map<Object, Map<Stamp, Object>> entries = convertedEntries(current, entryKey, clock,
+                    context);
+            Map<Long, Long> entryContext = observedContext(current, entryKey);
+            Stamp tag = clock.newStamp();
+            observe(entryContext, tag);
+            entries.put(entryKey, Collections.singletonMap(tag, entryValue));
+            context.put(entryKey, entryContext);
+            return new ObservedRemoveMap(epochOf(current), entries, context);
+        }
+
+        /**
+         * @param current  the current state of the key
+         * @param entryKey the key of the entry
+         * @param clock    creates the tags
+         * @return the delta state removing the entry, null if there is no such entry
+         * @throws IllegalArgumentException if the value of the key is not a map
+         */
+        static ObservedRemoveMap remove(DataSyncCrdt current, Object entryKey,
+                                        HybridLogicalClock clock) {
+            checkIsMap(current);
+            if (current == null || current.getValue() == null
+                    || !((Map<?, ?>) current.getValue()).containsKey(entryKey)) {
+                return null;
+            }
+            Map<Object, Map<Long, Long>> context = new HashMap<>();
+            Map<Object, Map<Stamp, Object>> entries = convertedEntries(current, entryKey, clock,
+                    context);
+            if (current instanceof ObservedRemoveMap) {
+                context.put(entryKey, observedContext(current, entryKey));
+            }
+            return new ObservedRemoveMap(epochOf(current), entries, context);
+        }
+
+        /**
+         * @return a copy of the causal context of an entry of the current state, empty if there
+         * is none
+         */
+        private static Map<Long, Long> observedContext(DataSyncCrdt current, Object entryKey) {
+            Map<Long, Long> entryContext = current instanceof ObservedRemoveMap ?
+                    ((ObservedRemoveMap) current).context.get(entryKey) : null;
+            return entryContext == null ? new HashMap<Long, Long>() :
+                    new HashMap<>(entryContext);
+        }
+
+        /**
+         * A map set as a whole is a register. Its entries are put in an observed-remove map when
+         * one of them is changed.
+         *
+         * @param context the causal context of the converted entries, filled with their tags
+         * @return the entries of the register of the key but the changed one, with a new tag
+         */
+        private static Map<Object, Map<Stamp, Object>> convertedEntries(
+                DataSyncCrdt current, Object changedKey, HybridLogicalClock clock,
+                Map<Object, Map<Long, Long>> context) {
+            Map<Object, Map<Stamp, Object>> entries = new HashMap<>();
+            if (current instanceof Register && current.getValue() != null) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) current.getValue()).entrySet()) {
+                    if (!equal(entry.getKey(), changedKey)) {
+                        Stamp tag = clock.newStamp();
+                        entries.put(entry.getKey(),
+                                Collections.singletonMap(tag, entry.getValue()));
+                        context.put(entry.getKey(),
+                                Collections.singletonMap(tag.replicaId, tag.time));
+                    }
+                }
+            }
+            return entries;
+        }
+
+        @Override
+        Object getValue() {
+            return value;
+        }
+
+        @Override
+        long getLatestTime() {
+            long latestTime = 0;
+            for (Map<Long, Long> entryContext : context.values()) {
+                for (long time : entryContext.values()) {
+                    latestTime = Math.max(latestTime, time);
+                }
+            }
+            return latestTime;
+        }
+
+        @Override
+        DataSyncCrdt removal(Stamp stamp) {
+            return new ObservedRemoveMap(epochOf(this),
+                    new HashMap<Object, Map<Stamp, Object>>(), context);
+        }
+
+        @Override
+        List<Object> encodeState() {
+            List<Object> encodedEntries = new ArrayList<>();
+            for (Map.Entry<Object, Map<Stamp, Object>> entry : entries.entrySet()) {
+                for (Map.Entry<Stamp, Object> tag : entry.getValue().entrySet()) {
+                    encodedEntries.add(entry.getKey());
+                    encodedEntries.add(tag.getKey().time);
+                    encodedEntries.add(tag.getKey().replicaId);
+                    encodedEntries.add(tag.getValue());
+                }
+            }
+            List<Object> encodedContext = new ArrayList<>();
+            for (Map.Entry<Object, Map<Long, Long>> entry : context.entrySet()) {
+                for (Map.Entry<Long, Long> replica : entry.getValue().entrySet()) {
+                    encodedContext.add(entry.getKey());
+                    encodedContext.add(replica.getKey());
+                    encodedContext.add(replica.getValue());
+                }
+            }
+            return Arrays.<Object>asList(MAP, encodedEntries, encodedContext);
+        }
+
+        private static ObservedRemoveMap decode(Stamp epoch, List<?> encodedEntries,
+                                                List<?> encodedContext) {
+            Map<Object, Map<Stamp, Object>> entries = new HashMap<>();
+            for (int i = 0; i < encodedEntries.size(); i += 4) {
+                Map<Stamp, Object> tags = entries.get(encodedEntries.get(i));
+                if (tags == null) {
+                    tags = new HashMap<>();
+                    entries.put(encodedEntries.get(i), tags);
+                }
+                tags.put(new Stamp(toLong(encodedEntries.get(i + 1)),
+                        toLong(encodedEntries.get(i + 2))), encodedEntries.get(i + 3));
+            }
+            Map<Object, Map<Long, Long>> context = new HashMap<>();
+            for (int i = 0; i < encodedContext.size(); i += 3) {
+                Map<Long, Long> entryContext = context.get(encodedContext.get(i));
+                if (entryContext == null) {
+                    entryContext = new HashMap<>();
+                    context.put(encodedContext.get(i), entryContext);
+                }
+                entryContext.put(toLong(encodedContext.get(i + 1)),
+                        toLong(encodedContext.get(i + 2)));
+            }
+            return new ObservedRemoveMap(epoch, entries, context);
+        }
+
+        @Override
+        DataSyncCrdt mergeSameType(DataSyncCrdt other) {
+            ObservedRemoveMap otherMap = (ObservedRemoveMap) other;
+            boolean changed = false;
+            Set<Object> keys = new HashSet<>(context.keySet());
+            keys.addAll(otherMap.context.keySet());
+            Map<Object, Map<Stamp, Object>> mergedEntries = new HashMap<>();
+            Map<Object, Map<Long, Long>> mergedContext = new HashMap<>();
+            for (Object key : keys) {
+                Map<Long, Long> ownContext = context.get(key);
+                Map<Long, Long> otherContext = otherMap.context.get(key);
+                Map<Stamp, Object> ownTags = entries.get(key);
+                Map<Stamp, Object> otherTags = otherMap.entries.get(key);
+                Map<Stamp, Object> tags = new HashMap<>();
+                // A tag is kept if both have it, or if the other has not observed it yet.
+                if (ownTags != null) {
+                    for (Map.Entry<Stamp, Object> tag : ownTags.entrySet()) {
+                        if ((otherTags != null && otherTags.containsKey(tag.getKey()))
+                                || !isObserved(otherContext, tag.getKey())) {
+                            tags.put(tag.getKey(), tag.getValue());
+                        } else {
+                            changed = true;
+                        }
+                    }
+                }
+                if (otherTags != null) {
+                    for (Map.Entry<Stamp, Object> tag : otherTags.entrySet()) {
+                        if (!isObserved(ownContext, tag.getKey())) {
+                            tags.put(tag.getKey(), tag.getValue());
+                            changed = true;
+                        }
+                    }
+                }
+                if (!tags.isEmpty()) {
+                    mergedEntries.put(key, tags);
+                }
+                Map<Long, Long> entryContext = ownContext == null ? new HashMap<Long, Long>() :
+                        new HashMap<>(ownContext);
+                if (otherContext != null) {
+                    for (Map.Entry<Long, Long> replica : otherContext.entrySet()) {
+                        changed |= observe(entryContext,
+                                new Stamp(replica.getValue(), replica.getKey()));
+                    }
+                }
+                mergedContext.put(key, entryContext);
+            }
+            return changed ? new ObservedRemoveMap(epochOf(this), mergedEntries, mergedContext)
+                    : this;
+        }
+    }
+
+    /**
+     * A counter that each replica increments or decrements. It holds the total of the
+     * increments and the total of the decrements of each replica.
+     */
+    static final class Counter extends DataSyncCrdt {
+        private final Map<Long, long[]> totals;
+        private final long value;
+
+        private Counter(Stamp epoch, Map<Long, long[]> totals) {
+            super(COUNTER, epoch);
+            this.totals = totals;
+            long sum = 0;
+            for (long[] total : totals.values()) {
+                sum += total[0] - total[1];
+            }
+            value = sum;
+        }
+
+        /**
+         * @param current the current state of the key
+         * @param delta   the increment, negative to decrement
+         * @param clock   the clock of the incrementing replica
+         * @return the delta state incrementing the counter. If the key holds another type, it
+         * starts a new epoch and counts from the number it holds, if any.
+         * @throws IllegalArgumentException if the value of the key is not a number
+         */
+        static Counter increment(DataSyncCrdt current, long delta, HybridLogicalClock clock) {
+            long replicaId = clock.getReplicaId();
+            Stamp epoch = epochOf(current);
+            long increments = 0;
+            long decrements = 0;
+            if (current instanceof Counter) {
+                long[] total = ((Counter) current).totals.get(replicaId);
+                if (total != null) {
+                    increments = total[0];
+                    decrements = total[1];
+                }
+            } else if (current != null) {
+                Object value = current.getValue();
+                if (value != null && !(value instanceof Number)) {
+                    throw new IllegalArgumentException("Not a number: " + value);
+                }
+                epoch = clock.newStamp();
+                delta += value == null ? 0 : ((Number) value).longValue();
+            }
+            if (delta > 0) {
+                increments += delta;
+            } else {
+                decrements -= delta;
+            }
+            return new Counter(epoch, Collections.singletonMap(replicaId,
+                    new long[]{increments, decrements}));
+        }
+
+        @Override
+        Object getValue() {
+            return value;
+        }
+
+        @Override
+        long getLatestTime() {
+            return 0;
+        }
+
+        @Override
+        DataSyncCrdt removal(Stamp stamp) {
+            // A new epoch: the increments made concurrently with the removal are lost.
+            return new Register(stamp, stamp, null);
+        }
+
+        @Override
+        List<Object> encodeState() {
+            List<Object> encodedTotals = new ArrayList<>(totals.size() * 3);
+            for (Map.Entry<Long, long[]> total : totals.entrySet()) {
+                encodedTotals.add(total.getKey());
+                encodedTotals.add(total.getValue()[0]);
+                encodedTotals.add(total.getValue()[1]);
+            }
+            return Arrays.<Object>asList(COUNTER, encodedTotals);
+        }
+
+        private static Counter decode(Stamp epoch, List<?> encodedTotals) {
+            Map<Long, long[]> totals = new HashMap<>();
+            for (int i = 0; i < encodedTotals.size(); i += 3) {
+                totals.put(toLong(encodedTotals.get(i)), new long[]{
+                        toLong(encodedTotals.get(i + 1)), toLong(encodedTotals.get(i + 2))});
+            }
+            return new Counter(epoch, totals);
+        }
+
+        @Override
+        DataSyncCrdt mergeSameType(DataSyncCrdt other) {
+            boolean changed = false;
+            Map<Long, long[]> mergedTotals = new HashMap<>(totals);
+            for (Map.Entry<Long, long[]> otherTotal : ((Counter) other).totals.entrySet()) {
+                long[] total = totals.get(otherTotal.getKey());
+                if (total == null) {
+                    mergedTotals.put(otherTotal.getKey(), otherTotal.getValue());
+                    changed = true;
+                } else if (otherTotal.getValue()[0] > total[0]
+                        || otherTotal.getValue()[1] > total[1]) {
+                    mergedTotals.put(otherTotal.getKey(), new long[]{
+                            Math.max(total[0], otherTotal.getValue()[0]),
+                            Math.max(total[1], otherTotal.getValue()[1])});
+                    changed = true;
+                }
+            }
+            return changed ? new Counter(epochOf(this), mergedTotals) : this;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The outcome of an atomic operation of {@link DataSync}, known once the data reference has
+ * run it. The outcome should not be waited for on the thread of the ecology, which receives it:
+ * use {@link #addListener(Runnable, Executor)} instead.
+ *
+ * @param <V> the type of the outcome
+ * @author Quentin ROY
+ */
+public class DataSyncFuture<V> implements Future<V> {
+    private V value;
+    private Throwable exception;
+    private boolean done = false;
+    private boolean cancelled = false;
+    // The listeners, each running on its executor, null once done.
+    private List<Runnable> listeners = new ArrayList<>();
+
+    DataSyncFuture() {
+    }
+
+    /**
+     * Run a listener once the outcome is known, right away if it already is.
+     *
+     * @param listener the listener
+     * @param executor runs the listener, e.g. on the main thread
+     */
+    public void addListener(final Runnable listener, final Executor executor) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(listener);
+            }
+        };
+        synchronized (this) {
+            if (!done) {
+                listeners.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * @param value the outcome
+     * @return false if the outcome was already known
+     */
+    boolean set(V value) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.value = value;
+        }
+        complete();
+        return true;
+    }
+
+    /**
+     * @param exception why the operation failed
+     * @return false if the outcome was already known
+     */
+    boolean setException(Throwable exception) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.exception = exception;
+        }
+        complete();
+        return true;
+    }
+
+    private void complete() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            done = true;
+            toRun = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Stop waiting for the outcome. The operation may still be run by the data reference.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+        }
+        complete();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getOutcome();
+    }
+
+    @Override
+    public synchronized V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getOutcome();
+    }
+
+    private V getOutcome() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (exception != null) {
+            throw new ExecutionException(exception);
+        }
+        return value;
+    }
+}
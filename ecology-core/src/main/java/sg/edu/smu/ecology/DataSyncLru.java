@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Orders the keys of the sync data from the least recently used to the most recently used, to
+ * tell which ones to evict when there are more than the memory budget of the data sync allows.
+ * The keys are only tracked while there is a budget. This class is thread safe.
+ *
+ * @author Quentin ROY
+ */
+class DataSyncLru {
+    private final Map<Object, Boolean> keys = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile int maxKeys = 0;
+
+    /**
+     * @param maxKeys the maximum number of keys, 0 for no budget
+     */
+    synchronized void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+        if (maxKeys == 0) {
+            keys.clear();
+        }
+    }
+
+    /**
+     * @return the maximum number of keys, 0 if there is no budget
+     */
+    int getMaxKeys() {
+        return maxKeys;
+    }
+
+    /**
+     * Record a use of a key.
+     *
+     * @param key the key
+     */
+    void touch(Object key) {
+        if (maxKeys > 0) {
+            synchronized (this) {
+                keys.put(key, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Stop tracking a key.
+     *
+     * @param key the key
+     */
+    synchronized void remove(Object key) {
+        keys.remove(key);
+    }
+
+    /**
+     * Remove the least recently used key.
+     *
+     * @return the key, null if no key is tracked
+     */
+    synchronized Object pollEldest() {
+        Iterator<Object> iterator = keys.keySet().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        Object key = iterator.next();
+        iterator.remove();
+        return key;
+    }
+
+    /**
+     * Stop tracking all the keys.
+     */
+    synchronized void clear() {
+        keys.clear();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * The observers of the sync data, indexed by the key or the key prefix they observe so that a
+ * change is only dispatched to the observers interested in it. This class is thread safe.
+ *
+ * @author Quentin ROY
+ */
+class DataSyncObservers {
+    // The observers of each key.
+    private final Map<Object, List<Registration>> keyObservers = new ConcurrentHashMap<>();
+    // The observers of each key prefix.
+    private final Map<String, List<Registration>> prefixObservers = new ConcurrentHashMap<>();
+    // The lengths of the observed prefixes, to only look up the prefixes of a key that may be.
+    private final Set<Integer> prefixLengths = new ConcurrentSkipListSet<>();
+
+    /**
+     * @param key      the observed key
+     * @param observer the observer
+     * @param executor runs the notifications, null to run them on the notifying thread
+     */
+    synchronized void observe(Object key, DataSync.DataObserver observer, Executor executor) {
+        add(keyObservers, key, new Registration(observer, executor));
+    }
+
+    /**
+     * @param prefix   the observed key prefix
+     * @param observer the observer
+     * @param executor runs the notifications, null to run them on the notifying thread
+     */
+    synchronized void observePrefix(String prefix, DataSync.DataObserver observer,
+                                    Executor executor) {
+        add(prefixObservers, prefix, new Registration(observer, executor));
+        prefixLengths.add(prefix.length());
+    }
+
+    /**
+     * Remove all the registrations of an observer.
+     *
+     * @param observer the observer
+     */
+    synchronized void remove(DataSync.DataObserver observer) {
+        removeFrom(keyObservers, observer);
+        removeFrom(prefixObservers, observer);
+        prefixLengths.clear();
+        for (String prefix : prefixObservers.keySet()) {
+            prefixLengths.add(prefix.length());
+        }
+    }
+
+    /**
+     * Notify the observers of a key of its change.
+     *
+     * @param key      the key
+     * @param newValue its new value, null if it has been removed
+     * @param oldValue its old value, null if it has been added
+     */
+    void notifyChange(Object key, Object newValue, Object oldValue) {
+        List<Registration> registrations = keyObservers.get(key);
+        if (registrations != null) {
+            for (Registration registration : registrations) {
+                registration.notifyChange(key, newValue, oldValue);
+            }
+        }
+        if (key instanceof String && !prefixLengths.isEmpty()) {
+            String stringKey = (String) key;
+            for (int length : prefixLengths) {
+                if (length > stringKey.length()) {
+                    break;
+                }
+                registrations = prefixObservers.get(stringKey.substring(0, length));
+                if (registrations != null) {
+                    for (Registration registration : registrations) {
+                        registration.notifyChange(key, newValue, oldValue);
+                    }
+                }
+            }
+        }
+    }
+
+    private static <K> void add(Map<K, List<Registration>> observers, K key,
+                                Registration registration) {
+        List<Registration> registrations = observers.get(key);
+        if (registrations == null) {
+            registrations = new CopyOnWriteArrayList<>();
+            observers.put(key, registrations);
+        }
+        registrations.add(registration);
+    }
+
+    private static <K> void removeFrom(Map<K, List<Registration>> observers,
+                                       DataSync.DataObserver observer) {
+        for (Map.Entry<K, List<Registration>> entry : observers.entrySet()) {
+            List<Registration> registrations = entry.getValue();
+            for (Registration registration : registrations) {
+                if (registration.observer == observer) {
+                    registrations.remove(registration);
+                }
+            }
+            if (registrations.isEmpty()) {
+                observers.remove(entry.getKey());
+            }
+        }
+    }
+
+    private static class Registration {
+        private final DataSync.DataObserver observer;
+        private final Executor executor;
+
+        Registration(DataSync.DataObserver observer, Executor executor) {
+            this.observer = observer;
+            this.executor = executor;
+        }
+
+        void notifyChange(final Object key, final Object newValue, final Object oldValue) {
+            if (executor == null) {
+                observer.onDataChange(key, newValue, oldValue);
+            } else {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        observer.onDataChange(key, newValue, oldValue);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+/**
+ * Holds a primitive sync data value, written in place by the typed accessors of
+ * {@link DataSync} so that they do not allocate anything. The value is boxed when it is sent,
+ * once for all the writes made in between, and the box is published as the value of the key.
+ * <p>
+ * The slot is only current as long as the published value of the key is the last box it
+ * published: once the value has been replaced, e.g. by another device, the slot is outdated.
+ *
+ * @author Quentin ROY
+ */
+final class DataSyncSlot {
+    static final int INT = 0;
+    static final int LONG = 1;
+    static final int FLOAT = 2;
+    static final int DOUBLE = 3;
+
+    private final int type;
+    // The value: the int, long or raw bits of the float or double.
+    private volatile long bits;
+    // The last box published as the value of the key.
+    private volatile Object publishedValue;
+
+    /**
+     * @param type           the type of the value
+     * @param publishedValue the current value of the key, the initial value of the slot if it
+     *                       has the type of the slot
+     */
+    DataSyncSlot(int type, Object publishedValue) {
+        this.type = type;
+        this.publishedValue = publishedValue;
+        if (typeOf(publishedValue) == type) {
+            bits = toBits(type, publishedValue);
+        }
+    }
+
+    int getType() {
+        return type;
+    }
+
+    /**
+     * @param bits the new value
+     * @return false if it is the current value
+     */
+    boolean set(long bits) {
+        if (this.bits == bits) {
+            return false;
+        }
+        this.bits = bits;
+        return true;
+    }
+
+    /**
+     * Box the value and record it as the value of the key.
+     *
+     * @return the boxed value
+     */
+    Object publish() {
+        Object value = box(type, bits);
+        publishedValue = value;
+        return value;
+    }
+
+    /**
+     * @param value the published value of the key
+     * @return true if the slot holds the value of the key
+     */
+    boolean isCurrent(Object value) {
+        return publishedValue == value;
+    }
+
+    Object getValue() {
+        return box(type, bits);
+    }
+
+    int intValue() {
+        return type == FLOAT || type == DOUBLE ? (int) doubleValue() : (int) bits;
+    }
+
+    long longValue() {
+        return type == FLOAT || type == DOUBLE ? (long) doubleValue() : bits;
+    }
+
+    float floatValue() {
+        return type == FLOAT ? Float.intBitsToFloat((int) bits) : (float) doubleValue();
+    }
+
+    double doubleValue() {
+        switch (type) {
+            case FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return bits;
+        }
+    }
+
+    /**
+     * @param value a value
+     * @return the type of slot that can hold it, -1 if there is none
+     */
+    static int typeOf(Object value) {
+        if (value instanceof Integer) {
+            return INT;
+        } else if (value instanceof Long) {
+            return LONG;
+        } else if (value instanceof Float) {
+            return FLOAT;
+        } else if (value instanceof Double) {
+            return DOUBLE;
+        }
+        return -1;
+    }
+
+    static Object box(int type, long bits) {
+        switch (type) {
+            case INT:
+                return (int) bits;
+            case LONG:
+                return bits;
+            case FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            default:
+                return Double.longBitsToDouble(bits);
+        }
+    }
+
+    private static long toBits(int type, Object value) {
+        switch (type) {
+            case FLOAT:
+                return Float.floatToIntBits((Float) value);
+            case DOUBLE:
+                return Double.doubleToLongBits((Double) value);
+            default:
+                return ((Number) value).longValue();
+        }
+    }
+}
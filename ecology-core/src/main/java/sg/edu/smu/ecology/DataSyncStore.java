@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.util.Collection;
+
+/**
+ * Persists the sync data of a data reference so that it survives the restart of its
+ * application (see {@link DataSync#setStore(DataSyncStore)}). The implementations must be thread
+ * safe.
+ *
+ * @author Quentin ROY
+ */
+public interface DataSyncStore {
+
+    /**
+     * @param key the key paired to a sync data
+     * @return the stored value of the key, null if it is not stored
+     */
+    Object get(Object key);
+
+    /**
+     * @return the stored keys
+     */
+    Collection<Object> keys();
+
+    /**
+     * Store the value of a key.
+     *
+     * @param key   the key paired to the sync data
+     * @param value the value
+     */
+    void put(Object key, Object value);
+
+    /**
+     * Remove a key from the store.
+     *
+     * @param key the key paired to the sync data
+     */
+    void remove(Object key);
+
+    /**
+     * Remove all the keys from the store.
+     */
+    void clear();
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hashed timer wheel (Varghese and Lauck) expiring keys. The timers are spread in buckets by
+ * the tick they expire at, so that each tick only checks the timers of one bucket, and only one
+ * task is scheduled on the executor at a time, whatever the number of timers. It ticks only while
+ * there are timers. The timers expire up to one tick late. This class is thread safe.
+ *
+ * @author Quentin ROY
+ */
+class DataSyncTimerWheel {
+    private final DelayedExecutor executor;
+    private final long tickDuration;
+    private final List<Set<Object>> buckets;
+    private final ExpiryListener listener;
+    // The deadline and the bucket of each timer.
+    private final Map<Object, Timer> timers = new HashMap<>();
+    // The first tick whose bucket has not been entirely expired yet.
+    private long currentTick;
+    private boolean ticking = false;
+
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    /**
+     * @param executor     runs the ticks
+     * @param tickDuration the duration of a tick, in milliseconds
+     * @param wheelSize    the number of buckets
+     * @param listener     notified, on the executor, of the expired keys
+     */
+    DataSyncTimerWheel(DelayedExecutor executor, long tickDuration, int wheelSize,
+                       ExpiryListener listener) {
+        this.executor = executor;
+        this.tickDuration = tickDuration;
+        this.listener = listener;
+        buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new HashSet<>());
+        }
+    }
+
+    /**
+     * Schedule the expiry of a key, replacing its current timer if any.
+     *
+     * @param key   the key
+     * @param delay the delay before it expires, in milliseconds
+     */
+    synchronized void schedule(Object key, long delay) {
+        long now = currentTime();
+        if (!ticking) {
+            currentTick = now / tickDuration;
+        }
+        cancel(key);
+        long deadline = now + delay;
+        int bucket = (int) (Math.max(deadline / tickDuration, currentTick) % buckets.size());
+        buckets.get(bucket).add(key);
+        timers.put(key, new Timer(deadline, bucket));
+        if (!ticking) {
+            ticking = true;
+            executor.executeDelayed(tickTask, tickDuration);
+        }
+    }
+
+    /**
+     * Cancel the timer of a key, if any.
+     *
+     * @param key the key
+     */
+    synchronized void cancel(Object key) {
+        Timer timer = timers.remove(key);
+        if (timer != null) {
+            buckets.get(timer.bucket).remove(key);
+        }
+    }
+
+    /**
+     * Cancel all the timers.
+     */
+    synchronized void clear() {
+        timers.clear();
+        for (Set<Object> bucket : buckets) {
+            bucket.clear();
+        }
+    }
+
+    private void tick() {
+        List<Object> expiredKeys = new ArrayList<>();
+        synchronized (this) {
+            long now = currentTime();
+            long nowTick = now / tickDuration;
+            // Each bucket is checked once at most, even after a long pause.
+            long tickCount = Math.min(nowTick - currentTick + 1, buckets.size());
+            for (long tick = currentTick; tick < currentTick + tickCount; tick++) {
+                Iterator<Object> iterator = buckets.get((int) (tick % buckets.size())).iterator();
+                while (iterator.hasNext()) {
+                    Object key = iterator.next();
+                    // The timers of the next rounds stay.
+                    if (timers.get(key).deadline <= now) {
+                        iterator.remove();
+                        timers.remove(key);
+                        expiredKeys.add(key);
+                    }
+                }
+            }
+            // The bucket of the current tick may still hold timers expiring during this tick.
+            currentTick = nowTick;
+            if (timers.isEmpty()) {
+                ticking = false;
+            } else {
+                executor.executeDelayed(tickTask, tickDuration);
+            }
+        }
+        for (Object key : expiredKeys) {
+            listener.onExpired(key);
+        }
+    }
+
+    /**
+     * @return a monotonic time, in milliseconds
+     */
+    long currentTime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Notified of the expired keys.
+     */
+    interface ExpiryListener {
+        /**
+         * @param key the expired key
+         */
+        void onExpired(Object key);
+    }
+
+    private static class Timer {
+        private final long deadline;
+        private final int bucket;
+
+        Timer(long deadline, int bucket) {
+            this.deadline = deadline;
+            this.bucket = bucket;
+        }
+    }
+}
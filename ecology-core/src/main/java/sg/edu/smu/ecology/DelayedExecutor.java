@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An executor that can also run a task after a delay, e.g. on the ecology looper.
+ *
+ * @author Quentin ROY
+ */
+interface DelayedExecutor extends Executor {
+
+    /**
+     * Run a task after a delay.
+     *
+     * @param command the task
+     * @param delay   the delay, in milliseconds
+     */
+    void executeDelayed(Runnable command, long delay);
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.util.logging.Level;
+
+/**
+ * The log used by the platform independent part of the ecology. It mirrors the usual Android
+ * log methods but the actual logging is delegated to a {@link Logger} that can be replaced
+ * depending on the platform. By default, the messages are logged with {@code java.util.logging}.
+ *
+ * @author Quentin ROY
+ * @author Anuroop PATTENA VANIYAR
+ */
+public final class EcologyLog {
+    private static volatile Logger logger = new JavaLogger();
+
+    private EcologyLog() {
+    }
+
+    /**
+     * Replace the logger the messages are delegated to.
+     *
+     * @param logger the new logger
+     */
+    public static void setLogger(Logger logger) {
+        EcologyLog.logger = logger;
+    }
+
+    public static void d(String tag, String message) {
+        logger.log(Logger.DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        logger.log(Logger.INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        logger.log(Logger.WARN, tag, message, null);
+    }
+
+    public static void e(String tag, String message) {
+        logger.log(Logger.ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable throwable) {
+        logger.log(Logger.ERROR, tag, message, throwable);
+    }
+
+    /**
+     * The platform specific logging.
+     */
+    public interface Logger {
+        int DEBUG = 3;
+        int INFO = 4;
+        int WARN = 5;
+        int ERROR = 6;
+
+        /**
+         * Log a message.
+         *
+         * @param priority  {@link #DEBUG}, {@link #INFO}, {@link #WARN} or {@link #ERROR}
+         * @param tag       identifies the source of the message
+         * @param message   the message
+         * @param throwable the exception to log with the message, or null
+         */
+        void log(int priority, String tag, String message, Throwable throwable);
+    }
+
+    /**
+     * A logger relying on {@code java.util.logging}.
+     */
+    private static class JavaLogger implements Logger {
+        @Override
+        public void log(int priority, String tag, String message, Throwable throwable) {
+            Level level;
+            switch (priority) {
+                case DEBUG:
+                    level = Level.FINE;
+                    break;
+                case INFO:
+                    level = Level.INFO;
+                    break;
+                case WARN:
+                    level = Level.WARNING;
+                    break;
+                default:
+                    level = Level.SEVERE;
+                    break;
+            }
+            java.util.logging.Logger.getLogger(tag).log(level, message, throwable);
+        }
+    }
+}
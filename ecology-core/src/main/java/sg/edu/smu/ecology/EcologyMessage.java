@@ -50,6 +50,13 @@ public class EcologyMessage {
      */
     private Integer targetType;
 
+    /**
+     * Messages with the same (non null) coalescing key supersede each other: a message still
+     * waiting to be sent can be replaced by a newer one with the same key. The key is not sent
+     * with the message.
+     */
+    private Object coalescingKey;
+
     public EcologyMessage(List<Object> data) {
         addArguments(data);
     }
@@ -62,6 +69,7 @@ public class EcologyMessage {
         setSource(ecologyMessage.getSource());
         setTargetType(ecologyMessage.getTargetType());
         setTargets(ecologyMessage.getTargets());
+        setCoalescingKey(ecologyMessage.getCoalescingKey());
     }
 
     /**
@@ -162,4 +170,23 @@ public class EcologyMessage {
     public void setTargetType(Integer targetType) {
         this.targetType = targetType;
     }
+
+    /**
+     * Get the coalescing key of the message
+     *
+     * @return the coalescing key of the message, or null if the message cannot be coalesced
+     */
+    public Object getCoalescingKey() {
+        return coalescingKey;
+    }
+
+    /**
+     * Set the coalescing key of the message. A message still waiting to be sent may be replaced
+     * by a newer message with the same key if the connector is configured to do so.
+     *
+     * @param coalescingKey the coalescing key, or null if the message cannot be coalesced
+     */
+    public void setCoalescingKey(Object coalescingKey) {
+        this.coalescingKey = coalescingKey;
+    }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+/**
+ * A hybrid logical clock (Kulkarni et al.): its times follow the physical clock of the device,
+ * but they always increase and they are always greater than the times received from the other
+ * devices, even if their physical clocks are ahead. A time is the physical time in milliseconds
+ * shifted by 16 bits, the lower bits counting the events of the same millisecond.
+ * <p>
+ * Combined with the id of the replica that created it, a time orders all the changes of the
+ * ecology. This class is thread safe.
+ *
+ * @author Quentin ROY
+ */
+class HybridLogicalClock {
+    private static final int LOGICAL_BITS = 16;
+
+    private final long replicaId;
+    private long time = 0;
+
+    /**
+     * @param replicaId the id of the replica using the clock, it must be unique in the ecology
+     */
+    HybridLogicalClock(long replicaId) {
+        this.replicaId = replicaId;
+    }
+
+    /**
+     * @return the id of the replica using the clock
+     */
+    long getReplicaId() {
+        return replicaId;
+    }
+
+    /**
+     * @return a new stamp, greater than all the stamps created or received before
+     */
+    synchronized DataSyncCrdt.Stamp newStamp() {
+        time = Math.max(time + 1, physicalTime() << LOGICAL_BITS);
+        return new DataSyncCrdt.Stamp(time, replicaId);
+    }
+
+    /**
+     * Record a time received from another replica.
+     *
+     * @param remoteTime the time
+     */
+    synchronized void update(long remoteTime) {
+        time = Math.max(time, remoteTime);
+    }
+
+    /**
+     * @return the physical time, in milliseconds
+     */
+    long physicalTime() {
+        return System.currentTimeMillis();
+    }
+}
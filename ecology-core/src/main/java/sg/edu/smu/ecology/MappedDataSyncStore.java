@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import sg.edu.smu.ecology.encoding.MessageData;
+import sg.edu.smu.ecology.encoding.MessageDecoder;
+import sg.edu.smu.ecology.encoding.MessageEncoder;
+
+/**
+ * A {@link DataSyncStore} keeping the sync data in a memory-mapped append log. Each change is
+ * appended to the log as a record: a put record holds the encoded key and value, a removal record
+ * only the encoded key. The keys and values are encoded as one argument messages with the
+ * {@link MessageEncoder}.
+ * <p>
+ * When the log is opened, only the keys of its records are decoded to index the position of the
+ * last value of each key: the values are decoded when they are read. Once more than half of the
+ * log is made of overwritten or removed records, a compaction is scheduled on the compaction
+ * executor: the live records are copied to a new log while the changes keep being appended to the
+ * current one, then the records appended in the meantime are moved to the new log, which replaces
+ * the old one. Writing a change never waits for a compaction to copy the log or for the disk.
+ * <p>
+ * A record is written before its length so that a record interrupted by a crash is ignored when
+ * the log is opened again. This class is thread safe.
+ *
+ * @author Quentin ROY
+ */
+public class MappedDataSyncStore implements DataSyncStore, Closeable {
+    private static final String TAG = MappedDataSyncStore.class.getSimpleName();
+
+    // "ECDS"
+    private static final int MAGIC = 0x45434453;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    // The log is not compacted below this size.
+    private static final int MIN_COMPACTION_SIZE = 64 * 1024;
+
+    private static final byte PUT_RECORD = 1;
+    private static final byte REMOVAL_RECORD = 2;
+
+    // Runs the compactions of the stores that are not given an executor.
+    private static Executor defaultCompactionExecutor = null;
+
+    private final File file;
+    private final Executor compactionExecutor;
+    // Only one compaction at a time. Never taken while holding the monitor of the store.
+    private final Object compactionLock = new Object();
+    private final Runnable compactionTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (!isClosed()) {
+                    compact();
+                }
+            } catch (IOException e) {
+                EcologyLog.e(TAG, "Could not compact " + file, e);
+            } finally {
+                synchronized (MappedDataSyncStore.this) {
+                    compactionScheduled = false;
+                }
+            }
+        }
+    };
+    private final MessageEncoder encoder = new MessageEncoder();
+    private final MessageDecoder decoder = new MessageDecoder();
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    // Where the next record is written.
+    private int writePosition;
+    // The location of the last value of each key.
+    private final Map<Object, Location> index = new HashMap<>();
+    // The size of the records in the index.
+    private long liveSize = 0;
+    private boolean compactionScheduled = false;
+    // Changed when the log is cleared or closed, to drop the compaction in progress.
+    private int generation = 0;
+    private boolean closed = false;
+
+    /**
+     * Open a store, or create it if the file does not exist. The log is compacted on a background
+     * thread shared by the stores.
+     *
+     * @param file the file of the log
+     * @throws IOException if the file can not be opened or is not a store
+     */
+    public MappedDataSyncStore(File file) throws IOException {
+        this(file, getDefaultCompactionExecutor());
+    }
+
+    /**
+     * Open a store, or create it if the file does not exist.
+     *
+     * @param file               the file of the log
+     * @param compactionExecutor the executor running the compactions of the log, off the threads
+     *                           writing to the store
+     * @throws IOException if the file can not be opened or is not a store
+     */
+    public MappedDataSyncStore(File file, Executor compactionExecutor) throws IOException {
+        this.file = file;
+        this.compactionExecutor = compactionExecutor;
+        open();
+    }
+
+    private static synchronized Executor getDefaultCompactionExecutor() {
+        if (defaultCompactionExecutor == null) {
+            defaultCompactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MappedDataSyncStore-compaction");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return defaultCompactionExecutor;
+    }
+
+    @Override
+    public synchronized Object get(Object key) {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        return decode(location.valueOffset, location.valueLength);
+    }
+
+    @Override
+    public synchronized Collection<Object> keys() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    @Override
+    public synchronized void put(Object key, Object value) {
+        byte[] encodedKey;
+        byte[] encodedValue;
+        try {
+            encodedKey = encode(key);
+            encodedValue = encode(value);
+        } catch (CharacterCodingException | MessageData.UnsupportedDataTypeException e) {
+            EcologyLog.w(TAG, "Could not store " + key + ": " + e.getMessage());
+            // Do not keep a previous value.
+            remove(key);
+            return;
+        }
+        append(key, PUT_RECORD, encodedKey, encodedValue);
+    }
+
+    @Override
+    public synchronized void remove(Object key) {
+        if (!index.containsKey(key)) {
+            return;
+        }
+        try {
+            append(key, REMOVAL_RECORD, encode(key), new byte[0]);
+        } catch (CharacterCodingException e) {
+            // It has been encoded when it was put.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        generation++;
+        index.clear();
+        liveSize = 0;
+        writePosition = HEADER_SIZE;
+        buffer.putInt(writePosition, 0);
+    }
+
+    /**
+     * Copy the live records to a new log which replaces the current one. The store can be used
+     * while the records are copied, it is only locked to move the records appended in the meantime
+     * and to replace the log.
+     *
+     * @throws IOException if the new log could not be written
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            ByteBuffer source;
+            Map<Object, Location> liveRecords;
+            int copiedPosition;
+            int startGeneration;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Store closed: " + file);
+                }
+                // The records before the write position are never modified: they can be read
+                // without holding the lock.
+                source = buffer.duplicate();
+                liveRecords = new HashMap<>(index);
+                copiedPosition = writePosition;
+                startGeneration = generation;
+            }
+            File compactFile = new File(file.getPath() + ".compact");
+            long size = HEADER_SIZE + 4;
+            for (Location location : liveRecords.values()) {
+                size += location.recordSize;
+            }
+            int capacity = (int) Math.max(INITIAL_CAPACITY, Math.min(size * 2, Integer.MAX_VALUE));
+            Map<Object, Location> compactIndex = new HashMap<>();
+            int position = HEADER_SIZE;
+            boolean replaced = false;
+            RandomAccessFile compactRandomAccessFile = new RandomAccessFile(compactFile, "rw");
+            try {
+                compactRandomAccessFile.setLength(capacity);
+                MappedByteBuffer compactBuffer = compactRandomAccessFile.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, capacity);
+                compactBuffer.putInt(0, MAGIC);
+                compactBuffer.putInt(4, FORMAT_VERSION);
+                ByteBuffer target = compactBuffer.duplicate();
+                for (Map.Entry<Object, Location> entry : liveRecords.entrySet()) {
+                    Location location = entry.getValue();
+                    source.limit(location.recordOffset + location.recordSize);
+                    source.position(location.recordOffset);
+                    target.position(position);
+                    target.put(source);
+                    compactIndex.put(entry.getKey(), location.moveTo(position));
+                    position += location.recordSize;
+                }
+                compactBuffer.putInt(position, 0);
+                compactBuffer.force();
+                onLiveRecordsCopied();
+
+                synchronized (this) {
+                    if (generation != startGeneration) {
+                        return;
+                    }
+                    // Move the records appended during the copy.
+                    int tailSize = writePosition - copiedPosition;
+                    if (position + tailSize + 4 > capacity) {
+                        capacity = (int) Math.min((long) (position + tailSize) * 2,
+                                Integer.MAX_VALUE);
+                        compactRandomAccessFile.setLength(capacity);
+                        compactBuffer = compactRandomAccessFile.getChannel().map(
+                                FileChannel.MapMode.READ_WRITE, 0, capacity);
+                    }
+                    ByteBuffer tail = buffer.duplicate();
+                    tail.limit(writePosition);
+                    tail.position(copiedPosition);
+                    target = compactBuffer.duplicate();
+                    target.position(position);
+                    target.put(tail);
+                    compactBuffer.putInt(position + tailSize, 0);
+                    // The records of the keys changed during the copy are in the tail.
+                    Map<Object, Location> newIndex = new HashMap<>();
+                    for (Map.Entry<Object, Location> entry : index.entrySet()) {
+                        Location location = entry.getValue();
+                        newIndex.put(entry.getKey(), location.recordOffset < copiedPosition
+                                ? compactIndex.get(entry.getKey())
+                                : location.moveTo(location.recordOffset - copiedPosition
+                                + position));
+                    }
+                    compactRandomAccessFile.close();
+                    // The current log stays in use if it can not be replaced.
+                    if (!compactFile.renameTo(file)) {
+                        throw new IOException("Could not replace " + file);
+                    }
+                    replaced = true;
+                    randomAccessFile.close();
+                    randomAccessFile = new RandomAccessFile(file, "rw");
+                    map(capacity);
+                    index.clear();
+                    index.putAll(newIndex);
+                    writePosition = position + tailSize;
+                }
+            } finally {
+                compactRandomAccessFile.close();
+                if (!replaced) {
+                    compactFile.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by {@link #compact()} once the live records have been copied, before the records
+     * appended in the meantime are moved.
+     */
+    void onLiveRecordsCopied() {
+    }
+
+    /**
+     * Write the pending changes to the disk and close the log.
+     *
+     * @throws IOException if the log could not be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        generation++;
+        buffer.force();
+        randomAccessFile.close();
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the size of the log, including its overwritten or removed records
+     */
+    synchronized int getLogSize() {
+        return writePosition;
+    }
+
+    private void open() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        long length = randomAccessFile.length();
+        if (length < HEADER_SIZE + 4) {
+            randomAccessFile.setLength(INITIAL_CAPACITY);
+            map(INITIAL_CAPACITY);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.putInt(HEADER_SIZE, 0);
+            writePosition = HEADER_SIZE;
+            return;
+        }
+        if (length > Integer.MAX_VALUE) {
+            randomAccessFile.close();
+            throw new IOException("Store too large: " + file);
+        }
+        map((int) length);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            randomAccessFile.close();
+            throw new IOException("Not a data sync store: " + file);
+        }
+        readIndex();
+    }
+
+    /**
+     * Index the records of the log, decoding only their keys.
+     */
+    private void readIndex() {
+        int position = HEADER_SIZE;
+        while (position + 4 <= buffer.capacity()) {
+            int bodyLength = buffer.getInt(position);
+            int recordSize = 4 + bodyLength;
+            if (bodyLength < 5 || position + recordSize + 4 > buffer.capacity()) {
+                break;
+            }
+            byte type = buffer.get(position + 4);
+            int keyLength = buffer.getInt(position + 5);
+            int keyOffset = position + 9;
+            int valueOffset = keyOffset + keyLength;
+            Object key;
+            try {
+                if (keyLength < 0 || valueOffset > position + recordSize) {
+                    throw new IllegalArgumentException("Invalid key length: " + keyLength);
+                }
+                key = decode(keyOffset, keyLength);
+            } catch (RuntimeException e) {
+                EcologyLog.w(TAG, "Log truncated at " + position + ": " + e.getMessage());
+                break;
+            }
+            Location previous = index.remove(key);
+            if (previous != null) {
+                liveSize -= previous.recordSize;
+            }
+            if (type == PUT_RECORD) {
+                index.put(key, new Location(position, recordSize, valueOffset,
+                        position + recordSize - valueOffset));
+                liveSize += recordSize;
+            }
+            position += recordSize;
+        }
+        writePosition = position;
+        // Anything after is garbage.
+        if (writePosition + 4 <= buffer.capacity()) {
+            buffer.putInt(writePosition, 0);
+        }
+    }
+
+    private void append(Object key, byte type, byte[] encodedKey, byte[] encodedValue) {
+        int bodyLength = 1 + 4 + encodedKey.length + encodedValue.length;
+        int recordSize = 4 + bodyLength;
+        try {
+            // Keep room for the end mark.
+            ensureCapacity(writePosition + recordSize + 4);
+        } catch (IOException e) {
+            EcologyLog.e(TAG, "Could not store " + key, e);
+            return;
+        }
+        int position = writePosition;
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + 4);
+        target.put(type);
+        target.putInt(encodedKey.length);
+        target.put(encodedKey);
+        target.put(encodedValue);
+        buffer.putInt(position + recordSize, 0);
+        // Written last: the record only exists once its length is written.
+        buffer.putInt(position, bodyLength);
+        writePosition += recordSize;
+
+        Location previous = index.remove(key);
+        if (previous != null) {
+            liveSize -= previous.recordSize;
+        }
+        if (type == PUT_RECORD) {
+            index.put(key, new Location(position, recordSize,
+                    position + 9 + encodedKey.length, encodedValue.length));
+            liveSize += recordSize;
+        }
+        if (!compactionScheduled && writePosition > MIN_COMPACTION_SIZE
+                && liveSize * 2 < writePosition) {
+            compactionScheduled = true;
+            compactionExecutor.execute(compactionTask);
+        }
+    }
+
+    private void ensureCapacity(int capacity) throws IOException {
+        if (capacity <= buffer.capacity()) {
+            return;
+        }
+        long newCapacity = Math.max((long) buffer.capacity() * 2, capacity);
+        if (newCapacity > Integer.MAX_VALUE) {
+            throw new IOException("Store too large: " + file);
+        }
+        buffer.force();
+        randomAccessFile.setLength(newCapacity);
+        map((int) newCapacity);
+    }
+
+    private void map(int capacity) throws IOException {
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private byte[] encode(Object value) throws CharacterCodingException {
+        return encoder.encode(new EcologyMessage(Collections.singletonList(value)));
+    }
+
+    private Object decode(int offset, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(data);
+        return decoder.decode(data).getArguments().get(0);
+    }
+
+    /**
+     * The location of a record in the log.
+     */
+    private static class Location {
+        private final int recordOffset;
+        private final int recordSize;
+        private final int valueOffset;
+        private final int valueLength;
+
+        Location(int recordOffset, int recordSize, int valueOffset, int valueLength) {
+            this.recordOffset = recordOffset;
+            this.recordSize = recordSize;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+        }
+
+        /**
+         * @param newRecordOffset the new offset of the record
+         * @return the location of the same record at another offset
+         */
+        Location moveTo(int newRecordOffset) {
+            return new Location(newRecordOffset, recordSize,
+                    newRecordOffset + valueOffset - recordOffset, valueLength);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A thread safe map backed by a {@link PersistentHashMap}: each change replaces the persistent
+ * map with a new one, so that {@link #snapshot()} can return its current content in constant
+ * time. The reads do not lock. The iterators iterate over the snapshot of the map at their
+ * creation, they never throw a {@link java.util.ConcurrentModificationException}.
+ * <p>
+ * The keys and the values can not be null.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ * @author Quentin ROY
+ */
+class SnapshotHashMap<K, V> extends AbstractMap<K, V> {
+    private volatile PersistentHashMap<K, V> map = PersistentHashMap.empty();
+
+    /**
+     * @return the current content of the map, it never changes
+     */
+    PersistentHashMap<K, V> snapshot() {
+        return map;
+    }
+
+    @Override
+    public V get(Object key) {
+        return map.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public synchronized V put(K key, V value) {
+        PersistentHashMap<K, V> current = map;
+        V oldValue = current.get(key);
+        map = current.plus(key, value);
+        return oldValue;
+    }
+
+    @Override
+    public synchronized V remove(Object key) {
+        PersistentHashMap<K, V> current = map;
+        V oldValue = current.get(key);
+        map = current.minus(key);
+        return oldValue;
+    }
+
+    @Override
+    public synchronized void clear() {
+        map = PersistentHashMap.empty();
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                final Iterator<Entry<K, V>> iterator = map.entrySet().iterator();
+                return new Iterator<Entry<K, V>>() {
+                    private Entry<K, V> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        current = iterator.next();
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (current == null) {
+                            throw new IllegalStateException();
+                        }
+                        SnapshotHashMap.this.remove(current.getKey());
+                        current = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return map.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector;
+
+import java.util.Random;
+
+/**
+ * The delays to wait between failed connection attempts. The delay doubles after each failure,
+ * up to a maximum, and is randomized so that devices that lost their connection at the same time
+ * do not all try again at the same time: the returned delay is between half and all of the
+ * current delay ("equal jitter").
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Quentin ROY
+ */
+public class ExponentialBackoff {
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Random random;
+    private int failures = 0;
+
+    /**
+     * @param initialDelay the delay after the first failure, in milliseconds
+     * @param maxDelay     the maximum delay, in milliseconds
+     */
+    public ExponentialBackoff(long initialDelay, long maxDelay) {
+        this(initialDelay, maxDelay, new Random());
+    }
+
+    /**
+     * @param initialDelay the delay after the first failure, in milliseconds
+     * @param maxDelay     the maximum delay, in milliseconds
+     * @param random       the source of the jitter
+     */
+    public ExponentialBackoff(long initialDelay, long maxDelay, Random random) {
+        if (initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid delays: " + initialDelay + ", "
+                    + maxDelay);
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+    }
+
+    /**
+     * Register a failure.
+     *
+     * @return the delay to wait before the next attempt, in milliseconds
+     */
+    public long nextDelay() {
+        long delay = getCurrentDelay();
+        failures++;
+        long half = delay / 2;
+        return delay - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    /**
+     * Forget the previous failures, e.g. once a connection has been established.
+     */
+    public void reset() {
+        failures = 0;
+    }
+
+    /**
+     * @return the number of failures since the last reset
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the delay, before jitter, the next failure will be followed by
+     */
+    private long getCurrentDelay() {
+        long delay = initialDelay;
+        for (int i = 0; i < failures && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxDelay);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sg.edu.smu.ecology.encoding.ByteBufferPool;
+
+/**
+ * An encoded frame waiting to be written on one or several connections.
+ * <p>
+ * Frames are reference counted so that the same buffer can be queued on several connections: each
+ * queue owns one reference and releases it once the frame has been written (or dropped). The
+ * buffer goes back to its pool when the last reference is released. The content of the buffer
+ * must not be modified once the frame has been created.
+ *
+ * @author Quentin ROY
+ * @author Anuroop PATTENA VANIYAR
+ */
+public class OutboundFrame {
+    private final ByteBuffer buffer;
+    private final ByteBufferPool pool;
+    private final Object coalescingKey;
+    private final int offset;
+    private final int length;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Create a frame from a pooled buffer. The frame starts with one reference.
+     *
+     * @param buffer        the buffer containing the frame between its position and its limit
+     * @param pool          the pool to give the buffer back to once released, or null
+     * @param coalescingKey the key used to coalesce this frame with the newer ones, or null
+     */
+    public OutboundFrame(ByteBuffer buffer, ByteBufferPool pool, Object coalescingKey) {
+        this.buffer = buffer;
+        this.pool = pool;
+        this.coalescingKey = coalescingKey;
+        this.offset = buffer.arrayOffset() + buffer.position();
+        this.length = buffer.remaining();
+    }
+
+    /**
+     * Create a frame from a byte array, e.g. a frame received from a connection to be forwarded
+     * as it is.
+     *
+     * @param frame the frame
+     */
+    public OutboundFrame(byte[] frame) {
+        this(ByteBuffer.wrap(frame), null, null);
+    }
+
+    /**
+     * @return the array containing the frame
+     */
+    public byte[] getArray() {
+        return buffer.array();
+    }
+
+    /**
+     * @return the position of the frame in {@link #getArray()}
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the length of the frame
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the key used to coalesce this frame with the newer ones, or null
+     */
+    public Object getCoalescingKey() {
+        return coalescingKey;
+    }
+
+    /**
+     * Add a reference to the frame.
+     *
+     * @return the frame
+     */
+    public OutboundFrame retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Remove a reference to the frame. Its buffer is given back to its pool once it does not have
+     * any reference left.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0 && pool != null) {
+            pool.release(buffer);
+        }
+    }
+}
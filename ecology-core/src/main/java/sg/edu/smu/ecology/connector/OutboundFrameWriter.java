@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import sg.edu.smu.ecology.EcologyLog;
+
+/**
+ * A thread writing the frames of an {@link OutboundQueue} on the output stream of a connection.
+ * The frames are sent from any thread with {@link #send(OutboundFrame)}, which returns as soon as
+ * the frame has been queued: the (possibly slow) writes never happen on the caller's thread.
+ * <p>
+ * Small frames are gathered into a batch that is written at once, so that a burst of messages
+ * does not go out as many tiny packets. The batch is written when it is full, when
+ * {@link #flush()} is called, or when the queue is empty once the maximum flush delay, counted
+ * from the moment the first frame of the batch has been taken from the queue, has passed.
+ *
+ * @author Quentin ROY
+ * @author Anuroop PATTENA VANIYAR
+ */
+public class OutboundFrameWriter extends Thread {
+    private static final String TAG = OutboundFrameWriter.class.getSimpleName();
+
+    /**
+     * The default size of the batch buffer.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 8 * 1024;
+
+    /**
+     * The default maximum time a frame can wait in the batch, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_FLUSH_DELAY = 2;
+
+    private final OutputStream outputStream;
+    private final OutboundQueue queue;
+    private final long maxFlushDelay;
+    // The frames waiting to be written.
+    private final byte[] batch;
+    private int batchLength = 0;
+
+    /**
+     * @param outputStream the stream to write the frames on
+     * @param queue        the queue of frames waiting to be written
+     */
+    public OutboundFrameWriter(OutputStream outputStream, OutboundQueue queue) {
+        this(outputStream, queue, DEFAULT_BATCH_SIZE, DEFAULT_MAX_FLUSH_DELAY);
+    }
+
+    /**
+     * @param outputStream  the stream to write the frames on
+     * @param queue         the queue of frames waiting to be written
+     * @param batchSize     the size of the batch buffer, frames that do not fit are written
+     *                      directly
+     * @param maxFlushDelay the maximum time a frame can wait in the batch for other frames to be
+     *                      written with, in milliseconds (0 to write the batch as soon as the
+     *                      queue is empty)
+     */
+    public OutboundFrameWriter(OutputStream outputStream, OutboundQueue queue, int batchSize,
+                               long maxFlushDelay) {
+        super(TAG);
+        this.outputStream = outputStream;
+        this.queue = queue;
+        this.batch = new byte[batchSize];
+        this.maxFlushDelay = TimeUnit.MILLISECONDS.toNanos(maxFlushDelay);
+    }
+
+    /**
+     * Queue a frame to be written. The writer takes ownership of the reference of the caller on
+     * the frame.
+     *
+     * @param frame the frame
+     * @return true if the frame has been queued
+     */
+    public boolean send(OutboundFrame frame) {
+        return queue.offer(frame);
+    }
+
+    /**
+     * Write the frames sent so far without waiting for the batch to be full or for the maximum
+     * flush delay. This returns right away: it is meant to be called after sending latency
+     * critical messages.
+     */
+    public void flush() {
+        queue.requestFlush();
+    }
+
+    @Override
+    public void run() {
+        try {
+            long flushDeadline = 0;
+            while (true) {
+                OutboundFrame frame;
+                if (batchLength == 0) {
+                    frame = queue.take();
+                    if (frame == null) {
+                        // The queue has been closed and everything has been written.
+                        break;
+                    }
+                    flushDeadline = System.nanoTime() + maxFlushDelay;
+                } else {
+                    frame = queue.poll(flushDeadline - System.nanoTime());
+                }
+                if (frame != null) {
+                    append(frame);
+                }
+                // Once the deadline has passed, poll does not wait anymore: only the frames
+                // that are already queued join the batch before it is written.
+                boolean flushRequested = queue.takeFlushRequest();
+                if (frame == null || flushRequested) {
+                    writeBatch();
+                }
+            }
+            outputStream.flush();
+        } catch (InterruptedException e) {
+            // The writer has been cancelled.
+        } catch (IOException e) {
+            EcologyLog.e(TAG, "Exception during write", e);
+        } finally {
+            queue.close();
+            queue.clear();
+        }
+    }
+
+    /**
+     * Add a frame to the batch, writing the batch first if the frame does not fit. Frames bigger
+     * than the batch buffer are written directly.
+     *
+     * @param frame the frame, released once copied or written
+     * @throws IOException if the stream cannot be written
+     */
+    private void append(OutboundFrame frame) throws IOException {
+        try {
+            int length = frame.getLength();
+            if (length > batch.length - batchLength) {
+                writeBatch();
+            }
+            if (length >= batch.length) {
+                outputStream.write(frame.getArray(), frame.getOffset(), length);
+                outputStream.flush();
+            } else {
+                System.arraycopy(frame.getArray(), frame.getOffset(), batch, batchLength, length);
+                batchLength += length;
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Write the batch on the stream.
+     *
+     * @throws IOException if the stream cannot be written
+     */
+    private void writeBatch() throws IOException {
+        if (batchLength > 0) {
+            outputStream.write(batch, 0, batchLength);
+            batchLength = 0;
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Stop accepting new frames and wait for the pending ones to be written.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     */
+    public void finish(long timeout) {
+        queue.close();
+        try {
+            join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the writer right away, dropping the pending frames.
+     */
+    public void cancel() {
+        queue.close();
+        queue.clear();
+        interrupt();
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue of frames waiting to be written on a connection. What happens when a frame is
+ * added to a full queue depends on the queue's {@link OverflowPolicy}.
+ * <p>
+ * The queue owns a reference on each of its frames (see {@link OutboundFrame}): the frames that
+ * are dropped, superseded or still pending once the queue is cleared are released by the queue.
+ * This class is thread safe.
+ *
+ * @author Quentin ROY
+ * @author Anuroop PATTENA VANIYAR
+ */
+public class OutboundQueue {
+    /**
+     * The default maximum number of frames in a queue.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * What to do when a frame is added to a full queue.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for the queue to have room for the frame.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest frames of the queue to make room for the frame. Only for the streams
+         * that tolerate losses: the dropped frames are never sent again.
+         */
+        DROP_OLDEST,
+        /**
+         * Replace the pending frame with the same coalescing key as the frame if there is one
+         * (whether or not the queue is full). Otherwise, wait for the queue to have room for the
+         * frame.
+         */
+        COALESCE
+    }
+
+    private final OverflowPolicy overflowPolicy;
+    // A ring buffer of the pending frames.
+    private final OutboundFrame[] frames;
+    private int head = 0;
+    private int count = 0;
+    private boolean closed = false;
+    private boolean flushRequested = false;
+    private long droppedFrames = 0;
+    private volatile DropListener dropListener;
+
+    public OutboundQueue() {
+        this(DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param capacity       the maximum number of frames in the queue
+     * @param overflowPolicy what to do when a frame is added to a full queue
+     */
+    public OutboundQueue(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+        }
+        this.frames = new OutboundFrame[capacity];
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param dropListener notified of the frames dropped to make room for new ones, null for none
+     */
+    public void setDropListener(DropListener dropListener) {
+        this.dropListener = dropListener;
+    }
+
+    /**
+     * Add a frame at the end of the queue. The queue takes ownership of the reference of the
+     * caller on the frame: it is released if the frame cannot be added.
+     *
+     * @param frame the frame
+     * @return true if the frame has been queued (or has superseded another one), false if the
+     * queue is closed or the thread has been interrupted while waiting for the queue to have room
+     */
+    public synchronized boolean offer(OutboundFrame frame) {
+        if (overflowPolicy == OverflowPolicy.COALESCE && !closed && coalesce(frame)) {
+            return true;
+        }
+        while (!closed && count == frames.length) {
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                removeFirst().release();
+                droppedFrames++;
+                DropListener listener = dropListener;
+                if (listener != null) {
+                    listener.onFrameDropped(droppedFrames);
+                }
+            } else {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    frame.release();
+                    return false;
+                }
+            }
+        }
+        if (closed) {
+            frame.release();
+            return false;
+        }
+        frames[(head + count) % frames.length] = frame;
+        count++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Remove the first frame of the queue, waiting for one if the queue is empty. The caller
+     * becomes responsible for releasing the frame.
+     *
+     * @return the first frame or null if the queue is closed and empty
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized OutboundFrame take() throws InterruptedException {
+        while (count == 0) {
+            if (closed) {
+                return null;
+            }
+            wait();
+        }
+        OutboundFrame frame = removeFirst();
+        notifyAll();
+        return frame;
+    }
+
+    /**
+     * Remove the first frame of the queue, waiting at most the given time for one if the queue
+     * is empty. The caller becomes responsible for releasing the frame.
+     *
+     * @param timeout the maximum time to wait in nanoseconds
+     * @return the first frame or null if none arrived in time, if the queue is closed and empty
+     * or if a flush has been requested (see {@link #requestFlush()})
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized OutboundFrame poll(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout;
+        while (count == 0) {
+            long remaining = deadline - System.nanoTime();
+            if (closed || flushRequested || remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        OutboundFrame frame = removeFirst();
+        notifyAll();
+        return frame;
+    }
+
+    /**
+     * Ask the consumer of the queue to write the frames it has taken so far without waiting for
+     * more. This stops any pending {@link #poll(long)} on an empty queue.
+     */
+    public synchronized void requestFlush() {
+        flushRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Check if a flush has been requested since the last call, and reset the request.
+     *
+     * @return true if a flush has been requested
+     */
+    public synchronized boolean takeFlushRequest() {
+        boolean requested = flushRequested;
+        flushRequested = false;
+        return requested;
+    }
+
+    /**
+     * Close the queue: no frame can be added anymore but the pending frames can still be taken.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Release and remove all the pending frames.
+     */
+    public synchronized void clear() {
+        while (count > 0) {
+            removeFirst().release();
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the number of pending frames
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return the number of frames that have been dropped or superseded by a newer frame
+     */
+    public synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Replace the pending frame with the same coalescing key as a new frame.
+     *
+     * @param frame the new frame
+     * @return true if a pending frame has been replaced
+     */
+    private boolean coalesce(OutboundFrame frame) {
+        Object key = frame.getCoalescingKey();
+        if (key == null) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % frames.length;
+            if (key.equals(frames[index].getCoalescingKey())) {
+                frames[index].release();
+                frames[index] = frame;
+                droppedFrames++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private OutboundFrame removeFirst() {
+        OutboundFrame frame = frames[head];
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        count--;
+        return frame;
+    }
+
+    /**
+     * Notified of the frames dropped by a {@link OverflowPolicy#DROP_OLDEST} queue.
+     */
+    public interface DropListener {
+        /**
+         * Called when a frame has been dropped, while the queue is locked: it must not use the
+         * queue.
+         *
+         * @param droppedFrames the number of frames dropped or superseded so far
+         */
+        void onFrameDropped(long droppedFrames);
+    }
+}
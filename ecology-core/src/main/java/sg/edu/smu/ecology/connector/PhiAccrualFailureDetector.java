@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector;
+
+/**
+ * A phi accrual failure detector (Hayashibara et al.) for the link with a peer. Rather than a
+ * fixed timeout, it gives a suspicion level, phi, that grows with the time elapsed since the last
+ * heartbeat compared to the intervals between the previous heartbeats: phi = 1 means that the
+ * peer would have been wrongly suspected about 10% of the time, phi = 2 about 1%, and so on.
+ * <p>
+ * The intervals are assumed to be normally distributed. The time the peer is allowed to be
+ * silent on top of its usual interval, e.g. the interval at which it sends heartbeats when it has
+ * nothing else to send, is added to their mean. The times are given by the caller, in
+ * milliseconds, so that any clock can be used. This class is thread safe.
+ *
+ * @author Quentin ROY
+ */
+public class PhiAccrualFailureDetector {
+    /**
+     * The default suspicion level above which a peer is considered unreachable.
+     */
+    public static final double DEFAULT_THRESHOLD = 8;
+    /**
+     * The default number of intervals the distribution is estimated from.
+     */
+    public static final int DEFAULT_MAX_SAMPLE_SIZE = 200;
+
+    private final double threshold;
+    private final long minStdDeviation;
+    private final long acceptablePause;
+    // A ring buffer of the last intervals between two heartbeats.
+    private final long[] intervals;
+    private int head = 0;
+    private int count = 0;
+    private double intervalSum = 0;
+    private double squaredIntervalSum = 0;
+    // -1 until the first heartbeat.
+    private long lastHeartbeatTime = -1;
+
+    /**
+     * Create a detector with the default threshold and sample size.
+     *
+     * @param heartbeatInterval the usual interval between two heartbeats, it is used as the
+     *                          estimation until the first intervals are known, as the time the
+     *                          peer may be silent on top of the observed intervals, and, divided
+     *                          by two, as the minimum standard deviation of the intervals
+     */
+    public PhiAccrualFailureDetector(long heartbeatInterval) {
+        this(DEFAULT_THRESHOLD, DEFAULT_MAX_SAMPLE_SIZE, heartbeatInterval / 2, heartbeatInterval,
+                heartbeatInterval);
+    }
+
+    /**
+     * @param threshold              the suspicion level above which the peer is considered
+     *                               unreachable
+     * @param maxSampleSize          the number of intervals the distribution is estimated from
+     * @param minStdDeviation        the minimum standard deviation of the intervals, so that
+     *                               very regular heartbeats do not make the detector too eager,
+     *                               in milliseconds
+     * @param acceptablePause        the time the peer may be silent on top of the observed
+     *                               intervals, in milliseconds
+     * @param firstHeartbeatEstimate the interval assumed before the first intervals are known, in
+     *                               milliseconds
+     */
+    public PhiAccrualFailureDetector(double threshold, int maxSampleSize, long minStdDeviation,
+                                     long acceptablePause, long firstHeartbeatEstimate) {
+        if (maxSampleSize < 1 || minStdDeviation <= 0 || acceptablePause < 0
+                || firstHeartbeatEstimate <= 0) {
+            throw new IllegalArgumentException("Invalid failure detector parameters");
+        }
+        this.threshold = threshold;
+        this.minStdDeviation = minStdDeviation;
+        this.acceptablePause = acceptablePause;
+        this.intervals = new long[maxSampleSize];
+        // Seed the history with intervals whose mean is the estimate and whose standard
+        // deviation is a fourth of it.
+        long stdDeviation = firstHeartbeatEstimate / 4;
+        addInterval(firstHeartbeatEstimate - stdDeviation);
+        addInterval(firstHeartbeatEstimate + stdDeviation);
+    }
+
+    /**
+     * Record a heartbeat, i.e. any sign of life of the peer.
+     *
+     * @param time the time of the heartbeat, in milliseconds
+     */
+    public synchronized void heartbeat(long time) {
+        if (lastHeartbeatTime >= 0 && time > lastHeartbeatTime) {
+            addInterval(time - lastHeartbeatTime);
+        }
+        if (time > lastHeartbeatTime) {
+            lastHeartbeatTime = time;
+        }
+    }
+
+    /**
+     * @param time the current time, in milliseconds
+     * @return the suspicion level of the peer, 0 if no heartbeat has been recorded yet
+     */
+    public synchronized double phi(long time) {
+        if (lastHeartbeatTime < 0) {
+            return 0;
+        }
+        long elapsed = time - lastHeartbeatTime;
+        double mean = intervalSum / count;
+        double variance = squaredIntervalSum / count - mean * mean;
+        double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDeviation);
+        return phi(elapsed, mean + acceptablePause, stdDeviation);
+    }
+
+    /**
+     * @param time the current time, in milliseconds
+     * @return true if the suspicion level of the peer is above the threshold
+     */
+    public boolean isSuspected(long time) {
+        return phi(time) > threshold;
+    }
+
+    /**
+     * @return the time of the last heartbeat, -1 if no heartbeat has been recorded yet
+     */
+    public synchronized long getLastHeartbeatTime() {
+        return lastHeartbeatTime;
+    }
+
+    private void addInterval(long interval) {
+        if (count == intervals.length) {
+            long oldest = intervals[head];
+            intervalSum -= oldest;
+            squaredIntervalSum -= (double) oldest * oldest;
+        } else {
+            count++;
+        }
+        intervals[head] = interval;
+        head = (head + 1) % intervals.length;
+        intervalSum += interval;
+        squaredIntervalSum += (double) interval * interval;
+    }
+
+    /**
+     * Compute -log10(1 - F(elapsed)) where F is the cumulative distribution function of the
+     * normal distribution, approximated with a logistic function.
+     */
+    private static double phi(long elapsed, double mean, double stdDeviation) {
+        double y = (elapsed - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1 + e));
+        } else {
+            return -Math.log10(1 - 1 / (1 + e));
+        }
+    }
+}
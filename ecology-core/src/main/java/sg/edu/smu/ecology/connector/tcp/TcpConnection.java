@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sg.edu.smu.ecology.connector.OutboundFrame;
+import sg.edu.smu.ecology.encoding.MessageEncoder;
+
+/**
+ * A non-blocking connection of a {@link TcpSelectorThread}. The frames (a length followed by an
+ * encoded message) are read and written by the selector thread; they can be sent from any
+ * thread.
+ *
+ * @author Quentin ROY
+ */
+public class TcpConnection {
+    /**
+     * The maximum number of bytes that can be waiting to be written on a connection. A peer
+     * that does not read fast enough to stay below this limit is disconnected.
+     */
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    /**
+     * The maximum size of a received frame.
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 16 * 1024;
+    // The maximum number of frames written with a single gathering write.
+    private static final int MAX_GATHERED_FRAMES = 32;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final TcpSelectorThread selectorThread;
+    private final long maxQueuedBytes;
+
+    // The frames waiting to be written, they can be added from any thread.
+    private final Queue<OutboundFrame> pendingFrames = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    private volatile boolean closed = false;
+    private volatile boolean overflowed = false;
+
+    // The frames being written, only accessed from the selector thread.
+    private final OutboundFrame[] writingFrames = new OutboundFrame[MAX_GATHERED_FRAMES];
+    private final ByteBuffer[] writingBuffers = new ByteBuffer[MAX_GATHERED_FRAMES];
+    private int writingStart = 0;
+    private int writingEnd = 0;
+
+    // The bytes received but not yet handled, only accessed from the selector thread.
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+    private volatile Object attachment;
+
+    TcpConnection(SocketChannel channel, SelectionKey key, TcpSelectorThread selectorThread,
+                  long maxQueuedBytes) {
+        this.channel = channel;
+        this.key = key;
+        this.selectorThread = selectorThread;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Queue a frame to be written on the connection. This takes over the reference of the
+     * caller: the frame is released once it has been written, or right away if the connection
+     * is closed.
+     *
+     * @param frame the frame
+     */
+    public void send(OutboundFrame frame) {
+        if (closed) {
+            frame.release();
+            return;
+        }
+        pendingFrames.add(frame);
+        if (queuedBytes.addAndGet(frame.getLength()) > maxQueuedBytes) {
+            // The peer does not keep up, it will be disconnected by the selector thread.
+            overflowed = true;
+        }
+        if (writeRequested.compareAndSet(false, true)) {
+            selectorThread.requestWrite(this);
+        }
+        if (closed) {
+            // The connection may have been closed before the frame was queued.
+            releasePendingFrames();
+        }
+    }
+
+    /**
+     * Close the connection. The frames waiting to be written are dropped.
+     */
+    public void close() {
+        selectorThread.requestClose(this);
+    }
+
+    /**
+     * @return true if the connection is closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the object attached to this connection (e.g. the id of the remote device)
+     */
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * @param attachment an object to attach to this connection
+     */
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * Read the available bytes and pass the complete frames to the listener.
+     *
+     * @param listener the listener
+     * @return false if the end of the stream has been reached
+     * @throws IOException if the connection failed or a corrupted frame has been received
+     */
+    boolean read(TcpSelectorThread.Listener listener) throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            return false;
+        }
+
+        readBuffer.flip();
+        while (readBuffer.remaining() >= MessageEncoder.LENGTH_PREFIX_SIZE) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            int frameSize = MessageEncoder.LENGTH_PREFIX_SIZE + length;
+            if (readBuffer.remaining() < frameSize) {
+                break;
+            }
+            byte[] frame = new byte[frameSize];
+            readBuffer.get(frame);
+            listener.onFrameReceived(this, frame);
+        }
+        readBuffer.compact();
+
+        // Make room for the frame being received if it does not fit.
+        if (readBuffer.position() >= MessageEncoder.LENGTH_PREFIX_SIZE) {
+            int frameSize = MessageEncoder.LENGTH_PREFIX_SIZE + readBuffer.getInt(0);
+            if (frameSize > readBuffer.capacity()) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(frameSize);
+                readBuffer.flip();
+                newBuffer.put(readBuffer);
+                readBuffer = newBuffer;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write as many frames as possible, several frames being written at once when possible.
+     * The connection is registered for write readiness if the socket cannot take everything.
+     *
+     * @return false if the connection must be closed because its peer does not keep up
+     * @throws IOException if the connection failed
+     */
+    boolean write() throws IOException {
+        writeRequested.set(false);
+        if (overflowed) {
+            return false;
+        }
+        while (true) {
+            // Fill the gathering write with the waiting frames.
+            OutboundFrame frame;
+            while (writingEnd < MAX_GATHERED_FRAMES && (frame = pendingFrames.poll()) != null) {
+                writingFrames[writingEnd] = frame;
+                writingBuffers[writingEnd] = ByteBuffer.wrap(frame.getArray(), frame.getOffset(),
+                        frame.getLength());
+                writingEnd++;
+            }
+            if (writingStart == writingEnd) {
+                key.interestOps(SelectionKey.OP_READ);
+                return true;
+            }
+
+            channel.write(writingBuffers, writingStart, writingEnd - writingStart);
+
+            while (writingStart < writingEnd && !writingBuffers[writingStart].hasRemaining()) {
+                queuedBytes.addAndGet(-writingFrames[writingStart].getLength());
+                writingFrames[writingStart].release();
+                writingFrames[writingStart] = null;
+                writingBuffers[writingStart] = null;
+                writingStart++;
+            }
+            if (writingStart < writingEnd) {
+                // The socket buffer is full, wait for it to be drained.
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return true;
+            }
+            writingStart = 0;
+            writingEnd = 0;
+        }
+    }
+
+    /**
+     * Mark the connection as closed and release its frames. Called from the selector thread once
+     * the channel has been closed.
+     */
+    void onClosed() {
+        closed = true;
+        for (int i = writingStart; i < writingEnd; i++) {
+            writingFrames[i].release();
+            writingFrames[i] = null;
+            writingBuffers[i] = null;
+        }
+        writingStart = 0;
+        writingEnd = 0;
+        releasePendingFrames();
+    }
+
+    private void releasePendingFrames() {
+        OutboundFrame frame;
+        while ((frame = pendingFrames.poll()) != null) {
+            frame.release();
+        }
+    }
+}
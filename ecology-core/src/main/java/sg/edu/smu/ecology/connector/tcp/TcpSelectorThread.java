@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import sg.edu.smu.ecology.EcologyLog;
+
+/**
+ * A thread multiplexing all the TCP connections of a device with a single {@link Selector}.
+ * <p>
+ * A server thread accepts any number of connections on its address. A client thread connects
+ * to its address and connects again after a delay when the connection fails or is lost.
+ * The listener is always called from this thread: it must not block.
+ *
+ * @author Quentin ROY
+ */
+public class TcpSelectorThread extends Thread {
+    private static final String TAG = TcpSelectorThread.class.getSimpleName();
+
+    /**
+     * Default delay before a client tries to connect again, in milliseconds.
+     */
+    public static final long DEFAULT_RECONNECT_DELAY = 1000;
+
+    private final InetSocketAddress address;
+    private final boolean server;
+    private final Listener listener;
+    private final Selector selector;
+    // The connections waiting for the selector thread to write or to close them.
+    private final Queue<TcpConnection> writeRequests = new ConcurrentLinkedQueue<>();
+    private final Queue<TcpConnection> closeRequests = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private volatile int localPort = -1;
+    private long reconnectDelay = DEFAULT_RECONNECT_DELAY;
+    private long maxQueuedBytes = TcpConnection.DEFAULT_MAX_QUEUED_BYTES;
+
+    private ServerSocketChannel serverChannel;
+    // Client only: the connection, pending or established, and when to try to connect next.
+    private SocketChannel clientChannel;
+    private long nextConnectionTime = 0;
+
+    /**
+     * @param address  the address to listen on (server) or to connect to (client), it may be
+     *                 unresolved
+     * @param server   true if the thread accepts connections, false if it connects to a server
+     * @param listener notified of the connection events
+     * @throws IOException if the selector could not be opened
+     */
+    public TcpSelectorThread(InetSocketAddress address, boolean server, Listener listener)
+            throws IOException {
+        super(TAG + (server ? "-server" : "-client"));
+        this.address = address;
+        this.server = server;
+        this.listener = listener;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * @param reconnectDelay the delay before a client tries to connect again, in milliseconds
+     */
+    public void setReconnectDelay(long reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    /**
+     * @param maxQueuedBytes the maximum number of bytes that can be waiting to be written on a
+     *                       connection before it is closed
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * @return the port the server is listening on, or -1 if it is not listening
+     */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * Close all the connections and stop the thread. The listener is notified of the closed
+     * connections before the thread ends.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (server) {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.configureBlocking(false);
+                serverChannel.socket().setReuseAddress(true);
+                serverChannel.socket().bind(address);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                localPort = serverChannel.socket().getLocalPort();
+                listener.onListening(localPort);
+            }
+
+            while (running) {
+                long timeout = 0;
+                if (!server && clientChannel == null) {
+                    long now = System.currentTimeMillis();
+                    if (now >= nextConnectionTime) {
+                        startConnection();
+                    } else {
+                        timeout = nextConnectionTime - now;
+                    }
+                }
+
+                selector.select(timeout);
+                handleRequests();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            EcologyLog.e(TAG, "Selector failure", e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Called from any thread when frames have been queued on a connection.
+     */
+    void requestWrite(TcpConnection connection) {
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Called from any thread to close a connection.
+     */
+    void requestClose(TcpConnection connection) {
+        closeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    private void handleRequests() {
+        TcpConnection connection;
+        while ((connection = closeRequests.poll()) != null) {
+            close(connection);
+        }
+        while ((connection = writeRequests.poll()) != null) {
+            if (!connection.isClosed()) {
+                write(connection);
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        if (key.isConnectable()) {
+            finishConnection(key);
+            return;
+        }
+
+        TcpConnection connection = (TcpConnection) key.attachment();
+        if (key.isReadable()) {
+            try {
+                if (!connection.read(listener)) {
+                    close(connection);
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                // Including the frames the listener could not handle: a corrupted peer must not
+                // stop the other connections.
+                EcologyLog.w(TAG, "Read failure: " + e.getMessage());
+                close(connection);
+                return;
+            }
+        }
+        if (key.isValid() && key.isWritable()) {
+            write(connection);
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel = null;
+        try {
+            channel = serverChannel.accept();
+            if (channel != null) {
+                open(channel, null);
+            }
+        } catch (IOException e) {
+            EcologyLog.w(TAG, "Accept failure: " + e.getMessage());
+            closeChannel(channel);
+        }
+    }
+
+    private void startConnection() {
+        try {
+            // The host name is resolved here so that it does not block the caller of connect.
+            InetSocketAddress remoteAddress = address.isUnresolved() ?
+                    new InetSocketAddress(address.getHostName(), address.getPort()) : address;
+            clientChannel = SocketChannel.open();
+            clientChannel.configureBlocking(false);
+            if (clientChannel.connect(remoteAddress)) {
+                open(clientChannel, null);
+            } else {
+                clientChannel.register(selector, SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException | UnresolvedAddressException e) {
+            onConnectionFailed(e);
+        }
+    }
+
+    private void finishConnection(SelectionKey key) {
+        try {
+            if (clientChannel.finishConnect()) {
+                open(clientChannel, key);
+            }
+        } catch (IOException e) {
+            onConnectionFailed(e);
+        }
+    }
+
+    private void onConnectionFailed(Exception e) {
+        EcologyLog.d(TAG, "Connection to " + address + " failed: " + e.getMessage());
+        closeChannel(clientChannel);
+        clientChannel = null;
+        nextConnectionTime = System.currentTimeMillis() + reconnectDelay;
+    }
+
+    /**
+     * Start handling an established connection.
+     *
+     * @param channel the channel of the connection
+     * @param key     the key the channel is already registered with, or null
+     * @throws IOException if the channel could not be configured
+     */
+    private void open(SocketChannel channel, SelectionKey key) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        if (key == null) {
+            key = channel.register(selector, SelectionKey.OP_READ);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        TcpConnection connection = new TcpConnection(channel, key, this, maxQueuedBytes);
+        key.attach(connection);
+        listener.onConnectionOpened(connection);
+    }
+
+    private void write(TcpConnection connection) {
+        try {
+            if (!connection.write()) {
+                EcologyLog.w(TAG, "Closing a connection whose peer does not keep up");
+                close(connection);
+            }
+        } catch (IOException e) {
+            EcologyLog.w(TAG, "Write failure: " + e.getMessage());
+            close(connection);
+        }
+    }
+
+    private void close(TcpConnection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+        connection.getKey().cancel();
+        closeChannel(connection.getChannel());
+        connection.onClosed();
+        if (connection.getChannel() == clientChannel) {
+            clientChannel = null;
+            nextConnectionTime = System.currentTimeMillis() + reconnectDelay;
+        }
+        listener.onConnectionClosed(connection);
+    }
+
+    private void closeAll() {
+        List<TcpConnection> connections = new ArrayList<>();
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof TcpConnection) {
+                    connections.add((TcpConnection) key.attachment());
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // Nothing to close.
+        }
+        for (TcpConnection connection : connections) {
+            close(connection);
+        }
+        closeChannel(clientChannel);
+        closeChannel(serverChannel);
+        try {
+            selector.close();
+        } catch (IOException e) {
+            EcologyLog.w(TAG, "Could not close the selector: " + e.getMessage());
+        }
+        localPort = -1;
+    }
+
+    private static void closeChannel(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            EcologyLog.w(TAG, "Could not close a channel: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Notified of the events of the connections. It is always called from the selector thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a server starts listening.
+         *
+         * @param port the port the server is listening on
+         */
+        void onListening(int port);
+
+        /**
+         * Called when a connection has been established.
+         *
+         * @param connection the connection
+         */
+        void onConnectionOpened(TcpConnection connection);
+
+        /**
+         * Called when a frame has been received.
+         *
+         * @param connection the connection the frame has been received from
+         * @param frame      the frame: its length followed by the encoded message
+         */
+        void onFrameReceived(TcpConnection connection, byte[] frame);
+
+        /**
+         * Called when a connection has been closed, by either side.
+         *
+         * @param connection the connection
+         */
+        void onConnectionClosed(TcpConnection connection);
+    }
+}
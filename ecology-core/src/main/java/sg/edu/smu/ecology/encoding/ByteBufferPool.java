@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.encoding;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small pool of heap byte buffers. It is used to encode messages without allocating a new
+ * buffer for each of them. This class is thread safe.
+ *
+ * @author Anuroop PATTENA VANIYAR
+ * @author Quentin ROY
+ */
+public class ByteBufferPool {
+    /**
+     * The smallest buffer capacity allocated by the pool.
+     */
+    private static final int MIN_CAPACITY = 256;
+
+    /**
+     * The maximum number of buffers kept by the pool.
+     */
+    private final int maxPooledBuffers;
+
+    /**
+     * The biggest buffer capacity kept by the pool. Bigger buffers are left to the garbage
+     * collector once released so that a single huge message does not hold memory forever.
+     */
+    private final int maxPooledCapacity;
+
+    /**
+     * The buffers currently available.
+     */
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+
+    public ByteBufferPool() {
+        this(8, 256 * 1024);
+    }
+
+    /**
+     * @param maxPooledBuffers  the maximum number of buffers kept by the pool
+     * @param maxPooledCapacity the biggest buffer capacity kept by the pool
+     */
+    public ByteBufferPool(int maxPooledBuffers, int maxPooledCapacity) {
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.maxPooledCapacity = maxPooledCapacity;
+    }
+
+    /**
+     * Get a cleared buffer with at least the requested capacity. The buffer should be given back
+     * with {@link #release(ByteBuffer)} once it is not used anymore.
+     *
+     * @param capacity the minimum capacity of the buffer
+     * @return the buffer
+     */
+    public synchronized ByteBuffer acquire(int capacity) {
+        // Take the smallest available buffer that is big enough.
+        int bestIndex = -1;
+        for (int i = 0; i < buffers.size(); i++) {
+            int bufferCapacity = buffers.get(i).capacity();
+            if (bufferCapacity >= capacity &&
+                    (bestIndex < 0 || bufferCapacity < buffers.get(bestIndex).capacity())) {
+                bestIndex = i;
+            }
+        }
+        if (bestIndex >= 0) {
+            ByteBuffer buffer = buffers.remove(bestIndex);
+            buffer.clear();
+            return buffer;
+        }
+        return ByteBuffer.allocate(roundCapacity(capacity));
+    }
+
+    /**
+     * Give a buffer back to the pool.
+     *
+     * @param buffer the buffer previously returned by {@link #acquire(int)}
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer.capacity() > maxPooledCapacity) {
+            return;
+        }
+        if (buffers.size() >= maxPooledBuffers) {
+            // Drop the smallest buffer, the released one is likely to be more useful.
+            int smallestIndex = 0;
+            for (int i = 1; i < buffers.size(); i++) {
+                if (buffers.get(i).capacity() < buffers.get(smallestIndex).capacity()) {
+                    smallestIndex = i;
+                }
+            }
+            if (buffers.get(smallestIndex).capacity() >= buffer.capacity()) {
+                return;
+            }
+            buffers.remove(smallestIndex);
+        }
+        buffers.add(buffer);
+    }
+
+    /**
+     * Round a capacity up to the next power of two so that buffers can be reused for messages of
+     * similar sizes.
+     */
+    private static int roundCapacity(int capacity) {
+        if (capacity <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        int rounded = Integer.highestOneBit(capacity - 1) << 1;
+        // Do not overflow for huge capacities.
+        return rounded > 0 ? rounded : capacity;
+    }
+}
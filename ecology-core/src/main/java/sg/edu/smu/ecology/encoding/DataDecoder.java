@@ -39,7 +39,6 @@
 
 package sg.edu.smu.ecology.encoding;
 
-import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -53,31 +52,39 @@ public class DataDecoder {
 
     private static final String NO_ARGUMENT_TYPES = "";
 
-    // This class represents an argument and the amount of character it took to code in the types
-    // sequence. It is returned by the readArgument methods.
-    private static class Argument {
-        // The increment in the types sequence caused by the argument.
-        public int typeCodeSize;
-        // The value of the argument.
-        public Object value;
-
-        public Argument(Object value, int typeCodeSize){
-            this.typeCodeSize = typeCodeSize;
-            this.value = value;
-        }
-    }
-
     private static class Input {
 
         private final byte[] bytes;
+        private final int bytesOffset;
         private final int bytesLength;
         private int streamPosition;
+        // The types sequence of the arguments and the position of the next type to read in it.
+        private CharSequence types;
+        private int typePosition;
 
-        Input(final byte[] bytes, final int bytesLength) {
+        Input(final byte[] bytes, final int bytesOffset, final int bytesLength) {
 
             this.bytes = bytes;
+            this.bytesOffset = bytesOffset;
             this.bytesLength = bytesLength;
-            this.streamPosition = 0;
+            this.streamPosition = bytesOffset;
+        }
+
+        public void setTypes(CharSequence types) {
+            this.types = types;
+            this.typePosition = 0;
+        }
+
+        public boolean hasMoreTypes() {
+            return typePosition < types.length();
+        }
+
+        public char peekType() {
+            return types.charAt(typePosition);
+        }
+
+        public char nextType() {
+            return types.charAt(typePosition++);
         }
 
         public byte[] getBytes() {
@@ -99,6 +106,36 @@ public class DataDecoder {
         public int getStreamPosition() {
             return streamPosition;
         }
+
+        /**
+         * @return the stream position relative to the beginning of the message
+         */
+        public int getRelativeStreamPosition() {
+            return streamPosition - bytesOffset;
+        }
+
+        /**
+         * Reads a big-endian 32 bit integer straight from the bytes and moves the stream position
+         * past it.
+         */
+        public int readInt() {
+            final int pos = streamPosition;
+            streamPosition += 4;
+            return (bytes[pos] & 0xFF) << 24
+                    | (bytes[pos + 1] & 0xFF) << 16
+                    | (bytes[pos + 2] & 0xFF) << 8
+                    | (bytes[pos + 3] & 0xFF);
+        }
+
+        /**
+         * Reads a big-endian 64 bit integer straight from the bytes and moves the stream position
+         * past it.
+         */
+        public long readLong() {
+            final long high = readInt();
+            final long low = readInt() & 0xFFFFFFFFL;
+            return (high << 32) | low;
+        }
     }
 
     /** Used to decode message addresses and string parameters. */
@@ -135,14 +172,26 @@ public class DataDecoder {
      * @return a message containing the data specified in the byte stream
      */
     public List<Object> convertMessageArgs(byte[] bytes, int bytesLength) {
-        final Input rawInput = new Input(bytes, bytesLength);
-        final List<Object> messageData = new ArrayList<>();
+        return convertMessageArgs(bytes, 0, bytesLength);
+    }
+
+    /**
+     * Converts part of a byte array to a simple message. The message does not need to start at
+     * the beginning of the array (e.g. it can be read in place from a receive buffer).
+     * @param bytes the array containing the message
+     * @param offset the position of the message in the array
+     * @param bytesLength the length of the message
+     * @return a message containing the data specified in the byte stream
+     */
+    public List<Object> convertMessageArgs(byte[] bytes, int offset, int bytesLength) {
+        final Input rawInput = new Input(bytes, offset, bytesLength);
         final CharSequence types = readTypes(rawInput);
+        rawInput.setTypes(types);
+        // There cannot be more arguments than types.
+        final List<Object> messageData = new ArrayList<>(types.length());
 
-        for (int ti = 0; ti < types.length();) {
-            Argument arg = readOneArgument(rawInput, types, ti);
-            messageData.add(arg.value);
-            ti += arg.typeCodeSize;
+        while (rawInput.hasMoreTypes()) {
+            messageData.add(readOneArgument(rawInput));
         }
         return messageData;
     }
@@ -172,11 +221,15 @@ public class DataDecoder {
      * @return the next blob in the byte stream
      */
     private byte[] readBlob(final Input rawInput) {
-        final int blobLen = readInteger(rawInput);
+        final int blobLen = rawInput.readInt();
         final byte[] res = new byte[blobLen];
         System.arraycopy(rawInput.getBytes(), rawInput.getStreamPosition(), res, 0, blobLen);
         rawInput.addToStreamPosition(blobLen);
-        moveToFourByteBoundry(rawInput);
+        // Unlike strings, blobs are not zero terminated: there is no padding after a blob whose
+        // length is a multiple of four.
+        if (blobLen % 4 != 0) {
+            moveToFourByteBoundry(rawInput);
+        }
         return res;
     }
 
@@ -191,41 +244,40 @@ public class DataDecoder {
 
     /**
      * Read one argument from the byte stream (composite arguments like list are entirely read,
-     * including their content).
+     * including their content). The types sequence position is moved past the argument's type
+     * code.
      * @param rawInput The stream where to read the argument.
-     * @param types The types sequence.
-     * @param position The current position in the type list.
      * @return The argument.
      */
-    private Argument readOneArgument(final Input rawInput, final CharSequence types, int position){
-        char type = types.charAt(position);
+    private Object readOneArgument(final Input rawInput){
+        char type = rawInput.nextType();
         switch (type) {
             case 'u' :
-                return new Argument(readUnsignedInteger(rawInput), 1);
+                return readUnsignedInteger(rawInput);
             case 'i' :
-                return new Argument(readInteger(rawInput), 1);
+                return readInteger(rawInput);
             case 'h' :
-                return new Argument(readLong(rawInput), 1);
+                return readLong(rawInput);
             case 'f' :
-                return new Argument(readFloat(rawInput), 1);
+                return readFloat(rawInput);
             case 'd' :
-                return new Argument(readDouble(rawInput), 1);
+                return readDouble(rawInput);
             case 's' :
-                return new Argument(readString(rawInput), 1);
+                return readString(rawInput);
             case 'b' :
-                return new Argument(readBlob(rawInput), 1);
+                return readBlob(rawInput);
             case 'c' :
-                return new Argument(readChar(rawInput), 1);
+                return readChar(rawInput);
             case 'N' :
-                return new Argument(null, 1);
+                return null;
             case 'T' :
-                return new Argument(Boolean.TRUE, 1);
+                return Boolean.TRUE;
             case 'F' :
-                return new Argument(Boolean.FALSE, 1);
+                return Boolean.FALSE;
             case '[':
-                return readListArgument(rawInput, types, position);
+                return readListArgument(rawInput);
             case '{':
-                return readMapArgument(rawInput, types, position);
+                return readMapArgument(rawInput);
             default:
                 // XXX Maybe we should let the user choose what to do in this
                 //   case (we encountered an unknown argument type in an
@@ -236,40 +288,30 @@ public class DataDecoder {
         }
     }
 
-    private Argument readMapArgument(final Input rawInput, final CharSequence types, int position){
+    private Object readMapArgument(final Input rawInput){
         // Initialize the map.
         HashMap<Object, Object> map = new HashMap<>();
-        // Pass the opening bracket (position should be on the '{' that indicates the beginning
-        // of a map).
-        int i = position + 1;
-        // Iteratively parse each key value pairs.
-        while(types.charAt(i) != '}'){
-            Argument keyArg = readOneArgument(rawInput, types, i);
-            i += keyArg.typeCodeSize;
-            Argument valArg = readOneArgument(rawInput, types, i);
-            i += valArg.typeCodeSize;
-            map.put(keyArg.value, valArg.value);
+        // Iteratively parse each key value pairs (the opening bracket has already been passed).
+        while(rawInput.peekType() != '}'){
+            Object key = readOneArgument(rawInput);
+            Object value = readOneArgument(rawInput);
+            map.put(key, value);
         }
-        // Calculate the position increment, including the opening and closing brackets.
-        int typeInc = i - position + 1;
-        return new Argument(map, typeInc);
+        // Pass the closing bracket.
+        rawInput.nextType();
+        return map;
     }
 
-    private Argument readListArgument(final Input rawInput, final CharSequence types, int position){
+    private Object readListArgument(final Input rawInput){
         // Initialize the array.
         List<Object> list = new ArrayList<>();
-        // Pass the opening bracket (position should be on the '[' that indicates the beginning of
-        // an array).
-        int li = position + 1;
-        // Parse the content of the array.
-        while(types.charAt(li) != ']'){
-            Argument subArg = readOneArgument(rawInput, types, li);
-            li += subArg.typeCodeSize;
-            list.add(subArg.value);
+        // Parse the content of the array (the opening bracket has already been passed).
+        while(rawInput.peekType() != ']'){
+            list.add(readOneArgument(rawInput));
         }
-        // Calculate the position increment, including the opening and closing brackets.
-        int typeInc = li - position + 1;
-        return new Argument(list, typeInc);
+        // Pass the closing bracket.
+        rawInput.nextType();
+        return list;
     }
 
     /**
@@ -278,23 +320,15 @@ public class DataDecoder {
      */
     private Character readChar(final Input rawInput) {
         // Characters are encoded as integers.
-        return (char) readInteger(rawInput).intValue();
-    }
-
-    private BigInteger readBigInteger(final Input rawInput, final int numBytes) {
-        final byte[] myBytes = new byte[numBytes];
-        System.arraycopy(rawInput.getBytes(), rawInput.getStreamPosition(), myBytes, 0, numBytes);
-        rawInput.addToStreamPosition(numBytes);
-        return  new BigInteger(myBytes);
+        return (char) rawInput.readInt();
     }
 
     /**
      * Reads a double from the byte stream.
      * @return a 64bit precision floating point value
      */
-    private Object readDouble(final Input rawInput) {
-        final BigInteger doubleBits = readBigInteger(rawInput, 8);
-        return Double.longBitsToDouble(doubleBits.longValue());
+    private Double readDouble(final Input rawInput) {
+        return Double.longBitsToDouble(rawInput.readLong());
     }
 
     /**
@@ -302,8 +336,7 @@ public class DataDecoder {
      * @return a 32bit precision floating point value
      */
     private Float readFloat(final Input rawInput) {
-        final BigInteger floatBits = readBigInteger(rawInput, 4);
-        return Float.intBitsToFloat(floatBits.intValue());
+        return Float.intBitsToFloat(rawInput.readInt());
     }
 
     /**
@@ -311,8 +344,7 @@ public class DataDecoder {
      * @return double precision integer (64 bit)
      */
     private Long readLong(final Input rawInput) {
-        final BigInteger longintBytes = readBigInteger(rawInput, 8);
-        return longintBytes.longValue();
+        return rawInput.readLong();
     }
 
     /**
@@ -320,26 +352,15 @@ public class DataDecoder {
      * @return an {@link Integer}
      */
     private Integer readInteger(final Input rawInput) {
-        final BigInteger intBits = readBigInteger(rawInput, 4);
-        return intBits.intValue();
+        return rawInput.readInt();
     }
 
     /**
      * Reads an unsigned integer (32 bit) from the byte stream.
-     * This code is copied from {@see http://darksleep.com/player/JavaAndUnsignedTypes.html},
-     * which is licensed under the Public Domain.
      * @return single precision, unsigned integer (32 bit) wrapped in a 64 bit integer (long)
      */
     private Long readUnsignedInteger(final Input rawInput) {
-        final int firstByte = (0x000000FF & ((int) rawInput.getBytes()[rawInput.getAndIncreaseStreamPositionByOne()]));
-        final int secondByte = (0x000000FF & ((int) rawInput.getBytes()[rawInput.getAndIncreaseStreamPositionByOne()]));
-        final int thirdByte = (0x000000FF & ((int) rawInput.getBytes()[rawInput.getAndIncreaseStreamPositionByOne()]));
-        final int fourthByte = (0x000000FF & ((int) rawInput.getBytes()[rawInput.getAndIncreaseStreamPositionByOne()]));
-        return ((long) (firstByte << 24
-                | secondByte << 16
-                | thirdByte << 8
-                | fourthByte))
-                & 0xFFFFFFFFL;
+        return rawInput.readInt() & 0xFFFFFFFFL;
     }
 
 
@@ -355,7 +376,7 @@ public class DataDecoder {
     //Move to the next byte with an index in the byte array which is dividable by four.
     private void moveToFourByteBoundry(final Input rawInput) {
         // If i am already at a 4 byte boundry, I need to move to the next one
-        final int mod = rawInput.getStreamPosition() % 4;
+        final int mod = rawInput.getRelativeStreamPosition() % 4;
         rawInput.addToStreamPosition(4 - mod);
     }
 }
\ No newline at end of file
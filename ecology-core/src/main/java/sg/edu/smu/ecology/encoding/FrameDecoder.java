@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.encoding;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import sg.edu.smu.ecology.EcologyMessage;
+
+/**
+ * Read length prefixed frames (as written from {@link MessageEncoder#encodeFrame}) from a stream
+ * and decode them into messages.
+ * <p>
+ * The stream is read by chunks into a receive buffer that is reused from one frame to the next.
+ * A chunk can contain several frames or only part of one: frames are decoded in place as soon as
+ * they are complete, without being copied into their own array. This class is not thread safe.
+ *
+ * @author Quentin ROY
+ * @author Anuroop PATTENA VANIYAR
+ */
+public class FrameDecoder {
+    /**
+     * The default initial size of the receive buffer.
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The biggest receive buffer kept once a frame has been read. The buffer grows to receive
+     * bigger frames, but goes back to its initial size once they have been consumed.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    private final InputStream inputStream;
+    private final MessageDecoder messageDecoder = new MessageDecoder();
+    private final int initialBufferSize;
+    private byte[] buffer;
+    // The range of bytes that have been received but not consumed yet.
+    private int start = 0;
+    private int end = 0;
+    // The position and the length of the current frame in the buffer.
+    private int frameOffset = 0;
+    private int frameLength = 0;
+    // Notified of every read from the stream, null for none.
+    private ReadListener readListener;
+
+    /**
+     * @param inputStream the stream to read the frames from
+     */
+    public FrameDecoder(InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param inputStream       the stream to read the frames from
+     * @param initialBufferSize the initial size of the receive buffer
+     */
+    public FrameDecoder(InputStream inputStream, int initialBufferSize) {
+        this.inputStream = inputStream;
+        this.initialBufferSize = initialBufferSize;
+        this.buffer = new byte[initialBufferSize];
+    }
+
+    /**
+     * @param readListener notified each time bytes are read from the stream, even if they do not
+     *                     complete a frame, null for none
+     */
+    public void setReadListener(ReadListener readListener) {
+        this.readListener = readListener;
+    }
+
+    /**
+     * Read the next frame, blocking until it has been entirely received. The previous frame is
+     * not available anymore once this method is called.
+     *
+     * @return the length of the frame or the length prefix itself if it is negative (a negative
+     * length is never written by the encoder and can be used as a control signal)
+     * @throws IOException  if the stream cannot be read
+     * @throws EOFException if the stream ends before the frame is complete
+     */
+    public int readFrame() throws IOException {
+        frameLength = 0;
+        if (start == end) {
+            // Everything has been consumed, start over from the beginning of the buffer.
+            start = 0;
+            end = 0;
+        }
+        ensureAvailable(MessageEncoder.LENGTH_PREFIX_SIZE);
+        int length = (buffer[start] & 0xFF) << 24
+                | (buffer[start + 1] & 0xFF) << 16
+                | (buffer[start + 2] & 0xFF) << 8
+                | (buffer[start + 3] & 0xFF);
+        start += MessageEncoder.LENGTH_PREFIX_SIZE;
+        if (length < 0) {
+            return length;
+        }
+        ensureAvailable(length);
+        frameOffset = start;
+        frameLength = length;
+        start += length;
+        return length;
+    }
+
+    /**
+     * Decode the current frame.
+     *
+     * @return the decoded message
+     */
+    public EcologyMessage decodeFrame() {
+        return messageDecoder.decode(buffer, frameOffset, frameLength);
+    }
+
+    /**
+     * Decode the routing header of the current frame only.
+     *
+     * @return the header
+     * @see #decodeFramePayload(FrameHeader)
+     */
+    public FrameHeader decodeFrameHeader() {
+        return messageDecoder.decodeHeader(buffer, frameOffset, frameLength);
+    }
+
+    /**
+     * Decode the payload of the current frame.
+     *
+     * @param header the header of the current frame, as returned by
+     *               {@link #decodeFrameHeader()}
+     * @return the decoded message
+     */
+    public EcologyMessage decodeFramePayload(FrameHeader header) {
+        return messageDecoder.decodePayload(header, buffer, frameOffset, frameLength);
+    }
+
+    /**
+     * @return a copy of the current frame
+     */
+    public byte[] copyFrame() {
+        byte[] frame = new byte[frameLength];
+        System.arraycopy(buffer, frameOffset, frame, 0, frameLength);
+        return frame;
+    }
+
+    /**
+     * @return a copy of the current frame preceded by its length, i.e. the frame as it has been
+     * read from the stream
+     */
+    public byte[] copyLengthPrefixedFrame() {
+        int prefixedLength = MessageEncoder.LENGTH_PREFIX_SIZE + frameLength;
+        byte[] frame = new byte[prefixedLength];
+        System.arraycopy(buffer, frameOffset - MessageEncoder.LENGTH_PREFIX_SIZE, frame, 0,
+                prefixedLength);
+        return frame;
+    }
+
+    /**
+     * @return the buffer containing the current frame. It is only valid until the next call to
+     * {@link #readFrame()}.
+     */
+    public byte[] getFrameBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the position of the current frame in {@link #getFrameBuffer()}
+     */
+    public int getFrameOffset() {
+        return frameOffset;
+    }
+
+    /**
+     * @return the length of the current frame
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Read from the stream until at least the given amount of bytes are available after
+     * {@link #start}.
+     *
+     * @param count the amount of bytes required
+     * @throws IOException if the stream cannot be read or ends too early
+     */
+    private void ensureAvailable(int count) throws IOException {
+        if (end - start >= count) {
+            return;
+        }
+        makeRoom(count);
+        while (end - start < count) {
+            int read = inputStream.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                throw new EOFException("The stream ended in the middle of a frame.");
+            }
+            end += read;
+            if (readListener != null) {
+                readListener.onRead(read);
+            }
+        }
+    }
+
+    /**
+     * Make sure the buffer can receive the given amount of bytes after {@link #start}, by
+     * moving the pending bytes at the beginning of the buffer and growing or shrinking it if
+     * needed.
+     *
+     * @param count the amount of bytes required
+     */
+    private void makeRoom(int count) {
+        int pending = end - start;
+        int requiredSize = Math.max(count, pending);
+        if (requiredSize > buffer.length ||
+                (buffer.length > MAX_RETAINED_BUFFER_SIZE && requiredSize <= initialBufferSize)) {
+            // Either the buffer is too small or a big frame made it grow and it can be shrunk.
+            byte[] newBuffer = new byte[Math.max(requiredSize, initialBufferSize)];
+            System.arraycopy(buffer, start, newBuffer, 0, pending);
+            buffer = newBuffer;
+        } else if (buffer.length - start < count) {
+            System.arraycopy(buffer, start, buffer, 0, pending);
+        } else {
+            return;
+        }
+        start = 0;
+        end = pending;
+    }
+
+    /**
+     * Notified of the reads from the stream, e.g. to know the other end is still there while a
+     * big frame is being received.
+     */
+    public interface ReadListener {
+        /**
+         * Called on the reading thread each time bytes have been read from the stream.
+         *
+         * @param count the number of bytes read
+         */
+        void onRead(int count);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.encoding;
+
+import java.util.List;
+
+/**
+ * The routing information of an encoded message, decoded without its payload (see
+ * {@link MessageDecoder#decodeHeader(byte[], int, int)}).
+ *
+ * @author Quentin ROY
+ * @author Anuroop PATTENA VANIYAR
+ */
+public class FrameHeader {
+    private final int routingId;
+    private final Integer targetType;
+    private final List<String> targets;
+    private final String source;
+    private final int payloadOffset;
+
+    FrameHeader(int routingId, Integer targetType, List<String> targets, String source,
+                int payloadOffset) {
+        this.routingId = routingId;
+        this.targetType = targetType;
+        this.targets = targets;
+        this.source = source;
+        this.payloadOffset = payloadOffset;
+    }
+
+    /**
+     * @return the routing id the message has been encoded with
+     * @see MessageEncoder#encodeFrame(sg.edu.smu.ecology.EcologyMessage, int)
+     */
+    public int getRoutingId() {
+        return routingId;
+    }
+
+    /**
+     * @return the target type of the message
+     */
+    public Integer getTargetType() {
+        return targetType;
+    }
+
+    /**
+     * @return the targets of the message
+     */
+    public List<String> getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return the source of the message
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the position of the payload relative to the beginning of the encoded message
+     */
+    int getPayloadOffset() {
+        return payloadOffset;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.encoding;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sg.edu.smu.ecology.EcologyMessage;
+
+/**
+ * Decode byte arrays (usually created by {@link MessageEncoder} into messages (i.e. lists of
+ * objects).
+ *
+ * @author Quentin ROY
+ * @author Anuroop PATTENA VANIYAR
+ */
+public class MessageDecoder {
+    private DataDecoder decoder = new DataDecoder();
+
+    /**
+     * Decode a byte array into a message.
+     *
+     * @param data   The byte array
+     * @param length (optional) The amount of byte to read from the byte array.
+     * @return The ecology message.
+     */
+    public EcologyMessage decode(byte[] data, int length) {
+        return decode(data, 0, length);
+    }
+
+    /**
+     * Decode part of a byte array into a message.
+     *
+     * @param data   The byte array
+     * @param offset The position of the encoded message in the byte array.
+     * @param length The amount of byte to read from the byte array.
+     * @return The ecology message.
+     */
+    public EcologyMessage decode(byte[] data, int offset, int length) {
+        return decodePayload(decodeHeader(data, offset, length), data, offset, length);
+    }
+
+    /**
+     * Decode only the routing header of an encoded message. The payload is left untouched.
+     *
+     * @param data   The byte array
+     * @param offset The position of the encoded message in the byte array.
+     * @param length The length of the encoded message.
+     * @return The header of the message.
+     */
+    public FrameHeader decodeHeader(byte[] data, int offset, int length) {
+        int headerSize = (data[offset] & 0xFF) << 24
+                | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8
+                | (data[offset + 3] & 0xFF);
+        int headerPosition = MessageEncoder.LENGTH_PREFIX_SIZE;
+        if (headerSize < 0 || headerPosition + headerSize > length) {
+            throw new IllegalArgumentException("Invalid header size: " + headerSize);
+        }
+        List<Object> header = decoder.convertMessageArgs(data, offset + headerPosition,
+                headerSize);
+        return new FrameHeader((Integer) header.get(0), (Integer) header.get(1),
+                toTargets((List<?>) header.get(2)), (String) header.get(3),
+                headerPosition + headerSize);
+    }
+
+    /**
+     * @param decodedTargets the decoded targets of a message, can be null
+     * @return the targets, checked to be strings
+     */
+    private static List<String> toTargets(List<?> decodedTargets) {
+        if (decodedTargets == null) {
+            return null;
+        }
+        List<String> targets = new ArrayList<>(decodedTargets.size());
+        for (Object target : decodedTargets) {
+            targets.add((String) target);
+        }
+        return targets;
+    }
+
+    /**
+     * Decode the payload of an encoded message whose header has already been decoded.
+     *
+     * @param header The header of the message.
+     * @param data   The byte array
+     * @param offset The position of the encoded message in the byte array.
+     * @param length The length of the encoded message.
+     * @return The ecology message.
+     */
+    public EcologyMessage decodePayload(FrameHeader header, byte[] data, int offset,
+                                        int length) {
+        int payloadOffset = header.getPayloadOffset();
+        EcologyMessage message = new EcologyMessage(decoder.convertMessageArgs(data,
+                offset + payloadOffset, length - payloadOffset));
+        message.setTargetType(header.getTargetType());
+        message.setTargets(header.getTargets());
+        message.setSource(header.getSource());
+        return message;
+    }
+
+    /**
+     * Decode a byte array into a message.
+     *
+     * @param data The byte array
+     * @return The ecology message.
+     */
+    public EcologyMessage decode(byte[] data) {
+        return decode(data, data.length);
+    }
+}
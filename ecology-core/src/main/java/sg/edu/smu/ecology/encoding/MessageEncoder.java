@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.encoding;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.MalformedInputException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import sg.edu.smu.ecology.EcologyMessage;
+
+/**
+ * Encode messages (list of objects) into byte arrays in a format decodable by a
+ * {@link MessageDecoder}.
+ * <p>
+ * The exact size of the encoded message is computed first so that the type tags and the
+ * arguments can then be written side by side, in a single pass, in a buffer taken from a
+ * {@link ByteBufferPool}. The routing information of the message (its source and targets) is
+ * encoded separately from its arguments, in a header at the beginning of the message.
+ *
+ * @author Quentin ROY
+ * @author Anuroop PATTENA VANIYAR
+ */
+public class MessageEncoder {
+
+    /**
+     * The size of the length prefix written at the beginning of a frame.
+     */
+    public static final int LENGTH_PREFIX_SIZE = 4;
+
+    /**
+     * The routing id used by {@link #encodeFrame(EcologyMessage)}.
+     */
+    public static final int DEFAULT_ROUTING_ID = 0;
+
+    // The buffers used to encode the messages.
+    private final ByteBufferPool bufferPool;
+
+    public MessageEncoder() {
+        this(new ByteBufferPool());
+    }
+
+    /**
+     * @param bufferPool the pool providing the buffers the messages are encoded into
+     */
+    public MessageEncoder(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * @param message The ecology message to encode.
+     * @return The message encoded.
+     * @throws CharacterCodingException
+     */
+    public byte[] encode(EcologyMessage message) throws CharacterCodingException {
+        ByteBuffer frame = encodeFrame(message);
+        try {
+            byte[] encodedMessage = new byte[frame.remaining() - LENGTH_PREFIX_SIZE];
+            System.arraycopy(frame.array(), frame.arrayOffset() + LENGTH_PREFIX_SIZE,
+                    encodedMessage, 0, encodedMessage.length);
+            return encodedMessage;
+        } finally {
+            release(frame);
+        }
+    }
+
+    /**
+     * Encode a message as a frame ready to be written on a stream, using
+     * {@link #DEFAULT_ROUTING_ID} as routing id.
+     *
+     * @param message The ecology message to encode.
+     * @return A buffer containing the frame between its position and its limit.
+     * @throws CharacterCodingException
+     * @see #encodeFrame(EcologyMessage, int)
+     */
+    public ByteBuffer encodeFrame(EcologyMessage message) throws CharacterCodingException {
+        return encodeFrame(message, DEFAULT_ROUTING_ID);
+    }
+
+    /**
+     * Encode a message as a frame ready to be written on a stream: the length of the encoded
+     * message followed by the encoded message itself. The frame is written in a pooled buffer
+     * that must be given back with {@link #release(ByteBuffer)} once it has been written.
+     * <p>
+     * The encoded message starts with a small routing header (see {@link FrameHeader}), preceded
+     * by its length, and is followed by the payload (the arguments of the message). This lets
+     * the receiver of a frame decide where it goes without decoding its payload.
+     *
+     * @param message   The ecology message to encode.
+     * @param routingId The id of the component the message is addressed to on the receiving
+     *                  side (e.g. the connector itself or its receiver).
+     * @return A buffer containing the frame between its position and its limit.
+     * @throws CharacterCodingException
+     */
+    public ByteBuffer encodeFrame(EcologyMessage message, int routingId)
+            throws CharacterCodingException {
+        List<Object> header = Arrays.<Object>asList(routingId, message.getTargetType(),
+                message.getTargets(), message.getSource());
+        List<Object> arguments = message.getArguments();
+
+        // Compute the exact size of the encoded message.
+        Sizes headerSizes = measureAll(header);
+        Sizes payloadSizes = measureAll(arguments);
+        int headerSize = headerSizes.getEncodedSize();
+        int messageSize = LENGTH_PREFIX_SIZE + headerSize + payloadSizes.getEncodedSize();
+
+        ByteBuffer buffer = bufferPool.acquire(LENGTH_PREFIX_SIZE + messageSize);
+        try {
+            buffer.putInt(0, messageSize);
+            buffer.putInt(LENGTH_PREFIX_SIZE, headerSize);
+            int headerPosition = 2 * LENGTH_PREFIX_SIZE;
+            writeAll(header, headerSizes, buffer, headerPosition);
+            writeAll(arguments, payloadSizes, buffer, headerPosition + headerSize);
+            buffer.position(0);
+            buffer.limit(LENGTH_PREFIX_SIZE + messageSize);
+            return buffer;
+        } catch (CharacterCodingException | RuntimeException e) {
+            // Make sure the buffer is always given back even if the encoding did not work.
+            bufferPool.release(buffer);
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a frame returned by {@link #encodeFrame(EcologyMessage)}.
+     *
+     * @param frame the frame
+     */
+    public void release(ByteBuffer frame) {
+        bufferPool.release(frame);
+    }
+
+    /**
+     * Compute the number of bytes an argument takes in an encoded message, its type tags
+     * included.
+     *
+     * @param arg the argument
+     * @return its encoded size
+     * @throws CharacterCodingException if a string cannot be encoded
+     */
+    public int measure(Object arg) throws CharacterCodingException {
+        Sizes sizes = new Sizes();
+        measure(arg, sizes);
+        return sizes.typeTagsCount + sizes.dataSize;
+    }
+
+    /**
+     * Compute the sizes of a list of arguments encoded as a message.
+     *
+     * @param args the arguments
+     * @return their sizes
+     * @throws CharacterCodingException if a string cannot be encoded
+     */
+    private Sizes measureAll(List<?> args) throws CharacterCodingException {
+        Sizes sizes = new Sizes();
+        for (Object arg : args) {
+            measure(arg, sizes);
+        }
+        return sizes;
+    }
+
+    /**
+     * Write a list of arguments as a message: its type tags string followed by its data.
+     *
+     * @param args     the arguments
+     * @param sizes    the sizes of the arguments, as returned by {@link #measureAll(List)}
+     * @param buffer   the buffer to write into
+     * @param position the position where to write the message
+     * @throws CharacterCodingException if a string cannot be encoded
+     */
+    private void writeAll(List<?> args, Sizes sizes, ByteBuffer buffer, int position)
+            throws CharacterCodingException {
+        int typeTagsEnd = position + paddedStringSize(sizes.typeTagsCount);
+        // The type tags and the data are written at the same time, each with their own cursor.
+        Cursors cursors = new Cursors(position, typeTagsEnd);
+        for (Object arg : args) {
+            write(arg, buffer, cursors);
+        }
+        // Terminate and pad the type tags string.
+        while (cursors.typeTag < typeTagsEnd) {
+            buffer.put(cursors.typeTag++, (byte) 0);
+        }
+    }
+
+    /**
+     * Add the size of an argument to the sizes.
+     *
+     * @param arg   the argument
+     * @param sizes the sizes to update
+     * @throws CharacterCodingException if a string cannot be encoded
+     */
+    private void measure(Object arg, Sizes sizes) throws CharacterCodingException {
+        if (arg == null || arg instanceof Boolean) {
+            sizes.typeTagsCount++;
+        } else if (arg instanceof String) {
+            sizes.typeTagsCount++;
+            sizes.dataSize += paddedStringSize(utf8Length((String) arg));
+        } else if (arg instanceof Float || arg instanceof Integer || arg instanceof Character) {
+            sizes.typeTagsCount++;
+            sizes.dataSize += 4;
+        } else if (arg instanceof Double || arg instanceof Long || arg instanceof BigInteger) {
+            sizes.typeTagsCount++;
+            sizes.dataSize += 8;
+        } else if (arg instanceof byte[]) {
+            sizes.typeTagsCount++;
+            // An int32 size count followed by the bytes and their padding.
+            sizes.dataSize += 4 + paddedSize(((byte[]) arg).length);
+        } else if (arg instanceof List) {
+            // Opening and closing brackets.
+            sizes.typeTagsCount += 2;
+            for (Object item : (List<?>) arg) {
+                measure(item, sizes);
+            }
+        } else if (arg instanceof Map) {
+            // Opening and closing brackets.
+            sizes.typeTagsCount += 2;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) arg).entrySet()) {
+                measure(entry.getKey(), sizes);
+                measure(entry.getValue(), sizes);
+            }
+        } else {
+            throw new MessageData.UnsupportedDataTypeException(
+                    "Invalid or not yet supported type: " + arg.getClass().getCanonicalName()
+            );
+        }
+    }
+
+    /**
+     * Write the type tag and the bytes of an argument.
+     *
+     * @param arg     the argument
+     * @param buffer  the buffer to write into
+     * @param cursors the current type tag and data positions
+     * @throws CharacterCodingException if a string cannot be encoded
+     */
+    private void write(Object arg, ByteBuffer buffer, Cursors cursors)
+            throws CharacterCodingException {
+        if (arg == null) {
+            putTypeTag('N', buffer, cursors);
+        } else if (arg instanceof Boolean) {
+            putTypeTag((Boolean) arg ? 'T' : 'F', buffer, cursors);
+        } else if (arg instanceof String) {
+            putTypeTag('s', buffer, cursors);
+            cursors.data = writeString((String) arg, buffer, cursors.data);
+        } else if (arg instanceof Float) {
+            putTypeTag('f', buffer, cursors);
+            buffer.putFloat(cursors.data, (Float) arg);
+            cursors.data += 4;
+        } else if (arg instanceof Integer) {
+            putTypeTag('i', buffer, cursors);
+            buffer.putInt(cursors.data, (Integer) arg);
+            cursors.data += 4;
+        } else if (arg instanceof Double) {
+            putTypeTag('d', buffer, cursors);
+            buffer.putDouble(cursors.data, (Double) arg);
+            cursors.data += 8;
+        } else if (arg instanceof Long) {
+            putTypeTag('h', buffer, cursors);
+            buffer.putLong(cursors.data, (Long) arg);
+            cursors.data += 8;
+        } else if (arg instanceof BigInteger) {
+            putTypeTag('h', buffer, cursors);
+            buffer.putLong(cursors.data, ((BigInteger) arg).longValue());
+            cursors.data += 8;
+        } else if (arg instanceof Character) {
+            // Characters are encoded as integers.
+            putTypeTag('c', buffer, cursors);
+            buffer.putInt(cursors.data, (int) (Character) arg);
+            cursors.data += 4;
+        } else if (arg instanceof byte[]) {
+            putTypeTag('b', buffer, cursors);
+            byte[] bytes = (byte[]) arg;
+            buffer.putInt(cursors.data, bytes.length);
+            System.arraycopy(bytes, 0, buffer.array(), buffer.arrayOffset() + cursors.data + 4,
+                    bytes.length);
+            cursors.data = pad(buffer, cursors.data + 4 + bytes.length, bytes.length);
+        } else if (arg instanceof List) {
+            putTypeTag('[', buffer, cursors);
+            for (Object item : (List<?>) arg) {
+                write(item, buffer, cursors);
+            }
+            putTypeTag(']', buffer, cursors);
+        } else if (arg instanceof Map) {
+            putTypeTag('{', buffer, cursors);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) arg).entrySet()) {
+                write(entry.getKey(), buffer, cursors);
+                write(entry.getValue(), buffer, cursors);
+            }
+            putTypeTag('}', buffer, cursors);
+        }
+    }
+
+    private static void putTypeTag(char typeTag, ByteBuffer buffer, Cursors cursors) {
+        buffer.put(cursors.typeTag++, (byte) typeTag);
+    }
+
+    /**
+     * Write a zero terminated and padded UTF-8 string.
+     *
+     * @param s        the string
+     * @param buffer   the buffer to write into
+     * @param position the position where to write the string
+     * @return the position following the string and its padding
+     */
+    private static int writeString(String s, ByteBuffer buffer, int position) {
+        byte[] bytes = buffer.array();
+        int offset = buffer.arrayOffset();
+        int start = position;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes[offset + position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[offset + position++] = (byte) (0xc0 | (c >> 6));
+                bytes[offset + position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                // Surrogate pairs have been validated when measuring the string.
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                bytes[offset + position++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[offset + position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[offset + position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[offset + position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                bytes[offset + position++] = (byte) (0xe0 | (c >> 12));
+                bytes[offset + position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[offset + position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        // Zero terminate the string.
+        bytes[offset + position++] = 0;
+        return pad(buffer, position, position - start);
+    }
+
+    /**
+     * Write the zeros required to reach a four bytes boundary.
+     *
+     * @param buffer      the buffer to write into
+     * @param position    the current position
+     * @param bytesLength the length of the data that has just been written
+     * @return the position following the padding
+     */
+    private static int pad(ByteBuffer buffer, int position, int bytesLength) {
+        int mod = bytesLength % 4;
+        if (mod > 0) {
+            for (int i = mod; i < 4; i++) {
+                buffer.put(position++, (byte) 0);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Get the number of bytes of the UTF-8 encoding of a string.
+     *
+     * @param s the string
+     * @return its encoded length
+     * @throws CharacterCodingException if the string contains an unpaired surrogate
+     */
+    private static int utf8Length(String s) throws CharacterCodingException {
+        int utf8Length = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                utf8Length += 1;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                if (!Character.isHighSurrogate(c) || i + 1 >= length ||
+                        !Character.isLowSurrogate(s.charAt(i + 1))) {
+                    throw new MalformedInputException(1);
+                }
+                i++;
+                utf8Length += 4;
+            } else {
+                utf8Length += 3;
+            }
+        }
+        return utf8Length;
+    }
+
+    /**
+     * @param length the length of a string (without zero terminator)
+     * @return the size of the string once zero terminated and padded
+     */
+    private static int paddedStringSize(int length) {
+        return paddedSize(length + 1);
+    }
+
+    /**
+     * @param length a number of bytes
+     * @return the number of bytes once padded to a four bytes boundary
+     */
+    private static int paddedSize(int length) {
+        return (length + 3) & ~3;
+    }
+
+    // The number of type tags and data bytes of a message.
+    private static class Sizes {
+        int typeTagsCount;
+        int dataSize;
+
+        // The size of the message once encoded.
+        int getEncodedSize() {
+            return paddedStringSize(typeTagsCount) + dataSize;
+        }
+    }
+
+    // The positions where the next type tag and the next data are written.
+    private static class Cursors {
+        int typeTag;
+        int data;
+
+        Cursors(int typeTag, int data) {
+            this.typeTag = typeTag;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link DataSyncChangeDetector}.
+ *
+ * @author Quentin Roy
+ */
+public class DataSyncChangeDetectorTest {
+
+    private static Map<Object, Object> map(Object key, Object value) {
+        Map<Object, Object> map = new HashMap<>();
+        map.put(key, value);
+        return map;
+    }
+
+    @Test
+    public void identityOnlySuppressesTheSameObject() {
+        DataSyncChangeDetector detector = new DataSyncChangeDetector();
+        Map<Object, Object> value = map("a", 1);
+        assertThat(detector.isChange("key", value, value)).isFalse();
+        assertThat(detector.isChange("key", value, map("a", 1))).isTrue();
+        assertThat(detector.getSuppressedWriteCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void equalityComparesTheContent() {
+        DataSyncChangeDetector detector = new DataSyncChangeDetector();
+        detector.setChangeDetection(DataSync.ChangeDetection.EQUALITY);
+        assertThat(detector.isChange("key", new String("red"), new String("red"))).isFalse();
+        assertThat(detector.isChange("key", Arrays.asList(1, new byte[]{1, 2}),
+                Arrays.asList(1, new byte[]{1, 2}))).isFalse();
+        assertThat(detector.isChange("key", map("a", new byte[]{1}), map("a", new byte[]{2})))
+                .isTrue();
+        assertThat(detector.isChange("key", null, "red")).isTrue();
+        assertThat(detector.getSuppressedWriteCount()).isEqualTo(2L);
+    }
+
+    @Test
+    public void contentHashComparesTheEncodings() {
+        DataSyncChangeDetector detector = new DataSyncChangeDetector();
+        detector.setChangeDetection(DataSync.ChangeDetection.CONTENT_HASH);
+        Map<Object, Object> value = map("a", Arrays.asList(1, 2));
+        assertThat(detector.isChange("key", null, value)).isTrue();
+        Map<Object, Object> sameValue = map("a", Arrays.asList(1, 2));
+        assertThat(detector.isChange("key", value, sameValue)).isFalse();
+        assertThat(detector.isChange("key", sameValue, map("a", Arrays.asList(1, 3)))).isTrue();
+        // An Integer and a Float are encoded differently
+        assertThat(detector.isChange("other", 1, 1f)).isTrue();
+        assertThat(detector.getSuppressedWriteCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void valuesThatCanNotBeEncodedAreAlwaysChanges() {
+        DataSyncChangeDetector detector = new DataSyncChangeDetector();
+        detector.setChangeDetection(DataSync.ChangeDetection.CONTENT_HASH);
+        assertThat(detector.isChange("key", Collections.singletonList(new Object()),
+                Collections.singletonList(new Object()))).isTrue();
+    }
+}
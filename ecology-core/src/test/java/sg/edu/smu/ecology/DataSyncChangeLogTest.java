@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link DataSyncChangeLog}.
+ *
+ * @author Quentin Roy
+ */
+public class DataSyncChangeLogTest {
+
+    @Test
+    public void eachChangeGetsANewVersion() {
+        DataSyncChangeLog changeLog = new DataSyncChangeLog();
+        assertThat(changeLog.getVersion()).isEqualTo(0L);
+        assertThat(changeLog.recordChange("a")).isEqualTo(1L);
+        assertThat(changeLog.recordChange("b")).isEqualTo(2L);
+        assertThat(changeLog.recordRemoval("a")).isEqualTo(3L);
+        assertThat(changeLog.getVersion()).isEqualTo(3L);
+    }
+
+    @Test
+    public void changesSinceAVersion() {
+        DataSyncChangeLog changeLog = new DataSyncChangeLog();
+        changeLog.recordChange("a");
+        changeLog.recordChange("b");
+        long version = changeLog.recordChange("c");
+        changeLog.recordChange("a");
+        changeLog.recordRemoval("b");
+        changeLog.recordChange("d");
+        changeLog.recordChange("a");
+
+        DataSyncChangeLog.Changes changes = changeLog.getChangesSince(version);
+        assertThat(changes.getVersion()).isEqualTo(7L);
+        assertThat(changes.getChangedKeys()).containsExactly("d", "a").inOrder();
+        assertThat(changes.getRemovedKeys()).containsExactly("b");
+
+        changes = changeLog.getChangesSince(0);
+        assertThat(changes.getChangedKeys()).containsExactly("c", "d", "a").inOrder();
+        assertThat(changes.getRemovedKeys()).containsExactly("b");
+
+        changes = changeLog.getChangesSince(7);
+        assertThat(changes.getChangedKeys()).isEmpty();
+        assertThat(changes.getRemovedKeys()).isEmpty();
+    }
+
+    @Test
+    public void aKeySetAgainIsNotRemovedAnymore() {
+        DataSyncChangeLog changeLog = new DataSyncChangeLog();
+        changeLog.recordChange("a");
+        changeLog.recordRemoval("a");
+        changeLog.recordChange("a");
+
+        DataSyncChangeLog.Changes changes = changeLog.getChangesSince(0);
+        assertThat(changes.getChangedKeys()).containsExactly("a");
+        assertThat(changes.getRemovedKeys()).isEmpty();
+    }
+
+    @Test
+    public void droppingTombstonesTruncatesTheLog() {
+        DataSyncChangeLog changeLog = new DataSyncChangeLog(2);
+        changeLog.recordChange("a");
+        long version = changeLog.getVersion();
+        changeLog.recordRemoval("x");
+        changeLog.recordRemoval("y");
+        assertThat(changeLog.getChangesSince(version)).isNotNull();
+
+        // x is forgotten
+        changeLog.recordRemoval("z");
+        assertThat(changeLog.getChangesSince(version)).isNull();
+        DataSyncChangeLog.Changes changes = changeLog.getChangesSince(version + 1);
+        assertThat(changes.getRemovedKeys()).containsExactly("y", "z").inOrder();
+    }
+
+    @Test
+    public void unknownVersionsAreNotResumed() {
+        DataSyncChangeLog changeLog = new DataSyncChangeLog();
+        changeLog.recordChange("a");
+        assertThat(changeLog.getChangesSince(2)).isNull();
+
+        changeLog.recordChange("b");
+        changeLog.reset();
+        assertThat(changeLog.getChangesSince(1)).isNull();
+        assertThat(changeLog.getChangesSince(2).getChangedKeys()).isEmpty();
+        assertThat(changeLog.recordChange("c")).isEqualTo(3L);
+    }
+}
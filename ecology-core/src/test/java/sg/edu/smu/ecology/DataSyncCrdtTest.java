@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link DataSyncCrdt} and {@link HybridLogicalClock}.
+ *
+ * @author Quentin Roy
+ */
+public class DataSyncCrdtTest {
+
+    // A clock whose physical time is set by the test
+    private static class TestClock extends HybridLogicalClock {
+        private long physicalTime = 1000;
+
+        TestClock(long replicaId) {
+            super(replicaId);
+        }
+
+        @Override
+        long physicalTime() {
+            return physicalTime;
+        }
+    }
+
+    private final TestClock clock1 = new TestClock(1);
+    private final TestClock clock2 = new TestClock(2);
+
+    // Merge two states in both orders, and check they give the same value
+    private static Object mergedValue(DataSyncCrdt state1, DataSyncCrdt state2) {
+        Object value = state1.merge(state2).getValue();
+        assertThat(state2.merge(state1).getValue()).isEqualTo(value);
+        return value;
+    }
+
+    @Test
+    public void clockIsMonotonicAndFollowsTheReceivedTimes() {
+        DataSyncCrdt.Stamp stamp1 = clock1.newStamp();
+        // The physical clock goes back
+        clock1.physicalTime = 500;
+        DataSyncCrdt.Stamp stamp2 = clock1.newStamp();
+        assertThat(stamp2).isGreaterThan(stamp1);
+
+        // Another device is ahead
+        clock2.physicalTime = 9000;
+        DataSyncCrdt.Stamp remoteStamp = clock2.newStamp();
+        clock1.update(remoteStamp.getTime());
+        assertThat(clock1.newStamp()).isGreaterThan(remoteStamp);
+    }
+
+    @Test
+    public void lastWrittenRegisterWins() {
+        DataSyncCrdt first = new DataSyncCrdt.Register(clock1.newStamp(), "red");
+        DataSyncCrdt second = new DataSyncCrdt.Register(clock2.newStamp(), "blue");
+        assertThat(mergedValue(first, second)).isEqualTo("blue");
+        assertThat(second.merge(first)).isSameAs(second);
+        assertThat(second.merge(second)).isSameAs(second);
+        assertThat(mergedValue(second, second.removal(clock1.newStamp()))).isNull();
+    }
+
+    @Test
+    public void concurrentPutWinsOverRemoval() {
+        DataSyncCrdt map = DataSyncCrdt.ObservedRemoveMap.put(null, "Watch", true, clock1);
+        // Device 2 removes the entry while device 1 puts it again
+        DataSyncCrdt removal = DataSyncCrdt.ObservedRemoveMap.remove(map, "Watch", clock2);
+        DataSyncCrdt put = DataSyncCrdt.ObservedRemoveMap.put(map, "Watch", false, clock1);
+
+        assertThat(mergedValue(map.merge(removal), map.merge(put)))
+                .isEqualTo(Collections.singletonMap("Watch", false));
+        // A removal received before the put it removes
+        assertThat(mergedValue(removal, map)).isNull();
+    }
+
+    @Test
+    public void mapSetAsAWholeIsConverted() {
+        Map<Object, Object> devices = new HashMap<>();
+        devices.put("Watch", true);
+        devices.put("Mobile", false);
+        DataSyncCrdt register = new DataSyncCrdt.Register(clock1.newStamp(), devices);
+        DataSyncCrdt removal = DataSyncCrdt.ObservedRemoveMap.remove(register, "Mobile", clock1);
+        assertThat(mergedValue(register, removal))
+                .isEqualTo(Collections.singletonMap("Watch", true));
+    }
+
+    @Test
+    public void counterCountsAllTheIncrements() {
+        DataSyncCrdt counter1 = DataSyncCrdt.Counter.increment(null, 5, clock1);
+        counter1 = counter1.merge(DataSyncCrdt.Counter.increment(counter1, -2, clock1));
+        DataSyncCrdt counter2 = DataSyncCrdt.Counter.increment(null, 4, clock2);
+        assertThat(mergedValue(counter1, counter2)).isEqualTo(7L);
+        assertThat(counter1.merge(counter2).merge(counter1).getValue()).isEqualTo(7L);
+    }
+
+    @Test
+    public void typesWinOverEachOther() {
+        DataSyncCrdt register = new DataSyncCrdt.Register(clock1.newStamp(), "red");
+        DataSyncCrdt map = DataSyncCrdt.ObservedRemoveMap.put(null, "Watch", true, clock1);
+        DataSyncCrdt counter = DataSyncCrdt.Counter.increment(null, 1, clock1);
+        assertThat(mergedValue(register, map)).isEqualTo(map.getValue());
+        assertThat(mergedValue(map, counter)).isEqualTo(1L);
+        assertThat(mergedValue(register, counter)).isEqualTo(1L);
+    }
+
+    @Test
+    public void typeWrittenLastWinsAcrossEpochs() {
+        DataSyncCrdt map = DataSyncCrdt.ObservedRemoveMap.put(null, "Watch", true, clock1);
+        DataSyncCrdt register = DataSyncCrdt.Register.write(map, clock1.newStamp(), "red");
+        // Device 2 puts an entry concurrently, in the epoch of the map
+        DataSyncCrdt put = DataSyncCrdt.ObservedRemoveMap.put(map, "Mobile", 3, clock2);
+        assertThat(mergedValue(map.merge(register), map.merge(put))).isEqualTo("red");
+
+        // A counter incremented over a number counts from it
+        DataSyncCrdt number = DataSyncCrdt.Register.write(register, clock1.newStamp(), 3);
+        // Device 2 sets a value concurrently, in the epoch of the number
+        DataSyncCrdt write = DataSyncCrdt.Register.write(register, clock2.newStamp(), 10);
+        DataSyncCrdt counter = DataSyncCrdt.Counter.increment(number, 4, clock1);
+        assertThat(mergedValue(number.merge(write), counter)).isEqualTo(7L);
+        DataSyncCrdt removal = counter.removal(clock1.newStamp());
+        assertThat(mergedValue(counter, removal)).isNull();
+        DataSyncCrdt decoded = DataSyncCrdt.decode(removal.encode());
+        assertThat(counter.merge(decoded).merge(removal)).isSameAs(decoded);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void counterCanNotIncrementAString() {
+        DataSyncCrdt.Counter.increment(new DataSyncCrdt.Register(clock1.newStamp(), "red"), 1,
+                clock1);
+    }
+
+    // The causal context of a map does not grow with the number of times its entries are put
+    @Test
+    public void mapContextIsCompact() {
+        DataSyncCrdt map1 = DataSyncCrdt.ObservedRemoveMap.put(null, "Watch", 0, clock1);
+        DataSyncCrdt map2 = map1;
+        for (int i = 1; i <= 100; i++) {
+            map1 = map1.merge(DataSyncCrdt.ObservedRemoveMap.put(map1, "Watch", i, clock1));
+            map2 = map2.merge(DataSyncCrdt.ObservedRemoveMap.put(map2, "Watch", -i, clock2));
+            map1 = map1.merge(map2);
+            map2 = map2.merge(map1);
+        }
+        map1 = map1.merge(DataSyncCrdt.ObservedRemoveMap.remove(map1, "Watch", clock1));
+        map2 = map2.merge(map1);
+
+        assertThat(map2.getValue()).isNull();
+        // The entries and the greatest time observed from each of the two replicas
+        assertThat((List<?>) map2.encode().get(1)).isEmpty();
+        assertThat((List<?>) map2.encode().get(2)).hasSize(2 * 3);
+        // A put not observed by the removal is kept
+        DataSyncCrdt put = DataSyncCrdt.ObservedRemoveMap.put(null, "Mobile", true, clock2);
+        assertThat(mergedValue(map2, put)).isEqualTo(Collections.singletonMap("Mobile", true));
+    }
+
+    @Test
+    public void encodedStatesAreDecoded() {
+        DataSyncCrdt map = DataSyncCrdt.ObservedRemoveMap.put(null, "Watch", true, clock1);
+        map = map.merge(DataSyncCrdt.ObservedRemoveMap.put(map, "Mobile", 3, clock2));
+        map = map.merge(DataSyncCrdt.ObservedRemoveMap.remove(map, "Watch", clock1));
+        DataSyncCrdt counter = DataSyncCrdt.Counter.increment(null, -3, clock1);
+        DataSyncCrdt register = new DataSyncCrdt.Register(clock1.newStamp(), "red");
+
+        for (DataSyncCrdt state : new DataSyncCrdt[]{map, counter, register}) {
+            DataSyncCrdt decoded = DataSyncCrdt.decode(state.encode());
+            assertThat(decoded.getValue()).isEqualTo(state.getValue());
+            // Nothing new in the decoded state
+            assertThat(state.merge(decoded)).isSameAs(state);
+        }
+    }
+}
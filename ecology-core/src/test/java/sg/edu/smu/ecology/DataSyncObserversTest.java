@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/**
+ * Tests for {@link DataSyncObservers}.
+ *
+ * @author Quentin Roy
+ */
+public class DataSyncObserversTest {
+
+    @Test
+    public void onlyTheObserversOfTheKeyAreNotified() {
+        DataSyncObservers observers = new DataSyncObservers();
+        DataSync.DataObserver colorObserver = mock(DataSync.DataObserver.class);
+        DataSync.DataObserver sizeObserver = mock(DataSync.DataObserver.class);
+        observers.observe("color", colorObserver, null);
+        observers.observe("size", sizeObserver, null);
+
+        observers.notifyChange("color", "red", "blue");
+
+        verify(colorObserver).onDataChange("color", "red", "blue");
+        verifyZeroInteractions(sizeObserver);
+    }
+
+    @Test
+    public void prefixObserversAreNotifiedOfTheMatchingKeys() {
+        DataSyncObservers observers = new DataSyncObservers();
+        DataSync.DataObserver cursorsObserver = mock(DataSync.DataObserver.class);
+        DataSync.DataObserver allObserver = mock(DataSync.DataObserver.class);
+        observers.observePrefix("cursor/", cursorsObserver, null);
+        observers.observePrefix("", allObserver, null);
+
+        observers.notifyChange("cursor/watch", 1, null);
+        observers.notifyChange("cursor", 2, null);
+        observers.notifyChange(3, 3, null);
+
+        verify(cursorsObserver).onDataChange("cursor/watch", 1, null);
+        verify(cursorsObserver, never()).onDataChange("cursor", 2, null);
+        verify(allObserver).onDataChange("cursor/watch", 1, null);
+        verify(allObserver).onDataChange("cursor", 2, null);
+        // Only the string keys have prefixes
+        verify(allObserver, never()).onDataChange(3, 3, null);
+    }
+
+    @Test
+    public void notificationsRunOnTheExecutorOfTheObserver() {
+        final List<Runnable> tasks = new ArrayList<>();
+        DataSyncObservers observers = new DataSyncObservers();
+        DataSync.DataObserver observer = mock(DataSync.DataObserver.class);
+        observers.observe("color", observer, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+
+        observers.notifyChange("color", "red", null);
+        verifyZeroInteractions(observer);
+        assertThat(tasks).hasSize(1);
+        tasks.get(0).run();
+        verify(observer).onDataChange("color", "red", null);
+    }
+
+    @Test
+    public void removedObserversAreNotNotifiedAnymore() {
+        DataSyncObservers observers = new DataSyncObservers();
+        DataSync.DataObserver observer = mock(DataSync.DataObserver.class);
+        observers.observe("color", observer, null);
+        observers.observePrefix("col", observer, null);
+
+        observers.remove(observer);
+        observers.notifyChange("color", "red", null);
+
+        verifyZeroInteractions(observer);
+    }
+}
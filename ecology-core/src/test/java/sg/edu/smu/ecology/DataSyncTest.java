@@ -0,0 +1,1306 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+
+package sg.edu.smu.ecology;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @author Anuroop PATTENA VANIYAR
+ * @author Quentin ROY
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DataSyncTest {
+
+    @Mock
+    private DataSync.Connector connector;
+    @Mock
+    private DataSync.SyncDataChangeListener syncDataChangeListener;
+    @Mock
+    private Executor ecologyExecutor;
+
+    private DataSync dataSync1, dataSync2;
+
+    @Before
+    public void setUp() throws Exception {
+        dataSync1 = new DataSync(connector, syncDataChangeListener, true, ecologyExecutor);
+        dataSync2 = new DataSync(connector, syncDataChangeListener, false, ecologyExecutor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dataSync1 = null;
+        dataSync2 = null;
+    }
+
+    // To verify that when a new sync data is set, connector and sync data change listener are
+    // invoked correctly and also if sync data has been saved correctly
+    @Test
+    public void testSetData() {
+        // Mocking ecology executor to invoke a Runnable
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                invocation.getArgumentAt(0, Runnable.class).run();
+                return null;
+            }
+        }).when(ecologyExecutor).execute(any(Runnable.class));
+
+        dataSync1.setData("color", "red");
+
+        // To capture the argument in the onMessage method
+        ArgumentCaptor<EcologyMessage> messageCaptor = ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(connector, times(1)).onMessage(messageCaptor.capture());
+        // Create a local mock ecology message
+        EcologyMessage messageArgument;
+        messageArgument = messageCaptor.getValue();
+
+        // Acts as a routing id to differentiate between initial sync message and other data sync
+        // messages
+        Integer dataSyncMessageIndicator = 0;
+
+        // To check if right value is passed
+        assertEquals(messageArgument.getArguments(), Arrays.asList("color", "red",
+                dataSyncMessageIndicator));
+        // To check if sync data change listener is invoked once
+        verify(syncDataChangeListener, times(1)).onDataUpdate("color", "red", null);
+
+        // To check if the new sync data has been saved correctly
+        assertEquals(dataSync1.getData("color"), "red");
+    }
+
+    // To verify that when the device receives a sync data change from another device in the
+    // ecology, sync data change listener is invoked correctly and also if sync data has been saved
+    // correctly
+    @Test
+    public void testOnDataSyncMessage() {
+        Integer dataSyncMessageIndicator = 0;
+        EcologyMessage message = mock(EcologyMessage.class);
+        PowerMockito.when(message.fetchArgument()).thenReturn(dataSyncMessageIndicator, "black",
+                "color");
+
+        dataSync1.onMessage(message);
+
+        // To check if sync data change listener is invoked once
+        verify(syncDataChangeListener, times(1)).onDataUpdate("color", "black", null);
+
+        // To check if the new sync data has been saved correctly
+        assertEquals(dataSync1.getData("color"), "black");
+    }
+
+    // To verify that when a data reference device gets a initial data sync request, it sends the
+    // current data sync values to the requested device.
+    @Test
+    public void testOnInitialDataSyncMessageDataRef() {
+        Integer initDataSyncRequest = 1;
+        Integer initDataSyncResponse = 2;
+
+        EcologyMessage message = mock(EcologyMessage.class);
+        PowerMockito.when(message.fetchArgument()).thenReturn(initDataSyncRequest);
+        PowerMockito.when(message.getSource()).thenReturn("Watch");
+
+        // The data reference device receives a initial sync data request
+        dataSync1.onMessage(message);
+
+        // To capture the argument in the onMessage method
+        ArgumentCaptor<EcologyMessage> messageCaptor = ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(connector, times(1)).onMessage(messageCaptor.capture());
+        // Create a local mock ecology message
+        EcologyMessage messageArgument;
+        messageArgument = messageCaptor.getValue();
+
+        // Since the device is the data reference, it will send back the current sync data
+        // along with its number of entries, its session and its version
+        // To check if right value is passed
+        assertEquals(messageArgument.getArguments().size(), 5);
+        assertEquals(messageArgument.getArguments().get(0), Collections.emptyMap());
+        assertEquals(messageArgument.getArguments().get(1), 0);
+        assertEquals(messageArgument.getArguments().get(3), 0L);
+        assertEquals(messageArgument.getArguments().get(4), initDataSyncResponse);
+        // Check if the target type is specific
+        Assert.assertEquals(messageArgument.getTargetType().intValue(),
+                EcologyMessage.TARGET_TYPE_SPECIFIC);
+        // Check if the target is the source device id of the requester
+        assertEquals(messageArgument.getTargets(), Collections.singletonList("Watch"));
+    }
+
+    // When a non data reference device receives a initial data sync request, it will save the data
+    @Test
+    public void testOnInitialDataSyncMessageNotDataRefEmptyData() {
+        // Mocking ecology executor to invoke a Runnable
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                invocation.getArgumentAt(0, Runnable.class).run();
+                return null;
+            }
+        }).when(ecologyExecutor).execute(any(Runnable.class));
+
+        Integer initDataSyncResponse = 2;
+
+        // When an empty map is received
+        EcologyMessage message = mock(EcologyMessage.class);
+        PowerMockito.when(message.fetchArgument()).thenReturn(initDataSyncResponse,
+                Collections.emptyMap());
+
+        dataSync2.setData("color", "black");
+        dataSync2.setData("number", 4);
+
+        // The data reference device receives a initial sync data request
+        dataSync2.onMessage(message);
+
+        // Since the initial data sync is empty, all the current data will be set to null
+        verify(syncDataChangeListener, times(1)).onDataUpdate("color", null, "black");
+        verify(syncDataChangeListener, times(1)).onDataUpdate("number", null, 4);
+    }
+
+    // When a non data reference device receives a initial data sync request, it will save the data
+    @Test
+    public void testOnInitialDataSyncMessageNotDataRefAllNewData() {
+        // Mocking ecology executor to invoke a Runnable
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                invocation.getArgumentAt(0, Runnable.class).run();
+                return null;
+            }
+        }).when(ecologyExecutor).execute(any(Runnable.class));
+
+        Integer initDataSyncResponse = 2;
+
+        // When initial data is having a new key and data
+        EcologyMessage message = mock(EcologyMessage.class);
+        PowerMockito.when(message.fetchArgument()).thenReturn(initDataSyncResponse,
+                new HashMap<Object, Object>() {{
+                    put("activity", "walking");
+                }});
+
+        dataSync2.setData("color", "black");
+        dataSync2.setData("number", 4);
+
+        // The data reference device receives a initial sync data request
+        dataSync2.onMessage(message);
+
+        // Since the initial data sync has a new key and value, the new data will be saved and other
+        // key - value data not present will be set to null and removed
+        verify(syncDataChangeListener, times(1)).onDataUpdate("activity", "walking", null);
+        verify(syncDataChangeListener, times(1)).onDataUpdate("color", null, "black");
+        verify(syncDataChangeListener, times(1)).onDataUpdate("number", null, 4);
+    }
+
+    // When a non data reference device receives a initial data sync request, it will save the data
+    @Test
+    public void testOnInitialDataSyncMessageNotDataRefAllUpdateData() {
+        Integer initDataSyncResponse = 2;
+
+        // When initial data is having a new key and data as well as old key and data
+        EcologyMessage message = mock(EcologyMessage.class);
+        PowerMockito.when(message.fetchArgument()).thenReturn(initDataSyncResponse,
+                new HashMap<Object, Object>() {{
+                    put("activity", "walking");
+                    put("number", 5);
+                }});
+
+        // Mocking ecology executor to invoke a Runnable
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                invocation.getArgumentAt(0, Runnable.class).run();
+                return null;
+            }
+        }).when(ecologyExecutor).execute(any(Runnable.class));
+
+        dataSync2.setData("color", "black");
+        dataSync2.setData("number", 4);
+
+        // The data reference device receives a initial sync data request
+        dataSync2.onMessage(message);
+
+        // All the new key - value will be added and existing key data will be updated and rest will
+        // be removed
+        verify(syncDataChangeListener, times(1)).onDataUpdate("activity", "walking", null);
+        verify(syncDataChangeListener, times(1)).onDataUpdate("number", 5, 4);
+        verify(syncDataChangeListener, times(1)).onDataUpdate("color", null, "black");
+    }
+
+    // To verify that when an non-existent sync data is requested, a null is returned
+    @Test
+    public void testGetNonExistentData() {
+        assertEquals(dataSync1.getData("color"), null);
+    }
+
+    // To verify that when a sync data value is over written, new value will be returned when queried
+    @Test
+    public void testOverwriteSyncData() {
+        // Mocking ecology executor to invoke a Runnable
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                invocation.getArgumentAt(0, Runnable.class).run();
+                return null;
+            }
+        }).when(ecologyExecutor).execute(any(Runnable.class));
+
+        dataSync1.setData("color", "red");
+        assertEquals(dataSync1.getData("color"), "red");
+
+        // To capture the argument in the onMessage method
+        ArgumentCaptor<EcologyMessage> messageCaptor = ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(connector, times(1)).onMessage(messageCaptor.capture());
+        // Create a local mock ecology message
+        EcologyMessage messageArgument;
+        messageArgument = messageCaptor.getValue();
+
+        Integer dataSyncMessageIndicator = 0;
+
+        // To check if right value is passed
+        assertEquals(messageArgument.getArguments(), Arrays.asList("color", "red",
+                dataSyncMessageIndicator));
+        // To check if sync data change listener is invoked once
+        verify(syncDataChangeListener, times(1)).onDataUpdate("color", "red", null);
+
+        // Over-write the data sync value corresponding to the given key
+        dataSync1.setData("color", "blue");
+        assertEquals(dataSync1.getData("color"), "blue");
+
+        verify(connector, times(2)).onMessage(messageCaptor.capture());
+        // Create a local mock ecology message
+        EcologyMessage messageArgument2;
+        messageArgument2 = messageCaptor.getValue();
+
+        // To check if right value is passed
+        assertEquals(messageArgument2.getArguments(), Arrays.asList("color", "blue",
+                dataSyncMessageIndicator));
+        // To check if sync data change listener is invoked once
+        verify(syncDataChangeListener, times(1)).onDataUpdate("color", "blue", "red");
+    }
+
+    // To verify if message or event is not sent when the user sets the same data as before
+    @Test
+    public void testWhenSameSyncDataSet() {
+        // Mocking ecology executor to invoke a Runnable
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                invocation.getArgumentAt(0, Runnable.class).run();
+                return null;
+            }
+        }).when(ecologyExecutor).execute(any(Runnable.class));
+
+        dataSync1.setData("color", "red");
+        assertEquals(dataSync1.getData("color"), "red");
+
+        // To capture the argument in the onMessage method
+        ArgumentCaptor<EcologyMessage> messageCaptor = ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(connector, times(1)).onMessage(messageCaptor.capture());
+        // Create a local mock ecology message
+        EcologyMessage messageArgument;
+        messageArgument = messageCaptor.getValue();
+
+        Integer dataSyncMessageIndicator = 0;
+
+        // To check if right value is passed
+        assertEquals(messageArgument.getArguments(), Arrays.asList("color", "red",
+                dataSyncMessageIndicator));
+        // To check if sync data change listener is invoked once
+        verify(syncDataChangeListener, times(1)).onDataUpdate("color", "red", null);
+
+        // Set the same data as before
+        dataSync1.setData("color", "red");
+        assertEquals(dataSync1.getData("color"), "red");
+
+        // To check if connector is not invoked
+        verify(connector, times(1)).onMessage(any(EcologyMessage.class));
+
+        // To check if sync data change listener is not invoked
+        verify(syncDataChangeListener, never()).onDataUpdate("color", "red", "red");
+    }
+
+    // Runs the tasks right away
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // A reference and a client linked together, see linkDataSyncs
+    private DataSync reference, client;
+    private Executor referenceExecutor = DIRECT_EXECUTOR;
+    private boolean linkUp;
+    // The messages the client received from the reference
+    private List<EcologyMessage> clientMessages;
+
+    private static EcologyMessage deliver(EcologyMessage message, String source) {
+        EcologyMessage copy = new EcologyMessage(message);
+        copy.setSource(source);
+        return copy;
+    }
+
+    // Link a new reference and a new client, messages are delivered right away while linkUp
+    private void linkDataSyncs() {
+        linkUp = true;
+        clientMessages = new ArrayList<>();
+        reference = createReference();
+        client = new DataSync(new DataSync.Connector() {
+            @Override
+            public void onMessage(EcologyMessage message) {
+                if (linkUp) {
+                    reference.onMessage(deliver(message, "client"));
+                }
+            }
+        }, syncDataChangeListener, false, DIRECT_EXECUTOR);
+    }
+
+    private DataSync createReference() {
+        return new DataSync(new DataSync.Connector() {
+            @Override
+            public void onMessage(EcologyMessage message) {
+                if (linkUp) {
+                    EcologyMessage received = deliver(message, "reference");
+                    clientMessages.add(new EcologyMessage(received));
+                    client.onMessage(received);
+                }
+            }
+        }, mock(DataSync.SyncDataChangeListener.class), true, referenceExecutor);
+    }
+
+    // The routing id of the last message received by the client
+    private Object lastClientMessageId() {
+        List<Object> arguments = clientMessages.get(clientMessages.size() - 1).getArguments();
+        return arguments.get(arguments.size() - 1);
+    }
+
+    // The routing ids of the messages received by the client
+    private List<Object> clientMessageIds() {
+        List<Object> ids = new ArrayList<>();
+        for (EcologyMessage message : clientMessages) {
+            ids.add(message.getArguments().get(message.getArguments().size() - 1));
+        }
+        return ids;
+    }
+
+    private void disconnectClient() {
+        linkUp = false;
+        client.onDisconnected();
+    }
+
+    private void reconnectClient() {
+        linkUp = true;
+        client.onConnected();
+    }
+
+    // A reconnecting client must only receive what changed while it was away
+    @Test
+    public void testResumeSynchronization() {
+        linkDataSyncs();
+        reference.setData("color", "red");
+        reference.setData("number", 4);
+        reference.setData("activity", "walking");
+        client.onConnected();
+        assertEquals(lastClientMessageId(), 2);
+        assertTrue(client.isSynchronized());
+
+        disconnectClient();
+        reference.setData("number", 5);
+        reference.removeData("activity");
+        reference.setData("shape", "circle");
+        reconnectClient();
+
+        assertEquals(lastClientMessageId(), 3);
+        List<Object> arguments = clientMessages.get(clientMessages.size() - 1).getArguments();
+        assertEquals(arguments.get(0), new HashMap<Object, Object>() {{
+            put("number", 5);
+            put("shape", "circle");
+        }});
+        assertEquals(arguments.get(1), Collections.singletonList("activity"));
+
+        assertTrue(client.isSynchronized());
+        assertEquals(client.getData("color"), "red");
+        assertEquals(client.getData("number"), 5);
+        assertEquals(client.getData("shape"), "circle");
+        assertNull(client.getData("activity"));
+        verify(syncDataChangeListener, times(1)).onDataUpdate("activity", null, "walking");
+        verify(syncDataChangeListener, times(1)).onDataUpdate("number", 5, 4);
+    }
+
+    // Nothing changed while the client was away
+    @Test
+    public void testResumeSynchronizationWithoutChange() {
+        linkDataSyncs();
+        reference.setData("color", "red");
+        client.onConnected();
+
+        disconnectClient();
+        assertFalse(client.isSynchronized());
+        reconnectClient();
+
+        assertEquals(lastClientMessageId(), 3);
+        List<Object> arguments = clientMessages.get(clientMessages.size() - 1).getArguments();
+        assertEquals(arguments.get(0), Collections.emptyMap());
+        assertEquals(arguments.get(1), Collections.emptyList());
+        assertTrue(client.isSynchronized());
+        assertEquals(client.getData("color"), "red");
+    }
+
+    // The whole data is sent when the change log does not know what changed anymore
+    @Test
+    public void testResumeSynchronizationAfterLogTruncation() {
+        linkDataSyncs();
+        reference.setData("color", "red");
+        client.onConnected();
+
+        disconnectClient();
+        for (int i = 0; i <= DataSyncChangeLog.DEFAULT_MAX_TOMBSTONES; i++) {
+            reference.setData(i, i);
+            reference.removeData(i);
+        }
+        reference.setData("color", "blue");
+        reconnectClient();
+
+        assertEquals(lastClientMessageId(), 2);
+        assertEquals(client.getData("color"), "blue");
+        assertTrue(client.isSynchronized());
+    }
+
+    // The whole data is sent by a reference that has been restarted
+    @Test
+    public void testResumeSynchronizationWithNewReference() {
+        linkDataSyncs();
+        reference.setData("color", "red");
+        client.onConnected();
+
+        disconnectClient();
+        reference = createReference();
+        reference.setData("number", 4);
+        reconnectClient();
+
+        assertEquals(lastClientMessageId(), 2);
+        assertNull(client.getData("color"));
+        assertEquals(client.getData("number"), 4);
+    }
+
+    // The reference does not know about the changes made by the client while it was away
+    @Test
+    public void testResumeSynchronizationAfterOfflineChange() {
+        linkDataSyncs();
+        reference.setData("color", "red");
+        client.onConnected();
+
+        disconnectClient();
+        client.setData("color", "green");
+        reconnectClient();
+
+        assertEquals(lastClientMessageId(), 2);
+        assertEquals(client.getData("color"), "red");
+    }
+
+    // A removal must be applied on the other devices
+    @Test
+    public void testRemoveData() {
+        linkDataSyncs();
+        reference.setData("color", "red");
+        client.onConnected();
+
+        reference.removeData("color");
+
+        assertNull(reference.getData("color"));
+        assertNull(client.getData("color"));
+        verify(syncDataChangeListener, times(1)).onDataUpdate("color", null, "red");
+    }
+
+    // The data of the reference is sent in several messages, other messages can be sent in
+    // between
+    @Test
+    public void testChunkedSynchronization() {
+        final List<Runnable> tasks = new ArrayList<>();
+        referenceExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        linkDataSyncs();
+        // Three entries per message
+        reference.setSyncChunkSize(40);
+        for (int i = 0; i < 10; i++) {
+            reference.setData("key" + i, i);
+        }
+        linkUp = false;
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+        client.setData("local", "value");
+        linkUp = true;
+
+        client.onConnected();
+        // The first chunk is sent right away
+        assertEquals(clientMessageIds(), Collections.<Object>singletonList(5));
+        assertFalse(client.isSynchronized());
+
+        reference.setData("key0", 100);
+        reference.setData("new", "value");
+        while (!tasks.isEmpty()) {
+            assertFalse(client.isSynchronized());
+            tasks.remove(0).run();
+        }
+
+        // The two values set in a row are sent in the same message
+        assertEquals(clientMessageIds(), Arrays.<Object>asList(5, 5, 0, 5, 2));
+        assertTrue(client.isSynchronized());
+        assertEquals(client.getData("key0"), 100);
+        for (int i = 1; i < 10; i++) {
+            assertEquals(client.getData("key" + i), i);
+        }
+        assertEquals(client.getData("new"), "value");
+        // The data the reference does not have is removed
+        assertNull(client.getData("local"));
+    }
+
+    // The reference only sends a chunk once the previous one has been received
+    @Test
+    public void testSynchronizationWaitsForTheChunks() {
+        linkDataSyncs();
+        reference.setSyncChunkSize(1);
+        for (int i = 0; i < 5; i++) {
+            reference.setData("key" + i, i);
+        }
+        clientMessages.clear();
+        client = new DataSync(new DataSync.Connector() {
+            @Override
+            public void onMessage(EcologyMessage message) {
+                // The acknowledgements are lost
+                if (!message.getArguments().equals(Collections.<Object>singletonList(12))) {
+                    reference.onMessage(deliver(message, "client"));
+                }
+            }
+        }, syncDataChangeListener, false, DIRECT_EXECUTOR);
+
+        client.onConnected();
+
+        assertEquals(clientMessageIds(), Collections.<Object>singletonList(5));
+        assertFalse(client.isSynchronized());
+    }
+
+    // A synchronization some entries of which have been lost is started again from scratch
+    @Test
+    public void testIncompleteSynchronization() {
+        dataSync2.setData("color", "black");
+        dataSync2.onMessage(new EcologyMessage(Arrays.<Object>asList(
+                Collections.singletonMap("number", 4), 5)));
+        // The second chunk is lost
+        dataSync2.onMessage(new EcologyMessage(Arrays.<Object>asList(
+                Collections.singletonMap("shape", "circle"), 3, 42L, 7L, 2)));
+
+        ArgumentCaptor<EcologyMessage> messageCaptor =
+                ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(connector, times(2)).onMessage(messageCaptor.capture());
+        assertEquals(messageCaptor.getValue().getArguments(), Collections.<Object>singletonList(1));
+        assertFalse(dataSync2.isSynchronized());
+        // Nothing is removed until all the data has been received
+        assertEquals(dataSync2.getData("color"), "black");
+
+        dataSync2.onMessage(new EcologyMessage(Arrays.<Object>asList(
+                new HashMap<Object, Object>() {{
+                    put("number", 4);
+                    put("activity", "walking");
+                    put("shape", "circle");
+                }}, 3, 42L, 8L, 2)));
+
+        assertTrue(dataSync2.isSynchronized());
+        assertNull(dataSync2.getData("color"));
+        assertEquals(dataSync2.getData("activity"), "walking");
+    }
+
+    // Only the changed entry of a map is sent, each replica applies it to its own map
+    @Test
+    public void testMapPatch() {
+        linkDataSyncs();
+        reference.setData("devices", new HashMap<Object, Object>() {{
+            put("Watch", true);
+        }});
+        client.onConnected();
+        Object oldValue = client.getData("devices");
+
+        reference.putMapEntry("devices", "Mobile", false);
+
+        assertEquals(clientMessages.get(clientMessages.size() - 1).getArguments(),
+                Arrays.<Object>asList("devices", "Mobile", false, 0, 6));
+        Map<Object, Object> expectedValue = new HashMap<>();
+        expectedValue.put("Watch", true);
+        expectedValue.put("Mobile", false);
+        assertEquals(client.getData("devices"), expectedValue);
+        // The listeners are given both the old and the new maps
+        verify(syncDataChangeListener, times(1)).onDataUpdate("devices", expectedValue,
+                oldValue);
+        assertEquals(oldValue, Collections.singletonMap("Watch", true));
+
+        client.removeMapEntry("devices", "Watch");
+
+        assertEquals(reference.getData("devices"), Collections.singletonMap("Mobile", false));
+        assertEquals(client.getData("devices"), Collections.singletonMap("Mobile", false));
+    }
+
+    // Only the appended or removed element of a list is sent
+    @Test
+    public void testListPatch() {
+        linkDataSyncs();
+        client.onConnected();
+
+        // The list is created if needed
+        reference.appendListElement("items", "a");
+        reference.appendListElement("items", "b");
+        client.appendListElement("items", "c");
+        assertEquals(lastClientMessageId(), 6);
+        assertEquals(client.getData("items"), Arrays.asList("a", "b", "c"));
+        assertEquals(reference.getData("items"), Arrays.asList("a", "b", "c"));
+
+        reference.removeListElement("items", 0);
+
+        assertEquals(clientMessages.get(clientMessages.size() - 1).getArguments(),
+                Arrays.<Object>asList("items", 0, 3, 6));
+        assertEquals(client.getData("items"), Arrays.asList("b", "c"));
+        verify(syncDataChangeListener, times(1)).onDataUpdate("items",
+                Arrays.asList("b", "c"), Arrays.asList("a", "b", "c"));
+    }
+
+    // A new value must not overtake a patch sent before it
+    @Test
+    public void testPatchIsNotCoalesced() {
+        dataSync1 = new DataSync(connector, syncDataChangeListener, true, DIRECT_EXECUTOR);
+        dataSync1.setData("devices", new HashMap<>());
+        dataSync1.putMapEntry("devices", "Watch", true);
+        dataSync1.setData("devices", new HashMap<>());
+
+        ArgumentCaptor<EcologyMessage> messageCaptor =
+                ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(connector, times(3)).onMessage(messageCaptor.capture());
+        List<EcologyMessage> messages = messageCaptor.getAllValues();
+        assertNull(messages.get(1).getCoalescingKey());
+        assertFalse(messages.get(0).getCoalescingKey().equals(
+                messages.get(2).getCoalescingKey()));
+    }
+
+    // A patch of a value that is not a collection is rejected
+    @Test(expected = IllegalArgumentException.class)
+    public void testPatchOfNonCollection() {
+        dataSync1.setData("color", "red");
+        dataSync1.putMapEntry("color", "shade", "dark");
+    }
+
+    // The values set in a batch are sent in one message, only the last value of each key
+    @Test
+    public void testBatch() {
+        linkDataSyncs();
+        client.onConnected();
+        clientMessages.clear();
+
+        reference.batch(new Runnable() {
+            @Override
+            public void run() {
+                reference.setData("x", 1);
+                reference.setData("y", 2);
+                reference.setData("x", 3);
+                // Updated locally right away
+                assertEquals(reference.getData("x"), 3);
+                assertTrue(clientMessages.isEmpty());
+            }
+        });
+
+        assertEquals(clientMessages.size(), 1);
+        assertEquals(clientMessages.get(0).getArguments(), Arrays.<Object>asList("x", 3, "y", 2,
+                0));
+        assertEquals(client.getData("x"), 3);
+        assertEquals(client.getData("y"), 2);
+        verify(syncDataChangeListener, times(1)).onDataUpdate("x", 3, null);
+        verify(syncDataChangeListener, never()).onDataUpdate("x", 1, null);
+    }
+
+    // The values set within the coalescing window are sent together once it is over
+    @Test
+    public void testCoalescingWindow() {
+        final List<Runnable> delayedTasks = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+        dataSync1 = new DataSync(connector, syncDataChangeListener, true, new DelayedExecutor() {
+            @Override
+            public void executeDelayed(Runnable command, long delay) {
+                delayedTasks.add(command);
+                delays.add(delay);
+            }
+
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        dataSync1.setCoalescingWindow(50);
+
+        dataSync1.setData("x", 1);
+        dataSync1.setData("y", 2);
+        dataSync1.setData("x", 3);
+        verify(connector, never()).onMessage(any(EcologyMessage.class));
+        assertEquals(delays, Collections.singletonList(50L));
+
+        delayedTasks.remove(0).run();
+
+        ArgumentCaptor<EcologyMessage> messageCaptor =
+                ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(connector, times(1)).onMessage(messageCaptor.capture());
+        assertEquals(messageCaptor.getValue().getArguments(), Arrays.<Object>asList("x", 3, "y",
+                2, 0));
+        // A message setting several keys is not coalesced
+        assertNull(messageCaptor.getValue().getCoalescingKey());
+    }
+
+    // A removal is never received before a value set before it
+    @Test
+    public void testRemovalFlushesPendingUpdates() {
+        final List<Runnable> delayedTasks = new ArrayList<>();
+        linkDataSyncs();
+        reference = new DataSync(new DataSync.Connector() {
+            @Override
+            public void onMessage(EcologyMessage message) {
+                EcologyMessage received = deliver(message, "reference");
+                clientMessages.add(new EcologyMessage(received));
+                client.onMessage(received);
+            }
+        }, mock(DataSync.SyncDataChangeListener.class), true, new DelayedExecutor() {
+            @Override
+            public void executeDelayed(Runnable command, long delay) {
+                delayedTasks.add(command);
+            }
+
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        reference.setCoalescingWindow(1000);
+
+        reference.setData("color", "red");
+        reference.removeData("color");
+
+        assertEquals(clientMessageIds(), Arrays.<Object>asList(0, 4));
+        assertNull(client.getData("color"));
+        // Nothing is left to send
+        delayedTasks.remove(0).run();
+        assertEquals(clientMessages.size(), 2);
+    }
+
+    // The values equal to the current ones are neither sent nor notified
+    @Test
+    public void testChangeDetection() {
+        linkDataSyncs();
+        client.onConnected();
+        clientMessages.clear();
+        reference.setChangeDetection(DataSync.ChangeDetection.EQUALITY);
+
+        reference.setData("devices", new HashMap<>(Collections.singletonMap("Watch", true)));
+        reference.setData("devices", new HashMap<>(Collections.singletonMap("Watch", true)));
+        reference.setData("color", new String("red"));
+        reference.setData("color", new String("red"));
+
+        assertEquals(clientMessageIds(), Arrays.<Object>asList(0, 0));
+        assertEquals(reference.getSuppressedWriteCount(), 2);
+        verify(syncDataChangeListener, times(1)).onDataUpdate("color", "red", null);
+    }
+
+    // The observers are notified of the changes of their keys, both local and remote
+    @Test
+    public void testObserve() {
+        linkDataSyncs();
+        client.onConnected();
+        DataSync.DataObserver observer = mock(DataSync.DataObserver.class);
+        client.observe("color", observer);
+
+        reference.setData("color", "red");
+        reference.setData("size", 3);
+        client.setData("color", "blue");
+        reference.removeData("color");
+
+        verify(observer).onDataChange("color", "red", null);
+        verify(observer).onDataChange("color", "blue", "red");
+        verify(observer).onDataChange("color", null, "blue");
+        verify(observer, never()).onDataChange("size", 3, null);
+        // The listener is still notified of all the changes
+        verify(syncDataChangeListener).onDataUpdate("size", 3, null);
+    }
+
+    // The data of a reference with a store survives its restart
+    @Test
+    public void testStore() throws Exception {
+        File file = File.createTempFile("datasync", null);
+        try {
+            MappedDataSyncStore store = new MappedDataSyncStore(file);
+            linkDataSyncs();
+            reference.setData("color", "red");
+            reference.setStore(store);
+            reference.setData("size", 3);
+            client.setData("devices", Collections.singletonMap("Watch", true));
+            client.removeData("size");
+            store.close();
+
+            // The reference is restarted
+            linkDataSyncs();
+            store = new MappedDataSyncStore(file);
+            reference.setStore(store);
+            assertEquals(reference.getData("color"), "red");
+            assertNull(reference.getData("size"));
+
+            client.onConnected();
+            assertEquals(client.getData("color"), "red");
+            assertEquals(client.getData("devices"), Collections.singletonMap("Watch", true));
+
+            // A disconnection only clears the data in memory
+            reference.clear();
+            assertEquals(reference.getData("color"), "red");
+            reference.clearStore();
+            assertTrue(store.keys().isEmpty());
+            store.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    // A snapshot is a consistent copy of the data that never changes
+    @Test
+    public void testSnapshot() {
+        dataSync1.setData("color", "red");
+        dataSync1.setData("size", 3);
+        Map<Object, Object> snapshot = dataSync1.snapshot();
+
+        dataSync1.setData("color", "blue");
+        dataSync1.removeData("size");
+
+        assertEquals(snapshot.get("color"), "red");
+        assertEquals(snapshot.get("size"), 3);
+        assertEquals(dataSync1.snapshot(), Collections.singletonMap("color", "blue"));
+    }
+
+    // The data sent to a device is the version of the data when it asked for it, the changes
+    // made in the meantime are applied after
+    @Test
+    public void testSynchronizationSendsASnapshot() {
+        final List<Runnable> tasks = new ArrayList<>();
+        referenceExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        linkDataSyncs();
+        reference.setSyncChunkSize(1);
+        reference.setData("a", 1);
+        reference.setData("b", 2);
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+        clientMessages.clear();
+
+        client.onConnected();
+        reference.setData("a", 10);
+        reference.setData("b", 20);
+        reference.appendListElement("c", "x");
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+
+        // The chunks contain the values of the snapshot
+        assertEquals(clientMessages.get(0).getArguments().get(0),
+                Collections.singletonMap("a", 1));
+        assertTrue(client.isSynchronized());
+        assertEquals(client.getData("a"), 10);
+        assertEquals(client.getData("b"), 20);
+        assertEquals(client.getData("c"), Collections.singletonList("x"));
+    }
+
+    // In CRDT mode, the changes made on both sides while disconnected are merged
+    @Test
+    public void testCrdtMode() {
+        linkDataSyncs();
+        reference.enableCrdtMode();
+        client.enableCrdtMode();
+        client.onConnected();
+        reference.setData("color", "red");
+        reference.putMapEntry("devices", "Watch", true);
+        assertEquals(lastClientMessageId(), 7);
+        assertEquals(client.getData("color"), "red");
+
+        disconnectClient();
+        reference.incrementCounter("score", 3);
+        reference.putMapEntry("devices", "Mobile", true);
+        reference.setData("color", "blue");
+        client.incrementCounter("score", 2);
+        client.removeMapEntry("devices", "Watch");
+        client.setData("color", "green");
+        client.setData("shape", "round");
+        reconnectClient();
+
+        for (DataSync dataSync : Arrays.asList(reference, client)) {
+            assertEquals(dataSync.getData("score"), 5L);
+            assertEquals(dataSync.getData("devices"), Collections.singletonMap("Mobile", true));
+            assertEquals(dataSync.getData("shape"), "round");
+        }
+        // Both sides agree on the color set last
+        assertEquals(client.getData("color"), reference.getData("color"));
+
+        client.removeData("shape");
+        assertNull(reference.getData("shape"));
+    }
+
+    // The counters are only available in CRDT mode
+    @Test(expected = IllegalStateException.class)
+    public void testCounterRequiresCrdtMode() {
+        dataSync1.incrementCounter("score", 1);
+    }
+
+    // A value set after a map or a counter replaces it
+    @Test
+    public void testCrdtTypeChanges() {
+        linkDataSyncs();
+        reference.enableCrdtMode();
+        client.enableCrdtMode();
+        client.onConnected();
+
+        client.putMapEntry("state", "Watch", true);
+        client.removeData("state");
+        client.setData("state", "idle");
+        reference.incrementCounter("score", 2);
+        client.removeData("score");
+        reference.setData("score", "none");
+
+        for (DataSync dataSync : Arrays.asList(reference, client)) {
+            assertEquals(dataSync.getData("state"), "idle");
+            assertEquals(dataSync.getData("score"), "none");
+        }
+    }
+
+    // Only the compare-and-set expecting the value of the reference succeeds
+    @Test
+    public void testCompareAndSet() throws Exception {
+        linkDataSyncs();
+        client.onConnected();
+        reference.setData("owner", "Watch");
+
+        DataSyncFuture<Boolean> future = client.compareAndSet("owner", "Watch", "Mobile");
+        assertTrue(future.isDone());
+        assertTrue(future.get());
+        assertEquals(reference.getData("owner"), "Mobile");
+        assertEquals(client.getData("owner"), "Mobile");
+
+        assertFalse(client.compareAndSet("owner", "Watch", "Tablet").get());
+        assertFalse(reference.compareAndSet("owner", "Watch", "Tablet").get());
+        assertTrue(reference.compareAndSet("owner", "Mobile", null).get());
+        assertNull(client.getData("owner"));
+    }
+
+    // An update computed from an outdated value is computed again from the value of the
+    // reference
+    @Test
+    public void testUpdate() throws Exception {
+        linkDataSyncs();
+        client.onConnected();
+        linkUp = false;
+        reference.setData("count", 5);
+        linkUp = true;
+
+        final List<Object> updatedValues = new ArrayList<>();
+        DataSyncFuture<Object> future = client.update("count", new DataSync.Updater() {
+            @Override
+            public Object update(Object currentValue) {
+                updatedValues.add(currentValue);
+                return currentValue == null ? 1 : (Integer) currentValue + 1;
+            }
+        });
+
+        assertEquals(updatedValues, Arrays.<Object>asList(null, 5));
+        assertEquals(future.get(), 6);
+        assertEquals(reference.getData("count"), 6);
+        assertEquals(client.getData("count"), 6);
+    }
+
+    // A value set while the reference computes an update is not overwritten by it: the update is
+    // computed again from this value
+    @Test
+    public void testUpdateIsAtomic() throws Exception {
+        dataSync1 = new DataSync(connector, syncDataChangeListener, true, DIRECT_EXECUTOR);
+        dataSync1.setData("count", 1);
+        final CountDownLatch updating = new CountDownLatch(1);
+        final CountDownLatch valueSet = new CountDownLatch(1);
+        final List<Object> updatedValues = new ArrayList<>();
+        final DataSyncFuture<?>[] future = new DataSyncFuture<?>[1];
+        Thread updater = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                future[0] = dataSync1.update("count", new DataSync.Updater() {
+                    @Override
+                    public Object update(Object currentValue) {
+                        updatedValues.add(currentValue);
+                        updating.countDown();
+                        try {
+                            valueSet.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                        return (Integer) currentValue + 1;
+                    }
+                });
+            }
+        });
+        updater.start();
+        updating.await();
+        // The data is not locked while the updater runs.
+        dataSync1.setData("count", 10);
+        valueSet.countDown();
+        updater.join();
+
+        assertEquals(updatedValues, Arrays.<Object>asList(1, 10));
+        assertEquals(future[0].get(), 11);
+        assertEquals(dataSync1.getData("count"), 11);
+        verify(syncDataChangeListener).onDataUpdate("count", 10, 1);
+        verify(syncDataChangeListener).onDataUpdate("count", 11, 10);
+    }
+
+    // An update whose value keeps changing fails after too many conflicts
+    @Test
+    public void testUpdateConflicts() throws Exception {
+        linkDataSyncs();
+        client.onConnected();
+        final int[] calls = {0};
+        DataSync.Updater updater = new DataSync.Updater() {
+            @Override
+            public Object update(Object currentValue) {
+                calls[0]++;
+                // Another device changes the value in the meantime.
+                linkUp = false;
+                reference.setData("count", calls[0] * 100);
+                linkUp = true;
+                return calls[0];
+            }
+        };
+        for (DataSync dataSync : Arrays.asList(reference, client)) {
+            calls[0] = 0;
+            try {
+                dataSync.update("count", updater).get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            assertEquals(calls[0], DataSync.MAX_UPDATE_CONFLICTS);
+            assertEquals(reference.getData("count"), DataSync.MAX_UPDATE_CONFLICTS * 100);
+        }
+    }
+
+    // There is no reference to run the atomic updates in CRDT mode
+    @Test
+    public void testNoAtomicUpdatesInCrdtMode() {
+        dataSync1 = new DataSync(connector, syncDataChangeListener, true, DIRECT_EXECUTOR);
+        dataSync1.enableCrdtMode();
+        try {
+            dataSync1.compareAndSet("owner", null, "Mobile");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        try {
+            dataSync1.update("count", new DataSync.Updater() {
+                @Override
+                public Object update(Object currentValue) {
+                    return 1;
+                }
+            });
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    // The compare-and-sets fail if the reference can not answer
+    @Test
+    public void testCompareAndSetWhileDisconnected() throws Exception {
+        linkDataSyncs();
+        client.onConnected();
+        disconnectClient();
+        try {
+            client.compareAndSet("owner", null, "Mobile").get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertNull(reference.getData("owner"));
+    }
+
+    // The typed values are written in place, and sent once, with their last value
+    @Test
+    public void testTypedAccessors() {
+        final List<Runnable> tasks = new ArrayList<>();
+        referenceExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        linkDataSyncs();
+        client.onConnected();
+
+        reference.setInt("score", 1);
+        reference.setInt("score", 2);
+        reference.setInt("score", 2);
+        reference.setFloat("x", 1.5f);
+        reference.setLong("time", 1L << 40);
+        assertEquals(reference.getInt("score", 0), 2);
+        assertEquals(reference.getData("x"), 1.5f);
+        assertEquals(reference.getSuppressedWriteCount(), 1L);
+        // Not sent yet
+        assertNull(reference.snapshot().get("score"));
+        assertNull(client.getData("score"));
+
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+        assertEquals(clientMessages.get(clientMessages.size() - 1).getArguments(),
+                Arrays.<Object>asList("score", 2, "x", 1.5f, "time", 1L << 40, 0));
+        assertEquals(reference.snapshot().get("score"), 2);
+        assertEquals(client.getInt("score", 0), 2);
+        assertEquals(client.getDouble("x", 0), 1.5, 0);
+        assertEquals(client.getLong("time", 0), 1L << 40);
+        assertEquals(client.getInt("missing", -1), -1);
+
+        // A value received from another device replaces the one written in place
+        client.setData("score", 10);
+        assertEquals(reference.getInt("score", 0), 10);
+        reference.setInt("score", 11);
+        // A value removed before being sent is never sent
+        reference.setInt("lives", 3);
+        reference.removeData("lives");
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+        assertEquals(client.getData("score"), 11);
+        assertNull(client.getData("lives"));
+    }
+
+    // The keys expire once they have not changed for their time to live
+    @Test
+    public void testTimeToLive() throws Exception {
+        final List<Runnable> delayedTasks = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+        referenceExecutor = new DelayedExecutor() {
+            @Override
+            public void executeDelayed(Runnable command, long delay) {
+                delayedTasks.add(command);
+                delays.add(delay);
+            }
+
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        linkDataSyncs();
+        client.onConnected();
+
+        reference.setTimeToLive("session", 50);
+        reference.setData("session", "abc");
+        reference.setData("token", "xyz");
+        assertEquals(client.getData("session"), "abc");
+        // One tick of the timer wheel, whatever the number of keys
+        assertEquals(delays, Collections.singletonList(100L));
+
+        Thread.sleep(200);
+        delayedTasks.remove(0).run();
+        assertNull(reference.getData("session"));
+        assertNull(client.getData("session"));
+        assertEquals(lastClientMessageId(), 4);
+        assertEquals(client.getData("token"), "xyz");
+        // Nothing is left to expire
+        assertTrue(delayedTasks.isEmpty());
+
+        // The keys can not expire without delayed tasks
+        try {
+            client.setTimeToLive("token", 50);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    // The values of the least recently used keys are evicted and explicitly fetched again from
+    // the reference
+    @Test
+    public void testMemoryBudget() throws Exception {
+        linkDataSyncs();
+        client.setMemoryBudget(2);
+        client.onConnected();
+
+        reference.setData("a", 1);
+        reference.setData("b", 2);
+        reference.setData("c", 3);
+        assertEquals(client.snapshot().keySet(), new HashSet<>(Arrays.asList("b", "c")));
+
+        // Reading an evicted value does not fetch it
+        assertNull(client.getData("a"));
+        assertTrue(client.isEvicted("a"));
+        assertNull(client.getData("a"));
+        assertEquals(client.snapshot().keySet(), new HashSet<>(Arrays.asList("b", "c")));
+
+        // Fetched on demand, the least recently used value is evicted instead
+        assertEquals(client.fetchData("a").get(), 1);
+        assertFalse(client.isEvicted("a"));
+        assertEquals(client.getData("a"), 1);
+        assertEquals(client.snapshot().keySet(), new HashSet<>(Arrays.asList("c", "a")));
+        assertEquals(client.fetchData("b").get(), 2);
+        assertEquals(client.snapshot().keySet(), new HashSet<>(Arrays.asList("a", "b")));
+
+        // The evicted keys are still part of the data
+        client.removeData("c");
+        assertNull(reference.getData("c"));
+        assertNull(client.fetchData("c").get());
+
+        try {
+            reference.setMemoryBudget(2);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link DataSyncTimerWheel}.
+ *
+ * @author Quentin Roy
+ */
+public class DataSyncTimerWheelTest {
+
+    // The ticks scheduled by the wheel, run by the test
+    private final List<Runnable> ticks = new ArrayList<>();
+    private final List<Object> expiredKeys = new ArrayList<>();
+    private long time = 0;
+    private DataSyncTimerWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new DataSyncTimerWheel(new DelayedExecutor() {
+            @Override
+            public void executeDelayed(Runnable command, long delay) {
+                ticks.add(command);
+            }
+
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, 10, 8, new DataSyncTimerWheel.ExpiryListener() {
+            @Override
+            public void onExpired(Object key) {
+                expiredKeys.add(key);
+            }
+        }) {
+            @Override
+            long currentTime() {
+                return time;
+            }
+        };
+    }
+
+    // Advance the time and run the pending tick
+    private void tickAt(long newTime) {
+        time = newTime;
+        assertThat(ticks).hasSize(1);
+        ticks.remove(0).run();
+    }
+
+    @Test
+    public void keysExpireInOrder() {
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 5);
+        // A single tick is scheduled
+        assertThat(ticks).hasSize(1);
+
+        tickAt(10);
+        assertThat(expiredKeys).containsExactly("b");
+        tickAt(20);
+        assertThat(expiredKeys).containsExactly("b");
+        tickAt(30);
+        assertThat(expiredKeys).containsExactly("b", "a").inOrder();
+        // The wheel stops ticking once there are no timers left
+        assertThat(ticks).isEmpty();
+    }
+
+    @Test
+    public void timersCanBeCancelledOrRescheduled() {
+        wheel.schedule("a", 15);
+        wheel.schedule("b", 15);
+        wheel.cancel("a");
+        tickAt(10);
+        wheel.schedule("b", 15);
+        tickAt(20);
+        assertThat(expiredKeys).isEmpty();
+        tickAt(30);
+        assertThat(expiredKeys).containsExactly("b");
+    }
+
+    @Test
+    public void timersCanOutlastARoundOfTheWheel() {
+        // 8 buckets of 10 ms: one round lasts 80 ms
+        wheel.schedule("a", 125);
+        for (long t = 10; t <= 120; t += 10) {
+            tickAt(t);
+        }
+        assertThat(expiredKeys).isEmpty();
+        tickAt(130);
+        assertThat(expiredKeys).containsExactly("a");
+    }
+
+    @Test
+    public void lateTicksExpireAllTheDueTimers() {
+        wheel.schedule("a", 15);
+        wheel.schedule("b", 45);
+        wheel.schedule("c", 500);
+        // The executor was busy for a while
+        tickAt(300);
+        assertThat(expiredKeys).containsExactly("a", "b");
+        for (long t = 310; t <= 500; t += 10) {
+            tickAt(t);
+        }
+        assertThat(expiredKeys).containsExactly("a", "b", "c");
+    }
+}
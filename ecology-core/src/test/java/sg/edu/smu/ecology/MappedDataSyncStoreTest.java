@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link MappedDataSyncStore}.
+ *
+ * @author Quentin Roy
+ */
+public class MappedDataSyncStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // The compactions scheduled by the stores, run by the tests
+    private final List<Runnable> compactions = new ArrayList<>();
+    private final Executor compactionExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            compactions.add(command);
+        }
+    };
+
+    @Test
+    public void theDataSurvivesTheReopening() throws IOException {
+        File file = new File(folder.getRoot(), "store");
+        MappedDataSyncStore store = new MappedDataSyncStore(file);
+        store.put("color", "red");
+        store.put("devices", Collections.singletonMap("Watch", true));
+        store.put("color", "blue");
+        store.put("size", 3);
+        store.remove("size");
+        store.close();
+
+        store = new MappedDataSyncStore(file);
+        assertThat(store.keys()).containsExactly("color", "devices");
+        assertThat(store.get("color")).isEqualTo("blue");
+        assertThat(store.get("devices")).isEqualTo(Collections.singletonMap("Watch", true));
+        assertThat(store.get("size")).isNull();
+        store.close();
+    }
+
+    @Test
+    public void theLogIsCompactedInTheBackground() throws IOException {
+        File file = new File(folder.getRoot(), "store");
+        MappedDataSyncStore store = new MappedDataSyncStore(file, compactionExecutor);
+        byte[] value = new byte[1000];
+        for (int i = 0; i < 1000; i++) {
+            value[0] = (byte) i;
+            store.put("key" + (i % 10), value.clone());
+        }
+        // The writes only append to the log and schedule a single compaction.
+        assertThat(store.getLogSize()).isGreaterThan(1000 * 1000);
+        assertThat(compactions).hasSize(1);
+        compactions.remove(0).run();
+        // Only the last value of the 10 keys is kept.
+        assertThat(store.getLogSize()).isLessThan(64 * 1024);
+        assertThat(((byte[]) store.get("key9"))[0]).isEqualTo((byte) 999);
+        store.close();
+
+        store = new MappedDataSyncStore(file);
+        assertThat(store.keys()).hasSize(10);
+        assertThat(((byte[]) store.get("key9"))[0]).isEqualTo((byte) 999);
+        store.close();
+    }
+
+    @Test
+    public void theChangesMadeDuringACompactionAreKept() throws IOException {
+        File file = new File(folder.getRoot(), "store");
+        MappedDataSyncStore store = new MappedDataSyncStore(file, compactionExecutor) {
+            @Override
+            void onLiveRecordsCopied() {
+                // The store is not locked while the live records are copied.
+                put("color", "green");
+                remove("size");
+                put("devices", Arrays.asList("Watch", "Phone"));
+            }
+        };
+        store.put("color", "red");
+        store.put("size", 3);
+        store.put("color", "blue");
+        store.compact();
+        assertThat(store.keys()).containsExactly("color", "devices");
+        assertThat(store.get("color")).isEqualTo("green");
+        store.put("count", 1);
+        store.close();
+
+        MappedDataSyncStore reopenedStore = new MappedDataSyncStore(file, compactionExecutor);
+        assertThat(reopenedStore.keys()).containsExactly("color", "devices", "count");
+        assertThat(reopenedStore.get("color")).isEqualTo("green");
+        assertThat(reopenedStore.get("devices")).isEqualTo(Arrays.asList("Watch", "Phone"));
+        assertThat(reopenedStore.get("count")).isEqualTo(1);
+        reopenedStore.close();
+    }
+
+    @Test
+    public void aClearDropsTheCompactionInProgress() throws IOException {
+        File file = new File(folder.getRoot(), "store");
+        MappedDataSyncStore store = new MappedDataSyncStore(file, compactionExecutor) {
+            @Override
+            void onLiveRecordsCopied() {
+                clear();
+                put("size", 3);
+            }
+        };
+        store.put("color", "red");
+        store.compact();
+        assertThat(store.keys()).containsExactly("size");
+        store.close();
+
+        MappedDataSyncStore reopenedStore = new MappedDataSyncStore(file, compactionExecutor);
+        assertThat(reopenedStore.keys()).containsExactly("size");
+        reopenedStore.close();
+    }
+
+    @Test
+    public void anInterruptedRecordIsIgnored() throws IOException {
+        File file = new File(folder.getRoot(), "store");
+        MappedDataSyncStore store = new MappedDataSyncStore(file);
+        store.put("color", "red");
+        int end = store.getLogSize();
+        store.close();
+        // A record whose body has been written but not its length
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(end + 4);
+        randomAccessFile.write(new byte[]{1, 0, 0, 0, 8, 1, 2, 3, 4});
+        randomAccessFile.close();
+
+        store = new MappedDataSyncStore(file);
+        assertThat(store.keys()).containsExactly("color");
+        store.put("size", Arrays.asList(1, 2));
+        store.close();
+
+        store = new MappedDataSyncStore(file);
+        assertThat(store.get("size")).isEqualTo(Arrays.asList(1, 2));
+        store.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        File file = folder.newFile("other");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.write(new byte[100]);
+        randomAccessFile.close();
+        new MappedDataSyncStore(file);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link PersistentHashMap} and {@link SnapshotHashMap}.
+ *
+ * @author Quentin Roy
+ */
+public class PersistentHashMapTest {
+
+    // A key whose hash can be chosen, to create collisions
+    private static class Key {
+        private final int hash;
+        private final int id;
+
+        Key(int hash, int id) {
+            this.hash = hash;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).hash == hash && ((Key) o).id == id;
+        }
+    }
+
+    @Test
+    public void behavesLikeAHashMap() {
+        Random random = new Random(42);
+        Map<Object, Object> expected = new HashMap<>();
+        PersistentHashMap<Object, Object> map = PersistentHashMap.empty();
+        for (int i = 0; i < 20000; i++) {
+            // Few hashes so that there are many collisions
+            Object key = random.nextBoolean() ? random.nextInt(2000) :
+                    new Key(random.nextInt(8) << random.nextInt(30), random.nextInt(4));
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.minus(key);
+            } else {
+                expected.put(key, i);
+                map = map.plus(key, i);
+            }
+        }
+        assertThat(map.size()).isEqualTo(expected.size());
+        assertThat(map).isEqualTo(expected);
+        for (Map.Entry<Object, Object> entry : expected.entrySet()) {
+            assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
+        }
+    }
+
+    @Test
+    public void changesDoNotAffectTheOriginalMap() {
+        PersistentHashMap<Object, Object> map = PersistentHashMap.empty();
+        for (int i = 0; i < 100; i++) {
+            map = map.plus(i, i);
+        }
+        PersistentHashMap<Object, Object> changed = map.plus(1, "one").minus(2).plus(100, 100);
+
+        assertThat(map).hasSize(100);
+        assertThat(map.get(1)).isEqualTo(1);
+        assertThat(map.get(2)).isEqualTo(2);
+        assertThat(map.containsKey(100)).isFalse();
+        assertThat(changed).hasSize(100);
+        assertThat(changed.get(1)).isEqualTo("one");
+        assertThat(changed.containsKey(2)).isFalse();
+        // Nothing changed: the same map is returned
+        assertThat(map.minus(1000)).isSameAs(map);
+        assertThat(map.plus(1, 1)).isSameAs(map);
+    }
+
+    @Test
+    public void snapshotsAreNotAffectedByTheChanges() {
+        SnapshotHashMap<Object, Object> map = new SnapshotHashMap<>();
+        map.put("color", "red");
+        map.put("size", 3);
+        Map<Object, Object> snapshot = map.snapshot();
+
+        map.put("color", "blue");
+        map.remove("size");
+        map.put("shape", "round");
+
+        assertThat(snapshot).containsExactly("color", "red", "size", 3);
+        assertThat(map).containsExactly("color", "blue", "shape", "round");
+    }
+}
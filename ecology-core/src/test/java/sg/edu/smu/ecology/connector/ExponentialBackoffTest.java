@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link ExponentialBackoff}.
+ *
+ * @author Quentin Roy
+ */
+public class ExponentialBackoffTest {
+
+    // A random source always returning the same value
+    private static Random constantRandom(final double value) {
+        return new Random() {
+            @Override
+            public double nextDouble() {
+                return value;
+            }
+        };
+    }
+
+    @Test
+    public void delayDoublesUpToTheMaximum() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 1000, constantRandom(0.999999));
+        assertThat(backoff.nextDelay()).isEqualTo(100);
+        assertThat(backoff.nextDelay()).isEqualTo(200);
+        assertThat(backoff.nextDelay()).isEqualTo(400);
+        assertThat(backoff.nextDelay()).isEqualTo(800);
+        assertThat(backoff.nextDelay()).isEqualTo(1000);
+        assertThat(backoff.nextDelay()).isEqualTo(1000);
+        assertThat(backoff.getFailures()).isEqualTo(6);
+    }
+
+    @Test
+    public void jitterKeepsAtLeastHalfOfTheDelay() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 1000, constantRandom(0));
+        assertThat(backoff.nextDelay()).isEqualTo(50);
+        assertThat(backoff.nextDelay()).isEqualTo(100);
+
+        backoff = new ExponentialBackoff(100, 1000, new Random(42));
+        for (int i = 0; i < 100; i++) {
+            long expected = Math.min(1000, 100L << Math.min(i, 10));
+            long delay = backoff.nextDelay();
+            assertThat(delay).isAtLeast(expected / 2);
+            assertThat(delay).isAtMost(expected);
+        }
+    }
+
+    @Test
+    public void resetStartsOverFromTheInitialDelay() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 1000, constantRandom(0.999999));
+        backoff.nextDelay();
+        backoff.nextDelay();
+        backoff.reset();
+        assertThat(backoff.getFailures()).isEqualTo(0);
+        assertThat(backoff.nextDelay()).isEqualTo(100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxDelayCannotBeLowerThanTheInitialDelay() {
+        new ExponentialBackoff(100, 50);
+    }
+}
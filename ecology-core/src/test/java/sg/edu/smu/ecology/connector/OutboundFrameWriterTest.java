@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link OutboundFrameWriter}.
+ *
+ * @author Quentin Roy
+ */
+public class OutboundFrameWriterTest {
+
+    /**
+     * An output stream recording the number of writes, and notifying when a given amount of bytes
+     * has been written.
+     */
+    private static class RecordingOutputStream extends ByteArrayOutputStream {
+        private final CountDownLatch written;
+        private final int expectedSize;
+        int writes = 0;
+
+        RecordingOutputStream(int expectedSize) {
+            this.expectedSize = expectedSize;
+            this.written = new CountDownLatch(1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            writes++;
+            if (size() >= expectedSize) {
+                written.countDown();
+            }
+        }
+
+        boolean awaitWritten(long timeout) throws InterruptedException {
+            return written.await(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static OutboundFrame frame(int value) {
+        return new OutboundFrame(ByteBuffer.allocate(4).putInt(0, value), null, null);
+    }
+
+    @Test
+    public void queuedFramesAreWrittenTogether() throws InterruptedException {
+        RecordingOutputStream outputStream = new RecordingOutputStream(400);
+        OutboundFrameWriter writer = new OutboundFrameWriter(outputStream,
+                new OutboundQueue(), 1024, 0);
+        // Queue a burst of frames before the writer starts.
+        for (int i = 0; i < 100; i++) {
+            writer.send(frame(i));
+        }
+        writer.start();
+        writer.finish(5000);
+
+        assertThat(outputStream.writes).isEqualTo(1);
+        ByteBuffer written = ByteBuffer.wrap(outputStream.toByteArray());
+        for (int i = 0; i < 100; i++) {
+            assertThat(written.getInt()).isEqualTo(i);
+        }
+    }
+
+    @Test
+    public void fullBatchIsWritten() throws InterruptedException {
+        RecordingOutputStream outputStream = new RecordingOutputStream(40);
+        OutboundFrameWriter writer = new OutboundFrameWriter(outputStream,
+                new OutboundQueue(), 16, 0);
+        for (int i = 0; i < 10; i++) {
+            writer.send(frame(i));
+        }
+        writer.start();
+        writer.finish(5000);
+
+        // Four frames fit in a batch.
+        assertThat(outputStream.writes).isEqualTo(3);
+        assertThat(outputStream.size()).isEqualTo(40);
+    }
+
+    @Test
+    public void flushDoesNotWaitForTheDelay() throws InterruptedException {
+        RecordingOutputStream outputStream = new RecordingOutputStream(4);
+        OutboundFrameWriter writer = new OutboundFrameWriter(outputStream,
+                new OutboundQueue(), 1024, TimeUnit.MINUTES.toMillis(10));
+        writer.start();
+        writer.send(frame(1));
+        writer.flush();
+
+        assertThat(outputStream.awaitWritten(5000)).isTrue();
+        writer.cancel();
+    }
+
+    @Test
+    public void batchIsWrittenAfterTheDelay() throws InterruptedException {
+        RecordingOutputStream outputStream = new RecordingOutputStream(4);
+        OutboundFrameWriter writer = new OutboundFrameWriter(outputStream,
+                new OutboundQueue(), 1024, 20);
+        writer.start();
+        writer.send(frame(1));
+
+        assertThat(outputStream.awaitWritten(5000)).isTrue();
+        writer.cancel();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import sg.edu.smu.ecology.encoding.ByteBufferPool;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for {@link OutboundQueue}.
+ *
+ * @author Quentin Roy
+ */
+public class OutboundQueueTest {
+
+    private static OutboundFrame frame(int value, Object coalescingKey) {
+        return new OutboundFrame(ByteBuffer.allocate(4).putInt(0, value), null, coalescingKey);
+    }
+
+    private static int valueOf(OutboundFrame frame) {
+        return ByteBuffer.wrap(frame.getArray(), frame.getOffset(), frame.getLength()).getInt();
+    }
+
+    @Test
+    public void framesAreTakenInOrder() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.BLOCK);
+        queue.offer(frame(1, null));
+        queue.offer(frame(2, null));
+        queue.offer(frame(3, null));
+
+        assertThat(valueOf(queue.take())).isEqualTo(1);
+        assertThat(valueOf(queue.take())).isEqualTo(2);
+        assertThat(valueOf(queue.take())).isEqualTo(3);
+        assertThat(queue.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void dropOldestWhenFull() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        OutboundQueue.DropListener dropListener = mock(OutboundQueue.DropListener.class);
+        queue.setDropListener(dropListener);
+        queue.offer(frame(1, null));
+        queue.offer(frame(2, null));
+        queue.offer(frame(3, null));
+
+        assertThat(queue.getDroppedFrames()).isEqualTo(1);
+        verify(dropListener).onFrameDropped(1);
+        assertThat(valueOf(queue.take())).isEqualTo(2);
+        assertThat(valueOf(queue.take())).isEqualTo(3);
+    }
+
+    @Test
+    public void coalesceReplacesThePendingFrameInPlace() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.COALESCE);
+        queue.offer(frame(1, "a"));
+        queue.offer(frame(2, "b"));
+        queue.offer(frame(3, "a"));
+        queue.offer(frame(4, null));
+
+        assertThat(queue.size()).isEqualTo(3);
+        assertThat(queue.getDroppedFrames()).isEqualTo(1);
+        assertThat(valueOf(queue.take())).isEqualTo(3);
+        assertThat(valueOf(queue.take())).isEqualTo(2);
+        assertThat(valueOf(queue.take())).isEqualTo(4);
+    }
+
+    @Test
+    public void blockUntilThereIsRoom() throws InterruptedException {
+        final OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.BLOCK);
+        queue.offer(frame(1, null));
+        final CountDownLatch offered = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.offer(frame(2, null));
+                offered.countDown();
+            }
+        }).start();
+
+        assertThat(offered.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(valueOf(queue.take())).isEqualTo(1);
+        assertThat(offered.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(valueOf(queue.take())).isEqualTo(2);
+    }
+
+    @Test
+    public void closedQueueIsDrainedThenReturnsNull() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(frame(1, null));
+        queue.close();
+
+        assertThat(queue.offer(frame(2, null))).isFalse();
+        assertThat(valueOf(queue.take())).isEqualTo(1);
+        assertThat(queue.take()).isNull();
+    }
+
+    @Test
+    public void sharedFrameIsReleasedOnceAllReferencesAreReleased() {
+        ByteBufferPool pool = mock(ByteBufferPool.class);
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        OutboundFrame frame = new OutboundFrame(buffer, pool, null);
+        OutboundQueue first = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        OutboundQueue second = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        first.offer(frame.retain());
+        second.offer(frame.retain());
+        frame.release();
+
+        first.clear();
+        verify(pool, never()).release(buffer);
+        second.clear();
+        verify(pool).release(buffer);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link PhiAccrualFailureDetector}.
+ *
+ * @author Quentin Roy
+ */
+public class PhiAccrualFailureDetectorTest {
+
+    @Test
+    public void nothingIsSuspectedBeforeTheFirstHeartbeat() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(1000);
+        assertThat(detector.phi(100000)).isEqualTo(0.0);
+        assertThat(detector.isSuspected(100000)).isFalse();
+        assertThat(detector.getLastHeartbeatTime()).isEqualTo(-1L);
+    }
+
+    @Test
+    public void phiGrowsWithTheSilence() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(1000);
+        for (long time = 0; time <= 10000; time += 1000) {
+            detector.heartbeat(time);
+        }
+        double previousPhi = -1;
+        for (long time = 10000; time <= 20000; time += 500) {
+            double phi = detector.phi(time);
+            assertThat(phi).isAtLeast(previousPhi);
+            previousPhi = phi;
+        }
+        assertThat(detector.phi(10500)).isLessThan(1.0);
+        assertThat(detector.isSuspected(11000)).isFalse();
+        assertThat(detector.isSuspected(20000)).isTrue();
+    }
+
+    @Test
+    public void heartbeatClearsTheSuspicion() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(1000);
+        for (long time = 0; time <= 5000; time += 1000) {
+            detector.heartbeat(time);
+        }
+        assertThat(detector.isSuspected(20000)).isTrue();
+        detector.heartbeat(20000);
+        assertThat(detector.isSuspected(20100)).isFalse();
+        assertThat(detector.getLastHeartbeatTime()).isEqualTo(20000L);
+    }
+
+    // Irregular heartbeats make the detector more tolerant to long silences
+    @Test
+    public void adaptsToTheIntervalsDistribution() {
+        PhiAccrualFailureDetector regular = new PhiAccrualFailureDetector(
+                PhiAccrualFailureDetector.DEFAULT_THRESHOLD, 100, 10, 0, 1000);
+        PhiAccrualFailureDetector irregular = new PhiAccrualFailureDetector(
+                PhiAccrualFailureDetector.DEFAULT_THRESHOLD, 100, 10, 0, 1000);
+        long regularTime = 0;
+        long irregularTime = 0;
+        for (int i = 0; i < 100; i++) {
+            regular.heartbeat(regularTime);
+            irregular.heartbeat(irregularTime);
+            regularTime += 1000;
+            irregularTime += i % 2 == 0 ? 200 : 1800;
+        }
+        long silence = 2500;
+        assertThat(regular.phi(regularTime - 1000 + silence))
+                .isGreaterThan(irregular.phi(irregularTime - 1800 + silence));
+    }
+
+    // Old intervals leave the sample
+    @Test
+    public void onlyTheLastIntervalsAreKept() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(
+                PhiAccrualFailureDetector.DEFAULT_THRESHOLD, 10, 10, 0, 100);
+        long time = 0;
+        for (int i = 0; i < 10; i++) {
+            detector.heartbeat(time);
+            time += 100;
+        }
+        double phiWithShortIntervals = detector.phi(time + 400);
+        for (int i = 0; i < 20; i++) {
+            detector.heartbeat(time);
+            time += 1000;
+        }
+        assertThat(detector.phi(time - 1000 + 500)).isLessThan(phiWithShortIntervals);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.encoding;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link DataDecoder}.
+ */
+public class DataDecoderTest {
+    private DataDecoder decoder;
+
+    @Before
+    public void setUp() throws Exception {
+        decoder = new DataDecoder();
+    }
+
+    /**
+     * Write a type tags string followed by its zero padding, the same way the encoder does.
+     */
+    private static void putTypeTags(ByteBuffer buffer, String typeTags) {
+        buffer.put(typeTags.getBytes());
+        int length = typeTags.length() + 1;
+        for (int i = 0; i < length + (4 - length % 4) % 4 - typeTags.length(); i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    // Make sure the primitive values are read back exactly, including signs and special values.
+    @Test
+    public void primitiveValuesDecoding() {
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+        putTypeTags(buffer, "iiihhffddcu");
+        buffer.putInt(-1);
+        buffer.putInt(Integer.MIN_VALUE);
+        buffer.putInt(0x7f00ff01);
+        buffer.putLong(Long.MIN_VALUE);
+        buffer.putLong(0x0123456789abcdefL);
+        buffer.putFloat(-0.0f);
+        buffer.putFloat(Float.NaN);
+        buffer.putDouble(Double.NEGATIVE_INFINITY);
+        buffer.putDouble(-4.2e-300);
+        buffer.putInt('î');
+        buffer.putInt(0xfffffffe);
+
+        List<Object> args = decoder.convertMessageArgs(buffer.array(), buffer.position());
+
+        assertThat(args).containsExactly(-1, Integer.MIN_VALUE, 0x7f00ff01, Long.MIN_VALUE,
+                0x0123456789abcdefL, -0.0f, Float.NaN, Double.NEGATIVE_INFINITY, -4.2e-300, 'î',
+                0xfffffffeL).inOrder();
+    }
+
+    // Decoding numeric arguments should not allocate anything but the boxed values themselves.
+    @Test
+    public void floatFrameDecodingAllocation() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean =
+                (com.sun.management.ThreadMXBean) threadMXBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        // Create a sensor frame like message containing a lot of floats.
+        int argumentCount = 1024;
+        char[] typeTags = new char[argumentCount];
+        Arrays.fill(typeTags, 'f');
+        ByteBuffer buffer = ByteBuffer.allocate(argumentCount * 5 + 4);
+        putTypeTags(buffer, new String(typeTags));
+        for (int i = 0; i < argumentCount; i++) {
+            buffer.putFloat(i * 0.5f);
+        }
+        byte[] frame = buffer.array();
+        int frameLength = buffer.position();
+
+        // Warm up.
+        for (int i = 0; i < 200; i++) {
+            decoder.convertMessageArgs(frame, frameLength);
+        }
+
+        int iterations = 100;
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            decoder.convertMessageArgs(frame, frameLength);
+        }
+        long allocatedPerArgument = (allocationBean.getThreadAllocatedBytes(threadId) - before) /
+                ((long) iterations * argumentCount);
+
+        // A boxed float, its slot in the argument list and its type tag take a bit more than 20
+        // bytes. Going through temporary arrays and big integers used to cost about 120 more.
+        assertThat(allocatedPerArgument).isLessThan(32L);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.encoding;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.connector.PhiAccrualFailureDetector;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Tests for {@link FrameDecoder}.
+ */
+public class FrameDecoderTest {
+    private MessageEncoder encoder;
+    private ByteArrayOutputStream stream;
+
+    @Before
+    public void setUp() throws Exception {
+        encoder = new MessageEncoder();
+        stream = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Encode a message and append its frame to the stream.
+     */
+    private void writeFrame(List<Object> arguments) throws IOException {
+        EcologyMessage message = new EcologyMessage(arguments);
+        message.setSource("Mobile");
+        message.setTargetType(EcologyMessage.TARGET_TYPE_BROADCAST);
+        message.setTargets(Collections.<String>emptyList());
+        ByteBuffer frame = encoder.encodeFrame(message);
+        stream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        encoder.release(frame);
+    }
+
+    /**
+     * An input stream that never returns more than a few bytes at once, like a socket receiving
+     * a message in several packets.
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunkSize;
+
+        ChunkedInputStream(byte[] bytes, int chunkSize) {
+            super(bytes);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunkSize));
+        }
+    }
+
+    @Test
+    public void severalFramesInPartialReads() throws IOException {
+        writeFrame(Arrays.<Object>asList(1, "first", 2.5f));
+        writeFrame(Collections.<Object>singletonList(Arrays.asList("second", 'c', null)));
+        writeFrame(Arrays.<Object>asList(true, 3.5));
+        InputStream inputStream = new ChunkedInputStream(stream.toByteArray(), 3);
+        FrameDecoder frameDecoder = new FrameDecoder(inputStream, 16);
+
+        frameDecoder.readFrame();
+        assertThat(frameDecoder.decodeFrame().getArguments()).containsExactly(1, "first", 2.5f)
+                .inOrder();
+        frameDecoder.readFrame();
+        assertThat(frameDecoder.decodeFrame().getArguments()).containsExactly(
+                Arrays.asList("second", 'c', null));
+        frameDecoder.readFrame();
+        assertThat(frameDecoder.decodeFrame().getArguments()).containsExactly(true, 3.5)
+                .inOrder();
+    }
+
+    @Test
+    public void frameBiggerThanTheBuffer() throws IOException {
+        char[] chars = new char[100000];
+        Arrays.fill(chars, 'x');
+        String bigString = new String(chars);
+        writeFrame(Collections.<Object>singletonList(bigString));
+        writeFrame(Collections.<Object>singletonList(5));
+        FrameDecoder frameDecoder = new FrameDecoder(
+                new ChunkedInputStream(stream.toByteArray(), 4096), 64);
+
+        frameDecoder.readFrame();
+        assertThat(frameDecoder.decodeFrame().getArguments()).containsExactly(bigString);
+        frameDecoder.readFrame();
+        assertThat(frameDecoder.decodeFrame().getArguments()).containsExactly(5);
+    }
+
+    // A frame received over a slow link is a sign of life all along, not only once complete
+    @Test
+    public void slowPartialReadsAreNotified() throws IOException {
+        final long heartbeatInterval = 100;
+        final long[] time = {0};
+        final PhiAccrualFailureDetector detector =
+                new PhiAccrualFailureDetector(heartbeatInterval);
+        for (; time[0] <= 1000; time[0] += heartbeatInterval) {
+            detector.heartbeat(time[0]);
+        }
+        char[] chars = new char[10000];
+        Arrays.fill(chars, 'x');
+        String bigString = new String(chars);
+        writeFrame(Collections.<Object>singletonList(bigString));
+        // Each read of 256 bytes takes as long as a heartbeat interval: about 40 of them are
+        // needed to receive the frame.
+        FrameDecoder frameDecoder = new FrameDecoder(
+                new ChunkedInputStream(stream.toByteArray(), 256) {
+                    @Override
+                    public synchronized int read(byte[] b, int off, int len) {
+                        time[0] += heartbeatInterval;
+                        assertThat(detector.isSuspected(time[0])).isFalse();
+                        return super.read(b, off, len);
+                    }
+                });
+        final int[] readBytes = {0};
+        frameDecoder.setReadListener(new FrameDecoder.ReadListener() {
+            @Override
+            public void onRead(int count) {
+                readBytes[0] += count;
+                detector.heartbeat(time[0]);
+            }
+        });
+
+        frameDecoder.readFrame();
+
+        assertThat(readBytes[0]).isEqualTo(stream.size());
+        assertThat(time[0]).isGreaterThan(4000L);
+        assertThat(frameDecoder.decodeFrame().getArguments()).containsExactly(bigString);
+    }
+
+    @Test
+    public void copyFrame() throws IOException {
+        writeFrame(Arrays.<Object>asList(1, "frame"));
+        byte[] written = stream.toByteArray();
+        FrameDecoder frameDecoder = new FrameDecoder(new ByteArrayInputStream(written));
+
+        int frameLength = frameDecoder.readFrame();
+
+        assertThat(frameLength).isEqualTo(written.length - MessageEncoder.LENGTH_PREFIX_SIZE);
+        assertThat(frameDecoder.copyFrame()).isEqualTo(
+                Arrays.copyOfRange(written, MessageEncoder.LENGTH_PREFIX_SIZE, written.length));
+        assertThat(frameDecoder.copyLengthPrefixedFrame()).isEqualTo(written);
+    }
+
+    @Test
+    public void negativeLengthIsReturned() throws IOException {
+        stream.write(new byte[]{-1, -1, -1, -1});
+        FrameDecoder frameDecoder = new FrameDecoder(new ByteArrayInputStream(stream.toByteArray()));
+
+        assertThat(frameDecoder.readFrame()).isEqualTo(-1);
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedFrameThrows() throws IOException {
+        writeFrame(Arrays.<Object>asList(1, "frame"));
+        byte[] written = stream.toByteArray();
+        FrameDecoder frameDecoder = new FrameDecoder(new ByteArrayInputStream(
+                Arrays.copyOf(written, written.length - 2)));
+
+        frameDecoder.readFrame();
+    }
+}
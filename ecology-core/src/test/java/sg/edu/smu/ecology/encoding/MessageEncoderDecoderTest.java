@@ -1,9 +1,11 @@
 package sg.edu.smu.ecology.encoding;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.junit.Before;
 import org.junit.Test;
 import org.powermock.api.mockito.PowerMockito;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.util.Arrays;
 import java.util.Collections;
@@ -65,6 +67,18 @@ public class MessageEncoderDecoderTest {
         assertThat(decodedMessage.getArguments()).containsExactly(5);
     }
 
+    @Test
+    public void oneLongMessageEncoding() throws CharacterCodingException {
+        PowerMockito.when(ecologyMessage.getArguments()).thenReturn(Collections.<Object>singletonList(0x0123456789abcdefL));
+
+        // Encode the message.
+        byte[] encodedMessage = encoder.encode(ecologyMessage);
+        // Decode it.
+        EcologyMessage decodedMessage = decoder.decode(encodedMessage);
+        // Make sure it is the same.
+        assertThat(decodedMessage.getArguments()).containsExactly(0x0123456789abcdefL);
+    }
+
     @Test
     public void oneFloatMessageEncoding() throws CharacterCodingException {
         PowerMockito.when(ecologyMessage.getArguments()).thenReturn(Collections.<Object>singletonList(4.5f));
@@ -139,6 +153,23 @@ public class MessageEncoderDecoderTest {
         assertThat(decodedMessage.getArguments()).containsExactly("%ïô${å}thing[ò]#@«|");
     }
 
+    @Test
+    public void alignedByteArrayFollowedByArgumentEncoding() throws CharacterCodingException {
+        // A blob whose length is a multiple of four is not followed by any padding.
+        PowerMockito.when(ecologyMessage.getArguments()).thenReturn(Arrays.<Object>asList(
+                new byte[]{(byte) 0xe0, (byte) 0x4f, (byte) 0xd0, (byte) 0x20}, "end", 3));
+        // Encode the message.
+        byte[] encodedMessage = encoder.encode(ecologyMessage);
+        // Decode it.
+        EcologyMessage decodedMessage = decoder.decode(encodedMessage);
+        // Make sure it is the same.
+        assertThat(decodedMessage.getArguments()).hasSize(3);
+        assertThat((byte[]) decodedMessage.getArguments().get(0)).asList().containsExactly(
+                (byte) 0xe0, (byte) 0x4f, (byte) 0xd0, (byte) 0x20).inOrder();
+        assertThat(decodedMessage.getArguments().subList(1, 3)).containsExactly("end", 3)
+                .inOrder();
+    }
+
     @Test
     public void oneByteArrayEncoding() throws CharacterCodingException {
         PowerMockito.when(ecologyMessage.getArguments()).thenReturn(
@@ -354,5 +385,123 @@ public class MessageEncoderDecoderTest {
 
     }
 
+    @Test
+    public void sameBytesAsDataEncoder() throws CharacterCodingException {
+        Map<Object, Object> map = new HashMap<>();
+        map.put("key", Arrays.asList(1, 2.5f, "ø"));
+        map.put('k', new byte[]{1, 2, 3, 4, 5});
+        map.put(4.5, null);
+        List<Object> message = Arrays.asList(8, "something", map, true, 'c', "îIø€\uD83D\uDE00");
+        PowerMockito.when(ecologyMessage.getArguments()).thenReturn(message);
+
+        // Encode the arguments the way they used to be encoded.
+        MessageData data = new MessageData();
+        for (Object obj : message) {
+            data.addArgument(obj);
+        }
+        IoBuffer buffer = IoBuffer.allocate(64);
+        buffer.setAutoExpand(true);
+        new DataEncoder().encodeMessage(data, buffer);
+        byte[] expected = Arrays.copyOfRange(buffer.array(), 0, buffer.position());
+        buffer.free();
+
+        // The payload follows the header and its length.
+        byte[] encodedMessage = encoder.encode(ecologyMessage);
+        int headerSize = ByteBuffer.wrap(encodedMessage).getInt(0);
+        assertThat(Arrays.copyOfRange(encodedMessage, 4 + headerSize, encodedMessage.length))
+                .isEqualTo(expected);
+    }
+
+    @Test
+    public void headerDecoding() throws CharacterCodingException {
+        PowerMockito.when(ecologyMessage.getArguments()).thenReturn(
+                Arrays.<Object>asList("payload", 5));
+        PowerMockito.when(ecologyMessage.getTargets()).thenReturn(Arrays.asList("Watch", "Tablet"));
+
+        ByteBuffer frame = encoder.encodeFrame(ecologyMessage, 3);
+        FrameHeader header = decoder.decodeHeader(frame.array(), frame.arrayOffset() + 4,
+                frame.remaining() - 4);
+        encoder.release(frame);
+
+        assertThat(header.getRoutingId()).isEqualTo(3);
+        assertThat(header.getTargetType()).isEqualTo(EcologyMessage.TARGET_TYPE_SPECIFIC);
+        assertThat(header.getTargets()).containsExactly("Watch", "Tablet").inOrder();
+        assertThat(header.getSource()).isEqualTo("Mobile");
+    }
 
+    @Test
+    public void headerDecodingDoesNotReadThePayload() throws CharacterCodingException {
+        PowerMockito.when(ecologyMessage.getArguments()).thenReturn(
+                Arrays.<Object>asList("payload", 5));
+        byte[] encodedMessage = encoder.encode(ecologyMessage);
+        int headerSize = ByteBuffer.wrap(encodedMessage).getInt(0);
+        // Corrupt the type tags of the payload.
+        Arrays.fill(encodedMessage, 4 + headerSize, encodedMessage.length, (byte) 'x');
+
+        FrameHeader header = decoder.decodeHeader(encodedMessage, 0, encodedMessage.length);
+
+        assertThat(header.getTargets()).containsExactly("Watch");
+        assertThat(header.getSource()).isEqualTo("Mobile");
+    }
+
+    @Test
+    public void payloadDecodingAfterHeader() throws CharacterCodingException {
+        PowerMockito.when(ecologyMessage.getArguments()).thenReturn(
+                Arrays.<Object>asList("payload", 5));
+        byte[] encodedMessage = encoder.encode(ecologyMessage);
+        // Decode a copy of the message located in the middle of a bigger array.
+        byte[] data = new byte[encodedMessage.length + 12];
+        System.arraycopy(encodedMessage, 0, data, 8, encodedMessage.length);
+
+        FrameHeader header = decoder.decodeHeader(data, 8, encodedMessage.length);
+        EcologyMessage decodedMessage = decoder.decodePayload(header, data, 8,
+                encodedMessage.length);
+
+        assertThat(decodedMessage.getArguments()).containsExactly("payload", 5).inOrder();
+        assertThat(decodedMessage.getSource()).isEqualTo("Mobile");
+        assertThat(decodedMessage.getTargets()).containsExactly("Watch");
+        assertThat(decodedMessage.getTargetType()).isEqualTo(EcologyMessage.TARGET_TYPE_SPECIFIC);
+    }
+
+    @Test
+    public void frameEncoding() throws CharacterCodingException {
+        PowerMockito.when(ecologyMessage.getArguments()).thenReturn(
+                Arrays.<Object>asList("frame", 5, Arrays.asList(1.5, 'c')));
+
+        byte[] encodedMessage = encoder.encode(ecologyMessage);
+        ByteBuffer frame = encoder.encodeFrame(ecologyMessage);
+
+        // The frame is the length of the message followed by the message itself.
+        assertThat(frame.remaining()).isEqualTo(encodedMessage.length + 4);
+        assertThat(frame.getInt(frame.position())).isEqualTo(encodedMessage.length);
+        assertThat(Arrays.copyOfRange(frame.array(), frame.arrayOffset() + frame.position() + 4,
+                frame.arrayOffset() + frame.limit())).isEqualTo(encodedMessage);
+        encoder.release(frame);
+    }
+
+    @Test
+    public void largeMapEncoding() throws CharacterCodingException {
+        // Similar to a data sync snapshot.
+        Map<Object, Object> map = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            map.put("key" + i, i % 2 == 0 ? i : Arrays.asList("value" + i, i * 0.5));
+        }
+        List<Object> message = Arrays.<Object>asList(map, 2);
+        PowerMockito.when(ecologyMessage.getArguments()).thenReturn(message);
+
+        // Encode the message.
+        byte[] encodedMessage = encoder.encode(ecologyMessage);
+        // Decode it.
+        EcologyMessage decodedMessage = decoder.decode(encodedMessage);
+        // Make sure it is the same.
+        assertThat(decodedMessage.getArguments()).isEqualTo(message);
+    }
+
+    @Test(expected = CharacterCodingException.class)
+    public void unpairedSurrogateThrows() throws CharacterCodingException {
+        PowerMockito.when(ecologyMessage.getArguments()).thenReturn(
+                Collections.<Object>singletonList("broken \uD83D string"));
+
+        encoder.encode(ecologyMessage);
+    }
 }
@@ -46,6 +46,11 @@ public class Ecology {
      */
     private final static int ROOM_MESSAGE_ID = 1;
 
+    static {
+        // Route the logs of the platform independent classes to the Android log.
+        EcologyLog.setLogger(new AndroidLogger());
+    }
+
     /**
      * Connector used to send messages to the other devices of the ecology.
      */
@@ -88,7 +93,20 @@ public class Ecology {
 
     private EcologyLooper ecologyLooper;
 
-    private Handler connectorHandler;
+    /**
+     * Runs the tasks on the ecology looper, used by the platform independent classes.
+     */
+    private final DelayedExecutor ecologyExecutor = new DelayedExecutor() {
+        @Override
+        public void execute(Runnable command) {
+            getHandler().post(command);
+        }
+
+        @Override
+        public void executeDelayed(Runnable command, long delay) {
+            getHandler().postDelayed(command, delay);
+        }
+    };
 
     /**
      * The application currently in use
@@ -149,8 +167,9 @@ public class Ecology {
 
             @Override
             public void onDisconnected() {
+                // The data is kept so that only what changed in the meantime is requested once
+                // connected again.
                 Ecology.this.getEcologyDataSync().onDisconnected();
-                Ecology.this.getEcologyDataSync().clear();
                 Ecology.this.onEcologyDisconnected();
             }
         });
@@ -188,11 +207,8 @@ public class Ecology {
      * @param isReference whether the device is the data reference
      */
     private void syncConnectedDeviceId(String newDeviceId, boolean isReference) {
-        // Add the newly connected device id
-        Map<Object, Object> devicesMap = new HashMap<>((Map<?, ?>) getEcologyDataSync().getData
-                ("devices"));
-        devicesMap.put(newDeviceId, isReference);
-        getEcologyDataSync().setData("devices", devicesMap);
+        // Add the newly connected device id, only the new entry is sent to the other devices
+        getEcologyDataSync().putMapEntry("devices", newDeviceId, isReference);
     }
 
     /**
@@ -201,10 +217,8 @@ public class Ecology {
      * @param deviceId the device id of the disconnected device
      */
     private void syncDisconnectedDeviceId(String deviceId) {
-        Map<Object, Object> devicesMap = new HashMap<>((Map<?, ?>) getEcologyDataSync().getData
-                ("devices"));
-        devicesMap.remove(deviceId);
-        getEcologyDataSync().setData("devices", devicesMap);
+        getEcologyDataSync().onDeviceDisconnected(deviceId);
+        getEcologyDataSync().removeMapEntry("devices", deviceId);
     }
 
     /**
@@ -260,8 +274,6 @@ public class Ecology {
         connector.connect(context, deviceId);
         this.application = application;
 
-        setConnectorHandler(new Handler(context.getMainLooper()));
-
         // Register for activity lifecyle tracking
         activityLifecycleTracker = new ActivityLifecycleTracker();
         application.registerActivityLifecycleCallbacks(activityLifecycleTracker);
@@ -306,15 +318,6 @@ public class Ecology {
         return ecologyLooper;
     }
 
-    /**
-     * Get the connector handler instance.
-     *
-     * @return the connector handler instance.
-     */
-    private Handler getConnectorHandler() {
-        return connectorHandler;
-    }
-
     /**
      * Get the activity lifecycle tracker instance.
      *
@@ -324,15 +327,6 @@ public class Ecology {
         return activityLifecycleTracker;
     }
 
-    /**
-     * To set the connector handler. This is mainly used for unit testing
-     *
-     * @param handler the connector handler
-     */
-    void setConnectorHandler(Handler handler) {
-        connectorHandler = handler;
-    }
-
     /**
      * @return the data sync object.
      */
@@ -342,7 +336,10 @@ public class Ecology {
             ecologyDataSync = dataSyncFactory.createDataSync(new DataSync.Connector() {
                 @Override
                 public void onMessage(EcologyMessage message) {
-                    if (isReference) {
+                    // Only the reference changes the ecology data, the other devices only send
+                    // it their requests.
+                    if (isReference || Integer.valueOf(EcologyMessage.TARGET_TYPE_SERVER)
+                            .equals(message.getTargetType())) {
                         onEcologyDataSyncMessage(message);
                     }
                 }
@@ -418,17 +415,13 @@ public class Ecology {
     }
 
     /**
-     * Send the message after moving it into the connector's context looper
+     * Send the message through the connector. The connector queues the message and returns right
+     * away, it is written by the connector's own threads.
      *
      * @param message the content of the message
      */
-    private void sendConnectorMessage(final EcologyMessage message) {
-        getConnectorHandler().post(new Runnable() {
-            @Override
-            public void run() {
-                connector.sendMessage(message);
-            }
-        });
+    private void sendConnectorMessage(EcologyMessage message) {
+        connector.sendMessage(message);
     }
 
     /**
@@ -470,7 +463,8 @@ public class Ecology {
         DataSync createDataSync(DataSync.Connector connector,
                                 DataSync.SyncDataChangeListener dataSyncChangeListener,
                                 boolean dataSyncReference, Ecology ecology) {
-            return new DataSync(connector, dataSyncChangeListener, dataSyncReference, ecology);
+            return new DataSync(connector, dataSyncChangeListener, dataSyncReference,
+                    ecology.getExecutor());
         }
     }
 
@@ -508,4 +502,13 @@ public class Ecology {
     Handler getHandler() {
         return getEcologyLooper().getHandler();
     }
+
+    /**
+     * Get an executor running the tasks on the ecology looper
+     *
+     * @return the executor instance
+     */
+    DelayedExecutor getExecutor() {
+        return ecologyExecutor;
+    }
 }
@@ -214,6 +214,8 @@ public class Room {
 
         if (isReference) {
             getDataSyncObject().onDisconnected();
+        } else if (dataSync != null) {
+            dataSync.onDeviceDisconnected(deviceId);
         }
     }
 
@@ -237,7 +239,8 @@ public class Room {
         DataSync createDataSync(DataSync.Connector connector,
                                 DataSync.SyncDataChangeListener dataSyncChangeListener,
                                 boolean dataSyncReference, Ecology ecology) {
-            return new DataSync(connector, dataSyncChangeListener, dataSyncReference, ecology);
+            return new DataSync(connector, dataSyncChangeListener, dataSyncReference,
+                    ecology.getExecutor());
         }
     }
 
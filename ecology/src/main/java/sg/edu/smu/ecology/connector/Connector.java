@@ -22,7 +22,8 @@ import sg.edu.smu.ecology.EcologyMessage;
 public interface Connector {
 
     /**
-     * Send a message through the connector.
+     * Send a message through the connector. This can be called from any thread and should not
+     * wait for the message to be written.
      *
      * @param message the content of the message
      */
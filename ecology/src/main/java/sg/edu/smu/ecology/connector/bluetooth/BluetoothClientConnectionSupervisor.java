@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import sg.edu.smu.ecology.connector.ExponentialBackoff;
+
+/**
+ * The single thread establishing the connection of a client device to its server. Any of the
+ * paired devices can be the server and it can listen on any of the UUIDs, so the supervisor tries
+ * every UUID with every paired device in turn. Each connection attempt blocks until it succeeds
+ * or fails; after a whole round of failed attempts, the supervisor waits for an exponentially
+ * growing and randomized delay before it starts over.
+ * <p>
+ * Once connected, the thread waits without doing anything until it is told that the server has
+ * been disconnected ({@link #onServerDisconnected()}) or until it is shut down.
+ *
+ * @author Quentin ROY
+ */
+class BluetoothClientConnectionSupervisor extends Thread {
+    private static final String TAG = BluetoothClientConnectionSupervisor.class.getSimpleName();
+
+    // The delays between two rounds of failed connection attempts, in milliseconds.
+    static final long INITIAL_BACKOFF_DELAY = 500;
+    static final long MAX_BACKOFF_DELAY = 30000;
+
+    private final BluetoothAdapter bluetoothAdapter;
+    // The paired devices, it can be updated while the supervisor is running.
+    private final List<BluetoothDevice> pairedDevices;
+    private final List<UUID> uuidsList;
+    private final Handler handler;
+    private final ExponentialBackoff backoff =
+            new ExponentialBackoff(INITIAL_BACKOFF_DELAY, MAX_BACKOFF_DELAY);
+    // Guards the fields below, the supervisor waits on it.
+    private final Object lock = new Object();
+    private boolean running = true;
+    private boolean connectedToServer = false;
+    // The socket being connected, so that a blocking attempt can be aborted.
+    private BluetoothSocket pendingSocket;
+    private BluetoothSocketReadWriter bluetoothSocketReadWriter;
+    // The device the last connection was established with, tried first on the next round.
+    private BluetoothDevice lastServerDevice;
+
+    /**
+     * @param bluetoothAdapter the bluetooth adapter
+     * @param pairedDevices    the paired devices, any of them can be the server
+     * @param uuidsList        the UUIDs the server can be listening on
+     * @param handler          the handler the connected socket reports to
+     */
+    BluetoothClientConnectionSupervisor(BluetoothAdapter bluetoothAdapter,
+                                        List<BluetoothDevice> pairedDevices,
+                                        List<UUID> uuidsList, Handler handler) {
+        super(TAG);
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.pairedDevices = pairedDevices;
+        this.uuidsList = uuidsList;
+        this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (waitForDisconnection()) {
+                if (!connectRound()) {
+                    synchronized (lock) {
+                        long delay = backoff.nextDelay();
+                        Log.i(TAG, "No server found, next round in " + delay + "ms");
+                        if (running) {
+                            lock.wait(delay);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Interrupted");
+        }
+        Log.i(TAG, "Done");
+    }
+
+    /**
+     * Park the thread while the client is connected to the server.
+     *
+     * @return false if the supervisor has been shut down
+     */
+    private boolean waitForDisconnection() throws InterruptedException {
+        synchronized (lock) {
+            while (running && connectedToServer) {
+                lock.wait();
+            }
+            return running;
+        }
+    }
+
+    /**
+     * Try every UUID with every paired device once.
+     *
+     * @return true if a connection has been established or if the supervisor has been shut down
+     */
+    private boolean connectRound() {
+        // Always cancel discovery because it will slow down a connection
+        if (bluetoothAdapter.isDiscovering()) {
+            bluetoothAdapter.cancelDiscovery();
+        }
+        List<BluetoothDevice> devices = getDevicesToTry();
+        for (UUID uuid : uuidsList) {
+            for (BluetoothDevice device : devices) {
+                synchronized (lock) {
+                    if (!running) {
+                        return true;
+                    }
+                }
+                if (connect(device, uuid)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a copy of the paired devices, starting with the one the last connection has been
+     * established with
+     */
+    private List<BluetoothDevice> getDevicesToTry() {
+        List<BluetoothDevice> devices;
+        synchronized (pairedDevices) {
+            devices = new ArrayList<>(pairedDevices);
+        }
+        if (lastServerDevice != null && devices.remove(lastServerDevice)) {
+            devices.add(0, lastServerDevice);
+        }
+        return devices;
+    }
+
+    /**
+     * Make one connection attempt. It blocks until the attempt succeeds or fails.
+     *
+     * @param device the device to connect to
+     * @param uuid   the UUID to connect with
+     * @return true if the connection has been established
+     */
+    private boolean connect(BluetoothDevice device, UUID uuid) {
+        Log.i(TAG, "connect attempt to " + device.getAddress() + " with UUID " + uuid);
+        BluetoothSocket socket;
+        try {
+            socket = device.createRfcommSocketToServiceRecord(uuid);
+        } catch (IOException e) {
+            Log.e(TAG, "create failed", e);
+            return false;
+        }
+        synchronized (lock) {
+            if (!running) {
+                return false;
+            }
+            pendingSocket = socket;
+        }
+
+        try {
+            // This is a blocking call and will only return on a successful connection or an
+            // exception
+            socket.connect();
+        } catch (IOException e) {
+            Log.i(TAG, "Connection attempt failed: " + e.getMessage());
+            synchronized (lock) {
+                pendingSocket = null;
+            }
+            closeSocket(socket);
+            return false;
+        }
+
+        synchronized (lock) {
+            pendingSocket = null;
+            if (!running) {
+                closeSocket(socket);
+                return false;
+            }
+            Log.i(TAG, "connected");
+            connectedToServer = true;
+            lastServerDevice = device;
+            backoff.reset();
+            // Start the connected thread
+            bluetoothSocketReadWriter = new BluetoothSocketReadWriter(socket, handler);
+            bluetoothSocketReadWriter.start();
+        }
+        return true;
+    }
+
+    /**
+     * Handle the server disconnection: the supervisor wakes up and immediately starts looking
+     * for a server again.
+     */
+    void onServerDisconnected() {
+        synchronized (lock) {
+            connectedToServer = false;
+            if (bluetoothSocketReadWriter != null) {
+                bluetoothSocketReadWriter.closeDisconnectedSocket();
+                bluetoothSocketReadWriter = null;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Wake the supervisor up if it is waiting before its next round of attempts, e.g. when new
+     * devices have been paired. Does nothing if the client is connected.
+     */
+    void retryNow() {
+        synchronized (lock) {
+            backoff.reset();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Close the connection, if any, and stop the supervisor.
+     */
+    void shutdown() {
+        synchronized (lock) {
+            running = false;
+            if (connectedToServer && bluetoothSocketReadWriter != null) {
+                bluetoothSocketReadWriter.onInterrupt();
+            }
+            if (pendingSocket != null) {
+                // Makes the blocking connect call fail.
+                closeSocket(pendingSocket);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void closeSocket(BluetoothSocket socket) {
+        closeFileDescriptor(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "unable to close() socket", e);
+        }
+    }
+
+    /**
+     * Close the file descriptor
+     *
+     * @param socket the socket in use
+     */
+    private static void closeFileDescriptor(BluetoothSocket socket) {
+        try {
+            Field field = BluetoothSocket.class.getDeclaredField("mPfd");
+            field.setAccessible(true);
+            ParcelFileDescriptor mPfd = (ParcelFileDescriptor) field.get(socket);
+            if (mPfd == null) {
+                return;
+            }
+
+            mPfd.close();
+        } catch (Exception e) {
+            Log.w(TAG, "LocalSocket could not be cleanly closed.");
+        }
+    }
+}
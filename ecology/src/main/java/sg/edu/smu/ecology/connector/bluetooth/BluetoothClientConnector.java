@@ -11,7 +11,6 @@ package sg.edu.smu.ecology.connector.bluetooth;
 import android.os.Message;
 import android.util.Log;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -29,44 +28,26 @@ import sg.edu.smu.ecology.Settings;
 public class BluetoothClientConnector extends BluetoothConnector {
     private static final String TAG = BluetoothClientConnector.class.getSimpleName();
 
-    // To store the server connection thread
-    private BluetoothSocketReadWriter clientToServerSocketReadWriter;
+    // To store the server connection thread, messages can be sent from any thread
+    private volatile BluetoothSocketReadWriter clientToServerSocketReadWriter;
 
-    private BluetoothClientConnectThread bluetoothClientConnectThread;
-    // Contains the list of threads trying to establish a connection with all the paired devices
-    private List<BluetoothClientConnectThread> clientConnectThreadsList = new ArrayList<>();
-    private ClientConnectionListener clientConnectionListener = new ClientConnectionListener() {
-        @Override
-        public void clientConnectedToServer(BluetoothClientConnectThread
-                                                    bluetoothClientConnectThread) {
-            Log.i(TAG, "Client connected to server");
-            // Set the client connect thread connected to the server
-            setBluetoothClientConnectThread(bluetoothClientConnectThread);
-            // Interrupt other client connect threads that are no longer required since one was
-            // able to establish a connection
-            if (clientConnectThreadsList.size() > 0) {
-                interruptOtherClientConnectThreads();
-            }
-        }
-    };
+    // The thread establishing the connection to the server, null when not connecting
+    private BluetoothClientConnectionSupervisor connectionSupervisor;
 
     /**
      * This sets up connection requests to all the paired devices
      */
     @Override
     public void setupBluetoothConnection() {
-        // Among the paired devices, any device can be the server. So try connecting to each and
-        // every paired device until a connection is established
-        for (int i = 0; i < getPairedDevicesList().size(); i++) {
-            BluetoothClientConnectThread bluetoothClientConnectThread = new
-                    BluetoothClientConnectThread(getBluetoothAdapter(),
-                    getPairedDevicesList().get(i), getUuidsList(), getHandler(),
-                    clientConnectionListener);
-            bluetoothClientConnectThread.start();
-            // Save the connect threads list
-            clientConnectThreadsList.add(bluetoothClientConnectThread);
+        // Among the paired devices, any device can be the server. A single thread tries
+        // connecting to each of them until a connection is established.
+        if (connectionSupervisor != null) {
+            connectionSupervisor.retryNow();
+            return;
         }
-        Log.i(TAG, "clientConnectThreadsList size " + clientConnectThreadsList.size());
+        connectionSupervisor = new BluetoothClientConnectionSupervisor(getBluetoothAdapter(),
+                getPairedDevicesList(), getUuidsList(), getHandler());
+        connectionSupervisor.start();
     }
 
     /**
@@ -190,17 +171,9 @@ public class BluetoothClientConnector extends BluetoothConnector {
     }
 
     private void handleDisconnection() {
-        if (bluetoothClientConnectThread != null && !bluetoothClientConnectThread.isInterrupted()) {
-            bluetoothClientConnectThread.interrupt();
-        }
-
-        if (clientConnectThreadsList.size() > 0) {
-            for (BluetoothClientConnectThread bluetoothClientConnectThread :
-                    clientConnectThreadsList) {
-                if (!bluetoothClientConnectThread.isInterrupted()) {
-                    bluetoothClientConnectThread.interrupt();
-                }
-            }
+        if (connectionSupervisor != null) {
+            connectionSupervisor.shutdown();
+            connectionSupervisor = null;
         }
     }
 
@@ -216,41 +189,8 @@ public class BluetoothClientConnector extends BluetoothConnector {
      * Handle the server disconnection so that it starts looking for new server connection
      */
     private void handleServerDisconnection() {
-        bluetoothClientConnectThread.handleServerDisconnection();
-    }
-
-    private void setBluetoothClientConnectThread(BluetoothClientConnectThread
-                                                         bluetoothClientConnectThread) {
-        this.bluetoothClientConnectThread = bluetoothClientConnectThread;
-    }
-
-    /**
-     * Interrupt other client connect threads which tried to set up a connection with a server
-     * device
-     */
-    private void interruptOtherClientConnectThreads() {
-        Log.i(TAG, "interruptOtherClientConnectThreads");
-        for (BluetoothClientConnectThread clientConnectThread : clientConnectThreadsList) {
-            if (!clientConnectThread.equals(bluetoothClientConnectThread)) {
-                if (!clientConnectThread.isInterrupted()) {
-                    clientConnectThread.interrupt();
-                }
-            }
+        if (connectionSupervisor != null) {
+            connectionSupervisor.onServerDisconnected();
         }
-        clientConnectThreadsList.clear();
-    }
-
-    /**
-     * Interface to listen to client connections to a server
-     */
-    interface ClientConnectionListener {
-
-        /**
-         * This method is called when a client gets connected to the server
-         *
-         * @param bluetoothClientConnectThread the client connect thread that got connected
-         */
-        public void clientConnectedToServer(BluetoothClientConnectThread
-                                                    bluetoothClientConnectThread);
     }
 }
@@ -16,20 +16,27 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import sg.edu.smu.ecology.EcologyMessage;
 import sg.edu.smu.ecology.connector.Connector;
+import sg.edu.smu.ecology.connector.OutboundFrame;
+import sg.edu.smu.ecology.connector.OutboundFrameWriter;
+import sg.edu.smu.ecology.connector.OutboundQueue;
+import sg.edu.smu.ecology.encoding.ByteBufferPool;
 import sg.edu.smu.ecology.encoding.MessageDecoder;
 import sg.edu.smu.ecology.encoding.MessageEncoder;
 
@@ -58,9 +65,13 @@ abstract class BluetoothConnector implements Connector, Handler.Callback {
             UUID.fromString("4d34da73-d0a4-4f40-ac38-917e0a9dee97"),
             UUID.fromString("5e14d4df-9c8a-4db7-81e4-c937564c86e0"));
     // An Id used to route connector messages
-    private static final int CONNECTOR_MESSAGE_ID = 0;
+    static final int CONNECTOR_MESSAGE_ID = 0;
     // An Id used to route receiver messages
-    private static final int RECEIVER_MESSAGE_ID = 1;
+    static final int RECEIVER_MESSAGE_ID = 1;
+    /**
+     * The default maximum time without sending anything on a connection, in milliseconds.
+     */
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 1000;
     // To listen to certain events of bluetooth
     private final IntentFilter intentFilter = new IntentFilter();
     // Represents the local device Bluetooth adapter.
@@ -77,23 +88,51 @@ abstract class BluetoothConnector implements Connector, Handler.Callback {
     // Device Id of this device
     private String deviceId;
     // To store the device ids(user generated) of all the connected devices.
-    private Map<Integer, String> deviceIdsList = new HashMap<>();
+    // Messages can be sent from any thread.
+    private Map<Integer, String> deviceIdsList = new ConcurrentHashMap<>();
+    // The buffers the messages are encoded into, shared by the outbound queues of the connections
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
     // Message encoder to encode the message into byte arrays before sending it.
-    private final MessageEncoder messageEncoder = new MessageEncoder();
-    // Message decoder to decode byte arrays into messages.
+    private final MessageEncoder messageEncoder = new MessageEncoder(bufferPool);
+    // The capacity and the overflow policy of the outbound queue of each connection. The
+    // messages are never sent again, so none is dropped by default.
+    private int outboundQueueCapacity = OutboundQueue.DEFAULT_CAPACITY;
+    private OutboundQueue.OverflowPolicy outboundOverflowPolicy =
+            OutboundQueue.OverflowPolicy.BLOCK;
+    // Reports the frames dropped by the outbound queues
+    private final OutboundQueue.DropListener dropListener = new OutboundQueue.DropListener() {
+        @Override
+        public void onFrameDropped(long droppedFrames) {
+            Log.w(TAG, "Outbound queue full, frame dropped (" + droppedFrames + " so far)");
+        }
+    };
+    // How the frames are batched before being written on each connection
+    private int outboundBatchSize = OutboundFrameWriter.DEFAULT_BATCH_SIZE;
+    private long outboundMaxFlushDelay = OutboundFrameWriter.DEFAULT_MAX_FLUSH_DELAY;
+    // The maximum time without sending anything on a connection, 0 if heartbeats are disabled
+    private long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    // Sends the heartbeats and looks for the unreachable devices
+    private final Runnable heartbeatTask = new Runnable() {
+        @Override
+        public void run() {
+            checkConnections();
+            handler.postDelayed(this, heartbeatInterval / 2);
+        }
+    };
+    // Message decoder to decode the payloads left undecoded by the socket read writer threads.
     private final MessageDecoder messageDecoder = new MessageDecoder();
 
     /**
-     * Send message to all the connected devices in the ecology
+     * Send message to all the connected devices in the ecology. The message is encoded on the
+     * calling thread and queued on each destination connection, it is written by their own
+     * writer threads.
      *
      * @param message the message to be sent
      */
     @Override
     public void sendMessage(EcologyMessage message) {
-        message.addArgument(RECEIVER_MESSAGE_ID);
-
-        doSendMessage(message, getBluetoothSocketReadWriterList(message.getTargetType(),
-                message.getTargets()));
+        doSendMessage(message, RECEIVER_MESSAGE_ID,
+                getBluetoothSocketReadWriterList(message.getTargetType(), message.getTargets()));
     }
 
     /**
@@ -104,16 +143,105 @@ abstract class BluetoothConnector implements Connector, Handler.Callback {
      */
     void sendConnectorMessage(EcologyMessage message,
                               Collection<BluetoothSocketReadWriter> bluetoothSocketReadWriters) {
-        message.addArgument(CONNECTOR_MESSAGE_ID);
-        doSendMessage(message, bluetoothSocketReadWriters);
+        doSendMessage(message, CONNECTOR_MESSAGE_ID, bluetoothSocketReadWriters);
+    }
+
+    private void doSendMessage(EcologyMessage message, int routingId,
+                               Collection<BluetoothSocketReadWriter> bluetoothSocketReadWriters) {
+        ByteBuffer buffer = encodeMessage(message, routingId);
+        if (buffer == null) {
+            return;
+        }
+
+        // The same frame is queued on every connection, it goes back to the pool once written
+        // on all of them.
+        OutboundFrame frame = new OutboundFrame(buffer, bufferPool, message.getCoalescingKey());
+        try {
+            for (BluetoothSocketReadWriter bluetoothSocketReadWriter : bluetoothSocketReadWriters) {
+                if (bluetoothSocketReadWriter != null) {
+                    bluetoothSocketReadWriter.send(frame.retain());
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Configure the outbound queues of the connections established from now on.
+     *
+     * @param capacity       the maximum number of frames waiting to be written on a connection
+     * @param overflowPolicy what to do when a message is sent on a connection whose queue is full,
+     *                       {@link OutboundQueue.OverflowPolicy#BLOCK} by default. The messages
+     *                       are never sent again: the other policies are only for the
+     *                       applications whose messages tolerate losses. The dropped frames are
+     *                       logged.
+     */
+    public void setOutboundQueue(int capacity, OutboundQueue.OverflowPolicy overflowPolicy) {
+        this.outboundQueueCapacity = capacity;
+        this.outboundOverflowPolicy = overflowPolicy;
     }
 
-    private void doSendMessage(EcologyMessage message, Collection<BluetoothSocketReadWriter>
-            bluetoothSocketReadWriters) {
-        byte[] encodedMessageData = encodeMessage(message);
+    /**
+     * Configure how the frames are batched on the connections established from now on.
+     *
+     * @param batchSize     the size of the buffer used to write several frames at once
+     * @param maxFlushDelay the maximum time a frame can wait for other frames to be written with,
+     *                      in milliseconds (0 to write the frames as soon as there is no other
+     *                      frame waiting)
+     */
+    public void setOutboundBatching(int batchSize, long maxFlushDelay) {
+        this.outboundBatchSize = batchSize;
+        this.outboundMaxFlushDelay = maxFlushDelay;
+    }
+
+    /**
+     * Configure the heartbeats. When a device has nothing to send on a connection, it sends a
+     * heartbeat so that the other device knows it is still there. A device that has been silent
+     * for too long compared to its usual activity is considered disconnected. Applies from the
+     * next connection to the ecology.
+     *
+     * @param heartbeatInterval the maximum time without sending anything on a connection, in
+     *                          milliseconds; 0 to disable the heartbeats and the detection of
+     *                          unreachable devices
+     */
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    /**
+     * Send a heartbeat on the idle connections and close the connections with the devices that
+     * are suspected to be unreachable: they are then reported as disconnected.
+     */
+    private void checkConnections() {
+        long now = SystemClock.elapsedRealtime();
+        for (BluetoothSocketReadWriter bluetoothSocketReadWriter :
+                getBluetoothSocketReadWriterList(EcologyMessage.TARGET_TYPE_BROADCAST,
+                        Collections.<String>emptyList())) {
+            if (bluetoothSocketReadWriter == null) {
+                continue;
+            }
+            if (bluetoothSocketReadWriter.isSuspected(now)) {
+                Log.w(TAG, "A device is suspected to be unreachable, closing its connection");
+                bluetoothSocketReadWriter.closeSuspectedSocket();
+            } else {
+                bluetoothSocketReadWriter.sendHeartbeatIfIdle(now, heartbeatInterval);
+            }
+        }
+    }
 
-        for (BluetoothSocketReadWriter bluetoothSocketReadWriter : bluetoothSocketReadWriters) {
-            writeData(bluetoothSocketReadWriter, encodedMessageData);
+    /**
+     * Write the messages sent so far on every connection without waiting for more messages to
+     * batch them with. This returns right away, it is meant to be called after sending latency
+     * critical messages.
+     */
+    public void flush() {
+        for (BluetoothSocketReadWriter bluetoothSocketReadWriter :
+                getBluetoothSocketReadWriterList(EcologyMessage.TARGET_TYPE_BROADCAST,
+                        Collections.<String>emptyList())) {
+            if (bluetoothSocketReadWriter != null) {
+                bluetoothSocketReadWriter.flush();
+            }
         }
     }
 
@@ -136,6 +264,11 @@ abstract class BluetoothConnector implements Connector, Handler.Callback {
             return;
         }
 
+        handler.removeCallbacks(heartbeatTask);
+        if (heartbeatInterval > 0) {
+            handler.postDelayed(heartbeatTask, heartbeatInterval / 2);
+        }
+
         addIntentActionsToFilter();
         // To notify about various events occurring with respect to the bluetooth connection
         bluetoothBroadcastManager = new BluetoothBroadcastManager(this);
@@ -162,6 +295,7 @@ abstract class BluetoothConnector implements Connector, Handler.Callback {
     @Override
     public void disconnect() {
         onConnectorConnected = false;
+        handler.removeCallbacks(heartbeatTask);
         Log.i(TAG, "disconnected ");
         context.unregisterReceiver(bluetoothBroadcastManager);
     }
@@ -187,6 +321,15 @@ abstract class BluetoothConnector implements Connector, Handler.Callback {
 
             case SOCKET_CONNECTED:
                 onConnectorConnected = true;
+                OutboundQueue outboundQueue =
+                        new OutboundQueue(outboundQueueCapacity, outboundOverflowPolicy);
+                outboundQueue.setDropListener(dropListener);
+                ((BluetoothSocketReadWriter) msg.obj).startWriter(outboundQueue,
+                        outboundBatchSize, outboundMaxFlushDelay);
+                if (heartbeatInterval > 0) {
+                    ((BluetoothSocketReadWriter) msg.obj).startFailureDetection(
+                            heartbeatInterval);
+                }
                 onDeviceConnected(msg);
                 break;
 
@@ -238,21 +381,46 @@ abstract class BluetoothConnector implements Connector, Handler.Callback {
      * @param msg the message received
      */
     private void onMessageReceived(Message msg) {
-        byte[] readBuf = (byte[]) msg.obj;
+        BluetoothSocketReadWriter.ReceivedMessage receivedMessage =
+                (BluetoothSocketReadWriter.ReceivedMessage) msg.obj;
 
-        EcologyMessage message;
-        message = messageDecoder.decode(readBuf);
-        Log.i(TAG, "data " + message.getArguments());
+        // Check if the received data is a connector message or a receiver message
+        int receivedMessageId = receivedMessage.getHeader().getRoutingId();
+        if (receivedMessageId == CONNECTOR_MESSAGE_ID) {
+            onConnectorMessage(msg, decodeMessage(receivedMessage));
+        } else if (receivedMessageId == RECEIVER_MESSAGE_ID) {
+            onReceiverMessage(msg, receivedMessage);
+        }
+    }
 
-        // Fetch the routing id of the received message
-        Integer receivedMessageId = (Integer) message.fetchArgument();
+    /**
+     * When a receiver message is received, before its payload is decoded. By default, the
+     * message is decoded and passed to {@link #onReceiverMessage(Message, EcologyMessage)}.
+     *
+     * @param msg             the message received
+     * @param receivedMessage the received message, its routing header and possibly its payload
+     */
+    void onReceiverMessage(Message msg, BluetoothSocketReadWriter.ReceivedMessage receivedMessage) {
+        onReceiverMessage(msg, decodeMessage(receivedMessage));
+    }
 
-        // Check if the received data is a connector message or a receiver message
-        if (receivedMessageId.equals(CONNECTOR_MESSAGE_ID)) {
-            onConnectorMessage(msg, message);
-        } else if (receivedMessageId.equals(RECEIVER_MESSAGE_ID)) {
-            onReceiverMessage(msg, message);
+    /**
+     * Get the decoded version of a received message, decoding its payload if the socket read
+     * writer thread did not.
+     *
+     * @param receivedMessage the received message
+     * @return the decoded message
+     */
+    EcologyMessage decodeMessage(BluetoothSocketReadWriter.ReceivedMessage receivedMessage) {
+        EcologyMessage message = receivedMessage.getMessage();
+        if (message == null) {
+            byte[] receivedFrame = receivedMessage.getReceivedFrame();
+            message = messageDecoder.decodePayload(receivedMessage.getHeader(), receivedFrame,
+                    MessageEncoder.LENGTH_PREFIX_SIZE,
+                    receivedFrame.length - MessageEncoder.LENGTH_PREFIX_SIZE);
         }
+        Log.i(TAG, "data " + message.getArguments());
+        return message;
     }
 
     /**
@@ -341,32 +509,17 @@ abstract class BluetoothConnector implements Connector, Handler.Callback {
     /**
      * Encode the message to be sent
      *
-     * @param message the message to be encoded
-     * @return the encoded message
+     * @param message   the message to be encoded
+     * @param routingId the id used to route the message on the receiving side
+     * @return the encoded frame (length followed by the encoded message), or null if the message
+     * could not be encoded
      */
-    private byte[] encodeMessage(EcologyMessage message) {
+    private ByteBuffer encodeMessage(EcologyMessage message, int routingId) {
         try {
-            return messageEncoder.encode(message);
+            return messageEncoder.encodeFrame(message, routingId);
         } catch (CharacterCodingException e) {
             e.printStackTrace();
-            return new byte[0];
-        }
-    }
-
-    /**
-     * Write data to be published
-     *
-     * @param bluetoothSocketReadWriter thread responsible for data read and write
-     * @param encodedMessage            the encoded message ready to be sent
-     */
-    private void writeData(BluetoothSocketReadWriter bluetoothSocketReadWriter,
-                           byte[] encodedMessage) {
-        if (bluetoothSocketReadWriter != null) {
-            // Write length of the data first
-            bluetoothSocketReadWriter.writeInt(encodedMessage.length);
-
-            // Write the byte data
-            bluetoothSocketReadWriter.writeData(encodedMessage);
+            return null;
         }
     }
 
@@ -11,20 +11,15 @@ package sg.edu.smu.ecology.connector.bluetooth;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
-import android.os.Handler;
 import android.util.Log;
-import android.util.SparseArray;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.UUID;
 
 /**
- * This thread runs while listening for incoming client connection requests. It runs until all the
- * 7 connections are accepted(or until cancelled).
+ * This thread listens for an incoming client connection request on one UUID. It runs until a
+ * connection is accepted (or until cancelled): a UUID can only be used by one client at a time.
+ * The {@link BluetoothServerAcceptor} runs one of these threads for each of its free UUIDs.
  *
  * @author Anuroop PATTENA VANIYAR
  */
@@ -32,126 +27,118 @@ class BluetoothServerAcceptThread extends Thread {
     private static final String TAG = BluetoothServerAcceptThread.class.getSimpleName();
     // Name for the SDP record when creating server socket
     private static final String NAME = "EcologyBluetoothConnector";
+    private final BluetoothAdapter bluetoothAdapter;
+    private final UUID uuid;
+    private final AcceptListener acceptListener;
     private BluetoothServerSocket serverSocket = null;
-    // The list of UUIDs that will be used to establish a bluetooth connection
-    private List<UUID> uuidsList;
-    // The list of disconnected UUIDs so that it can be reused.
-    private List<UUID> disconnectedUuidsList = new ArrayList<>();
-    private BluetoothAdapter bluetoothAdapter;
-    // To store the connection threads of all the connected clients
-    private Map<Integer, BluetoothSocketReadWriter> bluetoothSocketReadWritersList = new HashMap<>();
-    private Handler handler;
-    private int clientId = 0;
-    private SparseArray<UUID> clientUuidList = new SparseArray<>();
-    private boolean restartUuidsListening = false;
+    private boolean cancelled = false;
+
     /**
-     * Indicates if the server is ready for accepting connections or not
+     * @param bluetoothAdapter the bluetooth adapter
+     * @param uuid             the UUID to listen on
+     * @param acceptListener   notified of the accepted connection
      */
-    private boolean serverReady;
-
-    BluetoothServerAcceptThread(BluetoothAdapter bluetoothAdapter, List<UUID> uuidsList,
-                                Handler handler) {
+    BluetoothServerAcceptThread(BluetoothAdapter bluetoothAdapter, UUID uuid,
+                                AcceptListener acceptListener) {
+        super(TAG + "-" + uuid);
         this.bluetoothAdapter = bluetoothAdapter;
-        this.uuidsList = uuidsList;
-        this.handler = handler;
+        this.uuid = uuid;
+        this.acceptListener = acceptListener;
     }
 
     @Override
     public void run() {
-        serverReady = false;
-        listenForConnectionRequests(uuidsList);
-    }
-
-    /**
-     * Listen for incoming connection requests and when one is accepted, provide a connected
-     * BluetoothSocket
-     */
-    private void listenForConnectionRequests(List<UUID> uuidsList) {
-        BluetoothSocket socket;
-        Integer index = 0;
+        BluetoothServerSocket socketToAccept;
         try {
-            // Listen for all the required number of UUIDs
-            for (UUID uuid : uuidsList) {
-                Log.i(TAG, "Server Listen " + index++);
-                serverSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME, uuid);
-                if(!serverReady) {
-                    handler.obtainMessage(BluetoothConnector.DEVICE_READY).sendToTarget();
-                    serverReady = true;
-                }
-                socket = serverSocket.accept();
-                if (socket != null) {
-                    serverSocket.close();
-                    createSocketReadWriterThreads(socket, uuid);
+            synchronized (this) {
+                if (cancelled) {
+                    return;
                 }
+                serverSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME, uuid);
+                socketToAccept = serverSocket;
             }
-            Log.i(TAG, "All eight UUIDs used ");
-            // Restart listening when all the UUIDs have been tried for connection
-            restartUuidsListening = true;
         } catch (IOException e) {
+            Log.e(TAG, "listen failed on " + uuid, e);
+            acceptListener.onAcceptFailed(this);
+            return;
+        }
+        acceptListener.onListening(this);
 
+        BluetoothSocket socket = null;
+        try {
+            socket = socketToAccept.accept();
+        } catch (IOException e) {
+            if (!isCancelled()) {
+                Log.e(TAG, "accept failed on " + uuid, e);
+            }
+        }
+        closeServerSocket();
+        if (socket != null) {
+            acceptListener.onConnectionAccepted(this, socket);
+        } else {
+            acceptListener.onAcceptFailed(this);
         }
     }
 
     /**
-     * Start the SocketReadWriter thread to begin managing a Bluetooth connection
-     *
-     * @param socket The BluetoothSocket on which the connection was made
-     **/
-    private void createSocketReadWriterThreads(BluetoothSocket socket, UUID uuid) {
-        clientId++;
-        BluetoothSocketReadWriter bluetoothSocketReadWriter = new BluetoothSocketReadWriter(socket,
-                handler, clientId);
-        bluetoothSocketReadWriter.start();
-        // Add each connected thread to an array
-        bluetoothSocketReadWritersList.put(clientId, bluetoothSocketReadWriter);
-        clientUuidList.put(clientId, uuid);
+     * @return the UUID the thread listens on
+     */
+    UUID getUuid() {
+        return uuid;
     }
 
     /**
-     * Handle the client disconnection
-     *
-     * @param clientId the id of the client that got disconnected
+     * Stop listening.
      */
-    void handleClientDisconnection(int clientId) {
-        disconnectedUuidsList.add(clientUuidList.get(clientId));
-        Log.i(TAG, "disconnectedUuidsList " + disconnectedUuidsList);
-        updateSocketReadWritersList(clientId);
-        if (restartUuidsListening) {
-            uuidsList = disconnectedUuidsList;
-            listenForConnectionRequests(uuidsList);
-            restartUuidsListening = false;
-            disconnectedUuidsList.clear();
+    void cancel() {
+        synchronized (this) {
+            cancelled = true;
         }
+        closeServerSocket();
     }
 
-    /**
-     * Remove the connection thread of the disconnected client
-     *
-     * @param clientId the client id of the disconnected device
-     */
-    private void updateSocketReadWritersList(int clientId) {
-        bluetoothSocketReadWritersList.get(clientId).closeDisconnectedSocket();
-        bluetoothSocketReadWritersList.remove(clientId);
+    private synchronized boolean isCancelled() {
+        return cancelled;
     }
 
-    @Override
-    public void interrupt() {
-        super.interrupt();
-        Log.i(TAG, "bluetoothSocketReadWriters-size " + bluetoothSocketReadWritersList.size());
-        clientId = 0;
-        for (BluetoothSocketReadWriter bluetoothSocketReadWriter :
-                bluetoothSocketReadWritersList.values()) {
-            if (bluetoothSocketReadWriter != null) {
-                bluetoothSocketReadWriter.onInterrupt();
-            }
-        }
-
+    private synchronized void closeServerSocket() {
         try {
             if (serverSocket != null) {
                 serverSocket.close();
+                serverSocket = null;
             }
         } catch (IOException e) {
             Log.e(TAG, "server socket close failed", e);
         }
     }
+
+    /**
+     * Notified of the events of an accept thread. It is called from the accept thread.
+     */
+    interface AcceptListener {
+
+        /**
+         * Called when the thread has started listening on its UUID.
+         *
+         * @param acceptThread the thread
+         */
+        void onListening(BluetoothServerAcceptThread acceptThread);
+
+        /**
+         * Called when a connection has been accepted. The thread ends.
+         *
+         * @param acceptThread the thread
+         * @param socket       the connected socket
+         */
+        void onConnectionAccepted(BluetoothServerAcceptThread acceptThread,
+                                  BluetoothSocket socket);
+
+        /**
+         * Called when the thread could not listen or stopped listening without accepting any
+         * connection, e.g. because it has been cancelled. The thread ends.
+         *
+         * @param acceptThread the thread
+         */
+        void onAcceptFailed(BluetoothServerAcceptThread acceptThread);
+    }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothSocket;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import sg.edu.smu.ecology.connector.ExponentialBackoff;
+
+/**
+ * Accepts the client connections of a server. It listens on all its free UUIDs at once, with one
+ * {@link BluetoothServerAcceptThread} per UUID, so that clients connecting at the same time do
+ * not wait for each other. The UUID of a client is listened on again as soon as the client is
+ * disconnected. A UUID whose listening fails, e.g. while Bluetooth is turned off, is listened on
+ * again after an exponentially growing delay.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Anuroop PATTENA VANIYAR
+ * @author Quentin ROY
+ */
+class BluetoothServerAcceptor implements BluetoothServerAcceptThread.AcceptListener {
+    private static final String TAG = BluetoothServerAcceptor.class.getSimpleName();
+
+    // The delays before listening again on a UUID whose listening failed, in milliseconds.
+    static final long INITIAL_RETRY_DELAY = 500;
+    static final long MAX_RETRY_DELAY = 30000;
+    private final BluetoothAdapter bluetoothAdapter;
+    // The list of UUIDs that will be used to establish a bluetooth connection
+    private final List<UUID> uuidsList;
+    private final Handler handler;
+    // The threads listening on the free UUIDs
+    private final Map<UUID, BluetoothServerAcceptThread> acceptThreads = new HashMap<>();
+    // The delays before listening again on the UUIDs whose listening failed
+    private final Map<UUID, ExponentialBackoff> retryBackoffs = new HashMap<>();
+    // Listens again on the UUIDs whose listening failed
+    private final Runnable retryTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BluetoothServerAcceptor.this) {
+                if (running) {
+                    listenOnFreeUuids();
+                }
+            }
+        }
+    };
+    // To store the connection threads of all the connected clients
+    private final Map<Integer, BluetoothSocketReadWriter> bluetoothSocketReadWriters =
+            new HashMap<>();
+    // The UUIDs used by the connected clients
+    private final Map<Integer, UUID> clientUuids = new HashMap<>();
+    // When the connections of the clients have been accepted (see SystemClock.elapsedRealtime)
+    private final Map<Integer, Long> acceptTimes = new HashMap<>();
+    private int clientId = 0;
+    private boolean running = false;
+    // When the server has started listening, -1 before.
+    private long readyTime = -1;
+
+    /**
+     * @param bluetoothAdapter the bluetooth adapter
+     * @param uuidsList        the UUIDs the clients can connect with
+     * @param handler          the handler the connected sockets report to
+     */
+    BluetoothServerAcceptor(BluetoothAdapter bluetoothAdapter, List<UUID> uuidsList,
+                            Handler handler) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.uuidsList = uuidsList;
+        this.handler = handler;
+    }
+
+    /**
+     * Start listening on all the UUIDs.
+     */
+    synchronized void start() {
+        running = true;
+        listenOnFreeUuids();
+    }
+
+    /**
+     * Stop listening and close the connections of all the clients.
+     */
+    void shutdown() {
+        List<BluetoothServerAcceptThread> threadsToCancel;
+        List<BluetoothSocketReadWriter> readWritersToInterrupt;
+        synchronized (this) {
+            running = false;
+            threadsToCancel = new ArrayList<>(acceptThreads.values());
+            readWritersToInterrupt = new ArrayList<>(bluetoothSocketReadWriters.values());
+            acceptThreads.clear();
+            bluetoothSocketReadWriters.clear();
+            clientUuids.clear();
+            acceptTimes.clear();
+            retryBackoffs.clear();
+        }
+        handler.removeCallbacks(retryTask);
+        Log.i(TAG, "bluetoothSocketReadWriters-size " + readWritersToInterrupt.size());
+        for (BluetoothServerAcceptThread acceptThread : threadsToCancel) {
+            acceptThread.cancel();
+        }
+        for (BluetoothSocketReadWriter bluetoothSocketReadWriter : readWritersToInterrupt) {
+            bluetoothSocketReadWriter.onInterrupt();
+        }
+    }
+
+    /**
+     * Handle the client disconnection: its UUID is immediately listened on again.
+     *
+     * @param clientId the id of the client that got disconnected
+     */
+    void handleClientDisconnection(int clientId) {
+        BluetoothSocketReadWriter bluetoothSocketReadWriter;
+        synchronized (this) {
+            bluetoothSocketReadWriter = bluetoothSocketReadWriters.remove(clientId);
+            UUID uuid = clientUuids.remove(clientId);
+            acceptTimes.remove(clientId);
+            Log.i(TAG, "Client " + clientId + " released " + uuid);
+            if (running) {
+                listenOnFreeUuids();
+            }
+        }
+        if (bluetoothSocketReadWriter != null) {
+            bluetoothSocketReadWriter.closeDisconnectedSocket();
+        }
+    }
+
+    /**
+     * @return when the server started listening (see SystemClock.elapsedRealtime), or -1 if it
+     * is not listening yet
+     */
+    synchronized long getReadyTime() {
+        return readyTime;
+    }
+
+    /**
+     * @param clientId the id of a connected client
+     * @return when the connection of the client has been accepted (see
+     * SystemClock.elapsedRealtime), or -1 if the client is unknown
+     */
+    synchronized long getAcceptTime(int clientId) {
+        Long acceptTime = acceptTimes.get(clientId);
+        return acceptTime == null ? -1 : acceptTime;
+    }
+
+    /**
+     * Start an accept thread on each of the UUIDs that are neither listened on nor used by a
+     * client.
+     */
+    private void listenOnFreeUuids() {
+        for (UUID uuid : uuidsList) {
+            if (!acceptThreads.containsKey(uuid) && !clientUuids.containsValue(uuid)) {
+                BluetoothServerAcceptThread acceptThread =
+                        new BluetoothServerAcceptThread(bluetoothAdapter, uuid, this);
+                acceptThreads.put(uuid, acceptThread);
+                acceptThread.start();
+            }
+        }
+    }
+
+    @Override
+    public void onListening(BluetoothServerAcceptThread acceptThread) {
+        synchronized (this) {
+            ExponentialBackoff backoff = retryBackoffs.get(acceptThread.getUuid());
+            if (backoff != null) {
+                backoff.reset();
+            }
+            if (!running || readyTime >= 0) {
+                return;
+            }
+            readyTime = SystemClock.elapsedRealtime();
+        }
+        handler.obtainMessage(BluetoothConnector.DEVICE_READY).sendToTarget();
+    }
+
+    @Override
+    public void onConnectionAccepted(BluetoothServerAcceptThread acceptThread,
+                                     BluetoothSocket socket) {
+        BluetoothSocketReadWriter bluetoothSocketReadWriter;
+        synchronized (this) {
+            UUID uuid = acceptThread.getUuid();
+            if (acceptThreads.get(uuid) == acceptThread) {
+                acceptThreads.remove(uuid);
+            }
+            if (!running) {
+                closeSocket(socket);
+                return;
+            }
+            clientId++;
+            long acceptTime = SystemClock.elapsedRealtime();
+            Log.i(TAG, "Client " + clientId + " accepted on " + uuid + ", "
+                    + (acceptTime - readyTime) + "ms after the server was ready");
+            bluetoothSocketReadWriter = new BluetoothSocketReadWriter(socket, handler, clientId);
+            // Add each connected thread to the map
+            bluetoothSocketReadWriters.put(clientId, bluetoothSocketReadWriter);
+            clientUuids.put(clientId, uuid);
+            acceptTimes.put(clientId, acceptTime);
+        }
+        bluetoothSocketReadWriter.start();
+    }
+
+    @Override
+    public void onAcceptFailed(BluetoothServerAcceptThread acceptThread) {
+        synchronized (this) {
+            UUID uuid = acceptThread.getUuid();
+            if (acceptThreads.get(uuid) == acceptThread) {
+                acceptThreads.remove(uuid);
+                if (!running) {
+                    return;
+                }
+                ExponentialBackoff backoff = retryBackoffs.get(uuid);
+                if (backoff == null) {
+                    backoff = new ExponentialBackoff(INITIAL_RETRY_DELAY, MAX_RETRY_DELAY);
+                    retryBackoffs.put(uuid, backoff);
+                }
+                long delay = backoff.nextDelay();
+                Log.w(TAG, "Stopped listening on " + uuid + ", listening again in " + delay
+                        + "ms");
+                // The UUIDs failing together are listened on again by the first retry.
+                handler.postDelayed(retryTask, delay);
+            }
+        }
+    }
+
+    private static void closeSocket(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "socket close failed", e);
+        }
+    }
+}
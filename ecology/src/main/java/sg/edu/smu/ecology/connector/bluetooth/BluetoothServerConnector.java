@@ -9,19 +9,21 @@
 package sg.edu.smu.ecology.connector.bluetooth;
 
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import sg.edu.smu.ecology.EcologyMessage;
 import sg.edu.smu.ecology.Settings;
+import sg.edu.smu.ecology.connector.OutboundFrame;
+import sg.edu.smu.ecology.encoding.FrameHeader;
 
 
 /**
@@ -34,23 +36,34 @@ public class BluetoothServerConnector extends BluetoothConnector {
     private static final String TAG = BluetoothServerConnector.class.getSimpleName();
 
     // To save the list of client connection threads
-    private Map<Integer, BluetoothSocketReadWriter> clientConnectionThreadsList = new HashMap<>();
-    private BluetoothServerAcceptThread bluetoothServerAcceptThread;
+    // Messages can be sent from any thread.
+    private Map<Integer, BluetoothSocketReadWriter> clientConnectionThreadsList =
+            new ConcurrentHashMap<>();
+    private BluetoothServerAcceptor bluetoothServerAcceptor;
+    private JoinListener joinListener;
 
     @Override
     public void setupBluetoothConnection() {
-        // Start the thread to listen on a BluetoothServerSocket
-        if (bluetoothServerAcceptThread == null) {
+        // Start listening on all the BluetoothServerSockets
+        if (bluetoothServerAcceptor == null) {
             try {
-                bluetoothServerAcceptThread = new BluetoothServerAcceptThread(getBluetoothAdapter(),
+                bluetoothServerAcceptor = new BluetoothServerAcceptor(getBluetoothAdapter(),
                         getUuidsList(), getHandler());
-                bluetoothServerAcceptThread.start();
+                bluetoothServerAcceptor.start();
             } catch (Exception e) {
                 Log.d(TAG, "Failed to create a server thread - " + e.getMessage());
             }
         }
     }
 
+    /**
+     * @param joinListener notified when a client joins the ecology, from the main thread; null
+     *                     to remove it
+     */
+    public void setJoinListener(JoinListener joinListener) {
+        this.joinListener = joinListener;
+    }
+
     /**
      * Return the list of {@link BluetoothSocketReadWriter} threads
      *
@@ -82,38 +95,45 @@ public class BluetoothServerConnector extends BluetoothConnector {
     }
 
     /**
-     * When a receiver message is received
+     * When a receiver message is received. Only its routing header has been decoded: messages
+     * for other clients are forwarded as they have been received and the payload is decoded only
+     * if this device is one of the targets.
      *
-     * @param msg         the message received
-     * @param messageData the decoded data
+     * @param msg             the message received
+     * @param receivedMessage the received message
      */
     @Override
-    public void onReceiverMessage(Message msg, EcologyMessage messageData) {
-        int targetType = messageData.getTargetType();
+    void onReceiverMessage(Message msg, BluetoothSocketReadWriter.ReceivedMessage receivedMessage) {
+        FrameHeader header = receivedMessage.getHeader();
+        int targetType = header.getTargetType();
         Log.i(TAG, "targetType " + targetType);
 
         switch (targetType) {
             case EcologyMessage.TARGET_TYPE_SERVER:
-                super.onReceiverMessage(msg, messageData);
+                super.onReceiverMessage(msg, receivedMessage);
                 break;
 
             case EcologyMessage.TARGET_TYPE_BROADCAST:
-                forwardMessage((byte[]) msg.obj, msg.arg1);
-                super.onReceiverMessage(msg, messageData);
+                forwardMessage(receivedMessage.getReceivedFrame(), msg.arg1);
+                super.onReceiverMessage(msg, receivedMessage);
                 break;
 
             case EcologyMessage.TARGET_TYPE_SPECIFIC:
                 List<String> clientTargets = new ArrayList<>();
-                for (String target : messageData.getTargets()) {
+                boolean isTarget = false;
+                for (String target : header.getTargets()) {
                     if (target.equals(getDeviceId())) {
-                        super.onReceiverMessage(msg, messageData);
+                        isTarget = true;
                     } else {
                         clientTargets.add(target);
                     }
                 }
                 if (clientTargets.size() > 0) {
-                    messageData.setTargets(clientTargets);
-                    sendMessage(messageData);
+                    forwardMessage(receivedMessage.getReceivedFrame(),
+                            getSpecificBluetoothReadWriterList(clientTargets));
+                }
+                if (isTarget) {
+                    super.onReceiverMessage(msg, receivedMessage);
                 }
                 break;
 
@@ -159,10 +179,32 @@ public class BluetoothServerConnector extends BluetoothConnector {
 
         if (eventTypeReceived.equals(Settings.DEVICE_ID_EXCHANGE)) {
             getDeviceIdsList().put(msg.arg1, deviceIdReceived);
+            onClientJoined(msg.arg1, deviceIdReceived);
             getReceiver().onDeviceConnected(deviceIdReceived);
         }
     }
 
+    /**
+     * Report the join latency of a client
+     *
+     * @param clientId the client id of the client
+     * @param deviceId the device id of the client
+     */
+    private void onClientJoined(int clientId, String deviceId) {
+        BluetoothServerAcceptor acceptor = bluetoothServerAcceptor;
+        if (acceptor == null) {
+            return;
+        }
+        long joinTime = SystemClock.elapsedRealtime();
+        long timeToJoin = joinTime - acceptor.getReadyTime();
+        long handshakeDuration = joinTime - acceptor.getAcceptTime(clientId);
+        Log.i(TAG, deviceId + " joined " + timeToJoin + "ms after the server was ready ("
+                + handshakeDuration + "ms after its connection was accepted)");
+        if (joinListener != null) {
+            joinListener.onClientJoined(deviceId, timeToJoin, handshakeDuration);
+        }
+    }
+
     /**
      * When the bluetooth is turned off.
      */
@@ -214,10 +256,10 @@ public class BluetoothServerConnector extends BluetoothConnector {
      * Handle the disconnection from ecology
      */
     private void handleDisconnection() {
-        if (bluetoothServerAcceptThread != null && !bluetoothServerAcceptThread.isInterrupted()) {
-            bluetoothServerAcceptThread.interrupt();
+        if (bluetoothServerAcceptor != null) {
+            bluetoothServerAcceptor.shutdown();
         }
-        bluetoothServerAcceptThread = null;
+        bluetoothServerAcceptor = null;
     }
 
     /**
@@ -226,27 +268,48 @@ public class BluetoothServerConnector extends BluetoothConnector {
      * @param clientId the client that got disconnected
      */
     private void handleClientDisconnection(int clientId) {
-        bluetoothServerAcceptThread.handleClientDisconnection(clientId);
+        if (bluetoothServerAcceptor != null) {
+            bluetoothServerAcceptor.handleClientDisconnection(clientId);
+        }
     }
 
     /**
-     * When a server receives a message from a client, it is forwarded to rest of the connected
-     * clients
+     * When a server receives a broadcast message from a client, it is forwarded to rest of the
+     * connected clients
      *
-     * @param dataByteArray the data byte array received
+     * @param receivedFrame the frame received
      * @param clientId      the client id of the client from which the message was received
      */
-    private void forwardMessage(byte[] dataByteArray, int clientId) {
+    private void forwardMessage(byte[] receivedFrame, int clientId) {
         // Store the client from which the message was received
         BluetoothSocketReadWriter sender = clientConnectionThreadsList.get(clientId);
 
+        List<BluetoothSocketReadWriter> clients = new ArrayList<>();
         for (BluetoothSocketReadWriter client : clientConnectionThreadsList.values()) {
             if (client != sender) {
-                client.writeInt(dataByteArray.length);
-                client.writeData(dataByteArray);
+                clients.add(client);
+            }
+        }
+        forwardMessage(receivedFrame, clients);
+    }
+
+    /**
+     * Forward a message, as it has been received, to some of the connected clients
+     *
+     * @param receivedFrame the frame received
+     * @param clients       the clients to forward the message to
+     */
+    private void forwardMessage(byte[] receivedFrame,
+                                Collection<BluetoothSocketReadWriter> clients) {
+        // The same frame is queued on every client connection.
+        OutboundFrame frame = new OutboundFrame(receivedFrame);
+        for (BluetoothSocketReadWriter client : clients) {
+            if (client != null) {
+                client.send(frame.retain());
                 Log.i(TAG, "Message forwarding...");
             }
         }
+        frame.release();
     }
 
     /**
@@ -294,15 +357,35 @@ public class BluetoothServerConnector extends BluetoothConnector {
     private List<BluetoothSocketReadWriter> getSpecificBluetoothReadWriterList(List<String> targets) {
         List<BluetoothSocketReadWriter> bluetoothSocketReadWriterList = new ArrayList<>();
 
-        Set<Integer> keySet = getDeviceIdsList().keySet();
-
-        for (Integer key : keySet) {
-            for (String target : targets) {
-                if (getDeviceIdsList().get(key).equals(target)) {
-                    bluetoothSocketReadWriterList.add(clientConnectionThreadsList.get(key));
+        // Called from any thread while the devices may be disconnecting: each entry is read once.
+        for (Map.Entry<Integer, String> entry : getDeviceIdsList().entrySet()) {
+            if (targets.contains(entry.getValue())) {
+                BluetoothSocketReadWriter readWriter =
+                        clientConnectionThreadsList.get(entry.getKey());
+                if (readWriter != null) {
+                    bluetoothSocketReadWriterList.add(readWriter);
                 }
             }
         }
         return bluetoothSocketReadWriterList;
     }
+
+    /**
+     * Notified when the client devices join the ecology, e.g. to measure how long it takes for a
+     * room of devices to be connected.
+     */
+    public interface JoinListener {
+
+        /**
+         * Called when a client device has joined the ecology, i.e. once its device id has been
+         * received.
+         *
+         * @param deviceId          the device id of the client
+         * @param timeToJoin        the time between the server being ready to accept
+         *                          connections and the client joining, in milliseconds
+         * @param handshakeDuration the time between the connection of the client being accepted
+         *                          and the client joining, in milliseconds
+         */
+        void onClientJoined(String deviceId, long timeToJoin, long handshakeDuration);
+    }
 }
@@ -10,12 +10,20 @@ package sg.edu.smu.ecology.connector.bluetooth;
 
 import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.connector.OutboundFrame;
+import sg.edu.smu.ecology.connector.OutboundFrameWriter;
+import sg.edu.smu.ecology.connector.OutboundQueue;
+import sg.edu.smu.ecology.connector.PhiAccrualFailureDetector;
+import sg.edu.smu.ecology.encoding.FrameDecoder;
+import sg.edu.smu.ecology.encoding.FrameHeader;
 
 /**
  * This thread runs during a connection with a remote bluetooth device.
@@ -26,15 +34,28 @@ import java.util.Arrays;
 class BluetoothSocketReadWriter extends Thread {
     private static final String TAG = BluetoothSocketReadWriter.class.getSimpleName();
     private static final int END_OF_FILE = -1;
+    // Sent instead of a frame length when there has been nothing else to send for a while
+    private static final int HEARTBEAT = -2;
+    // How long to wait for the pending frames to be written when disconnecting
+    private static final long FINISH_WRITING_TIMEOUT = 500;
     private BluetoothSocket bluetoothSocket;
     private Handler handler;
-    private DataInputStream inputStream;
-    private DataOutputStream outputStream;
+    private FrameDecoder frameDecoder;
+    private OutputStream outputStream;
+    // The thread writing the outgoing frames, started once the socket is connected
+    private volatile OutboundFrameWriter frameWriter;
+    private volatile OutboundQueue outboundQueue;
     private int clientId = 0;
+    // Fed with every read from the socket, null until the failure detection is started
+    private volatile PhiAccrualFailureDetector failureDetector;
+    // The remote device is only suspected once it has shown it sends heartbeats
+    private volatile boolean heartbeatReceived = false;
+    // When the last frame has been queued (see SystemClock.elapsedRealtime)
+    private volatile long lastSendTime = SystemClock.elapsedRealtime();
 
     /**
-     * Constructor used in {@link BluetoothClientConnectThread} by a {@link BluetoothClientConnector}
-     * instance
+     * Constructor used in {@link BluetoothClientConnectionSupervisor} by a
+     * {@link BluetoothClientConnector} instance
      *
      * @param bluetoothSocket the connected bluetooth socket
      * @param handler         to handle the messages
@@ -45,7 +66,7 @@ class BluetoothSocketReadWriter extends Thread {
     }
 
     /**
-     * Constructor used in {@link BluetoothServerAcceptThread} by a {@link BluetoothServerConnector}
+     * Constructor used in {@link BluetoothServerAcceptor} by a {@link BluetoothServerConnector}
      * instance
      *
      * @param bluetoothSocket the connected bluetooth socket
@@ -62,33 +83,48 @@ class BluetoothSocketReadWriter extends Thread {
     public void run() {
         try {
             // Get the BluetoothSocket input and output streams
-            inputStream = new DataInputStream(bluetoothSocket.getInputStream());
-            outputStream = new DataOutputStream(bluetoothSocket.getOutputStream());
+            frameDecoder = new FrameDecoder(bluetoothSocket.getInputStream());
+            // Any byte received is a sign of life of the other device, even if it is only a part
+            // of a big frame
+            frameDecoder.setReadListener(new FrameDecoder.ReadListener() {
+                @Override
+                public void onRead(int count) {
+                    PhiAccrualFailureDetector detector = failureDetector;
+                    if (detector != null) {
+                        detector.heartbeat(SystemClock.elapsedRealtime());
+                    }
+                }
+            });
+            outputStream = bluetoothSocket.getOutputStream();
 
             handler.obtainMessage(BluetoothConnector.SOCKET_CONNECTED, clientId, 0, this).
                     sendToTarget();
 
             while (true) {
                 try {
-                    // Get the length of the data
-                    int toRead = inputStream.readInt();
-                    int currentRead = 0;
+                    // Wait for the next frame, it is read directly in the decoder's buffer
+                    int frameLength = frameDecoder.readFrame();
 
                     // This indicates that the other device is disconnected from ecology
-                    if (toRead == END_OF_FILE) {
+                    if (frameLength == END_OF_FILE) {
                         handler.obtainMessage(BluetoothConnector.SOCKET_CLOSE, clientId, 0,
                                 this).sendToTarget();
                         break;
                     }
+                    if (frameLength == HEARTBEAT) {
+                        heartbeatReceived = true;
+                        continue;
+                    }
+                    if (frameLength < 0) {
+                        // Unknown control signal
+                        continue;
+                    }
 
-                    byte[] dataBuffer = new byte[toRead];
-                    while (currentRead < toRead) {
-                        currentRead += inputStream.read(dataBuffer, currentRead, toRead -
-                                currentRead);
+                    ReceivedMessage receivedMessage = decodeFrame();
+                    if (receivedMessage != null) {
+                        handler.obtainMessage(BluetoothConnector.MESSAGE_RECEIVED, clientId, 0,
+                                receivedMessage).sendToTarget();
                     }
-                    Log.i(TAG, "buffer " + Arrays.toString(dataBuffer));
-                    handler.obtainMessage(BluetoothConnector.MESSAGE_RECEIVED, clientId, 0,
-                            dataBuffer).sendToTarget();
                 } catch (IOException e) {
                     // This signals that there is a disconnection
                     handler.obtainMessage(BluetoothConnector.SOCKET_CLOSE, clientId, 0,
@@ -101,28 +137,126 @@ class BluetoothSocketReadWriter extends Thread {
     }
 
     /**
-     * Write to the connected OutStream.
+     * Decode the frame that has just been read. Only its routing header is decoded when the
+     * frame is to be forwarded by a server to its other clients: its payload is then left to be
+     * decoded later on, and only if the server is one of its recipients.
      *
-     * @param buffer The bytes to write
+     * @return the received message or null if the frame could not be decoded
      */
-    void writeData(byte[] buffer) {
+    private ReceivedMessage decodeFrame() {
         try {
-            outputStream.write(buffer);
-        } catch (IOException e) {
-            Log.e(TAG, "Exception during write", e);
+            FrameHeader header = frameDecoder.decodeFrameHeader();
+            Integer targetType = header.getTargetType();
+            if (clientId != 0 && header.getRoutingId() == BluetoothConnector.RECEIVER_MESSAGE_ID
+                    && targetType != null
+                    && targetType != EcologyMessage.TARGET_TYPE_SERVER) {
+                // The frame is to be forwarded as it is, so it needs to outlive the receive
+                // buffer. Broadcast messages are for the server too and can be decoded right
+                // away.
+                EcologyMessage message = targetType == EcologyMessage.TARGET_TYPE_BROADCAST ?
+                        frameDecoder.decodeFramePayload(header) : null;
+                return new ReceivedMessage(header, message,
+                        frameDecoder.copyLengthPrefixedFrame());
+            }
+            return new ReceivedMessage(header, frameDecoder.decodeFramePayload(header), null);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not decode the received frame", e);
+            return null;
         }
     }
 
     /**
-     * Write the length of bytes to be written
+     * Start the thread writing the outgoing frames. This is called once the socket is connected.
      *
-     * @param length the length of the bytes
+     * @param queue         the queue of the outgoing frames
+     * @param batchSize     the size of the buffer used to write several frames at once
+     * @param maxFlushDelay the maximum time a frame can wait for other frames to be written with,
+     *                      in milliseconds
      */
-    void writeInt(int length) {
-        try {
-            outputStream.writeInt(length);
-        } catch (IOException e) {
-            Log.e(TAG, "Exception during write int", e);
+    void startWriter(OutboundQueue queue, int batchSize, long maxFlushDelay) {
+        outboundQueue = queue;
+        frameWriter = new OutboundFrameWriter(outputStream, queue, batchSize, maxFlushDelay);
+        frameWriter.start();
+    }
+
+    /**
+     * Start feeding a failure detector with the bytes received. This is called once the socket
+     * is connected.
+     *
+     * @param heartbeatInterval the interval at which the other device sends heartbeats when it
+     *                          has nothing else to send, in milliseconds
+     */
+    void startFailureDetection(long heartbeatInterval) {
+        failureDetector = new PhiAccrualFailureDetector(heartbeatInterval);
+    }
+
+    /**
+     * Send a heartbeat if no frame has been sent for a while, so that the other device knows
+     * this one is still there. Nothing is sent if frames are still waiting to be written: the
+     * other device is fed with their bytes as they are written, even before they are complete,
+     * and the heartbeat must never wait for room in the queue.
+     *
+     * @param now               the current time (see SystemClock.elapsedRealtime)
+     * @param heartbeatInterval the maximum time without sending anything, in milliseconds
+     */
+    void sendHeartbeatIfIdle(long now, long heartbeatInterval) {
+        OutboundFrameWriter writer = frameWriter;
+        OutboundQueue queue = outboundQueue;
+        if (writer != null && now - lastSendTime >= heartbeatInterval && queue.size() == 0) {
+            send(new OutboundFrame(ByteBuffer.allocate(4).putInt(0, HEARTBEAT), null, null));
+            writer.flush();
+        }
+    }
+
+    /**
+     * @param now the current time (see SystemClock.elapsedRealtime)
+     * @return true if the other device sends heartbeats and has been silent for too long
+     */
+    boolean isSuspected(long now) {
+        PhiAccrualFailureDetector detector = failureDetector;
+        return heartbeatReceived && detector != null && detector.isSuspected(now);
+    }
+
+    /**
+     * Close the socket of a link whose other device is suspected to be gone. The reading loop
+     * ends and reports the disconnection.
+     */
+    void closeSuspectedSocket() {
+        BluetoothSocket socket = bluetoothSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "socket close failed", e);
+            }
+        }
+    }
+
+    /**
+     * Write the frames queued so far without waiting for more frames to batch them with.
+     */
+    void flush() {
+        OutboundFrameWriter writer = frameWriter;
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Queue a frame to be written to the connected OutStream. This returns as soon as the frame
+     * has been queued. The read writer takes ownership of the reference of the caller on the
+     * frame.
+     *
+     * @param frame the frame to write
+     */
+    void send(OutboundFrame frame) {
+        lastSendTime = SystemClock.elapsedRealtime();
+        OutboundFrameWriter writer = frameWriter;
+        if (writer == null) {
+            Log.w(TAG, "The socket is not connected yet, the frame is dropped");
+            frame.release();
+        } else if (!writer.send(frame)) {
+            Log.w(TAG, "The frame could not be queued");
         }
     }
 
@@ -133,10 +267,12 @@ class BluetoothSocketReadWriter extends Thread {
         // To indicate that the device is disconnected from ecology
         if (bluetoothSocket != null && bluetoothSocket.isConnected()) {
             Log.i(TAG, "interrupted");
-            try {
-                outputStream.writeInt(END_OF_FILE);
-            } catch (IOException e) {
-                e.printStackTrace();
+            OutboundFrameWriter writer = frameWriter;
+            if (writer != null) {
+                // Let the pending frames go out before the end of file.
+                writer.send(new OutboundFrame(ByteBuffer.allocate(4).putInt(0, END_OF_FILE),
+                        null, null));
+                writer.finish(FINISH_WRITING_TIMEOUT);
             }
             try {
                 if (bluetoothSocket.isConnected()) {
@@ -154,6 +290,10 @@ class BluetoothSocketReadWriter extends Thread {
      * This method is called when a connected device gets disconnected
      */
     void closeDisconnectedSocket() {
+        OutboundFrameWriter writer = frameWriter;
+        if (writer != null) {
+            writer.cancel();
+        }
         if (bluetoothSocket != null) {
             try {
                 bluetoothSocket.close();
@@ -165,4 +305,41 @@ class BluetoothSocketReadWriter extends Thread {
         }
         interrupt();
     }
+
+    /**
+     * A message received from the remote device.
+     */
+    static class ReceivedMessage {
+        private final FrameHeader header;
+        private final EcologyMessage message;
+        private final byte[] receivedFrame;
+
+        ReceivedMessage(FrameHeader header, EcologyMessage message, byte[] receivedFrame) {
+            this.header = header;
+            this.message = message;
+            this.receivedFrame = receivedFrame;
+        }
+
+        /**
+         * @return the routing header of the message
+         */
+        FrameHeader getHeader() {
+            return header;
+        }
+
+        /**
+         * @return the decoded message, or null if its payload has not been decoded
+         */
+        EcologyMessage getMessage() {
+            return message;
+        }
+
+        /**
+         * @return the frame as it has been received, length included, only available for the
+         * messages a server has to forward to its other clients
+         */
+        byte[] getReceivedFrame() {
+            return receivedFrame;
+        }
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.loopback;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.Settings;
+import sg.edu.smu.ecology.encoding.FrameHeader;
+
+/**
+ * A client of a {@link LoopbackNetwork}. Like {@link
+ * sg.edu.smu.ecology.connector.bluetooth.BluetoothClientConnector}, all its messages go through
+ * the server of the network.
+ *
+ * @author Quentin ROY
+ */
+public class LoopbackClientConnector extends LoopbackConnector {
+    private static final String TAG = LoopbackClientConnector.class.getSimpleName();
+
+    // The server this client is linked to, messages can be sent from any thread.
+    private volatile LoopbackServerConnector server;
+
+    LoopbackClientConnector(LoopbackNetwork network) {
+        super(network);
+    }
+
+    /**
+     * Send a message to the server, it forwards it to the other targets.
+     *
+     * @param message the message to be sent
+     */
+    @Override
+    public void sendMessage(EcologyMessage message) {
+        LoopbackServerConnector currentServer = server;
+        if (currentServer == null) {
+            Log.i(TAG, "Message dropped, not connected to a server");
+            return;
+        }
+        byte[] encodedMessage = encodeMessage(message, RECEIVER_MESSAGE_ID);
+        if (encodedMessage != null) {
+            currentServer.deliver(encodedMessage, this);
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return server != null;
+    }
+
+    @Override
+    void onConnect() {
+        getNetwork().attachClient(this);
+    }
+
+    @Override
+    void onDisconnect() {
+        getNetwork().detachClient(this);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (server != null) {
+                    server = null;
+                    getReceiver().onDisconnected();
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when a server links to this client.
+     *
+     * @param linkedServer the server
+     */
+    void onLinkEstablished(final LoopbackServerConnector linkedServer) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                server = linkedServer;
+
+                // Send the client device Id to the server device
+                EcologyMessage message = new EcologyMessage(Arrays.<Object>asList(getDeviceId(),
+                        Settings.DEVICE_ID_EXCHANGE));
+                message.setSource(getDeviceId());
+                message.setTargetType(EcologyMessage.TARGET_TYPE_SERVER);
+                byte[] encodedMessage = encodeMessage(message, CONNECTOR_MESSAGE_ID);
+                if (encodedMessage != null) {
+                    linkedServer.deliver(encodedMessage, LoopbackClientConnector.this);
+                }
+
+                getReceiver().onConnected();
+            }
+        });
+    }
+
+    /**
+     * Called when the server closes its link to this client.
+     *
+     * @param closedServer the server
+     */
+    void onLinkClosed(final LoopbackServerConnector closedServer) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (server == closedServer) {
+                    server = null;
+                    getReceiver().onDisconnected();
+                }
+            }
+        });
+    }
+
+    @Override
+    void onMessageReceived(byte[] encodedMessage, LoopbackConnector sender) {
+        if (sender != server) {
+            // The link has been closed since the message was sent.
+            return;
+        }
+        FrameHeader header = decodeHeader(encodedMessage);
+        if (header.getRoutingId() != RECEIVER_MESSAGE_ID) {
+            // The server does not send connector messages to its clients.
+            return;
+        }
+
+        switch (header.getTargetType()) {
+            case EcologyMessage.TARGET_TYPE_BROADCAST:
+                getReceiver().onMessage(decodeMessage(header, encodedMessage));
+                break;
+
+            case EcologyMessage.TARGET_TYPE_SPECIFIC:
+                if (header.getTargets().contains(getDeviceId())) {
+                    getReceiver().onMessage(decodeMessage(header, encodedMessage));
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.loopback;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.connector.BaseConnector;
+import sg.edu.smu.ecology.encoding.FrameHeader;
+import sg.edu.smu.ecology.encoding.MessageDecoder;
+import sg.edu.smu.ecology.encoding.MessageEncoder;
+
+/**
+ * Base of the connectors linking devices simulated in the same process through a
+ * {@link LoopbackNetwork}. The messages are encoded and decoded exactly as they would be by the
+ * Bluetooth connectors; the encoded messages are queued to the inbox of the destination
+ * connector and its receiver is always called from the thread of that inbox.
+ *
+ * @author Quentin ROY
+ */
+abstract class LoopbackConnector extends BaseConnector {
+    private static final String TAG = LoopbackConnector.class.getSimpleName();
+
+    // An Id used to route connector messages
+    static final int CONNECTOR_MESSAGE_ID = 0;
+    // An Id used to route receiver messages
+    static final int RECEIVER_MESSAGE_ID = 1;
+
+    private final LoopbackNetwork network;
+    private final MessageEncoder messageEncoder = new MessageEncoder();
+    private final MessageDecoder messageDecoder = new MessageDecoder();
+    // Device Id of this device
+    private volatile String deviceId;
+    // The single thread the received messages and the connection events are handled on.
+    private volatile ExecutorService inbox;
+
+    /**
+     * @param network the network this connector connects to
+     */
+    LoopbackConnector(LoopbackNetwork network) {
+        this.network = network;
+    }
+
+    /**
+     * Connect to the ecology. The context is not used.
+     *
+     * @param context  the activity context
+     * @param deviceId the id of th device
+     */
+    @Override
+    public void connect(Context context, String deviceId) {
+        this.deviceId = deviceId;
+        inbox = Executors.newSingleThreadExecutor();
+        onConnect();
+    }
+
+    /**
+     * Disconnect from the ecology. The events that are still queued are handled before the
+     * inbox thread stops.
+     */
+    @Override
+    public void disconnect() {
+        ExecutorService currentInbox = inbox;
+        if (currentInbox == null) {
+            return;
+        }
+        onDisconnect();
+        currentInbox.shutdown();
+        inbox = null;
+    }
+
+    /**
+     * @return the network this connector connects to
+     */
+    LoopbackNetwork getNetwork() {
+        return network;
+    }
+
+    /**
+     * @return the device id of this device
+     */
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Handle a task on the inbox thread of this connector. Tasks submitted after the
+     * disconnection are dropped, like the data written on a closed socket.
+     *
+     * @param task the task
+     */
+    void post(Runnable task) {
+        ExecutorService currentInbox = inbox;
+        if (currentInbox == null) {
+            return;
+        }
+        try {
+            currentInbox.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Message dropped, " + deviceId + " is disconnected");
+        }
+    }
+
+    /**
+     * Queue an encoded message to the inbox of this connector.
+     *
+     * @param encodedMessage the encoded message (without its length prefix)
+     * @param sender         the connector the message comes from
+     */
+    void deliver(final byte[] encodedMessage, final LoopbackConnector sender) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                onMessageReceived(encodedMessage, sender);
+            }
+        });
+    }
+
+    /**
+     * Encode a message.
+     *
+     * @param message   the message to be encoded
+     * @param routingId the id used to route the message on the receiving side
+     * @return the encoded message (without its length prefix), or null if the message could not
+     * be encoded
+     */
+    byte[] encodeMessage(EcologyMessage message, int routingId) {
+        ByteBuffer frame;
+        try {
+            frame = messageEncoder.encodeFrame(message, routingId);
+        } catch (CharacterCodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+        try {
+            // The queued message must outlive the pooled buffer.
+            byte[] encodedMessage =
+                    new byte[frame.remaining() - MessageEncoder.LENGTH_PREFIX_SIZE];
+            System.arraycopy(frame.array(),
+                    frame.arrayOffset() + frame.position() + MessageEncoder.LENGTH_PREFIX_SIZE,
+                    encodedMessage, 0, encodedMessage.length);
+            return encodedMessage;
+        } finally {
+            messageEncoder.release(frame);
+        }
+    }
+
+    /**
+     * Decode the routing header of a received message.
+     *
+     * @param encodedMessage the received message
+     * @return its header
+     */
+    FrameHeader decodeHeader(byte[] encodedMessage) {
+        return messageDecoder.decodeHeader(encodedMessage, 0, encodedMessage.length);
+    }
+
+    /**
+     * Decode the payload of a received message.
+     *
+     * @param header         its header
+     * @param encodedMessage the received message
+     * @return the decoded message
+     */
+    EcologyMessage decodeMessage(FrameHeader header, byte[] encodedMessage) {
+        return messageDecoder.decodePayload(header, encodedMessage, 0, encodedMessage.length);
+    }
+
+    /**
+     * Called on the calling thread of {@link #connect(Context, String)}.
+     */
+    abstract void onConnect();
+
+    /**
+     * Called on the calling thread of {@link #disconnect()}, before the inbox stops.
+     */
+    abstract void onDisconnect();
+
+    /**
+     * Called on the inbox thread when a message is received.
+     *
+     * @param encodedMessage the received message
+     * @param sender         the connector the message comes from
+     */
+    abstract void onMessageReceived(byte[] encodedMessage, LoopbackConnector sender);
+}
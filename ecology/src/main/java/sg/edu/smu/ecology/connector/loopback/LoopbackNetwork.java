@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.loopback;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-process network connecting one {@link LoopbackServerConnector} and any number of
+ * {@link LoopbackClientConnector}s. This makes it possible to simulate an ecology of many
+ * devices in a single process (e.g. for end-to-end tests or benchmarks).
+ * <p>
+ * Like paired Bluetooth devices, the clients of a network wait for its server: they get linked
+ * to it as soon as both are connected, and they wait for a new one when it disconnects.
+ *
+ * @author Quentin ROY
+ */
+public class LoopbackNetwork {
+    private static final String TAG = LoopbackNetwork.class.getSimpleName();
+
+    // The connected clients, linked or waiting for a server.
+    private final List<LoopbackClientConnector> clients = new ArrayList<>();
+    private LoopbackServerConnector server;
+
+    /**
+     * Create a new server connector for this network. Only one server can be connected to a
+     * network at a time.
+     *
+     * @return the new connector
+     */
+    public LoopbackServerConnector createServerConnector() {
+        return new LoopbackServerConnector(this);
+    }
+
+    /**
+     * Create a new client connector for this network.
+     *
+     * @return the new connector
+     */
+    public LoopbackClientConnector createClientConnector() {
+        return new LoopbackClientConnector(this);
+    }
+
+    /**
+     * Attach a server and link it to the clients waiting for one.
+     *
+     * @param server the server
+     * @throws IllegalStateException if another server is already attached
+     */
+    synchronized void attachServer(LoopbackServerConnector server) {
+        if (this.server != null) {
+            throw new IllegalStateException("A server is already connected to this network");
+        }
+        this.server = server;
+        for (LoopbackClientConnector client : clients) {
+            server.accept(client);
+        }
+    }
+
+    /**
+     * Detach a server. Its links to the clients must be closed by the server itself.
+     *
+     * @param server the server
+     */
+    synchronized void detachServer(LoopbackServerConnector server) {
+        if (this.server == server) {
+            this.server = null;
+        }
+    }
+
+    /**
+     * Attach a client, linking it to the server if there is one.
+     *
+     * @param client the client
+     */
+    synchronized void attachClient(LoopbackClientConnector client) {
+        clients.add(client);
+        if (server != null) {
+            server.accept(client);
+        }
+    }
+
+    /**
+     * Detach a client, closing its link to the server if there is one.
+     *
+     * @param client the client
+     */
+    synchronized void detachClient(LoopbackClientConnector client) {
+        clients.remove(client);
+        if (server != null) {
+            server.onClientClosed(client);
+        }
+    }
+}
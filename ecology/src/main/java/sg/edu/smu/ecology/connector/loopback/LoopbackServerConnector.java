@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.loopback;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.Settings;
+import sg.edu.smu.ecology.encoding.FrameHeader;
+
+/**
+ * The server of a {@link LoopbackNetwork}. Like {@link
+ * sg.edu.smu.ecology.connector.bluetooth.BluetoothServerConnector}, it is the hub of the
+ * ecology: the messages of the clients go through it and are forwarded, as they have been
+ * received, to their other targets.
+ *
+ * @author Quentin ROY
+ */
+public class LoopbackServerConnector extends LoopbackConnector {
+    private static final String TAG = LoopbackServerConnector.class.getSimpleName();
+
+    // The clients linked to this server, messages are accepted from them.
+    private final Set<LoopbackClientConnector> linkedClients =
+            Collections.newSetFromMap(new ConcurrentHashMap<LoopbackClientConnector, Boolean>());
+    // The clients messages are sent to, once they have been notified of their link.
+    private final Set<LoopbackClientConnector> clients =
+            Collections.newSetFromMap(new ConcurrentHashMap<LoopbackClientConnector, Boolean>());
+    // The device ids of the clients, once they have sent them.
+    private final Map<LoopbackClientConnector, String> deviceIds = new ConcurrentHashMap<>();
+    private volatile boolean connected = false;
+
+    LoopbackServerConnector(LoopbackNetwork network) {
+        super(network);
+    }
+
+    /**
+     * Send a message to the connected clients.
+     *
+     * @param message the message to be sent
+     */
+    @Override
+    public void sendMessage(EcologyMessage message) {
+        byte[] encodedMessage = encodeMessage(message, RECEIVER_MESSAGE_ID);
+        if (encodedMessage == null) {
+            return;
+        }
+        Collection<LoopbackClientConnector> destinations =
+                message.getTargetType() == EcologyMessage.TARGET_TYPE_SPECIFIC ?
+                        getClients(message.getTargets()) : clients;
+        for (LoopbackClientConnector client : destinations) {
+            client.deliver(encodedMessage, this);
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    void onConnect() {
+        connected = true;
+        // The server is ready to accept clients.
+        post(new Runnable() {
+            @Override
+            public void run() {
+                getReceiver().onConnected();
+            }
+        });
+        getNetwork().attachServer(this);
+    }
+
+    @Override
+    void onDisconnect() {
+        connected = false;
+        getNetwork().detachServer(this);
+        for (LoopbackClientConnector client : linkedClients) {
+            client.onLinkClosed(this);
+        }
+        clients.clear();
+        linkedClients.clear();
+
+        // All the clients get disconnected.
+        post(new Runnable() {
+            @Override
+            public void run() {
+                for (String deviceId : deviceIds.values()) {
+                    getReceiver().onDeviceDisconnected(deviceId);
+                }
+                deviceIds.clear();
+            }
+        });
+    }
+
+    /**
+     * Link a client to this server.
+     *
+     * @param client the client
+     */
+    void accept(LoopbackClientConnector client) {
+        linkedClients.add(client);
+        // The client must learn about the link before it receives any message through it.
+        client.onLinkEstablished(this);
+        clients.add(client);
+    }
+
+    /**
+     * Called when the link to a client has been closed by the client.
+     *
+     * @param client the client
+     */
+    void onClientClosed(final LoopbackClientConnector client) {
+        clients.remove(client);
+        if (!linkedClients.remove(client)) {
+            return;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                String deviceId = deviceIds.remove(client);
+                if (deviceId != null) {
+                    getReceiver().onDeviceDisconnected(deviceId);
+                }
+            }
+        });
+    }
+
+    @Override
+    void onMessageReceived(byte[] encodedMessage, LoopbackConnector sender) {
+        if (!linkedClients.contains(sender)) {
+            // The link has been closed since the message was sent.
+            return;
+        }
+        LoopbackClientConnector client = (LoopbackClientConnector) sender;
+        FrameHeader header = decodeHeader(encodedMessage);
+        if (header.getRoutingId() == CONNECTOR_MESSAGE_ID) {
+            onConnectorMessage(client, decodeMessage(header, encodedMessage));
+        } else if (header.getRoutingId() == RECEIVER_MESSAGE_ID) {
+            onReceiverMessage(client, header, encodedMessage);
+        }
+    }
+
+    /**
+     * When a connector message is received
+     *
+     * @param client      the client the message comes from
+     * @param messageData the decoded data
+     */
+    private void onConnectorMessage(LoopbackClientConnector client, EcologyMessage messageData) {
+        String eventTypeReceived = (String) messageData.fetchArgument();
+        String deviceIdReceived = (String) messageData.fetchArgument();
+
+        if (eventTypeReceived.equals(Settings.DEVICE_ID_EXCHANGE)) {
+            deviceIds.put(client, deviceIdReceived);
+            getReceiver().onDeviceConnected(deviceIdReceived);
+        }
+    }
+
+    /**
+     * When a receiver message is received. Messages for other clients are forwarded as they
+     * have been received and the payload is decoded only if this device is one of the targets.
+     *
+     * @param client         the client the message comes from
+     * @param header         the routing header of the message
+     * @param encodedMessage the received message
+     */
+    private void onReceiverMessage(LoopbackClientConnector client, FrameHeader header,
+                                   byte[] encodedMessage) {
+        switch (header.getTargetType()) {
+            case EcologyMessage.TARGET_TYPE_SERVER:
+                getReceiver().onMessage(decodeMessage(header, encodedMessage));
+                break;
+
+            case EcologyMessage.TARGET_TYPE_BROADCAST:
+                for (LoopbackClientConnector otherClient : clients) {
+                    if (otherClient != client) {
+                        otherClient.deliver(encodedMessage, this);
+                    }
+                }
+                getReceiver().onMessage(decodeMessage(header, encodedMessage));
+                break;
+
+            case EcologyMessage.TARGET_TYPE_SPECIFIC:
+                List<String> clientTargets = new ArrayList<>();
+                boolean isTarget = false;
+                for (String target : header.getTargets()) {
+                    if (target.equals(getDeviceId())) {
+                        isTarget = true;
+                    } else {
+                        clientTargets.add(target);
+                    }
+                }
+                for (LoopbackClientConnector targetClient : getClients(clientTargets)) {
+                    targetClient.deliver(encodedMessage, this);
+                }
+                if (isTarget) {
+                    getReceiver().onMessage(decodeMessage(header, encodedMessage));
+                }
+                break;
+
+            default:
+                Log.w(TAG, "Unknown target type " + header.getTargetType());
+                break;
+        }
+    }
+
+    /**
+     * Get the clients with the given device ids.
+     *
+     * @param targets the device ids
+     * @return the clients
+     */
+    private List<LoopbackClientConnector> getClients(List<String> targets) {
+        List<LoopbackClientConnector> targetClients = new ArrayList<>();
+        if (targets.isEmpty()) {
+            return targetClients;
+        }
+        for (Map.Entry<LoopbackClientConnector, String> entry : deviceIds.entrySet()) {
+            if (targets.contains(entry.getValue())) {
+                targetClients.add(entry.getKey());
+            }
+        }
+        return targetClients;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.tcp;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+
+import sg.edu.smu.ecology.EcologyLog;
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.Settings;
+import sg.edu.smu.ecology.encoding.FrameHeader;
+
+/**
+ * This class helps to establish a client connection to the server of an ecology over TCP. Like
+ * {@link sg.edu.smu.ecology.connector.bluetooth.BluetoothClientConnector}, all its messages go
+ * through the server. The connection is established again when it is lost.
+ *
+ * @author Quentin ROY
+ */
+public class TcpClientConnector extends TcpConnector {
+    private static final String TAG = TcpClientConnector.class.getSimpleName();
+
+    private final String host;
+    private final int port;
+    // To store the server connection, messages can be sent from any thread
+    private volatile TcpConnection serverConnection;
+
+    /**
+     * Create a client connector whose receiver is called from the main thread.
+     *
+     * @param host the host name or address of the server
+     * @param port the port the server is listening on
+     */
+    public TcpClientConnector(String host, int port) {
+        this(host, port, null);
+    }
+
+    /**
+     * @param host             the host name or address of the server
+     * @param port             the port the server is listening on
+     * @param receiverExecutor the executor the receiver is called from, it must run the tasks
+     *                         one at a time in order; null for the main thread
+     */
+    public TcpClientConnector(String host, int port, Executor receiverExecutor) {
+        super(receiverExecutor);
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Send a message to the server, it forwards it to the other targets.
+     *
+     * @param message the message to be sent
+     */
+    @Override
+    public void sendMessage(EcologyMessage message) {
+        TcpConnection connection = serverConnection;
+        if (connection == null) {
+            EcologyLog.i(TAG, "Message dropped, not connected to a server");
+            return;
+        }
+        sendFrame(message, RECEIVER_MESSAGE_ID, Collections.singletonList(connection));
+    }
+
+    @Override
+    public boolean isConnected() {
+        return serverConnection != null;
+    }
+
+    @Override
+    InetSocketAddress getAddress() {
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    @Override
+    boolean isServer() {
+        return false;
+    }
+
+    @Override
+    public void onConnectionOpened(TcpConnection connection) {
+        EcologyLog.i(TAG, "Connected as a client to " + host + ":" + port);
+        serverConnection = connection;
+
+        EcologyMessage message = new EcologyMessage(Arrays.<Object>asList(getDeviceId(),
+                Settings.DEVICE_ID_EXCHANGE));
+        message.setSource(getDeviceId());
+        message.setTargetType(EcologyMessage.TARGET_TYPE_SERVER);
+        // Send the client device Id to the server device
+        sendFrame(message, CONNECTOR_MESSAGE_ID, Collections.singletonList(connection));
+
+        postToReceiver(new Runnable() {
+            @Override
+            public void run() {
+                getReceiver().onConnected();
+            }
+        });
+    }
+
+    @Override
+    public void onConnectionClosed(TcpConnection connection) {
+        if (serverConnection != connection) {
+            return;
+        }
+        serverConnection = null;
+        postToReceiver(new Runnable() {
+            @Override
+            public void run() {
+                getReceiver().onDisconnected();
+            }
+        });
+    }
+
+    @Override
+    public void onFrameReceived(TcpConnection connection, byte[] frame) {
+        FrameHeader header = decodeHeader(frame);
+        if (header.getRoutingId() != RECEIVER_MESSAGE_ID) {
+            // The server does not send connector messages to its clients.
+            return;
+        }
+
+        switch (header.getTargetType()) {
+            case EcologyMessage.TARGET_TYPE_BROADCAST:
+                postMessageToReceiver(header, frame);
+                break;
+
+            case EcologyMessage.TARGET_TYPE_SPECIFIC:
+                if (header.getTargets().contains(getDeviceId())) {
+                    postMessageToReceiver(header, frame);
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.tcp;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import sg.edu.smu.ecology.EcologyLog;
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.connector.BaseConnector;
+import sg.edu.smu.ecology.connector.OutboundFrame;
+import sg.edu.smu.ecology.encoding.ByteBufferPool;
+import sg.edu.smu.ecology.encoding.FrameHeader;
+import sg.edu.smu.ecology.encoding.MessageDecoder;
+import sg.edu.smu.ecology.encoding.MessageEncoder;
+
+/**
+ * Base of the connectors using TCP, e.g. over a Wi-Fi LAN. All the connections of a device are
+ * handled by a single {@link TcpSelectorThread}; the frames are the same as the ones of the
+ * Bluetooth connectors (a length followed by the encoded message).
+ * <p>
+ * The selector thread only decodes the routing headers of the frames it receives, the payloads
+ * are decoded on the thread the receiver is called from.
+ *
+ * @author Quentin ROY
+ */
+abstract class TcpConnector extends BaseConnector implements TcpSelectorThread.Listener {
+    private static final String TAG = TcpConnector.class.getSimpleName();
+
+    // An Id used to route connector messages
+    static final int CONNECTOR_MESSAGE_ID = 0;
+    // An Id used to route receiver messages
+    static final int RECEIVER_MESSAGE_ID = 1;
+
+    // The thread the receiver is called from.
+    private final Executor receiverExecutor;
+    // The buffers the messages are encoded into
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
+    private final MessageEncoder messageEncoder = new MessageEncoder(bufferPool);
+    // Only used from the selector thread.
+    private final MessageDecoder headerDecoder = new MessageDecoder();
+    // Only used from the receiver thread.
+    private final MessageDecoder payloadDecoder = new MessageDecoder();
+    private long reconnectDelay = TcpSelectorThread.DEFAULT_RECONNECT_DELAY;
+    private long maxQueuedBytes = TcpConnection.DEFAULT_MAX_QUEUED_BYTES;
+    // Device Id of this device
+    private volatile String deviceId;
+    private volatile TcpSelectorThread selectorThread;
+
+    /**
+     * @param receiverExecutor the executor the receiver is called from, it must run the tasks
+     *                         one at a time in order; null for the main thread
+     */
+    TcpConnector(Executor receiverExecutor) {
+        if (receiverExecutor == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            receiverExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        this.receiverExecutor = receiverExecutor;
+    }
+
+    /**
+     * Connect to the ecology. The context is not used.
+     *
+     * @param context  the activity context
+     * @param deviceId the id of th device
+     */
+    @Override
+    public void connect(Context context, String deviceId) {
+        this.deviceId = deviceId;
+        try {
+            selectorThread = new TcpSelectorThread(getAddress(), isServer(), this);
+        } catch (IOException e) {
+            EcologyLog.e(TAG, "Could not create the selector: " + e.getMessage());
+            return;
+        }
+        selectorThread.setReconnectDelay(reconnectDelay);
+        selectorThread.setMaxQueuedBytes(maxQueuedBytes);
+        selectorThread.start();
+    }
+
+    /**
+     * Disconnect from the ecology. All the connections are closed.
+     */
+    @Override
+    public void disconnect() {
+        TcpSelectorThread currentThread = selectorThread;
+        selectorThread = null;
+        if (currentThread != null) {
+            currentThread.shutdown();
+        }
+    }
+
+    /**
+     * @param reconnectDelay the delay before a client tries to connect again after a failure,
+     *                       in milliseconds; applies from the next connection
+     */
+    public void setReconnectDelay(long reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    /**
+     * @param maxQueuedBytes the maximum number of bytes that can be waiting to be written on a
+     *                       connection, the peer is disconnected if it does not keep up; applies
+     *                       from the next connection
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * @return the device id of this device
+     */
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * @return the selector thread, or null if the connector is not connected
+     */
+    TcpSelectorThread getSelectorThread() {
+        return selectorThread;
+    }
+
+    /**
+     * Run a task on the receiver thread.
+     *
+     * @param task the task
+     */
+    void postToReceiver(Runnable task) {
+        try {
+            receiverExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            EcologyLog.w(TAG, "The receiver executor rejected a task: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decode a message on the receiver thread and pass it to the receiver.
+     *
+     * @param header the routing header of the message
+     * @param frame  the received frame
+     */
+    void postMessageToReceiver(final FrameHeader header, final byte[] frame) {
+        postToReceiver(new Runnable() {
+            @Override
+            public void run() {
+                getReceiver().onMessage(payloadDecoder.decodePayload(header, frame,
+                        MessageEncoder.LENGTH_PREFIX_SIZE,
+                        frame.length - MessageEncoder.LENGTH_PREFIX_SIZE));
+            }
+        });
+    }
+
+    /**
+     * Decode the routing header of a received frame. Only called from the selector thread.
+     *
+     * @param frame the frame
+     * @return its header
+     */
+    FrameHeader decodeHeader(byte[] frame) {
+        return headerDecoder.decodeHeader(frame, MessageEncoder.LENGTH_PREFIX_SIZE,
+                frame.length - MessageEncoder.LENGTH_PREFIX_SIZE);
+    }
+
+    /**
+     * Decode a whole received frame. Only called from the selector thread.
+     *
+     * @param header its header
+     * @param frame  the frame
+     * @return the decoded message
+     */
+    EcologyMessage decodeMessage(FrameHeader header, byte[] frame) {
+        return headerDecoder.decodePayload(header, frame, MessageEncoder.LENGTH_PREFIX_SIZE,
+                frame.length - MessageEncoder.LENGTH_PREFIX_SIZE);
+    }
+
+    /**
+     * Encode a message once and queue it on several connections.
+     *
+     * @param message     the message to be sent
+     * @param routingId   the id used to route the message on the receiving side
+     * @param connections the destination connections
+     */
+    void sendFrame(EcologyMessage message, int routingId,
+                   Collection<TcpConnection> connections) {
+        ByteBuffer buffer;
+        try {
+            buffer = messageEncoder.encodeFrame(message, routingId);
+        } catch (CharacterCodingException e) {
+            EcologyLog.e(TAG, "Could not encode the message", e);
+            return;
+        }
+        OutboundFrame frame = new OutboundFrame(buffer, bufferPool, message.getCoalescingKey());
+        try {
+            for (TcpConnection connection : connections) {
+                connection.send(frame.retain());
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Forward a received frame, as it has been received, to several connections.
+     *
+     * @param receivedFrame the frame
+     * @param connections   the destination connections
+     */
+    void forwardFrame(byte[] receivedFrame, Collection<TcpConnection> connections) {
+        OutboundFrame frame = new OutboundFrame(receivedFrame);
+        for (TcpConnection connection : connections) {
+            connection.send(frame.retain());
+        }
+        frame.release();
+    }
+
+    @Override
+    public void onListening(int port) {
+    }
+
+    /**
+     * @return the address to listen on (server) or to connect to (client)
+     */
+    abstract InetSocketAddress getAddress();
+
+    /**
+     * @return true if the connector accepts connections, false if it connects to a server
+     */
+    abstract boolean isServer();
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.tcp;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import sg.edu.smu.ecology.EcologyLog;
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.Settings;
+import sg.edu.smu.ecology.encoding.FrameHeader;
+
+/**
+ * This class helps the device to act as the server of an ecology whose devices are connected
+ * over TCP. Like {@link sg.edu.smu.ecology.connector.bluetooth.BluetoothServerConnector}, it is
+ * the hub of the ecology: the messages of the clients go through it and are forwarded, as they
+ * have been received, to their other targets. All the clients are handled by a single thread.
+ *
+ * @author Quentin ROY
+ */
+public class TcpServerConnector extends TcpConnector {
+    private static final String TAG = TcpServerConnector.class.getSimpleName();
+
+    /**
+     * The port used by default.
+     */
+    public static final int DEFAULT_PORT = 5723;
+
+    private final int port;
+    // The client connections, the id of the device is attached to them once it is known.
+    // Messages can be sent from any thread.
+    private final Set<TcpConnection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<TcpConnection, Boolean>());
+    private volatile boolean listening = false;
+
+    /**
+     * Create a server connector listening on {@link #DEFAULT_PORT}, its receiver is called from
+     * the main thread.
+     */
+    public TcpServerConnector() {
+        this(DEFAULT_PORT);
+    }
+
+    /**
+     * Create a server connector whose receiver is called from the main thread.
+     *
+     * @param port the port to listen on
+     */
+    public TcpServerConnector(int port) {
+        this(port, null);
+    }
+
+    /**
+     * @param port             the port to listen on (0 for any free port)
+     * @param receiverExecutor the executor the receiver is called from, it must run the tasks
+     *                         one at a time in order; null for the main thread
+     */
+    public TcpServerConnector(int port, Executor receiverExecutor) {
+        super(receiverExecutor);
+        this.port = port;
+    }
+
+    /**
+     * Send a message to the connected clients.
+     *
+     * @param message the message to be sent
+     */
+    @Override
+    public void sendMessage(EcologyMessage message) {
+        if (message.getTargetType() == EcologyMessage.TARGET_TYPE_SPECIFIC) {
+            sendFrame(message, RECEIVER_MESSAGE_ID, getConnections(message.getTargets()));
+        } else {
+            sendFrame(message, RECEIVER_MESSAGE_ID, connections);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        listening = false;
+        super.disconnect();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return listening;
+    }
+
+    /**
+     * @return the port the server is listening on, or -1 if it is not listening
+     */
+    public int getLocalPort() {
+        TcpSelectorThread selectorThread = getSelectorThread();
+        return selectorThread == null ? -1 : selectorThread.getLocalPort();
+    }
+
+    @Override
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(port);
+    }
+
+    @Override
+    boolean isServer() {
+        return true;
+    }
+
+    @Override
+    public void onListening(int port) {
+        EcologyLog.i(TAG, "Listening on port " + port);
+        listening = true;
+        // The server is ready to accept clients.
+        postToReceiver(new Runnable() {
+            @Override
+            public void run() {
+                getReceiver().onConnected();
+            }
+        });
+    }
+
+    @Override
+    public void onConnectionOpened(TcpConnection connection) {
+        EcologyLog.d(TAG, "A client device has been connected");
+        connections.add(connection);
+    }
+
+    @Override
+    public void onConnectionClosed(TcpConnection connection) {
+        connections.remove(connection);
+        final String deviceId = (String) connection.getAttachment();
+        if (deviceId != null) {
+            // A client device has been disconnected
+            postToReceiver(new Runnable() {
+                @Override
+                public void run() {
+                    getReceiver().onDeviceDisconnected(deviceId);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onFrameReceived(TcpConnection connection, byte[] frame) {
+        FrameHeader header = decodeHeader(frame);
+        if (header.getRoutingId() == CONNECTOR_MESSAGE_ID) {
+            onConnectorMessage(connection, decodeMessage(header, frame));
+        } else if (header.getRoutingId() == RECEIVER_MESSAGE_ID) {
+            onReceiverMessage(connection, header, frame);
+        }
+    }
+
+    /**
+     * When a connector message is received
+     *
+     * @param connection  the connection the message comes from
+     * @param messageData the decoded data
+     */
+    private void onConnectorMessage(TcpConnection connection, EcologyMessage messageData) {
+        String eventTypeReceived = (String) messageData.fetchArgument();
+        final String deviceIdReceived = (String) messageData.fetchArgument();
+
+        if (eventTypeReceived.equals(Settings.DEVICE_ID_EXCHANGE)) {
+            connection.setAttachment(deviceIdReceived);
+            postToReceiver(new Runnable() {
+                @Override
+                public void run() {
+                    getReceiver().onDeviceConnected(deviceIdReceived);
+                }
+            });
+        }
+    }
+
+    /**
+     * When a receiver message is received. Messages for other clients are forwarded as they
+     * have been received and the payload is decoded only if this device is one of the targets.
+     *
+     * @param connection the connection the message comes from
+     * @param header     the routing header of the message
+     * @param frame      the received frame
+     */
+    private void onReceiverMessage(TcpConnection connection, FrameHeader header, byte[] frame) {
+        switch (header.getTargetType()) {
+            case EcologyMessage.TARGET_TYPE_SERVER:
+                postMessageToReceiver(header, frame);
+                break;
+
+            case EcologyMessage.TARGET_TYPE_BROADCAST:
+                List<TcpConnection> otherConnections = new ArrayList<>(connections.size());
+                for (TcpConnection otherConnection : connections) {
+                    if (otherConnection != connection) {
+                        otherConnections.add(otherConnection);
+                    }
+                }
+                forwardFrame(frame, otherConnections);
+                postMessageToReceiver(header, frame);
+                break;
+
+            case EcologyMessage.TARGET_TYPE_SPECIFIC:
+                List<String> clientTargets = new ArrayList<>();
+                boolean isTarget = false;
+                for (String target : header.getTargets()) {
+                    if (target.equals(getDeviceId())) {
+                        isTarget = true;
+                    } else {
+                        clientTargets.add(target);
+                    }
+                }
+                if (clientTargets.size() > 0) {
+                    forwardFrame(frame, getConnections(clientTargets));
+                }
+                if (isTarget) {
+                    postMessageToReceiver(header, frame);
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Get the connections of the clients with the given device ids.
+     *
+     * @param targets the device ids
+     * @return the connections
+     */
+    private Collection<TcpConnection> getConnections(List<String> targets) {
+        List<TcpConnection> targetConnections = new ArrayList<>();
+        for (TcpConnection connection : connections) {
+            if (targets.contains(connection.getAttachment())) {
+                targetConnections.add(connection);
+            }
+        }
+        return targetConnections;
+    }
+}
@@ -32,6 +32,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Executor;
 
 import sg.edu.smu.ecology.connector.Connector;
 
@@ -70,8 +71,6 @@ public class EcologyTest {
     @Mock
     private EcologyLooper ecologyLooper;
     @Mock
-    private Handler connectorHandler;
-    @Mock
     private Handler ecologyLooperHandler;
 
     @Before
@@ -118,15 +117,6 @@ public class EcologyTest {
 
         PowerMockito.when(message.getArguments()).thenReturn(data);
 
-        when(connectorHandler.post(any(Runnable.class))).thenAnswer(new Answer<Object>() {
-            @Override
-            public Object answer(InvocationOnMock invocation) throws Throwable {
-                invocation.getArgumentAt(0, Runnable.class).run();
-                return null;
-            }
-        });
-
-        ecology.setConnectorHandler(connectorHandler);
         ecology.onRoomMessage(roomName, message);
 
         // To capture the argument in the sendMessage method
@@ -172,15 +162,6 @@ public class EcologyTest {
 
         PowerMockito.when(message.getArguments()).thenReturn(data);
 
-        when(connectorHandler.post(any(Runnable.class))).thenAnswer(new Answer<Object>() {
-            @Override
-            public Object answer(InvocationOnMock invocation) throws Throwable {
-                invocation.getArgumentAt(0, Runnable.class).run();
-                return null;
-            }
-        });
-
-        ecology.setConnectorHandler(connectorHandler);
         ecology.onEcologyDataSyncMessage(message);
 
         // To capture the argument in the sendMessage method
@@ -514,8 +495,8 @@ public class EcologyTest {
         Map<Object, Object> newData = new HashMap<>(data);
         newData.put(deviceId, false);
 
-        // Verify that new value is set in ecology data sync
-        verify(ecologyDataSync, times(1)).setData("devices", newData);
+        // Verify that the new entry is put in the ecology data sync
+        verify(ecologyDataSync, times(1)).putMapEntry("devices", deviceId, false);
 
         syncDataChangeListener.onDataUpdate("devices", newData, data);
 
@@ -576,8 +557,8 @@ public class EcologyTest {
         Map<Object, Object> newData = new HashMap<>(data);
         newData.remove(deviceId);
 
-        // Verify that new value is set in ecology data sync
-        verify(ecologyDataSync, times(1)).setData("devices", newData);
+        // Verify that the entry is removed from the ecology data sync
+        verify(ecologyDataSync, times(1)).removeMapEntry("devices", deviceId);
 
         syncDataChangeListener.onDataUpdate("devices", newData, data);
 
@@ -647,4 +628,48 @@ public class EcologyTest {
         verify(room, times(1)).onEcologyDisconnected();
         verify(room1, times(1)).onEcologyDisconnected();
     }
+
+    // A device connected again to the ecology only asks for what changed while it was away
+    @Test
+    public void testEcologyReconnected() {
+        ArgumentCaptor<Connector.Receiver> receiverCaptor = ArgumentCaptor.forClass(Connector.Receiver.class);
+        verify(connector).setReceiver(receiverCaptor.capture());
+        Connector.Receiver receiver = receiverCaptor.getValue();
+
+        // A real data sync, running its tasks right away
+        PowerMockito.when(dataSyncFactory.createDataSync(any(DataSync.Connector.class),
+                any(DataSync.SyncDataChangeListener.class), any(Boolean.class), any(Ecology.class)))
+                .thenAnswer(new Answer<DataSync>() {
+                    @Override
+                    public DataSync answer(InvocationOnMock invocation) throws Throwable {
+                        return new DataSync(
+                                invocation.getArgumentAt(0, DataSync.Connector.class),
+                                invocation.getArgumentAt(1, DataSync.SyncDataChangeListener.class),
+                                false, new Executor() {
+                                    @Override
+                                    public void execute(Runnable command) {
+                                        command.run();
+                                    }
+                                });
+                    }
+                });
+
+        receiver.onConnected();
+        ArgumentCaptor<EcologyMessage> messageCaptor = ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(connector).sendMessage(messageCaptor.capture());
+        // A full synchronization is requested
+        assertEquals(messageCaptor.getValue().getArguments(), Arrays.<Object>asList(1, 0));
+
+        // The reference answers with its data, its session and its version
+        ecology.getEcologyDataSync().onMessage(new EcologyMessage(Arrays.<Object>asList(
+                Collections.singletonMap("devices", Collections.singletonMap("Server", true)), 1,
+                42L, 7L, 2)));
+        receiver.onDisconnected();
+        receiver.onConnected();
+
+        verify(connector, times(2)).sendMessage(messageCaptor.capture());
+        // Only the changes since the version received are requested
+        assertEquals(messageCaptor.getValue().getArguments(), Arrays.<Object>asList(42L, 7L, 1, 0));
+        assertEquals(ecology.getAvailableDevices(), Collections.singletonList("Server"));
+    }
 }
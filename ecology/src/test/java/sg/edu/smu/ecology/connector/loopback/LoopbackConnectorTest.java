@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.loopback;
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.connector.Connector;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for the connectors of a {@link LoopbackNetwork}.
+ *
+ * @author Quentin Roy
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Log.class)
+public class LoopbackConnectorTest {
+    private static final long TIMEOUT = 2000;
+
+    private LoopbackNetwork network;
+    private LoopbackServerConnector server;
+    private Connector.Receiver serverReceiver;
+    private List<LoopbackClientConnector> clients;
+    private List<Connector.Receiver> clientReceivers;
+
+    @Before
+    public void setUp() throws Exception {
+        PowerMockito.mockStatic(Log.class);
+
+        network = new LoopbackNetwork();
+        server = network.createServerConnector();
+        serverReceiver = mock(Connector.Receiver.class);
+        server.setReceiver(serverReceiver);
+
+        clients = new ArrayList<>();
+        clientReceivers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            LoopbackClientConnector client = network.createClientConnector();
+            Connector.Receiver receiver = mock(Connector.Receiver.class);
+            client.setReceiver(receiver);
+            clients.add(client);
+            clientReceivers.add(receiver);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (LoopbackClientConnector client : clients) {
+            client.disconnect();
+        }
+        server.disconnect();
+    }
+
+    private void connectAll() {
+        server.connect(null, "server");
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).connect(null, "client" + i);
+        }
+        for (int i = 0; i < clients.size(); i++) {
+            verify(serverReceiver, timeout(TIMEOUT)).onDeviceConnected("client" + i);
+        }
+    }
+
+    private static EcologyMessage createMessage(String source, Integer targetType,
+                                                List<String> targets, Object... arguments) {
+        EcologyMessage message = new EcologyMessage(Arrays.asList(arguments));
+        message.setSource(source);
+        message.setTargetType(targetType);
+        message.setTargets(targets);
+        return message;
+    }
+
+    // Check the connection notifications of the server and of its clients
+    @Test
+    public void connection() {
+        connectAll();
+
+        verify(serverReceiver, timeout(TIMEOUT)).onConnected();
+        for (Connector.Receiver clientReceiver : clientReceivers) {
+            verify(clientReceiver, timeout(TIMEOUT)).onConnected();
+        }
+        assertThat(server.isConnected()).isTrue();
+        for (LoopbackClientConnector client : clients) {
+            assertThat(client.isConnected()).isTrue();
+        }
+    }
+
+    // The clients connected before the server must get linked to it once it connects
+    @Test
+    public void clientsConnectedBeforeServer() {
+        clients.get(0).connect(null, "client0");
+        verify(clientReceivers.get(0), after(100).never()).onConnected();
+        assertThat(clients.get(0).isConnected()).isFalse();
+
+        server.connect(null, "server");
+
+        verify(clientReceivers.get(0), timeout(TIMEOUT)).onConnected();
+        verify(serverReceiver, timeout(TIMEOUT)).onDeviceConnected("client0");
+    }
+
+    // A message broadcast by a client must reach the server and the other clients
+    @Test
+    public void clientBroadcast() {
+        connectAll();
+
+        clients.get(0).sendMessage(createMessage("client0", EcologyMessage.TARGET_TYPE_BROADCAST,
+                Collections.<String>emptyList(), 1, "test", 2.5f));
+
+        ArgumentCaptor<EcologyMessage> captor = ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(serverReceiver, timeout(TIMEOUT)).onMessage(captor.capture());
+        assertThat(captor.getValue().getArguments()).containsExactly(1, "test", 2.5f).inOrder();
+        assertThat(captor.getValue().getSource()).isEqualTo("client0");
+
+        for (int i = 1; i < clients.size(); i++) {
+            captor = ArgumentCaptor.forClass(EcologyMessage.class);
+            verify(clientReceivers.get(i), timeout(TIMEOUT)).onMessage(captor.capture());
+            assertThat(captor.getValue().getArguments()).containsExactly(1, "test", 2.5f)
+                    .inOrder();
+        }
+        verify(clientReceivers.get(0), after(100).never()).onMessage(any(EcologyMessage.class));
+    }
+
+    // A message sent to specific devices must only reach them
+    @Test
+    public void clientSpecificMessage() {
+        connectAll();
+
+        clients.get(0).sendMessage(createMessage("client0", EcologyMessage.TARGET_TYPE_SPECIFIC,
+                Arrays.asList("client2", "server"), "hello"));
+
+        verify(serverReceiver, timeout(TIMEOUT)).onMessage(any(EcologyMessage.class));
+        verify(clientReceivers.get(2), timeout(TIMEOUT)).onMessage(any(EcologyMessage.class));
+        verify(clientReceivers.get(1), after(100).never()).onMessage(any(EcologyMessage.class));
+        verify(clientReceivers.get(0), never()).onMessage(any(EcologyMessage.class));
+    }
+
+    // A message sent to the server must not be forwarded
+    @Test
+    public void clientServerMessage() {
+        connectAll();
+
+        clients.get(1).sendMessage(createMessage("client1", EcologyMessage.TARGET_TYPE_SERVER,
+                Collections.<String>emptyList(), "hello"));
+
+        verify(serverReceiver, timeout(TIMEOUT)).onMessage(any(EcologyMessage.class));
+        for (Connector.Receiver clientReceiver : clientReceivers) {
+            verify(clientReceiver, after(100).never()).onMessage(any(EcologyMessage.class));
+        }
+    }
+
+    // Messages sent by the server to specific clients
+    @Test
+    public void serverSpecificMessage() {
+        connectAll();
+
+        server.sendMessage(createMessage("server", EcologyMessage.TARGET_TYPE_SPECIFIC,
+                Collections.singletonList("client1"), "hello"));
+
+        verify(clientReceivers.get(1), timeout(TIMEOUT)).onMessage(any(EcologyMessage.class));
+        verify(clientReceivers.get(0), after(100).never()).onMessage(any(EcologyMessage.class));
+        verify(clientReceivers.get(2), never()).onMessage(any(EcologyMessage.class));
+    }
+
+    // The messages of a device must be received in the order they have been sent
+    @Test
+    public void messagesOrder() {
+        connectAll();
+
+        for (int i = 0; i < 100; i++) {
+            clients.get(0).sendMessage(createMessage("client0",
+                    EcologyMessage.TARGET_TYPE_BROADCAST, Collections.<String>emptyList(), i));
+        }
+
+        ArgumentCaptor<EcologyMessage> captor = ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(clientReceivers.get(1), timeout(TIMEOUT).times(100)).onMessage(captor.capture());
+        for (int i = 0; i < 100; i++) {
+            assertThat(captor.getAllValues().get(i).getArguments()).containsExactly(i);
+        }
+    }
+
+    // Disconnection of a client
+    @Test
+    public void clientDisconnection() {
+        connectAll();
+        verify(clientReceivers.get(1), timeout(TIMEOUT)).onConnected();
+
+        clients.get(1).disconnect();
+
+        verify(serverReceiver, timeout(TIMEOUT)).onDeviceDisconnected("client1");
+        verify(clientReceivers.get(1), timeout(TIMEOUT)).onDisconnected();
+        assertThat(clients.get(1).isConnected()).isFalse();
+
+        // The disconnected client must not receive messages anymore
+        server.sendMessage(createMessage("server", EcologyMessage.TARGET_TYPE_BROADCAST,
+                Collections.<String>emptyList(), "hello"));
+        verify(clientReceivers.get(0), timeout(TIMEOUT)).onMessage(any(EcologyMessage.class));
+        verify(clientReceivers.get(1), after(100).never()).onMessage(any(EcologyMessage.class));
+    }
+
+    // Disconnection of the server
+    @Test
+    public void serverDisconnection() {
+        connectAll();
+        for (Connector.Receiver clientReceiver : clientReceivers) {
+            verify(clientReceiver, timeout(TIMEOUT)).onConnected();
+        }
+
+        server.disconnect();
+
+        for (int i = 0; i < clients.size(); i++) {
+            verify(serverReceiver, timeout(TIMEOUT)).onDeviceDisconnected("client" + i);
+            verify(clientReceivers.get(i), timeout(TIMEOUT)).onDisconnected();
+            assertThat(clients.get(i).isConnected()).isFalse();
+        }
+
+        // The clients must get linked to the next server
+        LoopbackServerConnector newServer = network.createServerConnector();
+        Connector.Receiver newServerReceiver = mock(Connector.Receiver.class);
+        newServer.setReceiver(newServerReceiver);
+        newServer.connect(null, "server");
+        for (int i = 0; i < clients.size(); i++) {
+            verify(newServerReceiver, timeout(TIMEOUT)).onDeviceConnected("client" + i);
+            verify(clientReceivers.get(i), timeout(TIMEOUT).times(2)).onConnected();
+        }
+        newServer.disconnect();
+    }
+
+    // Only one server can be connected to a network
+    @Test(expected = IllegalStateException.class)
+    public void secondServer() {
+        server.connect(null, "server");
+        LoopbackServerConnector secondServer = network.createServerConnector();
+        secondServer.setReceiver(mock(Connector.Receiver.class));
+        try {
+            secondServer.connect(null, "server2");
+        } finally {
+            secondServer.disconnect();
+        }
+    }
+
+    // Many simulated devices
+    @Test
+    public void manyClients() {
+        server.connect(null, "server");
+        List<Connector.Receiver> receivers = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            LoopbackClientConnector client = network.createClientConnector();
+            Connector.Receiver receiver = mock(Connector.Receiver.class);
+            client.setReceiver(receiver);
+            clients.add(client);
+            receivers.add(receiver);
+            client.connect(null, "device" + i);
+        }
+        verify(serverReceiver, timeout(TIMEOUT).times(30)).onDeviceConnected(any(String.class));
+        for (Connector.Receiver receiver : receivers) {
+            verify(receiver, timeout(TIMEOUT)).onConnected();
+        }
+
+        for (int i = 0; i < 30; i++) {
+            clients.get(clients.size() - 30 + i).sendMessage(createMessage("device" + i,
+                    EcologyMessage.TARGET_TYPE_BROADCAST, Collections.<String>emptyList(), i));
+        }
+
+        verify(serverReceiver, timeout(TIMEOUT).times(30)).onMessage(any(EcologyMessage.class));
+        for (Connector.Receiver receiver : receivers) {
+            verify(receiver, timeout(TIMEOUT).times(29)).onMessage(any(EcologyMessage.class));
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2017, Singapore Management University.
+ * All rights reserved.
+ *
+ * This code is licensed under the MIT license.
+ * See file LICENSE (or LICENSE.html) for more information.
+ */
+
+package sg.edu.smu.ecology.connector.tcp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import sg.edu.smu.ecology.EcologyMessage;
+import sg.edu.smu.ecology.connector.Connector;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for {@link TcpServerConnector} and {@link TcpClientConnector} over the loopback
+ * interface.
+ *
+ * @author Quentin Roy
+ */
+public class TcpConnectorTest {
+    private static final long TIMEOUT = 5000;
+
+    private List<ExecutorService> executors;
+    private TcpServerConnector server;
+    private Connector.Receiver serverReceiver;
+    private List<TcpClientConnector> clients;
+    private List<Connector.Receiver> clientReceivers;
+
+    @Before
+    public void setUp() throws Exception {
+        executors = new ArrayList<>();
+        clients = new ArrayList<>();
+        clientReceivers = new ArrayList<>();
+
+        server = new TcpServerConnector(0, newExecutor());
+        serverReceiver = mock(Connector.Receiver.class);
+        server.setReceiver(serverReceiver);
+        server.connect(null, "server");
+        verify(serverReceiver, timeout(TIMEOUT)).onConnected();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // The selector threads post their last notifications to the receiver executors when
+        // they end: they are shut down once the threads are over.
+        List<TcpSelectorThread> selectorThreads = new ArrayList<>();
+        for (TcpConnector connector : connectors()) {
+            TcpSelectorThread selectorThread = connector.getSelectorThread();
+            if (selectorThread != null) {
+                selectorThreads.add(selectorThread);
+            }
+            connector.disconnect();
+        }
+        for (TcpSelectorThread selectorThread : selectorThreads) {
+            selectorThread.join(TIMEOUT);
+        }
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+        for (ExecutorService executor : executors) {
+            executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // The clients and the server
+    private List<TcpConnector> connectors() {
+        List<TcpConnector> connectors = new ArrayList<TcpConnector>(clients);
+        connectors.add(server);
+        return connectors;
+    }
+
+    private ExecutorService newExecutor() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executors.add(executor);
+        return executor;
+    }
+
+    private void connectClients(int count) {
+        int start = clients.size();
+        for (int i = start; i < start + count; i++) {
+            TcpClientConnector client = new TcpClientConnector("127.0.0.1",
+                    server.getLocalPort(), newExecutor());
+            client.setReconnectDelay(50);
+            Connector.Receiver receiver = mock(Connector.Receiver.class);
+            client.setReceiver(receiver);
+            clients.add(client);
+            clientReceivers.add(receiver);
+            client.connect(null, "client" + i);
+        }
+        for (int i = start; i < start + count; i++) {
+            verify(serverReceiver, timeout(TIMEOUT)).onDeviceConnected("client" + i);
+            verify(clientReceivers.get(i), timeout(TIMEOUT)).onConnected();
+        }
+    }
+
+    private static EcologyMessage createMessage(String source, Integer targetType,
+                                                List<String> targets, Object... arguments) {
+        EcologyMessage message = new EcologyMessage(Arrays.asList(arguments));
+        message.setSource(source);
+        message.setTargetType(targetType);
+        message.setTargets(targets);
+        return message;
+    }
+
+    // Check the connection notifications of the server and of its clients
+    @Test
+    public void connection() {
+        connectClients(3);
+
+        assertThat(server.isConnected()).isTrue();
+        assertThat(server.getLocalPort()).isGreaterThan(0);
+        for (TcpClientConnector client : clients) {
+            assertThat(client.isConnected()).isTrue();
+        }
+    }
+
+    // A message broadcast by a client must reach the server and the other clients
+    @Test
+    public void clientBroadcast() {
+        connectClients(3);
+
+        clients.get(0).sendMessage(createMessage("client0", EcologyMessage.TARGET_TYPE_BROADCAST,
+                Collections.<String>emptyList(), 1, "test", 2.5f));
+
+        ArgumentCaptor<EcologyMessage> captor = ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(serverReceiver, timeout(TIMEOUT)).onMessage(captor.capture());
+        assertThat(captor.getValue().getArguments()).containsExactly(1, "test", 2.5f).inOrder();
+        assertThat(captor.getValue().getSource()).isEqualTo("client0");
+
+        for (int i = 1; i < clients.size(); i++) {
+            captor = ArgumentCaptor.forClass(EcologyMessage.class);
+            verify(clientReceivers.get(i), timeout(TIMEOUT)).onMessage(captor.capture());
+            assertThat(captor.getValue().getArguments()).containsExactly(1, "test", 2.5f)
+                    .inOrder();
+        }
+        verify(clientReceivers.get(0), after(100).never()).onMessage(any(EcologyMessage.class));
+    }
+
+    // A message sent to specific devices must only reach them
+    @Test
+    public void clientSpecificMessage() {
+        connectClients(3);
+
+        clients.get(0).sendMessage(createMessage("client0", EcologyMessage.TARGET_TYPE_SPECIFIC,
+                Arrays.asList("client2", "server"), "hello"));
+
+        verify(serverReceiver, timeout(TIMEOUT)).onMessage(any(EcologyMessage.class));
+        verify(clientReceivers.get(2), timeout(TIMEOUT)).onMessage(any(EcologyMessage.class));
+        verify(clientReceivers.get(1), after(100).never()).onMessage(any(EcologyMessage.class));
+        verify(clientReceivers.get(0), never()).onMessage(any(EcologyMessage.class));
+    }
+
+    // Messages sent by the server to specific clients
+    @Test
+    public void serverSpecificMessage() {
+        connectClients(3);
+
+        server.sendMessage(createMessage("server", EcologyMessage.TARGET_TYPE_SPECIFIC,
+                Collections.singletonList("client1"), "hello"));
+
+        verify(clientReceivers.get(1), timeout(TIMEOUT)).onMessage(any(EcologyMessage.class));
+        verify(clientReceivers.get(0), after(100).never()).onMessage(any(EcologyMessage.class));
+        verify(clientReceivers.get(2), never()).onMessage(any(EcologyMessage.class));
+    }
+
+    // The messages of a device must be received in the order they have been sent
+    @Test
+    public void messagesOrder() {
+        connectClients(2);
+
+        for (int i = 0; i < 1000; i++) {
+            clients.get(0).sendMessage(createMessage("client0",
+                    EcologyMessage.TARGET_TYPE_BROADCAST, Collections.<String>emptyList(), i));
+        }
+
+        ArgumentCaptor<EcologyMessage> captor = ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(clientReceivers.get(1), timeout(TIMEOUT).times(1000)).onMessage(captor.capture());
+        for (int i = 0; i < 1000; i++) {
+            assertThat(captor.getAllValues().get(i).getArguments()).containsExactly(i);
+        }
+    }
+
+    // Frames larger than the socket buffers must be reassembled
+    @Test
+    public void largeMessage() {
+        connectClients(2);
+
+        byte[] blob = new byte[3 * 1024 * 1024];
+        new Random(42).nextBytes(blob);
+        clients.get(0).sendMessage(createMessage("client0", EcologyMessage.TARGET_TYPE_BROADCAST,
+                Collections.<String>emptyList(), blob, "end"));
+
+        ArgumentCaptor<EcologyMessage> captor = ArgumentCaptor.forClass(EcologyMessage.class);
+        verify(clientReceivers.get(1), timeout(TIMEOUT)).onMessage(captor.capture());
+        assertThat((byte[]) captor.getValue().getArguments().get(0)).isEqualTo(blob);
+        assertThat(captor.getValue().getArguments().get(1)).isEqualTo("end");
+    }
+
+    // Disconnection of a client
+    @Test
+    public void clientDisconnection() {
+        connectClients(2);
+
+        clients.get(1).disconnect();
+
+        verify(serverReceiver, timeout(TIMEOUT)).onDeviceDisconnected("client1");
+        verify(clientReceivers.get(1), timeout(TIMEOUT)).onDisconnected();
+        assertThat(clients.get(1).isConnected()).isFalse();
+    }
+
+    // The clients must connect again once the server is back
+    @Test
+    public void serverDisconnection() throws Exception {
+        connectClients(2);
+        int port = server.getLocalPort();
+
+        server.disconnect();
+
+        for (int i = 0; i < clients.size(); i++) {
+            verify(serverReceiver, timeout(TIMEOUT)).onDeviceDisconnected("client" + i);
+            verify(clientReceivers.get(i), timeout(TIMEOUT)).onDisconnected();
+        }
+
+        server = new TcpServerConnector(port, newExecutor());
+        serverReceiver = mock(Connector.Receiver.class);
+        server.setReceiver(serverReceiver);
+        server.connect(null, "server");
+        for (int i = 0; i < clients.size(); i++) {
+            verify(serverReceiver, timeout(TIMEOUT)).onDeviceConnected("client" + i);
+            verify(clientReceivers.get(i), timeout(TIMEOUT).times(2)).onConnected();
+        }
+    }
+
+    // A room of 50 devices handled by the single server thread
+    @Test
+    public void manyClients() {
+        connectClients(50);
+
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).sendMessage(createMessage("client" + i,
+                    EcologyMessage.TARGET_TYPE_BROADCAST, Collections.<String>emptyList(), i));
+        }
+
+        verify(serverReceiver, timeout(TIMEOUT).times(50)).onMessage(any(EcologyMessage.class));
+        for (Connector.Receiver receiver : clientReceivers) {
+            verify(receiver, timeout(TIMEOUT).times(49)).onMessage(any(EcologyMessage.class));
+        }
+    }
+}